@@ -0,0 +1,89 @@
+package xiao.parsec;
+
+import java.util.function.IntPredicate;
+
+/**
+ * 单个字符的判断 (Ch, ChIn, ChNone, Digit, Letter ...), 建的时候算好, 匹配时不装箱不查 HashSet <br>
+ * ASCII 查两个 long 的位图; 非 ASCII 在 ChIn/ChNone 里查 long[] 位图, Digit/Letter 这类交给原来的 Character 方法 <br>
+ * FirstSet 直接用这里的位图, 不用再把 ASCII 测一遍
+ */
+final class CharClass implements IntPredicate {
+    final long lo;          // 0 ~ 63
+    final long hi;          // 64 ~ 127
+    final boolean other;    // 有没有可能是非 ASCII
+    final IntPredicate rest; // 非 ASCII 的判断
+
+    private CharClass(long lo, long hi, boolean other, IntPredicate rest) {
+        this.lo = lo;
+        this.hi = hi;
+        this.other = other;
+        this.rest = rest;
+    }
+
+    @Override
+    public boolean test(int c) {
+        if (c < 128) {
+            // long 的移位只看低 6 位, hi >>> c 就是 hi >>> (c - 64)
+            return ((c < 64 ? lo : hi) >>> c & 1) != 0;
+        }
+        return rest.test(c);
+    }
+
+    static CharClass is(char c) {
+        return of(String.valueOf(c));
+    }
+
+    static CharClass not(char c) {
+        return none(String.valueOf(c));
+    }
+
+    // str 里的任一字符
+    static CharClass of(String str) {
+        long lo = 0, hi = 0;
+        char max = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 64) lo |= 1L << c;
+            else if (c < 128) hi |= 1L << c;
+            else if (c > max) max = c;
+        }
+        if (max == 0) {
+            return new CharClass(lo, hi, false, c -> false);
+        }
+        long[] bits = new long[(max >> 6) + 1];
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 128) bits[c >> 6] |= 1L << c;
+        }
+        return new CharClass(lo, hi, true, c -> (c >> 6) < bits.length && (bits[c >> 6] >>> c & 1) != 0);
+    }
+
+    // 不在 str 里的字符
+    static CharClass none(String str) {
+        CharClass in = of(str);
+        return new CharClass(~in.lo, ~in.hi, true, in.rest.negate());
+    }
+
+    // 按谓词先把 ASCII 测一遍存成位图, 非 ASCII 照旧调 p
+    static CharClass of(IntPredicate p) {
+        long lo = 0, hi = 0;
+        for (int c = 0; c < 128; c++) {
+            if (p.test(c)) {
+                if (c < 64) lo |= 1L << c;
+                else hi |= 1L << c;
+            }
+        }
+        return new CharClass(lo, hi, true, p);
+    }
+
+    // src 从 i 开始 (到 to 为止) 和 str 相同的字符数, 等于 str.length() 就是匹配上了; 不建 Matcher 不 substring
+    static int prefix(CharSequence src, int i, int to, String str) {
+        int n = Math.min(str.length(), to - i);
+        for (int k = 0; k < n; k++) {
+            if (src.charAt(i + k) != str.charAt(k)) {
+                return k;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,985 @@
+package xiao.parsec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 正则子集编译成按字符查表的 DFA, 代替 java.util.regex 做 Pat 的锚定匹配, 不分配 Matcher, 不回溯 <br>
+ * 支持: 字面量 (含 \Q..\E), 字符类 [..] \d \s \w . 及其反面, 分组 (捕获/非捕获/命名), |, * + ? {n,m} 和懒惰版本, (?=..) (?!..),
+ * 内联 flags i s d m (i 只管 ASCII, 同没有 UNICODE_CASE 的 Pattern) <br>
+ * 其余 (^ $ \b \A \G, 反向引用, 后顾, 固化分组, 占有量词, \p{..}, 嵌套字符类和 &&, (?x) (?u) 等) compile 返回 null, 调用方继续用 java.util.regex <br>
+ * <br>
+ * match 同 Matcher.region(from, to).lookingAt(): NFA 线程按回溯的优先级排成有序集合做子集构造 (同 RE2 的 leftmost-first),
+ * 有线程匹配成功时, 排在它后面的 (回溯里轮不到的) 都剪掉, 剩下的都比它优先, 所以最后一次成功就是回溯找到的第一个匹配 <br>
+ * 零宽的迭代同 Pattern.Loop: 一次迭代没前进就直接退出循环; 可空的循环体只支持 * + ?, 其他计数和 Loop 的计数语义对不上 <br>
+ * 前瞻留在状态里, 跑到那个位置时用子 DFA 求值 (边界同 opaque bounds, 看不到 to 之后), 各个前瞻的结果拼成位图再查一次表 <br>
+ * 按码点匹配同 Pattern: 高低代理对算一个字符, 只有反面的字符类和 . 能匹配 <br>
+ * longest 是最长匹配 (不剪枝, 跑到没有活线程为止) <br>
+ * 状态懒构造, 多线程共享: 慢路径加锁, 已经建好的转移直接读表
+ */
+public final class DFA {
+
+    // ~ NFA ~
+    static final int CHR = 0;   // arg: 字符集, x: 下一条
+    static final int SPLIT = 1; // 先 x 后 y
+    static final int MATCH = 2;
+    static final int LOOK = 3;  // arg: 子 DFA, y: 1 是 (?!..), x: 下一条
+    static final int MARK = 4;  // arg: 循环, 进入一次迭代
+    static final int CHECK = 5; // arg: 循环, 一次迭代结束: 前进了回 x (循环头), 没前进去 y (出口)
+
+    static final int INF = Integer.MAX_VALUE;
+    static final int MAX_NODES = 10000;
+    static final int MAX_STATES = 10000;
+
+    final Pattern pattern;
+    final boolean longest;
+
+    final int[] op, x, y, arg;
+    final int start;
+    final Chars[] sets;
+    final DFA[] looks;
+
+    // 字符分段: starts[k] 起是第 k 类, 同一类里的字符在所有字符集里进出都一样; 码点 > 0xFFFF 是最后一类 supp
+    final int[] starts;
+    final int[] ascii;
+    final int supp;
+
+    final Map<Key, State> states = new HashMap<>();
+    final State init;
+    private volatile DFA longestDFA;
+
+    private DFA(Pattern pattern, Program p, boolean longest) {
+        this.pattern = pattern;
+        this.longest = longest;
+        this.op = p.op;
+        this.x = p.x;
+        this.y = p.y;
+        this.arg = p.arg;
+        this.start = p.start;
+        this.sets = p.sets;
+        this.looks = p.looks;
+        this.starts = p.starts;
+        this.ascii = p.ascii;
+        this.supp = p.starts.length;
+        Builder b = new Builder();
+        closure(p.start, 0, b);
+        this.init = intern(b);
+    }
+
+    /**
+     * 不在支持的子集里返回 null
+     */
+    public static DFA compile(Pattern ptn) {
+        int flags = ptn.flags();
+        if ((flags & ~(Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.UNIX_LINES | Pattern.MULTILINE | Pattern.LITERAL)) != 0) {
+            return null;
+        }
+        try {
+            Parser parser = new Parser(ptn.pattern(), flags);
+            Re re = (flags & Pattern.LITERAL) != 0 ? parser.quoted(ptn.pattern()) : parser.parse();
+            return new DFA(ptn, new Program(re), false);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * 同 ptn.matcher(src).region(from, to).lookingAt(), 返回匹配的结束位置, 没匹配上 -1
+     */
+    public int match(CharSequence src, int from, int to) {
+        if (split(src, to)) {
+            return lookingAt(pattern, src, from, to);
+        }
+        return (int) scan(src, from, to);
+    }
+
+    // to 把代理对切开时 Pattern 各个节点的处理不一致 (贪婪的字符类吃前一半, 单个的不吃), 交给 java.util.regex
+    static boolean split(CharSequence src, int to) {
+        return to > 0 && to < src.length() && Character.isHighSurrogate(src.charAt(to - 1)) && Character.isLowSurrogate(src.charAt(to));
+    }
+
+    /**
+     * 从 from 开始的最长匹配的结束位置, 没匹配上 -1
+     */
+    public int longest(CharSequence src, int from, int to) {
+        DFA d = longestDFA;
+        if (d == null) {
+            synchronized (this) {
+                d = longestDFA;
+                if (d == null) {
+                    longestDFA = d = new DFA(pattern, new Program(this), true);
+                }
+            }
+        }
+        return (int) d.scan(src, from, to);
+    }
+
+    /**
+     * 不支持的正则退回 java.util.regex, region 默认 opaque + anchoring bounds
+     */
+    public static int lookingAt(Pattern ptn, CharSequence src, int from, int to) {
+        Matcher mat = ptn.matcher(src).region(from, to);
+        return mat.lookingAt() ? mat.end() : -1;
+    }
+
+    @Override
+    public String toString() {
+        return pattern == null ? "DFA" : pattern.pattern();
+    }
+
+    /**
+     * 低 32 位是匹配的结束位置 (-1 没匹配上), 高 32 位是看过的最远位置, 等于 to 说明读到了结尾 (同 hitEnd)
+     */
+    long scan(CharSequence s, int from, int to) {
+        State st = init;
+        int i = from, last = -1, look = -1;
+        while (true) {
+            while (st.look) {
+                long mask = 0;
+                int j = 0;
+                for (long it : st.items) {
+                    int pc = (int) it;
+                    if (op[pc] == LOOK) {
+                        long r = looks[arg[pc]].scan(s, i, to);
+                        look = Math.max(look, (int) (r >>> 32));
+                        if (((int) r >= 0) != (y[pc] != 0)) {
+                            mask |= 1L << j;
+                        }
+                        j++;
+                    }
+                }
+                State n = j <= 64 ? st.resolved.get(mask) : null;
+                st = n != null ? n : resolve(st, mask, j <= 64);
+            }
+            if (st.accept) {
+                last = i;
+            }
+            if (!st.live || i >= to) {
+                break;
+            }
+            char c = s.charAt(i);
+            int cls, w = 1;
+            if (c < 128) {
+                cls = ascii[c];
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                cls = supp;
+                w = 2;
+            } else {
+                cls = classOf(c);
+            }
+            State n = st.next[cls];
+            st = n != null ? n : step(st, cls);
+            i += w;
+        }
+        // 停在 to 并且还有活线程, 说明要读 to 处的字符; 否则最远读到 i - 1
+        int read = st.live && i >= to ? to : i - 1;
+        return (long) Math.max(read, look) << 32 | (last & 0xFFFFFFFFL);
+    }
+
+    int classOf(char c) {
+        int lo = 0, hi = starts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= c) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    boolean has(Chars set, int cls) {
+        return cls == supp ? set.supp : set.bmp.get(starts[cls]);
+    }
+
+    // ~ 子集构造 ~
+
+    static final class State {
+        final long[] items;     // 按优先级排好的线程: CHR 的 pc, 或者 LOOK 的 pc | 循环标记 << 32
+        final boolean accept;   // 排在所有 items 之后有一个匹配成功的线程
+        final boolean look;     // 有 LOOK 要在当前位置求值
+        final boolean live;     // 还有要读字符的线程
+        final State[] next;     // 按字符类查表, 懒构造
+        volatile Map<Long, State> resolved = Collections.emptyMap(); // 前瞻结果的位图 -> 状态, 写时复制
+
+        State(long[] items, boolean accept, boolean look, boolean live, int classes) {
+            this.items = items;
+            this.accept = accept;
+            this.look = look;
+            this.live = live;
+            this.next = look ? null : new State[classes];
+        }
+    }
+
+    static final class Key {
+        final long[] items;
+        final boolean accept;
+
+        Key(long[] items, boolean accept) {
+            this.items = items;
+            this.accept = accept;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).accept == accept && Arrays.equals(((Key) o).items, items);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(items) * 2 + (accept ? 1 : 0);
+        }
+    }
+
+    final class Builder {
+        long[] items = new long[8];
+        int size;
+        boolean matched;
+        final Set<Long> seen = new HashSet<>();
+
+        void add(long item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        // leftmost-first: 有线程匹配成功以后, 后面的线程都轮不到
+        boolean cut() {
+            return matched && !longest;
+        }
+    }
+
+    // 从 pc 走空转移, 按优先级收集线程; flags: 这次闭包里进入了迭代, 还没读过字符的循环
+    void closure(int pc, long flags, Builder b) {
+        if (b.cut()) {
+            return;
+        }
+        int o = op[pc];
+        if (!b.seen.add(o == CHR || o == MATCH ? pc : pc | flags << 32)) {
+            return;
+        }
+        switch (o) {
+            case CHR:
+                b.add(pc);
+                break;
+            case MATCH:
+                b.matched = true;
+                break;
+            case LOOK:
+                b.add(pc | flags << 32);
+                break;
+            case SPLIT:
+                closure(x[pc], flags, b);
+                closure(y[pc], flags, b);
+                break;
+            case MARK:
+                closure(x[pc], flags | 1L << arg[pc], b);
+                break;
+            case CHECK:
+                closure((flags & 1L << arg[pc]) != 0 ? y[pc] : x[pc], flags, b);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    // 超过 MAX_STATES 以后新状态不进表, 每次现算
+    State intern(Builder b) {
+        long[] items = Arrays.copyOf(b.items, b.size);
+        Key key = new Key(items, b.matched);
+        State st = states.get(key);
+        if (st == null) {
+            boolean look = false, live = false;
+            for (long it : items) {
+                if (op[(int) it] == LOOK) {
+                    look = true;
+                } else {
+                    live = true;
+                }
+            }
+            st = new State(items, b.matched, look, live, supp + 1);
+            if (states.size() < MAX_STATES) {
+                states.put(key, st);
+            }
+        }
+        return st;
+    }
+
+    synchronized State step(State st, int cls) {
+        State n = st.next[cls];
+        if (n != null) {
+            return n;
+        }
+        Builder b = new Builder();
+        for (long it : st.items) {
+            int pc = (int) it;
+            if (has(sets[arg[pc]], cls)) {
+                closure(x[pc], 0, b);
+            }
+        }
+        n = intern(b);
+        if (states.get(new Key(n.items, n.accept)) == n) {
+            st.next[cls] = n;
+        }
+        return n;
+    }
+
+    // mask 的第 j 位: 第 j 个 LOOK 成立, 成立的接着走空转移, 不成立的线程死掉
+    synchronized State resolve(State st, long mask, boolean cache) {
+        State n = cache ? st.resolved.get(mask) : null;
+        if (n != null) {
+            return n;
+        }
+        // 空转移在 (pc, 循环标记) 上没有环 (可空的循环体没前进就出去), 成立的前瞻接着走下去, 新碰到的前瞻留到下一轮
+        Builder b = new Builder();
+        int j = 0;
+        for (long it : st.items) {
+            int pc = (int) it;
+            if (op[pc] == LOOK) {
+                if (j < 64 && (mask >>> j & 1) != 0) {
+                    closure(x[pc], it >>> 32, b);
+                }
+                j++;
+            } else if (!b.cut() && b.seen.add((long) pc)) {
+                b.add(pc);
+            }
+        }
+        if (st.accept) {
+            b.matched = true;
+        }
+        n = intern(b);
+        if (cache && states.get(new Key(n.items, n.accept)) == n) {
+            Map<Long, State> m = new HashMap<>(st.resolved);
+            m.put(mask, n);
+            st.resolved = m;
+        }
+        return n;
+    }
+
+    // ~ 正则 -> NFA ~
+
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String msg) {
+            super(msg, null, false, false);
+        }
+    }
+
+    // 字符集: BMP 的位图 + 是否包含全部补充平面码点
+    static final class Chars {
+        final BitSet bmp;
+        final boolean supp;
+
+        Chars(BitSet bmp, boolean supp) {
+            this.bmp = bmp;
+            this.supp = supp;
+        }
+
+        Chars negate() {
+            BitSet s = (BitSet) bmp.clone();
+            s.flip(0, 0x10000);
+            return new Chars(s, !supp);
+        }
+    }
+
+    static final int SET = 0, CAT = 1, ALT = 2, REP = 3, LOOK_AHEAD = 4;
+
+    static final class Re {
+        final int kind;
+        final Chars set;
+        final Re[] subs;
+        final int min, max;
+        final boolean greedy;   // REP 贪婪; LOOK_AHEAD 是 (?=..)
+
+        Re(int kind, Chars set, Re[] subs, int min, int max, boolean greedy) {
+            this.kind = kind;
+            this.set = set;
+            this.subs = subs;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        static Re set(Chars set) {
+            return new Re(SET, set, null, 1, 1, true);
+        }
+
+        static Re of(int kind, List<Re> subs) {
+            return subs.size() == 1 ? subs.get(0) : new Re(kind, null, subs.toArray(new Re[0]), 1, 1, true);
+        }
+
+        boolean nullable() {
+            switch (kind) {
+                case SET: return false;
+                case CAT:
+                    for (Re it : subs) if (!it.nullable()) return false;
+                    return true;
+                case ALT:
+                    for (Re it : subs) if (it.nullable()) return true;
+                    return false;
+                case REP: return min == 0 || subs[0].nullable();
+                default: return true;
+            }
+        }
+    }
+
+    static final class Parser {
+        final String re;
+        int i;
+        int flags;
+        int depth;
+        boolean content;
+
+        Parser(String re, int flags) {
+            this.re = re;
+            this.flags = flags;
+        }
+
+        Re parse() {
+            Re r = alt();
+            if (i < re.length()) {
+                throw new Unsupported(re);
+            }
+            return r;
+        }
+
+        boolean peek(char c) {
+            return i < re.length() && re.charAt(i) == c;
+        }
+
+        char next() {
+            if (i >= re.length()) {
+                throw new Unsupported(re);
+            }
+            return re.charAt(i++);
+        }
+
+        boolean ci() {
+            return (flags & Pattern.CASE_INSENSITIVE) != 0;
+        }
+
+        Re alt() {
+            List<Re> alts = new ArrayList<>();
+            alts.add(seq());
+            while (peek('|')) {
+                i++;
+                alts.add(seq());
+            }
+            return Re.of(ALT, alts);
+        }
+
+        Re seq() {
+            List<Re> seq = new ArrayList<>();
+            while (i < re.length() && !peek('|') && !peek(')')) {
+                Re a = atom(seq);
+                if (a != null) {
+                    seq.add(quantified(a));
+                    content = true;
+                } else if (depth == 0 && content) {
+                    // Pattern.flags() 是最外层 (?i) 之后的 flags, 看不到它前面的内容原来用的是什么
+                    throw new Unsupported(re);
+                }
+            }
+            return Re.of(CAT, seq);
+        }
+
+        // \Q..\E 前面的字符直接加到 seq, 量词只管最后一个字符; 纯 flags 的 (?i) 返回 null
+        Re atom(List<Re> seq) {
+            char c = next();
+            switch (c) {
+                case '(': return group();
+                case '[': return Re.set(klass());
+                case '.': return Re.set(dot());
+                case '\\': {
+                    char e = next();
+                    if ("dDsSwW".indexOf(e) >= 0) {
+                        return Re.set(predefined(e));
+                    }
+                    if (e == 'Q') {
+                        int end = re.indexOf("\\E", i);
+                        String lit = end < 0 ? re.substring(i) : re.substring(i, end);
+                        i = end < 0 ? re.length() : end + 2;
+                        if (lit.isEmpty()) {
+                            return null;
+                        }
+                        Re q = quoted(lit);
+                        if (q.kind != CAT) {
+                            return q;
+                        }
+                        seq.addAll(Arrays.asList(q.subs).subList(0, q.subs.length - 1));
+                        return q.subs[q.subs.length - 1];
+                    }
+                    return Re.set(literal(escape(e)));
+                }
+                case '^': case '$': case '*': case '+': case '?': case '{':
+                    throw new Unsupported(re);
+                default:
+                    return Re.set(literal(c));
+            }
+        }
+
+        Re quoted(String lit) {
+            List<Re> seq = new ArrayList<>();
+            for (int k = 0; k < lit.length(); k++) {
+                seq.add(Re.set(literal(lit.charAt(k))));
+            }
+            return Re.of(CAT, seq);
+        }
+
+        Re quantified(Re a) {
+            if (i >= re.length()) {
+                return a;
+            }
+            int min, max;
+            switch (re.charAt(i)) {
+                case '*': min = 0; max = INF; i++; break;
+                case '+': min = 1; max = INF; i++; break;
+                case '?': min = 0; max = 1; i++; break;
+                case '{': {
+                    i++;
+                    min = max = number();
+                    if (peek(',')) {
+                        i++;
+                        max = peek('}') ? INF : number();
+                    }
+                    if (next() != '}' || max < min) {
+                        throw new Unsupported(re);
+                    }
+                    break;
+                }
+                default:
+                    return a;
+            }
+            boolean greedy = true;
+            if (peek('?')) {
+                i++;
+                greedy = false;
+            } else if (peek('+')) {
+                throw new Unsupported(re);
+            }
+            return new Re(REP, null, new Re[] { a }, min, max, greedy);
+        }
+
+        int number() {
+            int start = i;
+            while (i < re.length() && re.charAt(i) >= '0' && re.charAt(i) <= '9' && i - start < 6) {
+                i++;
+            }
+            if (start == i) {
+                throw new Unsupported(re);
+            }
+            return Integer.parseInt(re.substring(start, i));
+        }
+
+        // 同 Pattern.group0: 分组结束时恢复 flags, 纯 flags 的 (?i) 影响到所在分组结束
+        Re group() {
+            int save = flags;
+            depth++;
+            Re body;
+            if (peek('?')) {
+                i++;
+                char c = next();
+                switch (c) {
+                    case ':':
+                        body = alt();
+                        break;
+                    case '=': case '!':
+                        body = new Re(LOOK_AHEAD, null, new Re[] { alt() }, 0, 0, c == '=');
+                        break;
+                    case '<': {
+                        if (peek('=') || peek('!')) {
+                            throw new Unsupported(re);
+                        }
+                        while (!peek('>')) {
+                            if (!Character.isLetterOrDigit(next())) {
+                                throw new Unsupported(re);
+                            }
+                        }
+                        i++;
+                        body = alt();
+                        break;
+                    }
+                    default: {
+                        i--;
+                        inlineFlags();
+                        if (next() == ')') {
+                            depth--;
+                            return null;
+                        }
+                        i--;
+                        if (next() != ':') {
+                            throw new Unsupported(re);
+                        }
+                        body = alt();
+                        break;
+                    }
+                }
+            } else {
+                body = alt();
+            }
+            if (next() != ')') {
+                throw new Unsupported(re);
+            }
+            flags = save;
+            depth--;
+            return body;
+        }
+
+        void inlineFlags() {
+            boolean on = true;
+            while (i < re.length()) {
+                char c = re.charAt(i);
+                int f;
+                switch (c) {
+                    case 'i': f = Pattern.CASE_INSENSITIVE; break;
+                    case 's': f = Pattern.DOTALL; break;
+                    case 'd': f = Pattern.UNIX_LINES; break;
+                    case 'm': f = Pattern.MULTILINE; break;
+                    case '-':
+                        if (!on) throw new Unsupported(re);
+                        on = false;
+                        i++;
+                        continue;
+                    case ':': case ')':
+                        return;
+                    default:
+                        throw new Unsupported(re);
+                }
+                flags = on ? flags | f : flags & ~f;
+                i++;
+            }
+        }
+
+        // 字符类里面的字面量和区间按 (?i) 折叠大小写, 再并上 \d 这些, 最后取反
+        Chars klass() {
+            boolean negate = peek('^');
+            if (negate) {
+                i++;
+            }
+            if (peek(']')) {
+                throw new Unsupported(re);
+            }
+            BitSet lits = new BitSet();
+            BitSet preset = new BitSet();
+            boolean supp = false;
+            while (true) {
+                char c = next();
+                if (c == ']') {
+                    break;
+                }
+                if (c == '[' || (c == '&' && peek('&'))) {
+                    throw new Unsupported(re);
+                }
+                int lo;
+                if (c == '\\') {
+                    char e = next();
+                    if ("dDsSwW".indexOf(e) >= 0) {
+                        Chars p = predefined(e);
+                        preset.or(p.bmp);
+                        supp |= p.supp;
+                        continue;
+                    }
+                    lo = escape(e);
+                } else {
+                    lo = checked(c);
+                }
+                if (peek('-') && i + 1 < re.length() && re.charAt(i + 1) != ']') {
+                    i++;
+                    char d = next();
+                    int hi;
+                    if (d == '\\') {
+                        hi = escape(next());
+                    } else if (d == '[') {
+                        throw new Unsupported(re);
+                    } else {
+                        hi = checked(d);
+                    }
+                    if (hi < lo) {
+                        throw new Unsupported(re);
+                    }
+                    lits.set(lo, hi + 1);
+                } else {
+                    lits.set(lo);
+                }
+            }
+            if (ci()) {
+                fold(lits);
+            }
+            lits.or(preset);
+            Chars set = new Chars(lits, supp);
+            return negate ? set.negate() : set;
+        }
+
+        // 同 Pattern 的 ASCII 大小写不敏感: 一个字母在, 另一个也在
+        static void fold(BitSet set) {
+            for (char c = 'A'; c <= 'Z'; c++) {
+                if (set.get(c) || set.get(c + 32)) {
+                    set.set(c);
+                    set.set(c + 32);
+                }
+            }
+        }
+
+        Chars literal(char c) {
+            BitSet set = new BitSet();
+            set.set(checked(c));
+            if (ci()) {
+                fold(set);
+            }
+            return new Chars(set, false);
+        }
+
+        // 单独的代理要按码点拼起来, 不处理
+        char checked(char c) {
+            if (Character.isSurrogate(c)) {
+                throw new Unsupported(re);
+            }
+            return c;
+        }
+
+        Chars dot() {
+            BitSet set = new BitSet();
+            set.set(0, 0x10000);
+            if ((flags & Pattern.DOTALL) == 0) {
+                set.clear('\n');
+                if ((flags & Pattern.UNIX_LINES) == 0) {
+                    set.clear('\r');
+                    set.clear('\u0085');
+                    set.clear(0x2028);
+                    set.clear(0x2029);
+                }
+            }
+            return new Chars(set, true);
+        }
+
+        static Chars predefined(char e) {
+            BitSet set = new BitSet();
+            switch (Character.toLowerCase(e)) {
+                case 'd':
+                    set.set('0', '9' + 1);
+                    break;
+                case 's':
+                    set.set('\t', '\r' + 1);
+                    set.set(' ');
+                    break;
+                default:
+                    set.set('a', 'z' + 1);
+                    set.set('A', 'Z' + 1);
+                    set.set('0', '9' + 1);
+                    set.set('_');
+                    break;
+            }
+            Chars chars = new Chars(set, false);
+            return Character.isUpperCase(e) ? chars.negate() : chars;
+        }
+
+        // 单个字符的转义, e 是 \ 后面那个
+        char escape(char e) {
+            switch (e) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'a': return '\u0007';
+                case 'e': return '\u001B';
+                case 'c': return (char) (next() ^ 64);
+                case '0': {
+                    int v = 0, k = 0;
+                    while (k < 3 && i < re.length() && re.charAt(i) >= '0' && re.charAt(i) <= '7') {
+                        int nv = v * 8 + (re.charAt(i) - '0');
+                        if (nv > 0377) break;
+                        v = nv;
+                        i++;
+                        k++;
+                    }
+                    if (k == 0) throw new Unsupported(re);
+                    return (char) v;
+                }
+                case 'x':
+                    if (peek('{')) throw new Unsupported(re);
+                    return checked((char) hex(2));
+                case 'u':
+                    return checked((char) hex(4));
+                default:
+                    if (Character.isLetterOrDigit(e)) {
+                        throw new Unsupported(re);
+                    }
+                    return checked(e);
+            }
+        }
+
+        int hex(int n) {
+            if (i + n > re.length()) {
+                throw new Unsupported(re);
+            }
+            int v = 0;
+            for (int k = 0; k < n; k++) {
+                int d = Character.digit(re.charAt(i++), 16);
+                if (d < 0) throw new Unsupported(re);
+                v = v * 16 + d;
+            }
+            return v;
+        }
+    }
+
+    // 正则树 -> NFA 节点 (从后往前生成, 每个节点知道后继), 再把字符按字符集切成字符类
+    static final class Program {
+        int[] op = new int[16], x = new int[16], y = new int[16], arg = new int[16];
+        int size;
+        int loops;
+        final List<Chars> setList = new ArrayList<>();
+        final List<DFA> lookList = new ArrayList<>();
+
+        final int start;
+        final Chars[] sets;
+        final DFA[] looks;
+        final int[] starts;
+        final int[] ascii;
+
+        Program(Re re) {
+            start = emit(re, node(MATCH, 0, 0, 0));
+            op = Arrays.copyOf(op, size);
+            x = Arrays.copyOf(x, size);
+            y = Arrays.copyOf(y, size);
+            arg = Arrays.copyOf(arg, size);
+            sets = setList.toArray(new Chars[0]);
+            looks = lookList.toArray(new DFA[0]);
+            TreeSet<Integer> bounds = new TreeSet<>();
+            bounds.add(0);
+            for (Chars c : sets) {
+                for (int lo = c.bmp.nextSetBit(0); lo >= 0 && lo < 0x10000; lo = c.bmp.nextSetBit(lo)) {
+                    bounds.add(lo);
+                    lo = c.bmp.nextClearBit(lo);
+                    if (lo < 0x10000) {
+                        bounds.add(lo);
+                    }
+                }
+            }
+            starts = new int[bounds.size()];
+            int k = 0;
+            for (int b : bounds) {
+                starts[k++] = b;
+            }
+            ascii = new int[128];
+            for (int c = 0, cls = 0; c < 128; c++) {
+                while (cls + 1 < starts.length && starts[cls + 1] <= c) {
+                    cls++;
+                }
+                ascii[c] = cls;
+            }
+        }
+
+        // longest 和原来共用 NFA
+        Program(DFA d) {
+            op = d.op;
+            x = d.x;
+            y = d.y;
+            arg = d.arg;
+            start = d.start;
+            sets = d.sets;
+            looks = d.looks;
+            starts = d.starts;
+            ascii = d.ascii;
+        }
+
+        int node(int o, int nx, int ny, int a) {
+            if (size == MAX_NODES) {
+                throw new Unsupported("too large");
+            }
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                arg = Arrays.copyOf(arg, size * 2);
+            }
+            op[size] = o;
+            x[size] = nx;
+            y[size] = ny;
+            arg[size] = a;
+            return size++;
+        }
+
+        int split(boolean greedy, int body, int exit) {
+            return greedy ? node(SPLIT, body, exit, 0) : node(SPLIT, exit, body, 0);
+        }
+
+        int emit(Re re, int next) {
+            switch (re.kind) {
+                case SET:
+                    setList.add(re.set);
+                    return node(CHR, next, 0, setList.size() - 1);
+                case CAT:
+                    for (int k = re.subs.length - 1; k >= 0; k--) {
+                        next = emit(re.subs[k], next);
+                    }
+                    return next;
+                case ALT: {
+                    int[] es = new int[re.subs.length];
+                    for (int k = 0; k < es.length; k++) {
+                        es[k] = emit(re.subs[k], next);
+                    }
+                    int e = es[es.length - 1];
+                    for (int k = es.length - 2; k >= 0; k--) {
+                        e = node(SPLIT, es[k], e, 0);
+                    }
+                    return e;
+                }
+                case LOOK_AHEAD:
+                    lookList.add(new DFA(null, new Program(re.subs[0]), false));
+                    return node(LOOK, next, re.greedy ? 0 : 1, lookList.size() - 1);
+                case REP:
+                    return repeat(re.subs[0], re.min, re.max, re.greedy, next);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        int repeat(Re body, int min, int max, boolean greedy, int next) {
+            if (body.nullable()) {
+                if (min == 0 && max == 1) {
+                    return split(greedy, emit(body, next), next);
+                }
+                if (max != INF || min > 1 || loops == 32) {
+                    throw new Unsupported("counted nullable loop");
+                }
+                // head: 进入一次迭代或者出去; 迭代结束没前进就出去, 同 Pattern.Loop
+                int k = loops++;
+                int head = node(SPLIT, 0, 0, 0);
+                int check = node(CHECK, head, next, k);
+                int mark = node(MARK, emit(body, check), 0, k);
+                x[head] = greedy ? mark : next;
+                y[head] = greedy ? next : mark;
+                return min == 0 ? head : mark;
+            }
+            int tail = next;
+            if (max == INF) {
+                int head = node(SPLIT, 0, 0, 0);
+                int b = emit(body, head);
+                x[head] = greedy ? b : next;
+                y[head] = greedy ? next : b;
+                tail = head;
+            } else {
+                for (int k = min; k < max; k++) {
+                    tail = split(greedy, emit(body, tail), next);
+                }
+            }
+            for (int k = 0; k < min; k++) {
+                tail = emit(body, tail);
+            }
+            return tail;
+        }
+    }
+}
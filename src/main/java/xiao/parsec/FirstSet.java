@@ -0,0 +1,466 @@
+package xiao.parsec;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * FIRST 集: 一个 parser 成功时消耗的第一个字符可能是哪些, 以及能不能不消耗字符就成功 (empty) <br>
+ * ASCII 精确到字符 (两个 long), 非 ASCII 只有一个 other 标记; 都是保守估计, 只会多不会少 <br>
+ * 看不懂的 (手写的闭包, 回引用, 递归回来的规则 ...) 一律 ANY, 也就是总要尝试 <br>
+ * 给 Choose 做预测分派用: 按下一个字符查表, 只尝试可能成功的分支, 顺序不变, 所以仍然是有序选择
+ */
+public final class FirstSet {
+    // 不消耗字符就能成功, e.g. Return, Null, LookAhead, 正则的 \s*
+    public static final FirstSet EMPTY = new FirstSet(0, 0, false, true);
+    // 任意字符, 必须消耗
+    public static final FirstSet ANY_CHAR = new FirstSet(-1, -1, true, false);
+    // 不知道
+    public static final FirstSet ANY = new FirstSet(-1, -1, true, true);
+
+    static final int OTHER = 128;   // 非 ASCII 的下一个字符
+    static final int EOF = 129;     // 没有下一个字符
+    static final int SLOTS = 130;
+
+    final long lo;          // 0 ~ 63
+    final long hi;          // 64 ~ 127
+    final boolean other;    // 非 ASCII
+    final boolean empty;
+
+    FirstSet(long lo, long hi, boolean other, boolean empty) {
+        this.lo = lo;
+        this.hi = hi;
+        this.other = other;
+        this.empty = empty;
+    }
+
+    public static FirstSet of(char c) {
+        if (c < 64) return new FirstSet(1L << c, 0, false, false);
+        if (c < 128) return new FirstSet(0, 1L << c, false, false);
+        return new FirstSet(0, 0, true, false);
+    }
+
+    // 按谓词测一遍 ASCII, 非 ASCII 不测, 算可能; CharClass 直接用它的位图
+    public static FirstSet of(IntPredicate p) {
+        if (p instanceof CharClass) {
+            CharClass cc = (CharClass) p;
+            return new FirstSet(cc.lo, cc.hi, cc.other, false);
+        }
+        long lo = 0, hi = 0;
+        for (int c = 0; c < 128; c++) {
+            if (p.test(c)) {
+                if (c < 64) lo |= 1L << c;
+                else hi |= 1L << c;
+            }
+        }
+        return new FirstSet(lo, hi, true, false);
+    }
+
+    public boolean contains(int c) {
+        if (c < 64) return (lo & (1L << c)) != 0;
+        if (c < 128) return (hi & (1L << c)) != 0;
+        return other;
+    }
+
+    public boolean empty() {
+        return empty;
+    }
+
+    public FirstSet union(FirstSet b) {
+        return new FirstSet(lo | b.lo, hi | b.hi, other || b.other, empty || b.empty);
+    }
+
+    // 先 this 再 b
+    public FirstSet then(FirstSet b) {
+        if (!empty) return this;
+        return new FirstSet(lo | b.lo, hi | b.hi, other || b.other, b.empty);
+    }
+
+    public FirstSet optional() {
+        return empty ? this : new FirstSet(lo, hi, other, true);
+    }
+
+    // 都必须消耗字符, 且第一个字符不可能相同: 同一位置最多一个成功, 有序选择里交换两者结果不变
+    public boolean disjoint(FirstSet b) {
+        return !empty && !b.empty && (lo & b.lo) == 0 && (hi & b.hi) == 0 && !(other && b.other);
+    }
+
+    FirstSet complement() {
+        return new FirstSet(~lo, ~hi, true, false);
+    }
+
+    // 下一个字符在分派表里的下标
+    static int slot(CharSequence src, int pos, int end) {
+        if (pos >= end) return EOF;
+        char c = src.charAt(pos);
+        return c < 128 ? c : OTHER;
+    }
+
+    /**
+     * 下一个字符落在 slot (ASCII, 非 ASCII, EOF) 时要尝试的分支下标, 按原顺序 <br>
+     * 哪个分支都不可能成功时只试第一个, 让它报出失败 (同一位置保留先到的失败, 和挨个试一样)
+     */
+    static int[] candidates(FirstSet[] alts, int slot) {
+        int[] idx = new int[alts.length];
+        int n = 0;
+        for (int i = 0; i < alts.length; i++) {
+            if (alts[i].empty || slot != EOF && alts[i].contains(slot)) {
+                idx[n++] = i;
+            }
+        }
+        return n == 0 ? new int[] { 0 } : Arrays.copyOf(idx, n);
+    }
+
+    /**
+     * Choose 用的分派表 (ASCII 128 项 + 非 ASCII + EOF), 第二次用到时才算 (这时 Thunk 引用的规则都已经初始化了) <br>
+     * 每次调用都新建的 Choose (e.g. Thunk 里现拼的语法) 只用一次, 建表不划算, 第一次返回 null 挨个试; 每一项也是碰到那个字符时才填
+     */
+    static final class Dispatch {
+        final Supplier<FirstSet[]> firsts;
+        boolean used;
+        volatile FirstSet[] alts;
+        volatile AtomicReferenceArray<int[]> table;
+
+        Dispatch(Supplier<FirstSet[]> firsts) {
+            this.firsts = firsts;
+        }
+
+        // 要尝试的分支下标, null 表示全部
+        int[] alts(CharSequence src, int pos, int end) {
+            AtomicReferenceArray<int[]> t = table;
+            if (t == null) {
+                if (!used) {
+                    used = true;
+                    return null;
+                }
+                alts = firsts.get();
+                table = t = new AtomicReferenceArray<>(SLOTS);
+            }
+            int slot = slot(src, pos, end);
+            int[] idx = t.get(slot);
+            if (idx == null) {
+                idx = candidates(alts, slot);
+                t.set(slot, idx);
+            }
+            return idx;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("[");
+        for (int c = 0; c < 128; c++) {
+            if (contains(c)) buf.append(c < 32 || c == 127 ? String.format("\\x%02x", c) : String.valueOf((char) c));
+        }
+        if (other) buf.append("…");
+        buf.append("]");
+        if (empty) buf.append("?");
+        return buf.toString();
+    }
+
+    // ===========================================================================================
+
+    public static FirstSet regex(Pattern ptn) {
+        int flags = ptn.flags();
+        if ((flags & Pattern.COMMENTS) != 0) {
+            return ANY;
+        }
+        String re = ptn.pattern();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return re.isEmpty() ? EMPTY : new Regex(re, flags).fold(of(re.charAt(0)));
+        }
+        try {
+            Regex r = new Regex(re, flags);
+            FirstSet first = r.alt();
+            return r.i == re.length() ? first : ANY;
+        } catch (RuntimeException e) {
+            return ANY;
+        }
+    }
+
+    /**
+     * 正则的 FIRST 集, 只要求是超集: 先行/后顾/边界都当作不消耗字符, 回引用当作 ANY, 看不懂就抛异常 (整体 ANY)
+     */
+    static final class Regex {
+        final String re;
+        int flags;
+        int i;
+
+        Regex(String re, int flags) {
+            this.re = re;
+            this.flags = flags;
+        }
+
+        char peek() {
+            return re.charAt(i);
+        }
+
+        boolean more() {
+            return i < re.length();
+        }
+
+        FirstSet alt() {
+            FirstSet r = seq();
+            while (more() && peek() == '|') {
+                i++;
+                r = r.union(seq());
+            }
+            return r;
+        }
+
+        // (?i) 之类的作用到所在的组结束, 跨过 |, 由 group 恢复
+        FirstSet seq() {
+            FirstSet r = EMPTY;
+            while (more() && peek() != '|' && peek() != ')') {
+                r = r.then(quantified());
+            }
+            return r;
+        }
+
+        FirstSet quantified() {
+            FirstSet a = atom();
+            while (more()) {
+                char c = peek();
+                if (c == '*' || c == '?') {
+                    i++;
+                    a = a.optional();
+                } else if (c == '+') {
+                    i++;
+                } else if (c == '{') {
+                    int close = re.indexOf('}', i);
+                    if (close < 0) throw new IllegalArgumentException(re);
+                    String min = re.substring(i + 1, close).split(",", -1)[0].trim();
+                    if (Integer.parseInt(min) == 0) a = a.optional();
+                    i = close + 1;
+                } else {
+                    break;
+                }
+                // 非贪婪 / 固化
+                if (more() && (peek() == '?' || peek() == '+')) i++;
+            }
+            return a;
+        }
+
+        FirstSet atom() {
+            char c = re.charAt(i++);
+            switch (c) {
+                case '(':  return group();
+                case '[':  return klass();
+                case '.':  return ANY_CHAR;
+                case '^':
+                case '$':  return EMPTY;
+                case '\\': return escape(false);
+                case '*': case '+': case '?': case '{': case ')':
+                    throw new IllegalArgumentException(re);
+                default:   return fold(of(c));
+            }
+        }
+
+        FirstSet group() {
+            boolean consume = true;
+            int saved = flags;
+            if (more() && peek() == '?') {
+                i++;
+                char c = re.charAt(i++);
+                if (c == ':' || c == '>') {
+                    // 非捕获, 固化
+                } else if (c == '=' || c == '!') {
+                    consume = false;
+                } else if (c == '<') {
+                    if (peek() == '=' || peek() == '!') {
+                        i++;
+                        consume = false;
+                    } else {
+                        // 命名捕获
+                        i = re.indexOf('>', i) + 1;
+                        if (i == 0) throw new IllegalArgumentException(re);
+                    }
+                } else {
+                    // (?imsux-imsux) 或 (?imsux-imsux:X)
+                    i--;
+                    boolean on = true;
+                    while (true) {
+                        char f = re.charAt(i++);
+                        if (f == ')') {
+                            // 作用到所在的组结束, 不恢复
+                            return EMPTY;
+                        } else if (f == ':') {
+                            break;
+                        } else if (f == '-') {
+                            on = false;
+                        } else {
+                            int bit = flag(f);
+                            flags = on ? flags | bit : flags & ~bit;
+                        }
+                    }
+                }
+            }
+            FirstSet r = alt();
+            if (!more() || re.charAt(i++) != ')') throw new IllegalArgumentException(re);
+            flags = saved;
+            return consume ? r : EMPTY;
+        }
+
+        int flag(char f) {
+            switch (f) {
+                case 'i': return Pattern.CASE_INSENSITIVE;
+                case 'u': return Pattern.UNICODE_CASE;
+                case 'U': return Pattern.UNICODE_CHARACTER_CLASS;
+                case 's': return Pattern.DOTALL;
+                case 'm': return Pattern.MULTILINE;
+                case 'd': return Pattern.UNIX_LINES;
+                default:  throw new IllegalArgumentException(re); // x 注释模式等
+            }
+        }
+
+        FirstSet klass() {
+            boolean negate = more() && peek() == '^';
+            if (negate) i++;
+            FirstSet set = new FirstSet(0, 0, false, false);
+            boolean first = true, exact = true;
+            while (true) {
+                char c = re.charAt(i++);
+                if (c == ']' && !first) break;
+                first = false;
+                if (c == '[' || c == '&' && peek() == '&') {
+                    throw new IllegalArgumentException(re);
+                }
+                FirstSet item;
+                int from = c == '\\' ? escapedChar() : c;
+                if (from < 0) {
+                    // \d \p{..} 之类, 后面的 - 是普通字符
+                    item = escape(true);
+                    exact &= item != ANY_CHAR;
+                } else if (peek() == '-' && re.charAt(i + 1) != ']') {
+                    // 两头都可以是转义, e.g. [\x00-\x1f] [\t-\r]
+                    i++;
+                    char t = re.charAt(i++);
+                    int to = t == '\\' ? escapedChar() : t == '[' ? -1 : t;
+                    if (to < 0) throw new IllegalArgumentException(re);
+                    item = range((char) from, (char) to);
+                } else {
+                    item = of((char) from);
+                }
+                set = set.union(item);
+            }
+            if (negate) {
+                // 忽略大小写的取反不好算, \p{..} 之类本来就是估计的, 取反不再是超集, 都算任意字符
+                return (flags & Pattern.CASE_INSENSITIVE) != 0 || !exact ? ANY_CHAR : set.complement();
+            }
+            return fold(set);
+        }
+
+        static FirstSet range(char from, char to) {
+            if (from > to) throw new IllegalArgumentException(from + "-" + to);
+            return of(c -> c >= from && c <= to).only(to >= 128);
+        }
+
+        // 转义出来的单个字符 (i 在 \ 之后); 不是单个字符 (\d \p{..} \x{1F600} 回引用 ...) 时不动 i, 返回 -1
+        int escapedChar() {
+            int start = i;
+            char c = re.charAt(i++);
+            switch (c) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'f': return '\f';
+                case 'a': return '\u0007';
+                case 'e': return '\u001B';
+                case 'x': {
+                    if (peek() == '{') {
+                        int close = re.indexOf('}', i);
+                        int cp = Integer.parseInt(re.substring(i + 1, close), 16);
+                        if (cp > 0xFFFF) break;
+                        i = close + 1;
+                        return cp;
+                    }
+                    int ch = Integer.parseInt(re.substring(i, i + 2), 16);
+                    i += 2;
+                    return ch;
+                }
+                case 'u': {
+                    int ch = Integer.parseInt(re.substring(i, i + 4), 16);
+                    i += 4;
+                    return ch;
+                }
+                case '0': {
+                    int v = 0, n = 0;
+                    while (n < 3 && more() && peek() >= '0' && peek() <= '7' && v * 8 + (peek() - '0') <= 0377) {
+                        v = v * 8 + (re.charAt(i++) - '0');
+                        n++;
+                    }
+                    return v;
+                }
+                case 'c': return re.charAt(i++) ^ 64;
+                default:
+                    if (!Character.isLetterOrDigit(c)) return c;
+            }
+            i = start;
+            return -1;
+        }
+
+        FirstSet escape(boolean inClass) {
+            int single = escapedChar();
+            if (single >= 0) return fold(of((char) single));
+            char c = re.charAt(i++);
+            boolean unicodeClass = (flags & Pattern.UNICODE_CHARACTER_CLASS) != 0;
+            switch (c) {
+                case 'd': return of(ch -> ch >= '0' && ch <= '9').only(unicodeClass);
+                case 'D': return of(ch -> ch < '0' || ch > '9');
+                case 's': return of(ch -> " \t\n\u000B\f\r".indexOf(ch) >= 0).only(unicodeClass);
+                case 'S': return of(ch -> " \t\n\u000B\f\r".indexOf(ch) < 0);
+                case 'w': return of(ch -> Character.isLetterOrDigit(ch) || ch == '_').only(unicodeClass);
+                case 'W': return of(ch -> !Character.isLetterOrDigit(ch) && ch != '_');
+                case 'h': case 'H': case 'v': case 'V': case 'R': case 'X':
+                    return ANY_CHAR;
+                case 'p': case 'P': case 'N':
+                    if (more() && peek() == '{') i = re.indexOf('}', i) + 1;
+                    else i++;
+                    return ANY_CHAR;
+                case 'b': case 'B': case 'A': case 'G': case 'Z': case 'z':
+                    if (inClass) throw new IllegalArgumentException(re);
+                    return EMPTY;
+                case 'Q': {
+                    int end = re.indexOf("\\E", i);
+                    if (end < 0) end = re.length();
+                    int start = i;
+                    i = end == re.length() ? end : end + 2;
+                    if (inClass) throw new IllegalArgumentException(re);
+                    return end == start ? EMPTY : fold(of(re.charAt(start)));
+                }
+                case 'x':
+                    // \x{1F600} 之类, 代理对的第一个 char; 在 [] 里可能是范围的一头, 不管
+                    if (inClass) throw new IllegalArgumentException(re);
+                    i = re.indexOf('}', i) + 1;
+                    return new FirstSet(0, 0, true, false);
+                default:
+                    // \1 \k<name> 回引用, 其它没见过的转义
+                    if (inClass) throw new IllegalArgumentException(re);
+                    if (c == 'k') i = re.indexOf('>', i) + 1;
+                    else while (more() && Character.isDigit(peek())) i++;
+                    return ANY;
+            }
+        }
+
+        // 忽略大小写时补上另一种大小写; UNICODE_CASE 下 k s 之类和非 ASCII 字符可以互相匹配
+        FirstSet fold(FirstSet set) {
+            if ((flags & Pattern.CASE_INSENSITIVE) == 0) return set;
+            long lo = set.lo, hi = set.hi;
+            long lower = hi & 0x07FFFFFE_00000000L, upper = hi & 0x00000000_07FFFFFEL;
+            hi |= (lower >>> 32) | (upper << 32);
+            boolean other = set.other;
+            if ((flags & (Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS)) != 0) {
+                other |= (lower | upper) != 0;
+                if (set.other) hi |= 0x07FFFFFE_07FFFFFEL;
+            }
+            return new FirstSet(lo, hi, other, set.empty);
+        }
+    }
+
+    // 非 ASCII 部分是否可能
+    FirstSet only(boolean other) {
+        return new FirstSet(lo, hi, other, empty);
+    }
+}
@@ -0,0 +1,236 @@
+package xiao.parsec;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 相邻的正则终结符合并成一个正则, 给 Parsec1/Parsec2 的 Passes.FuseRegex 用, 合并出来的 Regex 节点的 mapper 就是 Fused <br>
+ * 每一段包成 (?>...) 固化分组: 和分开 lookingAt 一样, 前一段的匹配不会为了后一段回溯, 仍然是 PEG 的顺序语义 <br>
+ * 要结果的段再包一层捕获组, 按分组下标取文本交给原来的 mapper; 不要结果的段 (e.g. Between 两边的空白, then/over 丢掉的一边) 不捕获,
+ * 整段都不要结果时就是一次纯扫描, 匹配完什么都不分配 <br>
+ * 含 ^ \A \G \b \B, 反向引用, lookbehind, 命名分组, (?x) 的正则不合并: 这些和匹配起点, 分组编号有关, 合并以后意思会变
+ */
+final class Fused implements Function<Matcher, Object> {
+
+    interface Fun3 { Object apply(Object a, Object b, Object c); }
+
+    // 从 base 开始的分组里取这一段的结果
+    interface Value { Object apply(Matcher m, int base); }
+
+    final Piece piece;
+    final Value value;  // 整段的结果, 从第 1 个分组开始
+    final Pattern pattern;
+
+    Fused(Piece piece) {
+        this(piece, true);
+    }
+
+    // need == false: 整段都不要结果, 一个分组都不捕获, apply 返回 null, 见 Passes.Recognize
+    Fused(Piece piece, boolean need) {
+        this.piece = piece;
+        Built b = piece.build(need);
+        this.value = b.value;
+        this.pattern = Pattern.compile(b.regex);
+    }
+
+    @Override
+    public Object apply(Matcher m) {
+        return value == null ? null : value.apply(m, 1);
+    }
+
+    static final class Built {
+        final String regex;
+        final int groups;   // regex 占用的分组数
+        final Value value;  // 不要结果时 null
+
+        Built(String regex, int groups, Value value) {
+            this.regex = regex;
+            this.groups = groups;
+            this.value = value;
+        }
+    }
+
+    abstract static class Piece {
+        // need: 要不要这一段的结果, 不要的不捕获, 也不调用 mapper
+        abstract Built build(boolean need);
+    }
+
+    // 结果是匹配到的文本 mapper(text), mapper == null 就是文本本身
+    static Piece text(Pattern ptn, Function<String, Object> mapper) {
+        String literal = mapper == null ? literal(ptn) : null;
+        return new Piece() {
+            Built build(boolean need) {
+                int groups = groups(ptn);
+                if (!need) {
+                    return new Built("(?>" + inline(ptn) + ")", groups, null);
+                }
+                if (literal != null) {
+                    return new Built("(?>" + inline(ptn) + ")", groups, (m, base) -> literal);
+                }
+                Value value = mapper == null ? (m, base) -> m.group(base) : (m, base) -> mapper.apply(m.group(base));
+                return new Built("(?>(" + inline(ptn) + "))", groups + 1, value);
+            }
+        };
+    }
+
+    // 结果是常量, e.g. Parsec1 丢掉文本的 Pat
+    static Piece constant(Pattern ptn, Object constant) {
+        return new Piece() {
+            Built build(boolean need) {
+                return new Built("(?>" + inline(ptn) + ")", groups(ptn), need ? (m, base) -> constant : null);
+            }
+        };
+    }
+
+    static Piece map(Piece piece, Function<Object, Object> mapper) {
+        return new Piece() {
+            Built build(boolean need) {
+                Built b = piece.build(need);
+                if (!need) {
+                    return b;
+                }
+                Value v = b.value;
+                return new Built(b.regex, b.groups, (m, base) -> mapper.apply(v.apply(m, base)));
+            }
+        };
+    }
+
+    // uses: mapper 用不用得到那一段的结果, 用不到的传 null
+    static Piece seq(Piece a, Piece b, boolean[] uses, BiFunction<Object, Object, Object> mapper) {
+        return new Piece() {
+            Built build(boolean need) {
+                Built x = a.build(need && uses[0]), y = b.build(need && uses[1]);
+                Value vx = x.value, vy = y.value;
+                int gx = x.groups;
+                Value v = !need ? null : (m, base) -> mapper.apply(
+                        vx == null ? null : vx.apply(m, base),
+                        vy == null ? null : vy.apply(m, base + gx));
+                return new Built(x.regex + y.regex, x.groups + y.groups, v);
+            }
+        };
+    }
+
+    static Piece seq(Piece a, Piece b, Piece c, boolean[] uses, Fun3 mapper) {
+        return new Piece() {
+            Built build(boolean need) {
+                Built x = a.build(need && uses[0]), y = b.build(need && uses[1]), z = c.build(need && uses[2]);
+                Value vx = x.value, vy = y.value, vz = z.value;
+                int gx = x.groups, gy = y.groups;
+                Value v = !need ? null : (m, base) -> mapper.apply(
+                        vx == null ? null : vx.apply(m, base),
+                        vy == null ? null : vy.apply(m, base + gx),
+                        vz == null ? null : vz.apply(m, base + gx + gy));
+                return new Built(x.regex + y.regex + z.regex, x.groups + y.groups + z.groups, v);
+            }
+        };
+    }
+
+    static int groups(Pattern ptn) {
+        return ptn.matcher("").groupCount();
+    }
+
+    // 带上 flags, 放进别的正则里意思不变
+    static String inline(Pattern ptn) {
+        int f = ptn.flags();
+        String re = (f & Pattern.LITERAL) != 0 ? Pattern.quote(ptn.pattern()) : ptn.pattern();
+        StringBuilder flags = new StringBuilder();
+        if ((f & Pattern.CASE_INSENSITIVE) != 0) flags.append('i');
+        if ((f & Pattern.MULTILINE) != 0) flags.append('m');
+        if ((f & Pattern.DOTALL) != 0) flags.append('s');
+        if ((f & Pattern.UNICODE_CASE) != 0) flags.append('u');
+        if ((f & Pattern.UNIX_LINES) != 0) flags.append('d');
+        if ((f & Pattern.UNICODE_CHARACTER_CLASS) != 0) flags.append('U');
+        return flags.length() == 0 ? re : "(?" + flags + ":" + re + ")";
+    }
+
+    // 只能匹配一个固定字符串时返回它, e.g. Pattern.quote(":"), 结果不用捕获
+    static String literal(Pattern ptn) {
+        int f = ptn.flags();
+        if ((f & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+        String re = ptn.pattern();
+        if ((f & Pattern.LITERAL) != 0) {
+            return re;
+        }
+        if (re.startsWith("\\Q") && re.endsWith("\\E") && re.indexOf("\\E") == re.length() - 2) {
+            return re.substring(2, re.length() - 2);
+        }
+        // 转义的 ASCII 标点 (e.g. \[ \{) 也是字面量; 字母数字的转义 (\d \1 ...) 不是
+        StringBuilder sb = null;
+        for (int i = 0; i < re.length(); i++) {
+            char c = re.charAt(i);
+            if (c == '\\' && i + 1 < re.length()) {
+                char e = re.charAt(i + 1);
+                if (e >= 128 || Character.isLetterOrDigit(e)) {
+                    return null;
+                }
+                if (sb == null) {
+                    sb = new StringBuilder(re.length()).append(re, 0, i);
+                }
+                sb.append(e);
+                i++;
+                continue;
+            }
+            if ("\\[](){}.*+?^$|".indexOf(c) >= 0) {
+                return null;
+            }
+            if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? re : sb.toString();
+    }
+
+    // 能不能放进别的正则里合并, 见类注释
+    static boolean fusable(Pattern ptn) {
+        int f = ptn.flags();
+        if ((f & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return false;
+        }
+        if ((f & Pattern.LITERAL) != 0) {
+            return true;
+        }
+        String re = ptn.pattern();
+        int depth = 0; // 字符类嵌套层数
+        for (int i = 0; i < re.length(); i++) {
+            char c = re.charAt(i);
+            if (c == '\\') {
+                if (++i == re.length()) {
+                    return false;
+                }
+                char e = re.charAt(i);
+                if (e == 'Q') {
+                    int end = re.indexOf("\\E", i + 1);
+                    if (end < 0) {
+                        return false;
+                    }
+                    i = end + 1;
+                } else if (depth == 0 && ("AGbBk".indexOf(e) >= 0 || e >= '1' && e <= '9')) {
+                    return false;
+                }
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && depth > 0) {
+                depth--;
+            } else if (depth > 0) {
+                // 字符类里的 ^ ( 都是字符
+            } else if (c == '^') {
+                return false;
+            } else if (c == '(' && i + 1 < re.length() && re.charAt(i + 1) == '?') {
+                for (int j = i + 2; j < re.length(); j++) {
+                    char g = re.charAt(j);
+                    if (g == '<' || g == 'x') {
+                        return false;
+                    }
+                    if (!Character.isLetter(g) && g != '-') {
+                        break;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
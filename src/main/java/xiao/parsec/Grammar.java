@@ -0,0 +1,18 @@
+package xiao.parsec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 标在写 Parsec1 语法的接口上 (JSON1, Criteria1 那样 static Rule 属性), 编译时由 GrammarProcessor 生成递归下降的 parser <br>
+ * 生成的类有同名的 Rule 属性, 用法不变, e.g. JSON1Parser.JSONParser.match(src, onMatch, onFail) <br>
+ * 嵌套很深的输入 (超过 Parsec1.Descent.MAX_DEPTH 层规则) 回到原来的 Rule 解释执行, 慢一些, 结果一样
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Grammar {
+    // 生成的类名, 默认接口名 + Parser
+    String value() default "";
+}
@@ -0,0 +1,1390 @@
+package xiao.parsec;
+
+import com.sun.source.tree.*;
+import com.sun.source.util.SourcePositions;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreeScanner;
+import com.sun.source.util.Trees;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 编译时把 @Grammar 接口里用 Parsec1.Rules 拼的语法翻译成递归下降的 parser (源码), 省掉 CPS 闭包和蹦床 <br>
+ * 从源码的语法树上认组合子: 接口里 Rule 类型的属性, 返回 Rule 的 static 方法 (按实参展开, 同样的实参只展开一次), Rule 的实例方法,
+ * Thunk(() -> x) 和 (s, m, f) -> x.match(s, m, f) 都当作对 x 的引用 <br>
+ * 每个规则一个方法, 成功返回结果, 失败返回 FAIL, 见 Parsec1.Descent; 结果和报错信息同解释执行 <br>
+ * 语义动作: lambda 原样拷成 static 方法, 方法引用之类的表达式做成常量; 正则是字面量的编译期检查,
+ * 字面量直接 startsWith, ParsecJit.Compiler.scan 能翻译的展开成扫描字符的循环, 其他的用 java.util.regex <br>
+ * Choose 按下一个字符查 FIRST 集 switch 分派 (解释执行时 Choose 第一次用会挨个试, 之后才查表) <br>
+ * 认不出来的 Rule 表达式 (手写的闭包, 非字面量的参数 ...) 原样做成常量, 运行时回到 Parsec1 解释执行, 编译时给个 NOTE <br>
+ * 递归下降要占线程栈, 规则方法嵌套超过 Descent.MAX_DEPTH 层时整个回到解释执行 (蹦床), 深的输入不会 StackOverflowError
+ */
+@SupportedAnnotationTypes("xiao.parsec.Grammar")
+public final class GrammarProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (Element e : round.getElementsAnnotatedWith(Grammar.class)) {
+            if (e.getKind() != ElementKind.INTERFACE) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Grammar 只能标在接口上", e);
+                continue;
+            }
+            try {
+                new Generator((TypeElement) e).run();
+            } catch (Abort ignored) {
+                // 已经报过错
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "生成 parser 失败: " + ex, e);
+            }
+        }
+        return true;
+    }
+
+    static final class Abort extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Abort() {
+            super(null, null, false, false);
+        }
+    }
+
+    // 方法体不是 局部变量 + return, 整个调用当作看不懂
+    static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // 实参或者局部变量: 在哪个环境里的哪个表达式, Rule 类型的分析一次
+    static final class Var {
+        final ExpressionTree expr;
+        final Map<String, Var> env;
+        G rule;
+
+        Var(ExpressionTree expr, Map<String, Var> env) {
+            this.expr = expr;
+            this.env = env;
+        }
+    }
+
+    // 语义动作, 参数是生成代码里的变量, 返回调用的代码
+    @FunctionalInterface
+    interface Act {
+        String call(String... args);
+    }
+
+    static final Act FIRST = a -> a[0];
+    static final Act SECOND = a -> a[1];
+    static final Act MIDDLE = a -> a[1];
+    static final Act NULL = a -> "null";
+
+    // 语义动作的函数接口: 常量的类型, lambda 拷成方法的返回类型和参数类型
+    enum Fn {
+        PAT("java.util.function.Function<String, Object>", "Object", "String"),
+        SPAN("java.util.function.Function<xiao.parsec.Span, Object>", "Object", "xiao.parsec.Span"),
+        FUN1("xiao.parsec.Parsec1.Fun1", "Object", "Object"),
+        FUN2("xiao.parsec.Parsec1.Fun2", "Object", "Object", "Object"),
+        FUN3("xiao.parsec.Parsec1.Fun3", "Object", "Object", "Object", "Object"),
+        BINDER("java.util.function.Function<Object, xiao.parsec.Parsec1.Rule>", "xiao.parsec.Parsec1.Rule", "Object");
+
+        final String type;
+        final String ret;
+        final String[] params;
+
+        Fn(String type, String ret, String... params) {
+            this.type = type;
+            this.ret = ret;
+            this.params = params;
+        }
+    }
+
+    /**
+     * 分析出来的语法图, 同 Parsec1.Node; Many1 SepBy1 Count 单独一种, 生成循环 <br>
+     * Named 是 Rule 属性和展开的方法, 指向定义; Opaque 是看不懂的 Rule
+     */
+    static final class G {
+        enum Kind {
+            Pat, Seq, Choose, Return, Null, Many, Many1, SepBy1, Count, Map, FlatMap, EOF, AnyChar, LookAhead, NotFollowedBy,
+            Chainl1, Chainr1, SepEndBy, SepEndBy1, ManyTill, Memo, Named, Opaque
+        }
+
+        final Kind kind;
+        G[] kids;
+        Act act;            // Pat: mapper (null 是 Ignore), Seq Map Chain: mapper, FlatMap: binder
+        String code;        // Return: 值, Pat: Pattern 的初始化, Count: 次数, Opaque: Rule 常量
+        Pattern ptn;        // Pat: 编译时就知道的正则
+        boolean span;       // Pat: PatSpan, mapper 接 Span
+        int count = -1;     // Count: 字面量的次数
+        int id;             // Memo
+        String name;        // Named
+        boolean closure;    // Named: (s, m, f) -> x.match(s, m, f), 同解释执行 FIRST 算 ANY
+        String method;      // 生成的方法名
+        FirstSet first;
+
+        G(Kind kind, G... kids) {
+            this.kind = kind;
+            this.kids = kids;
+        }
+    }
+
+    // 缩进的代码
+    static final class Out {
+        final StringBuilder buf = new StringBuilder();
+        int indent;
+
+        Out line(String s) {
+            if (!s.isEmpty()) {
+                for (int i = 0; i < indent; i++) buf.append("    ");
+            }
+            buf.append(s).append('\n');
+            return this;
+        }
+
+        Out open(String s) {
+            line(s + " {");
+            indent++;
+            return this;
+        }
+
+        Out close() {
+            indent--;
+            return line("}");
+        }
+
+        @Override public String toString() { return buf.toString(); }
+    }
+
+    final class Generator {
+        final TypeElement type;
+        final Trees trees;
+        final CompilationUnitTree cu;
+        final SourcePositions positions;
+        final CharSequence source;
+        final String pkg;
+        final String iface;     // 接口的全名
+        final String name;      // 生成的类名
+        final Map<String, VariableTree> fields = new LinkedHashMap<>();    // Rule 属性
+        final Set<String> members = new HashSet<>();                        // 所有属性, 判断 First Second ... 有没有被接口遮住
+        final List<MethodTree> methods = new ArrayList<>();                 // 返回 Rule 的 static 方法
+
+        final Map<Object, G> named = new LinkedHashMap<>(); // 属性名 | [方法, 实参 ...] -> Named
+        final Set<String> names = new HashSet<>();
+        final Deque<Runnable> work = new ArrayDeque<>();    // 属性和展开的方法, 先占位, 后分析 (可以递归)
+        final Out statics = new Out();                      // 外层类: 语义动作, 常量
+        int constants;
+        int memos;
+        int patterns;                                       // Matcher 的个数
+
+        Generator(TypeElement type) throws IOException {
+            this.type = type;
+            trees = Trees.instance(processingEnv);
+            TreePath path = trees.getPath(type);
+            cu = path.getCompilationUnit();
+            positions = trees.getSourcePositions();
+            source = cu.getSourceFile().getCharContent(true);
+            pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+            iface = type.getQualifiedName().toString();
+            String value = type.getAnnotation(Grammar.class).value();
+            name = value.isEmpty() ? type.getSimpleName() + "Parser" : value;
+            statics.indent = 1;
+            for (Tree member : ((ClassTree) path.getLeaf()).getMembers()) {
+                if (member instanceof VariableTree) {
+                    VariableTree v = (VariableTree) member;
+                    members.add(v.getName().toString());
+                    if (isRule(v.getType())) {
+                        fields.put(v.getName().toString(), v);
+                    }
+                } else if (member instanceof MethodTree) {
+                    MethodTree m = (MethodTree) member;
+                    if (m.getModifiers().getFlags().contains(Modifier.STATIC) && m.getBody() != null
+                            && m.getReturnType() != null && isRule(m.getReturnType())) {
+                        methods.add(m);
+                    }
+                }
+            }
+        }
+
+        void run() throws IOException {
+            names.addAll(fields.keySet());
+            List<G> entries = new ArrayList<>();
+            for (String f : fields.keySet()) {
+                entries.add(field(f));
+            }
+            while (!work.isEmpty()) {
+                work.poll().run();
+            }
+            String code = generate(entries);
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, type);
+            try (Writer w = file.openWriter()) {
+                w.write(code);
+            }
+        }
+
+        // ~ 分析 ~
+
+        G field(String n) {
+            G g = named.get(n);
+            if (g != null) {
+                return g;
+            }
+            G f = new G(G.Kind.Named);
+            f.name = n;
+            named.put(n, f);
+            VariableTree v = fields.get(n);
+            work.add(() -> f.kids = new G[] { rule(v.getInitializer(), Collections.emptyMap()) });
+            return f;
+        }
+
+        G rule(Var v) {
+            if (v.rule == null) {
+                v.rule = rule(v.expr, v.env);
+            }
+            return v.rule;
+        }
+
+        G rule(ExpressionTree expr, Map<String, Var> env) {
+            ExpressionTree e = strip(expr);
+            if (e instanceof IdentifierTree) {
+                String n = ((IdentifierTree) e).getName().toString();
+                Var v = env.get(n);
+                if (v != null) {
+                    return rule(v);
+                }
+                if (fields.containsKey(n)) {
+                    return field(n);
+                }
+            } else if (e instanceof MemberSelectTree) {
+                MemberSelectTree s = (MemberSelectTree) e;
+                String n = s.getIdentifier().toString();
+                if (isIface(s.getExpression()) && fields.containsKey(n)) {
+                    return field(n);
+                }
+            } else if (e instanceof MethodInvocationTree) {
+                G g = call((MethodInvocationTree) e, env);
+                if (g != null) {
+                    return g;
+                }
+            } else if (e instanceof LambdaExpressionTree) {
+                ExpressionTree target = closure((LambdaExpressionTree) e);
+                if (target != null) {
+                    G g = new G(G.Kind.Named, rule(target, env));
+                    g.name = "closure";
+                    g.closure = true;
+                    return g;
+                }
+            }
+            return opaque(expr, env);
+        }
+
+        G call(MethodInvocationTree t, Map<String, Var> env) {
+            ExpressionTree sel = t.getMethodSelect();
+            List<? extends ExpressionTree> args = t.getArguments();
+            String n;
+            ExpressionTree recv = null;
+            if (sel instanceof IdentifierTree) {
+                n = ((IdentifierTree) sel).getName().toString();
+            } else if (sel instanceof MemberSelectTree) {
+                n = ((MemberSelectTree) sel).getIdentifier().toString();
+                recv = ((MemberSelectTree) sel).getExpression();
+            } else {
+                return null;
+            }
+            if (recv == null || isIface(recv)) {
+                MethodTree m = method(n, args.size());
+                if (m != null) {
+                    return macro(m, t, env);
+                }
+                if (recv != null) {
+                    return null;
+                }
+            }
+            if (recv == null || isRules(recv)) {
+                return combinator(n, args, env, t);
+            }
+            List<ExpressionTree> all = new ArrayList<>();
+            all.add(recv);
+            all.addAll(args);
+            return instance(n, all, env, t);
+        }
+
+        MethodTree method(String n, int arity) {
+            for (MethodTree m : methods) {
+                if (m.getName().contentEquals(n) && m.getParameters().size() == arity) {
+                    return m;
+                }
+            }
+            return null;
+        }
+
+        // 返回 Rule 的方法按实参展开, 同样的实参 (Rule 实参按分析结果) 只展开一次, 递归调用就是引用
+        G macro(MethodTree m, MethodInvocationTree call, Map<String, Var> caller) {
+            Map<String, Var> env = new HashMap<>();
+            List<Object> key = new ArrayList<>();
+            key.add(m);
+            List<? extends VariableTree> ps = m.getParameters();
+            for (int i = 0; i < ps.size(); i++) {
+                Var v = new Var(call.getArguments().get(i), caller);
+                key.add(isRule(ps.get(i).getType()) ? rule(v) : v.expr);
+                env.put(ps.get(i).getName().toString(), v);
+            }
+            G g = named.get(key);
+            if (g != null) {
+                return g;
+            }
+            G f = new G(G.Kind.Named);
+            String n = m.getName().toString();
+            for (int i = 2; !names.add(n); i++) {
+                n = m.getName() + "$" + i;
+            }
+            f.name = n;
+            named.put(key, f);
+            work.add(() -> {
+                G body;
+                try {
+                    body = body(m, env);
+                } catch (Unsupported u) {
+                    body = opaque(call, caller);
+                }
+                f.kids = new G[] { body };
+            });
+            return f;
+        }
+
+        G body(MethodTree m, Map<String, Var> env) {
+            for (StatementTree st : m.getBody().getStatements()) {
+                if (st instanceof VariableTree && ((VariableTree) st).getInitializer() != null) {
+                    VariableTree v = (VariableTree) st;
+                    Var var = new Var(v.getInitializer(), env);
+                    if (isRule(v.getType())) {
+                        rule(var);
+                    }
+                    env.put(v.getName().toString(), var);
+                } else if (st instanceof ReturnTree) {
+                    return rule(((ReturnTree) st).getExpression(), env);
+                } else {
+                    throw new Unsupported();
+                }
+            }
+            throw new Unsupported();
+        }
+
+        // Rules 里的组合子, 同 Parsec1.Rules 的定义
+        G combinator(String n, List<? extends ExpressionTree> args, Map<String, Var> env, Tree t) {
+            switch (n + "/" + args.size()) {
+                case "Pat/1":           return pat(args.get(0), null, env);
+                case "Pat/2":           return pat(args.get(0), act(args.get(1), Fn.PAT, env), env);
+                case "PatSpan/2":       G span = pat(args.get(0), act(args.get(1), Fn.SPAN, env), env);
+                                        span.span = true;
+                                        return span;
+                case "Str/1":           return str(args.get(0), env);
+                case "Seq/3":           return seq(act(args.get(2), Fn.FUN2, env), rule(args.get(0), env), rule(args.get(1), env));
+                case "Seq/4":           return seq(act(args.get(3), Fn.FUN3, env), rule(args.get(0), env), rule(args.get(1), env), rule(args.get(2), env));
+                case "Return/1":        return ret(value(args.get(0), env));
+                case "Null/0":          return new G(G.Kind.Null);
+                case "Whitespace/0":    return pat("\\s*", null, t, "xiao.parsec.Parsec1.Descent.pattern(\"\\\\s*\")");
+                case "Optional/1":      return option(rule(args.get(0), env), "null");
+                case "Option/2":        return option(rule(args.get(0), env), value(args.get(1), env));
+                case "Many/1":          return new G(G.Kind.Many, rule(args.get(0), env));
+                case "Many1/1":         return new G(G.Kind.Many1, rule(args.get(0), env));
+                case "Skip/1":          return map(rule(args.get(0), env), NULL);
+                case "SkipMany/1":      return map(new G(G.Kind.Many, rule(args.get(0), env)), NULL);
+                case "SkipMany1/1":     return map(new G(G.Kind.Many1, rule(args.get(0), env)), NULL);
+                case "Count/2":         return count(rule(args.get(0), env), args.get(1), env);
+                case "Between/3":       return seq(MIDDLE, rule(args.get(0), env), rule(args.get(2), env), rule(args.get(1), env));
+                case "SepBy/2":         return option(new G(G.Kind.SepBy1, rule(args.get(0), env), rule(args.get(1), env)), "xiao.parsec.Parsec1.Lists.emptyList");
+                case "SepBy1/2":        return new G(G.Kind.SepBy1, rule(args.get(0), env), rule(args.get(1), env));
+                case "EndBy/2":         return new G(G.Kind.Many, seq(FIRST, rule(args.get(0), env), rule(args.get(1), env)));
+                case "EndBy1/2":        return new G(G.Kind.Many1, seq(FIRST, rule(args.get(0), env), rule(args.get(1), env)));
+                case "SepEndBy/2":      return new G(G.Kind.SepEndBy, rule(args.get(0), env), rule(args.get(1), env));
+                case "SepEndBy1/2":     return new G(G.Kind.SepEndBy1, rule(args.get(0), env), rule(args.get(1), env));
+                case "Chainl/4":        return option(chain(G.Kind.Chainl1, args.get(0), args.get(1), args.get(3), env), value(args.get(2), env));
+                case "Chainl1/3":       return chain(G.Kind.Chainl1, args.get(0), args.get(1), args.get(2), env);
+                case "Chainr/4":        return option(chain(G.Kind.Chainr1, args.get(0), args.get(1), args.get(3), env), value(args.get(2), env));
+                case "Chainr1/3":       return chain(G.Kind.Chainr1, args.get(0), args.get(1), args.get(2), env);
+                case "EOF/0":           return new G(G.Kind.EOF);
+                case "AnyChar/0":       return new G(G.Kind.AnyChar);
+                case "LookAhead/1":     return new G(G.Kind.LookAhead, rule(args.get(0), env));
+                case "NotFollowedBy/1": return new G(G.Kind.NotFollowedBy, rule(args.get(0), env));
+                case "ManyTill/2":      return new G(G.Kind.ManyTill, rule(args.get(0), env), rule(args.get(1), env));
+                case "Thunk/1":         return thunk(args.get(0), env);
+                case "Memo/1":          G memo = new G(G.Kind.Memo, rule(args.get(0), env));
+                                        memo.id = memos++;
+                                        return memo;
+                // 改写语法不改变结果, 生成的 parser 自己分派
+                case "Optimize/1":      return rule(args.get(0), env);
+                default:
+                    if (n.equals("Choose") && !args.isEmpty()) {
+                        if (args.size() == 1) {
+                            return rule(args.get(0), env);
+                        }
+                        G[] rs = new G[args.size()];
+                        for (int i = 0; i < rs.length; i++) {
+                            rs[i] = rule(args.get(i), env);
+                        }
+                        return new G(G.Kind.Choose, rs);
+                    }
+                    return null;
+            }
+        }
+
+        // Rule 的实例方法, args[0] 是 this, 同 Parsec1.Rule 的 default 方法
+        G instance(String n, List<ExpressionTree> args, Map<String, Var> env, Tree t) {
+            switch (n + "/" + (args.size() - 1)) {
+                case "map/1":           return map(rule(args.get(0), env), act(args.get(1), Fn.FUN1, env));
+                case "flatMap/1":       G g = new G(G.Kind.FlatMap, rule(args.get(0), env));
+                                        g.act = act(args.get(1), Fn.BINDER, env);
+                                        return g;
+                case "then/1":          return seq(SECOND, rule(args.get(0), env), rule(args.get(1), env));
+                case "over/1":          return seq(FIRST, rule(args.get(0), env), rule(args.get(1), env));
+                case "or/1":            return combinator("Choose", args, env, t);
+                case "between/2":       return combinator("Between", Arrays.asList(args.get(1), args.get(2), args.get(0)), env, t);
+                case "peek/0":          return combinator("LookAhead", args, env, t);
+                case "optimize/0":      return rule(args.get(0), env);
+                default:                return combinator(Character.toUpperCase(n.charAt(0)) + n.substring(1), args, env, t);
+            }
+        }
+
+        G thunk(ExpressionTree arg, Map<String, Var> env) {
+            ExpressionTree a = strip(arg);
+            if (a instanceof LambdaExpressionTree && ((LambdaExpressionTree) a).getParameters().isEmpty()) {
+                Tree body = ((LambdaExpressionTree) a).getBody();
+                if (body instanceof ExpressionTree) {
+                    return rule((ExpressionTree) body, env);
+                }
+                List<? extends StatementTree> st = ((BlockTree) body).getStatements();
+                if (st.size() == 1 && st.get(0) instanceof ReturnTree) {
+                    return rule(((ReturnTree) st.get(0)).getExpression(), env);
+                }
+            }
+            return null;
+        }
+
+        // (s, m, f) -> x.match(s, m, f)
+        ExpressionTree closure(LambdaExpressionTree l) {
+            List<? extends VariableTree> ps = l.getParameters();
+            if (ps.size() != 3 || !(l.getBody() instanceof MethodInvocationTree)) {
+                return null;
+            }
+            MethodInvocationTree call = (MethodInvocationTree) l.getBody();
+            if (!(call.getMethodSelect() instanceof MemberSelectTree)
+                    || !((MemberSelectTree) call.getMethodSelect()).getIdentifier().contentEquals("match")
+                    || call.getArguments().size() != 3) {
+                return null;
+            }
+            for (int i = 0; i < 3; i++) {
+                ExpressionTree a = call.getArguments().get(i);
+                if (!(a instanceof IdentifierTree) || !((IdentifierTree) a).getName().equals(ps.get(i).getName())) {
+                    return null;
+                }
+            }
+            return ((MemberSelectTree) call.getMethodSelect()).getExpression();
+        }
+
+        G pat(ExpressionTree regex, Act mapper, Map<String, Var> env) {
+            String re = constant(regex, env);
+            if (re == null) {
+                G g = pat(null, mapper, regex, "xiao.parsec.Parsec1.Descent.pattern(" + text(regex, env) + ")");
+                return g;
+            }
+            return pat(re, mapper, regex, "xiao.parsec.Parsec1.Descent.pattern(" + quote(re) + ")");
+        }
+
+        // Str: 编译时知道的字符串按 Pattern.quote 处理, 同 Pattern.LITERAL
+        G str(ExpressionTree str, Map<String, Var> env) {
+            String lit = constant(str, env);
+            if (lit == null) {
+                return pat(null, null, str, "java.util.regex.Pattern.compile(" + text(str, env) + ", java.util.regex.Pattern.LITERAL)");
+            }
+            String re = Pattern.quote(lit);
+            return pat(re, null, str, "xiao.parsec.Parsec1.Descent.pattern(" + quote(re) + ")");
+        }
+
+        G pat(String re, Act mapper, Tree t, String init) {
+            G g = new G(G.Kind.Pat);
+            g.act = mapper;
+            g.code = init;
+            if (re != null) {
+                try {
+                    g.ptn = Pattern.compile(re, Pattern.DOTALL);
+                } catch (PatternSyntaxException ex) {
+                    throw error(t, ex.getMessage());
+                }
+            }
+            return g;
+        }
+
+        G seq(Act act, G... kids) {
+            G g = new G(G.Kind.Seq, kids);
+            g.act = act;
+            return g;
+        }
+
+        G ret(String value) {
+            G g = new G(G.Kind.Return);
+            g.code = value;
+            return g;
+        }
+
+        G option(G rule, String value) {
+            return new G(G.Kind.Choose, rule, ret(value));
+        }
+
+        G map(G rule, Act act) {
+            G g = new G(G.Kind.Map, rule);
+            g.act = act;
+            return g;
+        }
+
+        G count(G rule, ExpressionTree n, Map<String, Var> env) {
+            G g = new G(G.Kind.Count, rule);
+            ExpressionTree e = strip(n);
+            if (e instanceof IdentifierTree && env.containsKey(((IdentifierTree) e).getName().toString())) {
+                Var v = env.get(((IdentifierTree) e).getName().toString());
+                return count(rule, v.expr, v.env);
+            }
+            if (e instanceof LiteralTree && ((LiteralTree) e).getValue() instanceof Integer) {
+                g.count = (Integer) ((LiteralTree) e).getValue();
+                g.code = String.valueOf(g.count);
+            } else {
+                g.code = constant("int", text(n, env));
+            }
+            return g;
+        }
+
+        G chain(G.Kind kind, ExpressionTree rule, ExpressionTree op, ExpressionTree mapper, Map<String, Var> env) {
+            G g = new G(kind, rule(rule, env), rule(op, env));
+            g.act = act(mapper, Fn.FUN3, env);
+            return g;
+        }
+
+        G opaque(ExpressionTree e, Map<String, Var> env) {
+            G g = new G(G.Kind.Opaque);
+            g.code = constant("xiao.parsec.Parsec1.Rule", text(e, env));
+            trees.printMessage(Diagnostic.Kind.NOTE, "看不到语法结构, 生成的 parser 在这里回到 Parsec1 解释执行", e, cu);
+            return g;
+        }
+
+        Act act(ExpressionTree e, Fn fn, Map<String, Var> env) {
+            ExpressionTree s = strip(e);
+            String builtin = null;
+            if (s instanceof IdentifierTree) {
+                String n = ((IdentifierTree) s).getName().toString();
+                Var v = env.get(n);
+                if (v != null) {
+                    return act(v.expr, fn, v.env);
+                }
+                if (!members.contains(n)) {
+                    builtin = n;
+                }
+            } else if (s instanceof MemberSelectTree && isRules(((MemberSelectTree) s).getExpression())) {
+                builtin = ((MemberSelectTree) s).getIdentifier().toString();
+            }
+            if (builtin != null) {
+                switch (builtin + "/" + fn) {
+                    case "First/FUN2":  return FIRST;
+                    case "Second/FUN2": return SECOND;
+                    case "Middle/FUN3": return MIDDLE;
+                    case "Ignore/PAT":  return null;
+                }
+            }
+            if (s instanceof LambdaExpressionTree) {
+                return lambda((LambdaExpressionTree) s, fn, env);
+            }
+            // 方法引用, 函数对象 ...
+            String k = constant(fn.type, text(e, env));
+            return a -> k + ".apply(" + String.join(", ", a) + ")";
+        }
+
+        // lambda 拷成外层类的 static 方法, 参数没写类型的按 Fn 补上
+        Act lambda(LambdaExpressionTree l, Fn fn, Map<String, Var> env) {
+            List<? extends VariableTree> ps = l.getParameters();
+            if (ps.size() != fn.params.length) {
+                throw error(l, "lambda 的参数个数不对, 要 " + fn.params.length + " 个");
+            }
+            check(l, env);
+            String m = "a$" + (++constants);
+            StringBuilder b = new StringBuilder("static ").append(fn.ret).append(' ').append(m).append('(');
+            for (int i = 0; i < ps.size(); i++) {
+                VariableTree p = ps.get(i);
+                boolean typed = p.getType() != null && positions.getStartPosition(cu, p.getType()) >= 0;
+                b.append(i == 0 ? "" : ", ").append(typed ? src(p.getType()) : fn.params[i]).append(' ').append(p.getName());
+            }
+            b.append(")");
+            if (l.getBodyKind() == LambdaExpressionTree.BodyKind.EXPRESSION) {
+                statics.open(b.toString()).line("return " + src(l.getBody()) + ";").close();
+            } else {
+                statics.line(b + " " + dedent(src(l.getBody())));
+            }
+            String q = name + "." + m;
+            return a -> q + "(" + String.join(", ", a) + ")";
+        }
+
+        // 块的后几行按最后一行 (右花括号) 的缩进对齐到外层类
+        String dedent(String block) {
+            String[] lines = block.split("\n", -1);
+            String last = lines[lines.length - 1];
+            int n = last.length() - last.replaceAll("^\\s+", "").length();
+            StringBuilder b = new StringBuilder(lines[0]);
+            for (int i = 1; i < lines.length; i++) {
+                String ln = lines[i];
+                int k = 0;
+                while (k < n && k < ln.length() && Character.isWhitespace(ln.charAt(k))) k++;
+                b.append('\n').append(ln.isEmpty() ? "" : "    ").append(ln.substring(k));
+            }
+            return b.toString();
+        }
+
+        // Return Option Chainl 的值, 字面量原样, 其他的做成常量 (同解释执行, 只求值一次)
+        String value(ExpressionTree e, Map<String, Var> env) {
+            ExpressionTree s = strip(e);
+            if (s instanceof IdentifierTree && env.containsKey(((IdentifierTree) s).getName().toString())) {
+                Var v = env.get(((IdentifierTree) s).getName().toString());
+                return value(v.expr, v.env);
+            }
+            if (s instanceof LiteralTree) {
+                return src(s);
+            }
+            return constant("Object", text(e, env));
+        }
+
+        // 编译时就知道的字符串: 字面量和字面量相加
+        String constant(ExpressionTree expr, Map<String, Var> env) {
+            ExpressionTree e = strip(expr);
+            if (e instanceof LiteralTree) {
+                Object v = ((LiteralTree) e).getValue();
+                return v instanceof String ? (String) v : null;
+            }
+            if (e instanceof BinaryTree && e.getKind() == Tree.Kind.PLUS) {
+                String a = constant(((BinaryTree) e).getLeftOperand(), env);
+                String b = a == null ? null : constant(((BinaryTree) e).getRightOperand(), env);
+                return b == null ? null : a + b;
+            }
+            if (e instanceof IdentifierTree) {
+                Var v = env.get(((IdentifierTree) e).getName().toString());
+                return v == null ? null : constant(v.expr, v.env);
+            }
+            return null;
+        }
+
+        String constant(String type, String init) {
+            String k = "k$" + (++constants);
+            statics.line("static final " + type + " " + k + " = " + init + ";");
+            return name + "." + k;
+        }
+
+        // 拷到生成的类里的表达式, 不能引用方法的参数和局部变量 (整个就是一个参数的话换成实参)
+        String text(ExpressionTree e, Map<String, Var> env) {
+            ExpressionTree s = strip(e);
+            if (s instanceof IdentifierTree) {
+                Var v = env.get(((IdentifierTree) s).getName().toString());
+                if (v != null) {
+                    return text(v.expr, v.env);
+                }
+            }
+            check(e, env);
+            return src(e);
+        }
+
+        void check(Tree t, Map<String, Var> env) {
+            if (env.isEmpty()) {
+                return;
+            }
+            Set<String> declared = new HashSet<>();
+            List<IdentifierTree> used = new ArrayList<>();
+            new TreeScanner<Void, Void>() {
+                @Override
+                public Void visitVariable(VariableTree v, Void p) {
+                    declared.add(v.getName().toString());
+                    return super.visitVariable(v, p);
+                }
+
+                @Override
+                public Void visitIdentifier(IdentifierTree id, Void p) {
+                    used.add(id);
+                    return null;
+                }
+            }.scan(t, null);
+            for (IdentifierTree id : used) {
+                String n = id.getName().toString();
+                if (env.containsKey(n) && !declared.contains(n)) {
+                    throw error(id, "生成的 parser 里引用不到方法的参数或局部变量 " + n);
+                }
+            }
+        }
+
+        String src(Tree t) {
+            return source.subSequence((int) positions.getStartPosition(cu, t), (int) positions.getEndPosition(cu, t)).toString();
+        }
+
+        ExpressionTree strip(ExpressionTree e) {
+            while (true) {
+                if (e instanceof ParenthesizedTree) {
+                    e = ((ParenthesizedTree) e).getExpression();
+                } else if (e instanceof TypeCastTree && isRule(((TypeCastTree) e).getType())) {
+                    e = ((TypeCastTree) e).getExpression();
+                } else {
+                    return e;
+                }
+            }
+        }
+
+        boolean isRule(Tree t) {
+            String s = t.toString();
+            return s.equals("Rule") || s.endsWith(".Rule");
+        }
+
+        boolean isIface(ExpressionTree e) {
+            String s = e.toString();
+            return s.equals(type.getSimpleName().toString()) || s.equals(iface);
+        }
+
+        boolean isRules(ExpressionTree e) {
+            String s = e.toString();
+            return s.equals("Rules") || s.endsWith("Parsec1.Rules");
+        }
+
+        Abort error(Tree t, String msg) {
+            trees.printMessage(Diagnostic.Kind.ERROR, msg, t, cu);
+            return new Abort();
+        }
+
+        // ~ FIRST 集, 同 Parsec1.Node.first ~
+
+        FirstSet first(G g, Set<G> seen) {
+            if (g.first != null) {
+                return g.first;
+            }
+            if (!seen.add(g)) {
+                return FirstSet.ANY;
+            }
+            G[] ks = g.kids;
+            FirstSet first;
+            switch (g.kind) {
+                case Pat:           first = g.ptn == null ? FirstSet.ANY : FirstSet.regex(g.ptn); break;
+                case Seq:           first = first(ks[0], seen);
+                                    for (int i = 1; i < ks.length && first.empty(); i++) first = first.then(first(ks[i], seen));
+                                    break;
+                case Choose:        first = first(ks[0], seen);
+                                    for (int i = 1; i < ks.length; i++) first = first.union(first(ks[i], seen));
+                                    break;
+                case Many:
+                case SepEndBy:      first = first(ks[0], seen).optional(); break;
+                case Map:
+                case Memo:
+                case Chainl1:
+                case Chainr1:
+                case SepEndBy1:     first = first(ks[0], seen); break;
+                // Seq(rule, Many(rule))
+                case Many1:         first = first(ks[0], seen);
+                                    if (first.empty()) first = first.then(first.optional());
+                                    break;
+                // Seq(rule, Many(Seq(by, rule)))
+                case SepBy1:        first = first(ks[0], seen);
+                                    if (first.empty()) {
+                                        FirstSet by = first(ks[1], seen);
+                                        if (by.empty()) by = by.then(first(ks[0], seen));
+                                        first = first.then(by.optional());
+                                    }
+                                    break;
+                // Seq(rule, Seq(rule, ... Null))
+                case Count:         if (g.count < 0) {
+                                        first = FirstSet.ANY;
+                                        break;
+                                    }
+                                    FirstSet f = first(ks[0], seen);
+                                    first = FirstSet.EMPTY;
+                                    for (int i = 0; i < g.count; i++) first = f.empty() ? f.then(first) : f;
+                                    break;
+                case FlatMap:       first = first(ks[0], seen);
+                                    if (first.empty()) first = FirstSet.ANY;
+                                    break;
+                case ManyTill:      first = first(ks[1], seen);
+                                    first = first.union(first(ks[0], seen).then(first));
+                                    break;
+                case AnyChar:       first = FirstSet.ANY_CHAR; break;
+                case Named:         first = g.closure ? FirstSet.ANY : first(ks[0], seen); break;
+                case Opaque:        first = FirstSet.ANY; break;
+                case Return:        first = FirstSet.regex(Pattern.compile("")); break;
+                default:            first = FirstSet.EMPTY; break;
+            }
+            g.first = first;
+            return first;
+        }
+
+        // 每个 slot 要试的分支, 全都要试就不分派
+        long[] dispatch(G g) {
+            int n = g.kids.length;
+            if (n >= 64) {
+                return null;
+            }
+            FirstSet[] fs = new FirstSet[n];
+            for (int i = 0; i < n; i++) {
+                fs[i] = first(g.kids[i], new HashSet<>());
+            }
+            return dispatch(fs);
+        }
+
+        long[] dispatch(FirstSet[] fs) {
+            long all = (1L << fs.length) - 1;
+            long[] masks = new long[FirstSet.SLOTS];
+            boolean useful = false;
+            for (int slot = 0; slot < FirstSet.SLOTS; slot++) {
+                for (int i : FirstSet.candidates(fs, slot)) {
+                    masks[slot] |= 1L << i;
+                }
+                useful |= masks[slot] != all;
+            }
+            return useful ? masks : null;
+        }
+
+        // ~ 生成代码 ~
+
+        G target(G g) {
+            Set<G> seen = new HashSet<>();
+            while (g.kind == G.Kind.Named) {
+                if (!seen.add(g)) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "规则 " + g.name + " 只引用了自己", type);
+                    throw new Abort();
+                }
+                g = g.kids[0];
+            }
+            return g;
+        }
+
+        String call(G g) {
+            g = target(g);
+            switch (g.kind) {
+                case Return: return g.code;
+                case Null:   return "null";
+                default:     return ruleMethod(g) ? "exit(" + g.method + "())" : g.method + "()";
+            }
+        }
+
+        // 属性和展开的 static 方法各一个 r$ 方法, 递归都要经过它们, 在这里数嵌套的层数, 见 Parsec1.Descent.enter
+        boolean ruleMethod(G g) {
+            return g.method.startsWith("r$");
+        }
+
+        void visit(G g, Set<G> seen, List<G> order) {
+            g = target(g);
+            if (!seen.add(g)) {
+                return;
+            }
+            if (g.kind != G.Kind.Return && g.kind != G.Kind.Null) {
+                if (g.method == null) {
+                    g.method = "n$" + order.size();
+                }
+                order.add(g);
+            }
+            for (G k : g.kids) {
+                visit(k, seen, order);
+            }
+        }
+
+        String generate(List<G> entries) {
+            for (G n : named.values()) {
+                G t = target(n);
+                if (t.method == null) {
+                    t.method = "r$" + n.name;
+                }
+            }
+            List<G> order = new ArrayList<>();
+            Set<G> seen = new HashSet<>();
+            for (G e : entries) {
+                visit(e, seen, order);
+            }
+
+            Out p = new Out();
+            p.indent = 1;
+            p.open("static final class $Parser extends xiao.parsec.Parsec1.Descent");
+            int ctor = p.buf.length();
+            p.line("");
+            p.line("@Override");
+            p.open("protected Object start(int rule)");
+            p.open("switch (rule)");
+            int i = 0;
+            for (G e : entries) {
+                p.line("case " + (i++) + ": return " + call(e) + ";");
+            }
+            p.line("default: throw new IllegalArgumentException(\"rule \" + rule);");
+            p.close();
+            p.close();
+            for (G g : order) {
+                p.line("");
+                p.open("Object " + g.method + "()");
+                if (ruleMethod(g)) {
+                    p.line("enter();");
+                }
+                method(g, p);
+                p.close();
+            }
+            p.close();
+            p.buf.insert(ctor, "        $Parser(String src, int pos) {\n            super(src, pos, " + patterns + ");\n        }\n");
+
+            Out o = new Out();
+            o.line("// 由 xiao.parsec.GrammarProcessor 从 " + iface + " 生成, 不要修改");
+            if (!pkg.isEmpty()) {
+                o.line("package " + pkg + ";").line("");
+            }
+            for (ImportTree imp : cu.getImports()) {
+                o.line(src(imp));
+            }
+            o.line("import static " + iface + ".*;");
+            o.line("");
+            o.line("/**");
+            o.line(" * {@link " + iface + "} 的递归下降 parser, 同名的 Rule 属性, 见 xiao.parsec.GrammarProcessor");
+            o.line(" */");
+            o.line("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+            o.open("public final class " + name);
+            i = 0;
+            for (String f : fields.keySet()) {
+                o.line("public static final xiao.parsec.Parsec1.Rule " + f + " = new $Entry(" + (i++) + ");");
+            }
+            o.line("");
+            o.line("private " + name + "() { }");
+            o.line("");
+            o.buf.append(statics);
+            o.line("");
+            o.open("static final class $Entry extends xiao.parsec.Parsec1.Descent.Entry");
+            o.open("$Entry(int rule)").line("super(rule);").close();
+            o.line("");
+            o.line("@Override");
+            o.open("protected xiao.parsec.Parsec1.Descent parser(String src, int pos)").line("return new $Parser(src, pos);").close();
+            o.line("");
+            o.line("@Override");
+            o.open("protected xiao.parsec.Parsec1.Rule interpreted()");
+            o.open("switch (rule)");
+            i = 0;
+            for (String f : fields.keySet()) {
+                o.line("case " + (i++) + ": return " + iface + "." + f + ";");
+            }
+            o.line("default: throw new IllegalArgumentException(\"rule \" + rule);");
+            o.close();
+            o.close();
+            o.close();
+            o.line("");
+            o.buf.append(p);
+            o.close();
+            return o.toString();
+        }
+
+        void method(G g, Out o) {
+            G[] ks = g.kids;
+            switch (g.kind) {
+                case Pat:           pat(g, o); break;
+                case Seq:           seq(g, o); break;
+                case Choose:        choose(g, o); break;
+                case Many:          o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    many(ks[0], o);
+                                    o.line("return l;");
+                                    break;
+                case Many1:         o.line("Object a = " + call(ks[0]) + ";");
+                                    o.line("if (a == FAIL) return FAIL;");
+                                    o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    many(ks[0], o);
+                                    o.line("return xiao.parsec.Parsec1.Lists.prepend(l, a);");
+                                    break;
+                case SepBy1:        o.line("Object a = " + call(ks[0]) + ";");
+                                    o.line("if (a == FAIL) return FAIL;");
+                                    o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    o.open("for (;;)");
+                                    o.line("int p = pos;");
+                                    o.line("Object r;");
+                                    o.open("if (" + call(ks[1]) + " == FAIL || (r = " + call(ks[0]) + ") == FAIL)");
+                                    o.line("pos = p;");
+                                    o.line("return xiao.parsec.Parsec1.Lists.prepend(l, a);");
+                                    o.close();
+                                    o.line("l.add(r);");
+                                    o.close();
+                                    break;
+                case Count:         o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    o.open("for (int i = 0; i < " + g.code + "; i++)");
+                                    o.line("Object r = " + call(ks[0]) + ";");
+                                    o.line("if (r == FAIL) return FAIL;");
+                                    o.line("l.add(r);");
+                                    o.close();
+                                    o.line("return l;");
+                                    break;
+                case Map:           o.line("Object r = " + call(ks[0]) + ";");
+                                    o.line("return r == FAIL ? FAIL : " + g.act.call("r") + ";");
+                                    break;
+                case FlatMap:       o.line("Object r = " + call(ks[0]) + ";");
+                                    o.line("return r == FAIL ? FAIL : run(" + g.act.call("r") + ");");
+                                    break;
+                case EOF:           o.line("return pos >= end ? null : fail(\"EOF\");"); break;
+                case AnyChar:       o.line("return pos >= end ? fail(\"EOF\") : String.valueOf(src.charAt(pos++));"); break;
+                case LookAhead:     o.line("int p = pos;");
+                                    o.line("Object r = " + call(ks[0]) + ";");
+                                    o.line("if (r != FAIL) pos = p;");
+                                    o.line("return r;");
+                                    break;
+                case NotFollowedBy: o.line("int p = pos;");
+                                    o.line("Object r = " + call(ks[0]) + ";");
+                                    o.open("if (r == FAIL)").line("pos = p;").line("return null;").close();
+                                    o.line("return notFollowedBy(p, r);");
+                                    break;
+                case Chainl1:       o.line("Object x = " + call(ks[0]) + ";");
+                                    o.line("if (x == FAIL) return FAIL;");
+                                    o.open("for (;;)");
+                                    o.line("int p = pos;");
+                                    o.line("Object f, y;");
+                                    o.open("if ((f = " + call(ks[1]) + ") == FAIL || (y = " + call(ks[0]) + ") == FAIL)");
+                                    o.line("pos = p;").line("return x;");
+                                    o.close();
+                                    o.line("x = " + g.act.call("f", "x", "y") + ";");
+                                    o.close();
+                                    break;
+                // 先读完 x0 f1 x1 f2 x2 ..., 再从右往左结合
+                case Chainr1:       o.line("Object x = " + call(ks[0]) + ";");
+                                    o.line("if (x == FAIL) return FAIL;");
+                                    o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    o.line("l.add(x);");
+                                    o.open("for (;;)");
+                                    o.line("int p = pos;");
+                                    o.line("Object f, y;");
+                                    o.open("if ((f = " + call(ks[1]) + ") == FAIL || (y = " + call(ks[0]) + ") == FAIL)");
+                                    o.line("pos = p;").line("break;");
+                                    o.close();
+                                    o.line("l.add(f);").line("l.add(y);");
+                                    o.close();
+                                    o.line("x = l.get(l.size() - 1);");
+                                    o.open("for (int i = l.size() - 3; i >= 0; i -= 2)");
+                                    o.line("x = " + g.act.call("l.get(i + 1)", "l.get(i)", "x") + ";");
+                                    o.close();
+                                    o.line("return x;");
+                                    break;
+                // by 之后的 rule 失败了, by 还是算匹配上了
+                case SepEndBy:
+                case SepEndBy1:     o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    o.line("int p = pos;");
+                                    o.open("for (;;)");
+                                    o.line("Object r = " + call(ks[0]) + ";");
+                                    o.open("if (r == FAIL)");
+                                    if (g.kind == G.Kind.SepEndBy1) {
+                                        o.line("if (l.isEmpty()) return FAIL;");
+                                    }
+                                    o.line("pos = p;").line("return l;");
+                                    o.close();
+                                    o.line("l.add(r);");
+                                    o.line("p = pos;");
+                                    o.open("if (" + call(ks[1]) + " == FAIL)").line("pos = p;").line("return l;").close();
+                                    o.line("p = pos;");
+                                    o.close();
+                                    break;
+                // 每一层先试 till 再试 many, 都失败了同 manyTill_ 的 Choose 报错
+                // 第一层的 Choose 是同一个节点, 按 FIRST 集分派; 里面每层的都是新建的, 挨个试
+                case ManyTill:      o.line("java.util.List<Object> l = new java.util.ArrayList<>();");
+                                    o.line("Object tills = null;");
+                                    FirstSet many = first(ks[0], new HashSet<>());
+                                    long[] masks = dispatch(new FirstSet[] { first(ks[1], new HashSet<>()), many.empty() ? many.then(FirstSet.ANY) : many });
+                                    if (masks != null) {
+                                        o.line("int s = pos;");
+                                        alts(masks, o);
+                                        o.open("if ((alts & 0x1L) != 0)");
+                                        o.line("if (" + call(ks[1]) + " != FAIL) return l;");
+                                        o.line("if ((alts & 0x2L) == 0) return FAIL;");
+                                        o.line("tills = tillFailed(tills);");
+                                        o.line("pos = s;");
+                                        o.close();
+                                        o.line("Object x = " + call(ks[0]) + ";");
+                                        o.line("if (x == FAIL) return manyTill(tills);");
+                                        o.line("l.add(x);");
+                                    }
+                                    o.open("for (;;)");
+                                    o.line("int p = pos;");
+                                    o.line("if (" + call(ks[1]) + " != FAIL) return l;");
+                                    o.line("tills = tillFailed(tills);");
+                                    o.line("pos = p;");
+                                    o.line("Object r = " + call(ks[0]) + ";");
+                                    o.line("if (r == FAIL) return manyTill(tills);");
+                                    o.line("l.add(r);");
+                                    o.close();
+                                    break;
+                case Memo:          o.line("int s = pos;");
+                                    o.line("xiao.parsec.Parsec1.Descent.Memo e = memo(" + g.id + ");");
+                                    o.open("if (e.enter())");
+                                    o.line("while (e.grow(this, " + call(ks[0]) + ")) pos = s;");
+                                    o.close();
+                                    o.line("return e.recall(this);");
+                                    break;
+                case Opaque:        o.line("return run(" + g.code + ");"); break;
+                default:            throw new IllegalStateException(g.kind.toString());
+            }
+        }
+
+        void many(G rule, Out o) {
+            o.open("for (;;)");
+            o.line("int p = pos;");
+            o.line("Object r = " + call(rule) + ";");
+            o.open("if (r == FAIL)").line("pos = p;").line("break;").close();
+            o.line("l.add(r);");
+            o.close();
+        }
+
+        void seq(G g, Out o) {
+            String[] vs = new String[g.kids.length];
+            for (int i = 0; i < vs.length; i++) {
+                vs[i] = String.valueOf((char) ('a' + i));
+                o.line("Object " + vs[i] + " = " + call(g.kids[i]) + ";");
+                o.line("if (" + vs[i] + " == FAIL) return FAIL;");
+            }
+            o.line("return " + g.act.call(vs) + ";");
+        }
+
+        // 匹配到的 [s, e) 交给 mapper: Pat 是文本 (字面量直接用常量), PatSpan 是原输入上的 Span
+        String result(G g, String s, String e, String literal) {
+            if (g.act == null) {
+                return "null";
+            }
+            if (g.span) {
+                return g.act.call("new xiao.parsec.Span(src, " + s + ", " + e + ")");
+            }
+            return g.act.call(literal != null ? literal : "src.substring(" + s + ", " + e + ")");
+        }
+
+        void pat(G g, Out o) {
+            String expected = g.ptn == null ? null : quote(g.ptn.pattern());
+            String literal = g.ptn == null ? null : Fused.literal(g.ptn);
+            if (literal != null) {
+                if (literal.isEmpty()) {
+                    o.line("return " + result(g, "pos", "pos", "\"\"") + ";");
+                    return;
+                }
+                String q = quote(literal);
+                o.open("if (src.startsWith(" + q + ", pos))");
+                o.line("pos += " + literal.length() + ";");
+                o.line("return " + result(g, "pos - " + literal.length(), "pos", q) + ";");
+                o.close();
+                o.line("return fail(" + expected + ");");
+                return;
+            }
+            List<List<ParsecVM.Regex.Atom>> alts = g.ptn == null ? null : ParsecJit.Compiler.scan(g.ptn);
+            if (alts != null) {
+                scan(g, alts, expected, o);
+                return;
+            }
+            String k = constant("java.util.regex.Pattern", g.code);
+            String d = constant("xiao.parsec.DFA", "xiao.parsec.DFA.compile(" + k + ")");
+            o.line("int e = lookingAt(" + (patterns++) + ", " + k + ", " + d + ");");
+            o.open("if (e >= 0)");
+            if (g.act == null) {
+                o.line("pos = e;").line("return null;");
+            } else {
+                o.line("int s = pos;").line("pos = e;").line("return " + result(g, "s", "pos", null) + ";");
+            }
+            o.close();
+            o.line("return fail(" + (expected == null ? k + ".pattern()" : expected) + ");");
+        }
+
+        void scanChar(String cond, String label, Out o) {
+            o.line("if (i >= end) break " + label + ";");
+            o.line("c = src.charAt(i);");
+            o.line("if (!(" + cond + ")) break " + label + ";");
+            o.line("i++;");
+        }
+
+        void scanMany(String cond, Out o) {
+            o.open("while (i < end)");
+            o.line("c = src.charAt(i);");
+            o.line("if (!(" + cond + ")) break;");
+            o.line("i++;");
+            o.close();
+        }
+
+        // 同 ParsecJit.Compiler.emitScan: 有序地试每个分支, 量词不回溯
+        void scan(G g, List<List<ParsecVM.Regex.Atom>> alts, String expected, Out o) {
+            o.line("int s = pos, i;");
+            o.line("char c;");
+            for (int k = 0; k < alts.size(); k++) {
+                List<ParsecVM.Regex.Atom> alt = alts.get(k);
+                boolean fallible = alt.stream().anyMatch(a -> a.quant == '1' || a.quant == '+');
+                String label = "alt" + k;
+                if (fallible) {
+                    o.open(label + ":");
+                }
+                o.line("i = s;");
+                for (ParsecVM.Regex.Atom a : alt) {
+                    String cond = cond(a.set);
+                    switch (a.quant) {
+                        case '1':
+                            scanChar(cond, label, o);
+                            break;
+                        case '+':
+                            scanChar(cond, label, o);
+                            scanMany(cond, o);
+                            break;
+                        case '*':
+                            scanMany(cond, o);
+                            break;
+                        case '?':
+                            o.open("if (i < end)");
+                            o.line("c = src.charAt(i);");
+                            o.line("if (" + cond + ") i++;");
+                            o.close();
+                            break;
+                        default:
+                            throw new IllegalStateException();
+                    }
+                }
+                o.line("pos = i;");
+                o.line("return " + result(g, "s", "i", null) + ";");
+                if (!fallible) {
+                    // 这个分支一定成功, 后面的试不到
+                    return;
+                }
+                o.close();
+            }
+            o.line("return fail(" + expected + ");");
+        }
+
+        // long alts: 按下一个字符要试的分支
+        void alts(long[] masks, Out o) {
+            long other = masks[FirstSet.OTHER];
+            Map<Long, List<String>> cases = new LinkedHashMap<>();
+            for (int slot = 0; slot < 128; slot++) {
+                if (masks[slot] != other) {
+                    cases.computeIfAbsent(masks[slot], x -> new ArrayList<>()).add("case " + chr(slot) + ":");
+                }
+            }
+            if (masks[FirstSet.EOF] != other) {
+                cases.computeIfAbsent(masks[FirstSet.EOF], x -> new ArrayList<>()).add("case -1:");
+            }
+            o.line("long alts;");
+            o.open("switch (pos < end ? src.charAt(pos) : -1)");
+            for (Map.Entry<Long, List<String>> e : cases.entrySet()) {
+                o.line(String.join(" ", e.getValue()) + " alts = 0x" + Long.toHexString(e.getKey()) + "L; break;");
+            }
+            o.line("default: alts = 0x" + Long.toHexString(other) + "L;");
+            o.close();
+        }
+
+        void choose(G g, Out o) {
+            G[] ks = g.kids;
+            long[] masks = dispatch(g);
+            o.line("int p = pos;");
+            if (masks != null) {
+                alts(masks, o);
+            }
+            // Return 一定成功 (FIRST 是空的, 哪个 slot 都会试到), 后面的试不到, 前面的失败也不用记
+            int n = 0;
+            while (n < ks.length && target(ks[n]).kind != G.Kind.Return && target(ks[n]).kind != G.Kind.Null) n++;
+            StringBuilder fs = new StringBuilder(), es = new StringBuilder();
+            for (int i = 0; i < ks.length; i++) {
+                fs.append(i == 0 ? "" : ", ").append('f').append(i);
+                es.append(i == 0 ? "" : ", ").append('e').append(i);
+            }
+            if (n == ks.length) {
+                o.line("int " + fs.toString().replace(",", " = 0,") + " = 0;");
+                o.line("Object " + es.toString().replace(",", " = null,") + " = null;");
+            }
+            o.line("Object r;");
+            for (int i = 0; i < n; i++) {
+                if (masks != null) {
+                    o.open("if ((alts & 0x" + Long.toHexString(1L << i) + "L) != 0)");
+                }
+                o.line("if ((r = " + call(ks[i]) + ") != FAIL) return r;");
+                o.line("pos = p;");
+                if (n == ks.length) {
+                    o.line("f" + i + " = failPos;");
+                    o.line("e" + i + " = expected;");
+                }
+                if (masks != null) {
+                    o.close();
+                }
+            }
+            if (n < ks.length) {
+                o.line("return " + call(ks[n]) + ";");
+                return;
+            }
+            o.line("return choose(" + (masks == null ? "-1L" : "alts") + ", new int[] { " + fs + " }, new Object[] { " + es + " });");
+        }
+    }
+
+    static String cond(BitSet set) {
+        int n = set.cardinality();
+        if (n >= 0x10000) {
+            return "true";
+        }
+        if (n == 0) {
+            return "false";
+        }
+        if (n > 0x8000) {
+            BitSet c = (BitSet) set.clone();
+            c.flip(0, 0x10000);
+            return "!(" + ranges(c) + ")";
+        }
+        return ranges(set);
+    }
+
+    static String ranges(BitSet set) {
+        List<String> rs = new ArrayList<>();
+        for (int lo = set.nextSetBit(0); lo >= 0 && lo < 0x10000; ) {
+            int hi = Math.min(set.nextClearBit(lo), 0x10000) - 1;
+            if (lo == hi) {
+                rs.add("c == " + chr(lo));
+            } else if (hi == lo + 1) {
+                rs.add("c == " + chr(lo) + " || c == " + chr(hi));
+            } else if (lo == 0) {
+                rs.add("c <= " + chr(hi));
+            } else if (hi == 0xFFFF) {
+                rs.add("c >= " + chr(lo));
+            } else {
+                rs.add("c >= " + chr(lo) + " && c <= " + chr(hi));
+            }
+            lo = set.nextSetBit(hi + 1);
+        }
+        return String.join(" || ", rs);
+    }
+
+    // 可见的 ASCII 写成字符字面量, 其他的写数字
+    static String chr(int c) {
+        return c >= 0x20 && c < 0x7F && c != '\'' && c != '\\' ? "'" + (char) c + "'" : String.valueOf(c);
+    }
+
+    // Java 字符串字面量, 非 ASCII 用 \\uXXXX (不会有 \\u000a 这种在词法分析之前就被换掉的)
+    static String quote(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  b.append("\\\""); break;
+                case '\\': b.append("\\\\"); break;
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                case '\t': b.append("\\t"); break;
+                case '\b': b.append("\\b"); break;
+                case '\f': b.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c == 0x7F) {
+                        b.append(String.format("\\%03o", (int) c));
+                    } else if (c > 0x7F) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        return b.append('"').toString();
+    }
+}
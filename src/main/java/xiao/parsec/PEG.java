@@ -3,7 +3,6 @@ package xiao.parsec;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -139,10 +138,13 @@ public interface PEG {
 
     interface V4 {
         static Rule Pat(String regex, Function<String, Result> mapper) {
+            // 正则只编译一次, 支持的子集走查表的 DFA
+            Pattern ptn = Pattern.compile(regex);
+            DFA dfa = DFA.compile(ptn);
             return (state, onMatch, onFail) -> {
-                Matcher m = Pattern.compile(regex).matcher(state);
-                if (m.lookingAt()/*start with*/) {
-                    onMatch.apply(state.substring(m.end()), mapper.apply(state.substring(0, m.end())));
+                int end = dfa != null ? dfa.match(state, 0, state.length()) : DFA.lookingAt(ptn, state, 0, state.length());
+                if (end >= 0/*start with*/) {
+                    onMatch.apply(state.substring(end), mapper.apply(state.substring(0, end)));
                 } else {
                     onFail.apply(state, new Str(regex)/*expected*/);
                 }
@@ -174,10 +176,13 @@ public interface PEG {
 
 
         static Rule Pat(String regex, Function<String, Object> mapper) {
+            // 正则只编译一次, 支持的子集走查表的 DFA
+            Pattern ptn = Pattern.compile(regex);
+            DFA dfa = DFA.compile(ptn);
             return (state, onMatch, onFail) -> {
-                Matcher m = Pattern.compile(regex).matcher(state);
-                if (m.lookingAt()/*start with*/) {
-                    onMatch.apply(state.substring(m.end()), mapper.apply(state.substring(0, m.end())));
+                int end = dfa != null ? dfa.match(state, 0, state.length()) : DFA.lookingAt(ptn, state, 0, state.length());
+                if (end >= 0/*start with*/) {
+                    onMatch.apply(state.substring(end), mapper.apply(state.substring(0, end)));
                 } else {
                     onFail.apply(state, new Str(regex)/*expected*/);
                 }
@@ -3,7 +3,6 @@ package xiao.parsec;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.util.Arrays.*;
@@ -22,7 +21,7 @@ import static xiao.parsec.Parsec.Rules.*;
  *      之前写个强类型的版本, 代码写起来啰嗦, 复杂类型的 lambda java 经常推导不出来, 还不如使用弱类型 <br>
  * - Seq 都可以用 flatmap 来改写成链式调用, Choose 都可以用 or 来改写链式调用 <br>
  *      没有 do 语法糖, 链式调用 + CPS写法啰嗦, 可读性更差 <br>
- * - 可以把 String state 修改成 State state 内部存储字符串位置信息用来提供精确报错 <br>
+ * - state 是 不可变的 源字符串 + 偏移, 匹配不再复制剩余输入, FailRet 只记录失败的偏移 <br>
  *      也可以把 State 泛化成 TokenStream 或者 Sequence<Token>  <br>
  * <br>
  * tag: 控制流抽象\CPS\面向组合子编程\FP  <br>
@@ -37,18 +36,22 @@ public interface Parsec {
     interface Result { }
 
     interface Cont {
-        void apply(String state, Result result);
+        void apply(State state, Result result);
     }
 
     @SuppressWarnings({"unused", "CodeBlock2Expr"})
     interface Rule {
 
-        void match(String state, Cont onMatch, Cont onFail);
+        void match(State state, Cont onMatch, Cont onFail);
+
+        default void match(String state, Cont onMatch, Cont onFail) {
+            new Trampoline().run(this, state, onMatch, onFail);
+        }
 
         default Rule map(Fun1<Result, Result> mapper) {
             return (s, m, f) -> {
                 match(s, (s1, r1) -> {
-                    m.apply(s1, mapper.apply(r1));
+                    Trampoline.bounce(m, s1, mapper.apply(r1));
                 }, f);
             };
         }
@@ -94,16 +97,36 @@ public interface Parsec {
     @SuppressWarnings("CodeBlock2Expr")
     interface Rules {
 
+        // 不要文本的 Pat 的 mapper, 匹配完不 substring
+        Fun1<String, Result> Ignore = s -> null;
+
         // ~ Core 就 FinalRule SequencingRule AlternativeRule 三个方法 ~
 
         static Rule Pat(Pattern ptn, Fun1<String, Result> mapper) {
+            return pat_(ptn, mapper, null);
+        }
+
+        // 结果是原输入上的 Span, 不 substring
+        static Rule PatSpan(Pattern ptn, Fun1<Span, Result> mapper) {
+            return pat_(ptn, null, mapper);
+        }
+
+        // private
+        static Rule pat_(Pattern ptn, Fun1<String, Result> mapper, Fun1<Span, Result> span) {
+            // 字面量 (e.g. "\\[", ",") 用 startsWith, 支持的正则子集走查表的 DFA, 其余的 region 默认 opaque + anchoring bounds, 与对剩余后缀做 matcher 的语义一致
+            String lit = Fused.literal(ptn);
+            DFA dfa = lit == null ? DFA.compile(ptn) : null;
             return (s, m, f) -> {
-                Matcher mat = ptn.matcher(s);
-                if (mat.lookingAt()/*start with*/) {
-                    // mat.end() == 0 时, 可能死循环
-                    m.apply(s.substring(mat.end()), mapper.apply(s.substring(0, mat.end())));
+                int end = lit != null ? (s.src.startsWith(lit, s.pos) ? s.pos + lit.length() : -1)
+                        : dfa != null ? dfa.match(s.src, s.pos, s.src.length()) : DFA.lookingAt(ptn, s.src, s.pos, s.src.length());
+                if (end >= 0/*start with*/) {
+                    // end == s.pos 时, 可能死循环
+                    Result r = mapper == Ignore ? null
+                            : span != null ? span.apply(new Span(s.src, s.pos, end))
+                            : mapper.apply(lit != null ? lit : s.src.substring(s.pos, end));
+                    Trampoline.bounce(m, s.to(end), r);
                 } else {
-                    f.apply(s, new FailRet(s, ptn.pattern()));
+                    Trampoline.bounce(f, s, new FailRet(s, ptn.pattern()));
                 }
             };
         }
@@ -117,7 +140,7 @@ public interface Parsec {
             return (s, m, f) -> {
                 front.match(s, (s1, r1) -> {
                     rear.match(s1, (s2, r2) -> {
-                        m.apply(s2, mapper.apply(r1, r2));
+                        Trampoline.bounce(m, s2, mapper.apply(r1, r2));
                     }, f);
                 }, f);
             };
@@ -128,7 +151,7 @@ public interface Parsec {
             return (s, m, f) -> {
                 superior.match(s, m, (s1, r1) -> {
                     inferior.match(s, m, (s2, r2) -> {
-                        f.apply(s2, new FailRet(s2, r1, r2));
+                        Trampoline.bounce(f, s2, new FailRet(s2, r1, r2));
                     });
                 });
             };
@@ -141,7 +164,7 @@ public interface Parsec {
         }
 
         static Rule Null() {
-            return (s, m, f) -> m.apply(s, null);
+            return (s, m, f) -> Trampoline.bounce(m, s, null);
         }
 
         static Rule Pat(String regex, Fun1<String, Result> mapper) {
@@ -149,7 +172,16 @@ public interface Parsec {
         }
 
         static Rule Pat(String regex) {
-            return Pat(regex, s -> null);
+            return Pat(regex, Ignore);
+        }
+
+        static Rule PatSpan(String regex, Fun1<Span, Result> mapper) {
+            return PatSpan(Pattern.compile(regex, Pattern.DOTALL), mapper);
+        }
+
+        // 固定字符串, 同 Pat(String) 不要结果; 匹配时用 startsWith
+        static Rule Str(String str) {
+            return Pat(Pattern.compile(str, Pattern.LITERAL), Ignore);
         }
 
         static Rule Seq(Rule fst, Rule sec, Rule trd, Fun3<Result, Result, Result, Result> mapper) {
@@ -157,7 +189,7 @@ public interface Parsec {
                 fst.match(s, (s1, r1) -> {
                     sec.match(s1, (s2, r2) -> {
                         trd.match(s2, (s3, r3) -> {
-                            m.apply(s3, mapper.apply(r1, r2, r3));
+                            Trampoline.bounce(m, s3, mapper.apply(r1, r2, r3));
                         }, f);
                     }, f);
                 }, f);
@@ -384,9 +416,9 @@ public interface Parsec {
         static Rule EOF() {
             return (s, m, f) -> {
                 if (s.isEmpty()) {
-                    m.apply(s, null);
+                    Trampoline.bounce(m, s, null);
                 } else {
-                    f.apply(s, new FailRet(s, "EOF"));
+                    Trampoline.bounce(f, s, new FailRet(s, "EOF"));
                 }
             };
         }
@@ -396,9 +428,9 @@ public interface Parsec {
         static Rule AnyChar() {
             return (s, m, f) -> {
                 if (s.isEmpty()) {
-                    f.apply(s, new FailRet("EOF"));
+                    Trampoline.bounce(f, s, new FailRet(s, "EOF"));
                 } else {
-                    m.apply(s.substring(1), new StrRet(s.substring(0, 1)));
+                    Trampoline.bounce(m, s.to(s.pos + 1), new StrRet(String.valueOf(s.src.charAt(s.pos))));
                 }
             };
         }
@@ -406,7 +438,7 @@ public interface Parsec {
         static Rule LookAhead(Rule rule) {
             return (s, m, f) -> {
                 rule.match(s, (s1, r1) -> {
-                    m.apply(s, r1);
+                    Trampoline.bounce(m, s, r1);
                 }, f);
             };
         }
@@ -416,9 +448,9 @@ public interface Parsec {
         static Rule NotFollowedBy(Rule rule) {
             return (s, m, f) -> {
                 rule.match(s, (s1, r1) -> {
-                    f.apply(s1, new FailRet(s,"not followed by " + r1));
+                    Trampoline.bounce(f, s1, new FailRet(s,"not followed by " + r1));
                 }, (s2, r2) -> {
-                    m.apply(s, null);
+                    Trampoline.bounce(m, s, null);
                 });
             };
         }
@@ -444,21 +476,42 @@ public interface Parsec {
 
 
     class FailRet implements Result {
-        final String state;
+        final int pos;
         final List<String> expected = new ArrayList<>();
-        public FailRet(String state, String expected) {
-            this.state = state;
+        public FailRet(State state, String expected) {
+            this.pos = state.pos;
             this.expected.add(expected);
         }
-        public FailRet(String state, Result ...others) {
-            this.state = state;
+        public FailRet(State state, Result ...others) {
+            this.pos = state.pos;
             for (Result other : others) {
                 if (other instanceof FailRet) {
                     expected.addAll(((FailRet) other).expected);
                 }
             }
         }
-        @Override public String toString() { return "State=" + state + ", expected=" + expected; }
+        @Override public String toString() { return "Pos=" + pos + ", expected=" + expected; }
+    }
+
+    /**
+     * 不可变状态: 源字符串 + 偏移, 前进 O(1)
+     */
+    final class State {
+        public final String src;
+        public final int pos;
+        final Trampoline trampoline;
+        public State(String src, int pos) {
+            this(src, pos, null);
+        }
+        State(String src, int pos, Trampoline trampoline) {
+            this.src = src;
+            this.pos = pos;
+            this.trampoline = trampoline;
+        }
+        public State to(int pos) { return pos == this.pos ? this : new State(src, pos, trampoline); }
+        public boolean isEmpty() { return pos >= src.length(); }
+        public String rest() { return src.substring(pos); }
+        @Override public String toString() { return "State(" + pos + ")"; }
     }
 
     class StrRet implements Result {
@@ -537,4 +590,48 @@ public interface Parsec {
         }
         @Override public int hashCode() { return Objects.hash(fst, sec, trd); }
     }
+
+    /**
+     * 蹦床 <br>
+     * CPS 里所有调用都是尾调用, 但 java 没有尾调用优化, 每个 Seq、many_ 的一步、Choose 的回退都会多压几层栈,
+     * 输入越长嵌套越深栈越深, 只能 -Xss 把栈开大 <br>
+     * 组合子里调用 continuation 都经过 bounce, 连续 bounce MAX_DEPTH 次之后, 把下一次调用记在堆上直接返回,
+     * 栈退回到 run 的循环里再接着执行, 待执行的 continuation 本来就是堆上的闭包, 所以栈深度与输入无关 <br>
+     * 没有经过 Rule.match(String, ...) 入口构造的 State 不带蹦床, bounce 直接调用
+     */
+    final class Trampoline {
+        static final int MAX_DEPTH = 64;
+
+        int depth;
+        Cont k;
+        State state;
+        Result result;
+
+        static void bounce(Cont k, State s, Result r) {
+            Trampoline t = s.trampoline;
+            if (t == null || ++t.depth < MAX_DEPTH) {
+                k.apply(s, r);
+            } else {
+                // 尾调用, 返回之后调用栈上不会再有别的 continuation 被调用
+                assert t.k == null;
+                t.k = k;
+                t.state = s;
+                t.result = r;
+            }
+        }
+
+        void run(Rule rule, String src, Cont onMatch, Cont onFail) {
+            rule.match(new State(src, 0, this), onMatch, onFail);
+            while (k != null) {
+                Cont k = this.k;
+                State s = this.state;
+                Result r = this.result;
+                this.k = null;
+                this.state = null;
+                this.result = null;
+                depth = 0;
+                k.apply(s, r);
+            }
+        }
+    }
 }
@@ -1,10 +1,13 @@
 package xiao.parsec;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import static java.util.Arrays.*;
 import static xiao.parsec.Parsec1.Rules.*;
@@ -19,8 +22,12 @@ import static xiao.parsec.Parsec1.Rules.*;
  *
  * - Seq 都可以用 flatmap 来改写成链式调用, Choose 都可以用 or 来改写链式调用 <br>
  *      没有 do 语法糖, 链式调用 + CPS写法啰嗦, 可读性更差 <br>
- * - 可以把 String state 修改成 State state 内部存储字符串位置信息用来提供精确报错 <br>
+ * - state 是 不可变的 源字符串 + 偏移, 前进只是 new 一个 State, 不再 substring 剩余输入 <br>
+ *      之前 String state 每次匹配都复制剩余后缀, 大 json 复制量是 O(n²), 栈上的后缀还会把堆撑爆 <br>
  *      也可以把 State 泛化成 TokenStream 或者 Sequence<Token>  <br>
+ * - 组合子返回的 Rule 都是 Node, 除了闭包实现还记录了语法结构, 可以编译成 ParsecVM 的指令 <br>
+ *      递归引用要用 Thunk, 手写的 (s, m, f) -> rule().match(s, m, f) 闭包看不到结构 <br>
+ * - Memo 做 tabling: (rule, 偏移) 只解析一次, 之后查表, Choose 回溯重试不再指数级; 也可以直接写左递归 <br>
  */
 public interface Parsec1 {
 
@@ -29,33 +36,37 @@ public interface Parsec1 {
     interface Fun3 { Object apply(Object t1, Object t2, Object t3); }
 
     interface Cont {
-        void apply(String state, Object result);
+        void apply(State state, Object result);
     }
 
     @SuppressWarnings({"unused", "CodeBlock2Expr"})
     interface Rule {
 
-        void match(String state, Cont onMatch, Cont onFail);
+        void match(State state, Cont onMatch, Cont onFail);
+
+        default void match(String state, Cont onMatch, Cont onFail) {
+            new Trampoline().run(this, state, onMatch, onFail);
+        }
 
         default Rule map(Fun1 mapper) {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.Map, null, mapper, (s, m, f) -> {
                 match(s, (s1, r1) -> {
-                    m.apply(s1, mapper.apply(r1));
+                    Trampoline.bounce(m, s1, mapper.apply(r1));
                 }, f);
-            };
+            }, this);
         }
 
         default Rule flatMap(Function<Object, Rule> binder) {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.FlatMap, null, binder, (s, m, f) -> {
                 match(s, (s1, r1) -> {
                     binder.apply(r1).match(s1, m, f);
                 }, f);
-            };
+            }, this);
         }
 
         default Rule seq(Rule rule, Fun2 mapper)    { return Seq(this, rule, mapper);   }
-        default Rule then(Rule rule)                { return seq(rule, (a, b) -> b);          }
-        default Rule over(Rule rule)                { return seq(rule, (a, b) -> a);          }
+        default Rule then(Rule rule)                { return seq(rule, Second);         }
+        default Rule over(Rule rule)                { return seq(rule, First);          }
         default Rule or(Rule rule)                  { return Choose(this, rule);     }
         default Rule option(Object def)             { return Option(this, def);         }
         default Rule optional()                     { return Optional(this);            }
@@ -80,24 +91,59 @@ public interface Parsec1 {
         default Rule chainl1(Rule op, Fun3 mapper)               { return Chainl1(this, op, mapper);         }
         default Rule chainr(Rule op, Object def, Fun3 mapper)    { return Chainr(this, op, def, mapper);     }
         default Rule chainr1(Rule op, Fun3 mapper)               { return Chainr1(this, op, mapper);         }
+
+        default Rule optimize()                     { return Passes.Optimize(this);     }
+        // 只识别不建结果的版本, 见 Passes.Recognize; 改写一次, 之后反复用
+        default Rule recognizer()                   { return Passes.Recognize(this);    }
+
+        // 成功 (不要求读完输入) 返回 -1, 失败返回出错的位置, 同 onFail 拿到的 ParseException.pos
+        default int recognize(String src) {
+            int[] pos = { -1 };
+            match(src, (s, r) -> { }, (s, r) -> pos[0] = r instanceof ParseException ? ((ParseException) r).pos : s.pos);
+            return pos[0];
+        }
     }
 
     // Combinators
     @SuppressWarnings("CodeBlock2Expr")
     interface Rules {
 
+        // then / over / Between 的 mapper, 用常量是为了改写语法时能认出来, 见 Passes.CollapseBetween
+        Fun2 First = (a, b) -> a;
+        Fun2 Second = (a, b) -> b;
+        Fun3 Middle = (a, b, c) -> b;
+        // 不要文本的 Pat 的 mapper, 匹配完不 substring, 见 Passes.FuseRegex
+        Function<String, Object> Ignore = s -> null;
+
         // ~ Core 就 FinalRule SequencingRule AlternativeRule 三个方法 ~
 
         static Rule Pat(Pattern ptn, Function<String, Object> mapper) {
-            return (s, m, f) -> {
-                Matcher mat = ptn.matcher(s);
-                if (mat.lookingAt()/*start with*/) {
-                    // mat.end() == 0 时, 可能死循环
-                    m.apply(s.substring(mat.end()), mapper.apply(s.substring(0, mat.end())));
+            return pat_(ptn, mapper, null);
+        }
+
+        // 结果是原输入上的 Span, 不 substring; 节点还是 Pat, 给 Passes 的 mapper 接 String (合并后的正则只有文本)
+        static Rule PatSpan(Pattern ptn, Function<Span, Object> mapper) {
+            return pat_(ptn, str -> mapper.apply(new Span(str)), mapper);
+        }
+
+        // private
+        static Rule pat_(Pattern ptn, Function<String, Object> mapper, Function<Span, Object> span) {
+            // 字面量 (e.g. "\\[", ",") 用 startsWith, 支持的正则子集走查表的 DFA, 其余的 region 默认 opaque + anchoring bounds, 与对剩余后缀做 matcher 的语义一致
+            String lit = Fused.literal(ptn);
+            DFA dfa = lit == null ? DFA.compile(ptn) : null;
+            return new Node(Node.Kind.Pat, ptn, mapper, (s, m, f) -> {
+                int end = lit != null ? (s.src.startsWith(lit, s.pos) ? s.pos + lit.length() : -1)
+                        : dfa != null ? dfa.match(s.src, s.pos, s.src.length()) : DFA.lookingAt(ptn, s.src, s.pos, s.src.length());
+                if (end >= 0/*start with*/) {
+                    // end == s.pos 时, 可能死循环
+                    Object r = mapper == Ignore ? null
+                            : span != null ? span.apply(new Span(s.src, s.pos, end))
+                            : mapper.apply(lit != null ? lit : s.src.substring(s.pos, end));
+                    Trampoline.bounce(m, s.to(end), r);
                 } else {
-                    f.apply(s, new ParseException(s, ptn.pattern()));
+                    Trampoline.bounce(f, s, new ParseException(s, ptn.pattern()));
                 }
-            };
+            });
         }
 
         static Rule Seq(Rule front, Rule rear, Fun2 mapper) {
@@ -106,24 +152,18 @@ public interface Parsec1 {
                     m.apply(s2, mapper.apply(r1, r2));
                 }, f);
             });*/
-            return (s, m, f) -> {
+            return new Node(Node.Kind.Seq, null, mapper, (s, m, f) -> {
                 front.match(s, (s1, r1) -> {
                     rear.match(s1, (s2, r2) -> {
-                        m.apply(s2, mapper.apply(r1, r2));
+                        Trampoline.bounce(m, s2, mapper.apply(r1, r2));
                     }, f);
                 }, f);
-            };
+            }, front, rear);
         }
 
         // Choice
         static Rule Choose(Rule superior, Rule inferior) {
-            return (s, m, f) -> {
-                superior.match(s, m, (s1, r1) -> {
-                    inferior.match(s, m, (s2, r2) -> {
-                        f.apply(s2, new ParseException(s2, r1 + "<|>" + r2));
-                    });
-                });
-            };
+            return Choose(new Rule[] { superior, inferior });
         }
 
         // ============================================================================
@@ -133,7 +173,7 @@ public interface Parsec1 {
         }
 
         static Rule Null() {
-            return (s, m, f) -> m.apply(s, null);
+            return new Node(Node.Kind.Null, null, null, (s, m, f) -> Trampoline.bounce(m, s, null));
         }
 
         static Rule Pat(String regex, Function<String, Object> mapper) {
@@ -141,31 +181,71 @@ public interface Parsec1 {
         }
 
         static Rule Pat(String regex) {
-            return Pat(regex, s -> null);
+            return Pat(regex, Ignore);
+        }
+
+        static Rule PatSpan(String regex, Function<Span, Object> mapper) {
+            return PatSpan(Pattern.compile(regex, Pattern.DOTALL), mapper);
+        }
+
+        // 固定字符串, 同 Pat(String) 不要结果; 匹配时用 startsWith
+        static Rule Str(String str) {
+            return Pat(Pattern.compile(str, Pattern.LITERAL), Ignore);
         }
 
         static Rule Seq(Rule fst, Rule sec, Rule trd, Fun3 mapper) {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.Seq, null, mapper, (s, m, f) -> {
                 fst.match(s, (s1, r1) -> {
                     sec.match(s1, (s2, r2) -> {
                         trd.match(s2, (s3, r3) -> {
-                            m.apply(s3, mapper.apply(r1, r2, r3));
+                            Trampoline.bounce(m, s3, mapper.apply(r1, r2, r3));
                         }, f);
                     }, f);
                 }, f);
-            };
+            }, fst, sec, trd);
         }
 
         // CPS 的写法不方便处理报错信息 a or b or c ...
+        // 一个 Node 放所有分支, 不再嵌套成 a <|> (b <|> c), 报错信息和嵌套的一样
+        // 按下一个字符查 FIRST 集分派表, 只尝试可能成功的分支 (顺序不变), 报错信息里也只有试过的分支
         static Rule Choose(Rule... rules) {
             if (rules.length == 0) {
                 throw new IllegalArgumentException("No Choice");
             }
             if (rules.length == 1) {
                 return rules[0];
-            } else {
-                return Choose(rules[0], Choose(copyOfRange(rules, 1, rules.length)));
             }
+            Rule[] rs = rules.clone();
+            int[] all = IntStream.range(0, rs.length).toArray();
+            FirstSet.Dispatch dispatch = new FirstSet.Dispatch(() -> Node.firsts(rs));
+            return new Node(Node.Kind.Choose, null, null, (s, m, f) -> {
+                int[] alts = dispatch.alts(s.src, s.pos, s.src.length());
+                choose_(rs, alts == null ? all : alts, 0, s, m, f);
+            }, rs);
+        }
+
+        // private, 不按 FIRST 集分派, 总是挨个试, 见 Passes.LeftFactor
+        static Rule chooseAll_(Rule... rules) {
+            if (rules.length == 1) {
+                return rules[0];
+            }
+            Rule[] rs = rules.clone();
+            int[] all = IntStream.range(0, rs.length).toArray();
+            return new Node(Node.Kind.Choose, Boolean.FALSE, null, (s, m, f) -> choose_(rs, all, 0, s, m, f), rs);
+        }
+
+        // private
+        static void choose_(Rule[] rules, int[] alts, int i, State s, Cont m, Cont f) {
+            Rule rule = rules[alts[i]];
+            if (i == alts.length - 1) {
+                rule.match(s, m, f);
+                return;
+            }
+            rule.match(s, m, (s1, r1) -> {
+                choose_(rules, alts, i + 1, s, m, (s2, r2) -> {
+                    Trampoline.bounce(f, s2, new ParseException(s2, r1 + "<|>" + r2));
+                });
+            });
         }
 
         static Rule Whitespace() {
@@ -197,15 +277,16 @@ public interface Parsec1 {
 //            return Option(Many1(rule), Lists.emptyList);
 //        }
 
-        // private
+        // private, 递归回到同一个 Choose, 不用每个元素都重新构造 (Choose 构造时要建分派表)
         static Rule many_(Rule rule) {
-            Rule many_ = (s, m, f) -> many_(rule).match(s, m, f); // thunk
-            return Optional(Seq(rule, many_, Pair::new));
+            Rule[] self = new Rule[1];
+            self[0] = Optional(Seq(rule, Thunk(() -> self[0]), Pair::new));
+            return self[0];
         }
 
         // rule 如果不消耗 state 会 stackoverflow
         static Rule Many(Rule rule) {
-            return many_(rule).map(r -> Lists.fromPair(((Pair) r)));
+            return new Node(Node.Kind.Many, null, null, many_(rule).map(r -> Lists.fromPair(((Pair) r))), rule);
         }
 
         // rule 如果不消耗 state 会 stackoverflow
@@ -221,14 +302,21 @@ public interface Parsec1 {
             return rule.map(it -> null);
         }
 
-        // rule 如果不消耗 state 会 stackoverflow
+        // private, 同 many_, 不建 Pair; 递归回到同一个 Choose, 不用每一轮都重新构造
+        static Rule skipMany_(Rule rule) {
+            Rule[] self = new Rule[1];
+            self[0] = Choose(Seq(rule, Thunk(() -> self[0]), First), Null());
+            return self[0];
+        }
+
+        // rule 如果不消耗 state 会 stackoverflow; 只消耗不收集, 不建 list
         static Rule SkipMany(Rule rule) {
-            return Skip(Many(rule));
+            return new Node(Node.Kind.SkipMany, null, null, skipMany_(rule), rule);
         }
 
         // rule 如果不消耗 state 会 stackoverflow
         static Rule SkipMany1(Rule rule) {
-            return Skip(Many1(rule));
+            return Seq(rule, SkipMany(rule), Second);
         }
 
         // private
@@ -255,7 +343,8 @@ public interface Parsec1 {
                     }, f);
                 }, f);
             };*/
-            return open.then(rule).over(close);
+            // return open.then(rule).over(close);
+            return Seq(open, rule, close, Middle);
         }
 
 
@@ -316,13 +405,13 @@ public interface Parsec1 {
         // 可选最后的 by
         static Rule SepEndBy(Rule rule, Rule by) {
             // return SepBy(rule, by, true);
-            return sepEndBy_(rule, by).map(it -> Lists.fromPair(((Pair) it)));
+            return new Node(Node.Kind.SepEndBy, null, null, sepEndBy_(rule, by).map(it -> Lists.fromPair(((Pair) it))), rule, by);
         }
 
         // 可选最后的 by
         static Rule SepEndBy1(Rule rule, Rule by) {
             // return SepBy1(rule, by, true);
-            return sepEndBy1_(rule, by).map(it -> Lists.fromPair(((Pair) it)));
+            return new Node(Node.Kind.SepEndBy1, null, null, sepEndBy1_(rule, by).map(it -> Lists.fromPair(((Pair) it))), rule, by);
         }
 
         // 构造左结合双目运算符解析
@@ -331,9 +420,9 @@ public interface Parsec1 {
         }
 
         static Rule Chainl1(Rule rule, Rule op, Fun3 mapper) {
-            return rule.flatMap(x -> (s, m, f) -> {
+            return new Node(Node.Kind.Chainl1, null, mapper, rule.flatMap(x -> (s, m, f) -> {
                 chainl1_rest(rule, op, x, mapper).match(s, m, f);
-            });
+            }), rule, op);
         }
 
         // private
@@ -358,9 +447,9 @@ public interface Parsec1 {
         }
 
         static Rule Chainr1(Rule rule, Rule op, Fun3 mapper) {
-            return rule.flatMap(x -> (s, m, f) -> {
+            return new Node(Node.Kind.Chainr1, null, mapper, rule.flatMap(x -> (s, m, f) -> {
                 chainr1_rest(rule, op, x, mapper).match(s, m, f);
-            });
+            }), rule, op);
         }
 
         // private
@@ -376,45 +465,56 @@ public interface Parsec1 {
         }
 
         static Rule EOF() {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.EOF, null, null, (s, m, f) -> {
                 if (s.isEmpty()) {
-                    m.apply(s, null);
+                    Trampoline.bounce(m, s, null);
                 } else {
-                    f.apply(s, new ParseException(s, "EOF"));
+                    Trampoline.bounce(f, s, new ParseException(s, "EOF"));
                 }
-            };
+            });
         }
 
         // Tricky combinators
 
         static Rule AnyChar() {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.AnyChar, null, null, (s, m, f) -> {
                 if (s.isEmpty()) {
-                    f.apply(s, new ParseException("", "EOF"));
+                    Trampoline.bounce(f, s, new ParseException(s, "EOF"));
                 } else {
-                    m.apply(s.substring(1), s.substring(0, 1));
+                    Trampoline.bounce(m, s.to(s.pos + 1), String.valueOf(s.src.charAt(s.pos)));
                 }
-            };
+            });
+        }
+
+        // private, 识别模式的 AnyChar: 一样只消耗一个 char (正则的 . 会吃掉整个代理对, 也不认换行), 结果 null, 不建 String
+        static Rule anyChar_() {
+            return new Node(Node.Kind.AnyChar, Ignore, null, (s, m, f) -> {
+                if (s.isEmpty()) {
+                    Trampoline.bounce(f, s, new ParseException(s, "EOF"));
+                } else {
+                    Trampoline.bounce(m, s.to(s.pos + 1), null);
+                }
+            });
         }
 
         static Rule LookAhead(Rule rule) {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.LookAhead, null, null, (s, m, f) -> {
                 rule.match(s, (s1, r1) -> {
-                    m.apply(s, r1);
+                    Trampoline.bounce(m, s, r1);
                 }, f);
-            };
+            }, rule);
         }
 
         // 实现最长匹配规则, e.g. 识别关键词let, lets 应该识别为 id 不是 let
         // rule 必须消耗 state, 否则永远失败
         static Rule NotFollowedBy(Rule rule) {
-            return (s, m, f) -> {
+            return new Node(Node.Kind.NotFollowedBy, null, null, (s, m, f) -> {
                 rule.match(s, (s1, r1) -> {
-                    f.apply(s1, new ParseException(s,"not followed by " + r1));
+                    Trampoline.bounce(f, s1, new ParseException(s,"not followed by " + r1));
                 }, (s2, r2) -> {
-                    m.apply(s, null);
+                    Trampoline.bounce(m, s, null);
                 });
-            };
+            }, rule);
         }
 
         // private
@@ -431,15 +531,547 @@ public interface Parsec1 {
         }
 
         static Rule ManyTill(Rule many, Rule till) {
-            return manyTill_(many, till).map(it -> Lists.fromPair((Pair) it));
+            return new Node(Node.Kind.ManyTill, null, null, manyTill_(many, till).map(it -> Lists.fromPair((Pair) it)), many, till);
+        }
+
+        // 递归引用用 Thunk 包一下, 与手写 (s, m, f) -> rule().match(s, m, f) 一样, 但是分析语法时可以展开
+        static Rule Thunk(Supplier<Rule> thunk) {
+            return new Node(Node.Kind.Thunk, thunk, null, (s, m, f) -> thunk.get().match(s, m, f));
+        }
+
+        // tabling, 见 Table; 左递归要把递归回来的那个 rule 用 Memo 包住, e.g. expr = Memo(expr '-' num | num)
+        static Rule Memo(Rule rule) {
+            return memo_(Table.nextId(), rule);
+        }
+
+        // private, 改写语法重新构造时要保留原来的 id
+        static Rule memo_(int id, Rule rule) {
+            return new Node(Node.Kind.Memo, id, null, (s, m, f) -> Table.match(id, rule, s, m, f), rule);
+        }
+
+        // private, Passes.FuseRegex 合并出来的正则; 失败时交给原来的 rule, 报错和合并之前一样
+        static Rule fused_(Fused fused, Rule origin) {
+            Pattern ptn = fused.pattern;
+            return new Node(Node.Kind.Regex, ptn, fused, (s, m, f) -> {
+                Matcher mat = ptn.matcher(s.src).region(s.pos, s.src.length());
+                if (mat.lookingAt()) {
+                    Trampoline.bounce(m, s.to(mat.end()), fused.apply(mat));
+                } else {
+                    origin.match(s, m, f);
+                }
+            });
+        }
+
+    }
+
+    /**
+     * 组合子构造的 Rule, 闭包实现 + 语法结构 (写法同 PEG.V1 的 FinalRule SequenceRule ChooseRule)
+     */
+    final class Node implements Rule {
+        public enum Kind {
+            Pat, Seq, Choose, Many, SkipMany, Map, FlatMap, Null, EOF, AnyChar, LookAhead, NotFollowedBy,
+            Chainl1, Chainr1, SepEndBy, SepEndBy1, ManyTill, Thunk, Memo, Regex
+        }
+
+        public final Kind kind;
+        public final Object arg;    // Pat, Regex: Pattern, Thunk: Supplier<Rule>, Memo: id, AnyChar: Ignore 时不要结果, Choose: FALSE 时不分派
+        public final Object mapper; // Pat: Function, Regex: Fused, Seq: Fun2 | Fun3, Map: Fun1, FlatMap: Function, Chain: Fun3
+        public final Rule[] rules;
+        final Rule impl;
+        FirstSet first;             // 算过的 FIRST 集, 见 first()
+
+        Node(Kind kind, Object arg, Object mapper, Rule impl, Rule... rules) {
+            this.kind = kind;
+            this.arg = arg;
+            this.mapper = mapper;
+            this.rules = rules;
+            this.impl = impl;
+        }
+
+        @Override
+        public void match(State state, Cont onMatch, Cont onFail) {
+            impl.match(state, onMatch, onFail);
+        }
+
+        // 子节点换成 rs, 按 kind 重新构造 (lowering 回可执行的 Node), 子节点都没变就是自己; 叶子和 Thunk 原样返回
+        @SuppressWarnings("unchecked")
+        Rule lower(Rule[] rs) {
+            if (Arrays.equals(rs, rules)) {
+                return this;
+            }
+            switch (kind) {
+                case Seq:           return rs.length == 2 ? Seq(rs[0], rs[1], (Fun2) mapper) : Seq(rs[0], rs[1], rs[2], (Fun3) mapper);
+                case Choose:        return choose(arg, rs);
+                case Many:          return Many(rs[0]);
+                case SkipMany:      return SkipMany(rs[0]);
+                case Map:           return rs[0].map((Fun1) mapper);
+                case FlatMap:       return rs[0].flatMap((Function<Object, Rule>) mapper);
+                case Chainl1:       return Chainl1(rs[0], rs[1], (Fun3) mapper);
+                case Chainr1:       return Chainr1(rs[0], rs[1], (Fun3) mapper);
+                case SepEndBy:      return SepEndBy(rs[0], rs[1]);
+                case SepEndBy1:     return SepEndBy1(rs[0], rs[1]);
+                case ManyTill:      return ManyTill(rs[0], rs[1]);
+                case LookAhead:     return LookAhead(rs[0]);
+                case NotFollowedBy: return NotFollowedBy(rs[0]);
+                case Memo:          return memo_((Integer) arg, rs[0]);
+                default:            return this;
+            }
+        }
+
+        // 同原来的 Choose 节点 arg 一样分派或者不分派
+        static Rule choose(Object arg, Rule[] rs) {
+            return arg == Boolean.FALSE ? chooseAll_(rs) : Choose(rs);
+        }
+
+        static FirstSet[] firsts(Rule[] rules) {
+            FirstSet[] firsts = new FirstSet[rules.length];
+            for (int i = 0; i < rules.length; i++) {
+                firsts[i] = first(rules[i], Collections.newSetFromMap(new IdentityHashMap<>()));
+            }
+            return firsts;
+        }
+
+        // FIRST 集, 保守估计, 算过的记在 node.first; 递归回到正在算的规则 (左递归) 时算 ANY, 环上的规则也就都是 ANY
+        @SuppressWarnings("unchecked")
+        static FirstSet first(Rule rule, Set<Rule> seen) {
+            if (!(rule instanceof Node)) {
+                return FirstSet.ANY;
+            }
+            FirstSet first = ((Node) rule).first;
+            if (first != null) {
+                return first;
+            }
+            if (!seen.add(rule)) {
+                return FirstSet.ANY;
+            }
+            Node node = (Node) rule;
+            Rule[] rs = node.rules;
+            switch (node.kind) {
+                case Pat:
+                case Regex:         first = FirstSet.regex((Pattern) node.arg); break;
+                case Seq:           first = first(rs[0], seen);
+                                    for (int i = 1; i < rs.length && first.empty(); i++) first = first.then(first(rs[i], seen));
+                                    break;
+                case Choose:        first = first(rs[0], seen);
+                                    for (int i = 1; i < rs.length; i++) first = first.union(first(rs[i], seen));
+                                    break;
+                case Many:
+                case SkipMany:
+                case SepEndBy:      first = first(rs[0], seen).optional(); break;
+                case Map:
+                case Memo:
+                case Chainl1:
+                case Chainr1:
+                case SepEndBy1:     first = first(rs[0], seen); break;
+                // 不消耗字符的话, 后面接什么要运行时才知道
+                case FlatMap:       first = first(rs[0], seen);
+                                    if (first.empty()) first = FirstSet.ANY;
+                                    break;
+                // till <|> many (till <|> many ...)
+                case ManyTill:      first = first(rs[1], seen);
+                                    first = first.union(first(rs[0], seen).then(first));
+                                    break;
+                case AnyChar:       first = FirstSet.ANY_CHAR; break;
+                case Thunk:         first = first(((Supplier<Rule>) node.arg).get(), seen); break;
+                // Null, EOF, LookAhead, NotFollowedBy 不消耗字符
+                default:            first = FirstSet.EMPTY; break;
+            }
+            node.first = first;
+            return first;
+        }
+
+        @Override public String toString() { return kind + (arg instanceof Pattern ? "(" + arg + ")" : ""); }
+    }
+
+    /**
+     * 语法图上的改写 <br>
+     * 从根出发先改写子节点, 再用 Node.lower 按 kind 重新构造 (构造出来的 Node 就是可执行的), 然后依次套用 pass 直到不再变化 <br>
+     * 共享的子图只改写一次; Thunk 只展开一次, 改写后的 Thunk 指向目标改写之后的结果, 递归的语法也能处理 <br>
+     * 不是 Node 的 Rule (手写的闭包) 看不到结构, 原样保留
+     */
+    interface Passes {
+        @FunctionalInterface
+        interface Pass {
+            // 返回替换 node 的 Rule, 不改写就返回 node 自己
+            Rule rewrite(Node node);
+        }
+
+        // Choose(Choose(a, b), c) -> Choose(a, b, c), e.g. a.or(b).or(c); 分派和不分派的不混在一起
+        Pass FlattenChoose = node -> {
+            if (node.kind != Node.Kind.Choose || stream(node.rules).noneMatch(r -> flattens(node, r))) {
+                return node;
+            }
+            List<Rule> rs = new ArrayList<>();
+            for (Rule r : node.rules) {
+                if (flattens(node, r)) {
+                    rs.addAll(asList(((Node) r).rules));
+                } else {
+                    rs.add(r);
+                }
+            }
+            return Node.choose(node.arg, rs.toArray(new Rule[0]));
+        };
+
+        static boolean flattens(Node choose, Rule r) {
+            return isKind(r, Node.Kind.Choose) && ((Node) r).arg == choose.arg;
+        }
+
+        // rule.map(f).map(g) -> rule.map(g . f)
+        Pass FuseMap = node -> {
+            if (node.kind != Node.Kind.Map || !isKind(node.rules[0], Node.Kind.Map)) {
+                return node;
+            }
+            Node inner = (Node) node.rules[0];
+            Fun1 f = (Fun1) inner.mapper, g = (Fun1) node.mapper;
+            return inner.rules[0].map(r -> g.apply(f.apply(r)));
+        };
+
+        // open.then(rule).over(close) -> Seq(open, rule, close, Middle), 和 Between 一样
+        Pass CollapseBetween = node -> {
+            if (node.kind != Node.Kind.Seq || node.mapper != First || !isKind(node.rules[0], Node.Kind.Seq)) {
+                return node;
+            }
+            Node inner = (Node) node.rules[0];
+            if (inner.mapper != Second) {
+                return node;
+            }
+            return Seq(inner.rules[0], inner.rules[1], node.rules[1], Middle);
+        };
+
+        // 提取公共前缀: Choose(Seq(p, a), x, Seq(p, b)) -> Choose(x, Seq(p, Choose(a, b))), e.g. Criteria1.Factor 都以 IdLiteral 开头 <br>
+        // p 只解析一次, a 失败后不再回溯重新解析 p; p 的结果先交给后缀得到的 Fun1, 后缀仍然按原顺序尝试 <br>
+        // 合并后放在最后一个分支的位置, 最后尝试的还是原来那个分支, 都失败时报出的失败也一样 <br>
+        // 后缀的 Choose 不再按 FIRST 集分派: 原来在前缀处分派, 这一组要么都试要么都不试, 后缀也要都试, 最后试的 (报出失败的) 分支才不变 <br>
+        // 不相邻的分支要越过中间的分支 x 才能合并, 只在两者 FIRST 集不相交 (同一位置最多一个成功) 时才合并 <br>
+        // 结果和失败的位置不变 (mapper 要是纯函数), 失败信息里 <|> 的嵌套可能不同
+        Pass LeftFactor = node -> {
+            if (node.kind != Node.Kind.Choose) {
+                return node;
+            }
+            Rule[] rs = node.rules;
+            Rule[] alts = new Rule[rs.length]; // 合并走的是 null
+            boolean[] taken = new boolean[rs.length];
+            boolean changed = false;
+            for (int i = 0; i < rs.length; i++) {
+                if (taken[i]) {
+                    continue;
+                }
+                alts[i] = rs[i];
+                if (!isKind(rs[i], Node.Kind.Seq)) {
+                    continue;
+                }
+                Rule prefix = ((Node) rs[i]).rules[0];
+                List<Rule> group = new ArrayList<>();
+                List<Rule> skipped = new ArrayList<>();
+                group.add(rs[i]);
+                int last = i;
+                for (int j = i + 1; j < rs.length; j++) {
+                    if (taken[j]) {
+                        continue;
+                    }
+                    if (isKind(rs[j], Node.Kind.Seq) && same(((Node) rs[j]).rules[0], prefix) && disjoint(group, skipped)) {
+                        group.add(rs[j]);
+                        taken[j] = true;
+                        last = j;
+                    } else {
+                        skipped.add(rs[j]);
+                    }
+                }
+                if (last == i) {
+                    continue;
+                }
+                Rule[] suffixes = new Rule[group.size()];
+                for (int k = 0; k < suffixes.length; k++) {
+                    suffixes[k] = suffix((Node) group.get(k));
+                }
+                Rule rest = Passes.LeftFactor.rewrite((Node) chooseAll_(suffixes));
+                alts[i] = null;
+                alts[last] = Seq(prefix, rest, (r, k) -> ((Fun1) k).apply(r));
+                changed = true;
+            }
+            return changed ? Node.choose(node.arg, stream(alts).filter(Objects::nonNull).toArray(Rule[]::new)) : node;
+        };
+
+        // Seq(p, a, f) -> a.map(x -> r -> f(r, x)), Seq(p, a, b, f) -> Seq(a, b, (x, y) -> r -> f(r, x, y))
+        static Rule suffix(Node seq) {
+            Rule[] rs = seq.rules;
+            if (rs.length == 2) {
+                Fun2 f = (Fun2) seq.mapper;
+                return rs[1].map(x -> (Fun1) r -> f.apply(r, x));
+            } else {
+                Fun3 f = (Fun3) seq.mapper;
+                return Seq(rs[1], rs[2], (x, y) -> (Fun1) r -> f.apply(r, x, y));
+            }
+        }
+
+        // rules 挪到 others 后面结果不变
+        static boolean disjoint(List<Rule> rules, List<Rule> others) {
+            if (others.isEmpty()) {
+                return true;
+            }
+            for (FirstSet a : Node.firsts(rules.toArray(new Rule[0]))) {
+                for (FirstSet b : Node.firsts(others.toArray(new Rule[0]))) {
+                    if (!a.disjoint(b)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // 结构相同: 同一个对象, 或者 kind, 参数, mapper (同一个对象), 子节点都相同; 正则比较 pattern 和 flags
+        static boolean same(Rule a, Rule b) {
+            if (a == b) {
+                return true;
+            }
+            if (!(a instanceof Node) || !(b instanceof Node)) {
+                return false;
+            }
+            Node x = (Node) a, y = (Node) b;
+            if (x.kind != y.kind || x.mapper != y.mapper || x.rules.length != y.rules.length || !sameArg(x.arg, y.arg)) {
+                return false;
+            }
+            for (int i = 0; i < x.rules.length; i++) {
+                if (!same(x.rules[i], y.rules[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean sameArg(Object a, Object b) {
+            if (a instanceof Pattern && b instanceof Pattern) {
+                return ((Pattern) a).pattern().equals(((Pattern) b).pattern()) && ((Pattern) a).flags() == ((Pattern) b).flags();
+            }
+            return a == b || a instanceof Integer && a.equals(b);
+        }
+
+        // 相邻的正则终结符合并成一个正则, 见 Fused: Seq(Pat(a), Pat(b), f) -> Regex((?>(a))(?>(b))) <br>
+        // 一次 lookingAt 代替多次, 不要的结果 (e.g. then/over 丢掉的一边, Pat(String) 的 null) 不捕获不 substring <br>
+        // 合并的正则匹配失败时交给原来的 Seq 重新解析, 报错的位置和内容都不变
+        Pass FuseRegex = node -> {
+            if (node.kind != Node.Kind.Seq) {
+                return node;
+            }
+            Rule[] rs = node.rules;
+            Fused.Piece a = piece(rs[0]), b = piece(rs[1]);
+            if (rs.length == 2) {
+                if (a == null || b == null) {
+                    return node;
+                }
+                Fun2 f = (Fun2) node.mapper;
+                return fused_(new Fused(Fused.seq(a, b, uses(f), f)), node);
+            }
+            Fun3 f = (Fun3) node.mapper;
+            Fused.Piece c = piece(rs[2]);
+            if (a != null && b != null && c != null) {
+                boolean[] uses = f == Middle ? new boolean[] { false, true, false } : new boolean[] { true, true, true };
+                return fused_(new Fused(Fused.seq(a, b, c, uses, f::apply)), node);
+            }
+            // 只有相邻的两个能合并: 合并成 Pair, 只用到一边时 (e.g. Between 的 open + rule) 直接取那一边
+            if (a != null && b != null) {
+                Fun2 pair = f == Middle ? Second : Pair::new;
+                Rule ab = fused_(new Fused(Fused.seq(a, b, uses(pair), pair)), Seq(rs[0], rs[1], pair));
+                return f == Middle ? Seq(ab, rs[2], First) : Seq(ab, rs[2], (p, z) -> f.apply(((Pair) p).car, ((Pair) p).cdr, z));
+            }
+            if (b != null && c != null) {
+                Fun2 pair = f == Middle ? First : Pair::new;
+                Rule bc = fused_(new Fused(Fused.seq(b, c, uses(pair), pair)), Seq(rs[1], rs[2], pair));
+                return f == Middle ? Seq(rs[0], bc, Second) : Seq(rs[0], bc, (x, p) -> f.apply(x, ((Pair) p).car, ((Pair) p).cdr));
+            }
+            return node;
+        };
+
+        // 能合并的终结符: Pat, 合并过的 Regex, 以及它们的 map
+        @SuppressWarnings("unchecked")
+        static Fused.Piece piece(Rule rule) {
+            if (!(rule instanceof Node)) {
+                return null;
+            }
+            Node node = (Node) rule;
+            switch (node.kind) {
+                case Pat:
+                    if (!Fused.fusable((Pattern) node.arg)) {
+                        return null;
+                    }
+                    return node.mapper == Ignore ? Fused.constant((Pattern) node.arg, null)
+                            : Fused.text((Pattern) node.arg, (Function<String, Object>) node.mapper);
+                case Regex:
+                    return ((Fused) node.mapper).piece;
+                case Map:
+                    Fused.Piece p = piece(node.rules[0]);
+                    return p == null ? null : Fused.map(p, (Fun1) node.mapper);
+                default:
+                    return null;
+            }
+        }
+
+        // 识别模式, 见 Rule.recognizer(): 只看能不能解析, 结果都不要 <br>
+        // 子节点已经改写过: map 去掉, Seq 的 mapper 换成 First/Middle (不建 Pair), Pat 换成 Ignore (不 substring 不建 Span), <br>
+        // Many 换成 SkipMany, SepEndBy 换成 rule (by rule)* by?, Chainl1/Chainr1 换成 rule (op rule)*, ManyTill 换成 till | many ManyTill, AnyChar 换成不建 String 的 <br>
+        // Count 就是 Seq + map, 跟着一起改了; 消耗的输入和报错位置都不变; FlatMap 的 binder 要用结果, 整个原样保留, 见 Recognize(rule)
+        Pass Recognize = node -> {
+            Rule[] rs = node.rules;
+            switch (node.kind) {
+                case Pat:
+                    return node.mapper == Ignore ? node : Pat((Pattern) node.arg, Ignore);
+                case Regex: {
+                    // 同一个正则当常量用, 不取分组; 失败时交给原来的 (它再交给合并之前的 rule), 报错不变
+                    Fused fused = (Fused) node.mapper;
+                    return fused.value == null ? node : fused_(new Fused(Fused.constant(fused.pattern, null), false), node);
+                }
+                case Seq:
+                    if (rs.length == 2) {
+                        return node.mapper == First || node.mapper == Second ? node : Seq(rs[0], rs[1], First);
+                    }
+                    return node.mapper == Middle ? node : Seq(rs[0], rs[1], rs[2], Middle);
+                case Map:
+                    return rs[0];
+                case Many:
+                    return SkipMany(rs[0]);
+                case SepEndBy1:
+                    return Seq(rs[0], SkipMany(Seq(rs[1], rs[0], First)), Choose(rs[1], Null()), Middle);
+                case SepEndBy:
+                    return Choose(Seq(rs[0], SkipMany(Seq(rs[1], rs[0], First)), Choose(rs[1], Null()), Middle), Null());
+                case Chainl1:
+                case Chainr1:
+                    return Seq(rs[0], SkipMany(Seq(rs[1], rs[0], First)), First);
+                case ManyTill: {
+                    Rule[] self = new Rule[1];
+                    self[0] = Choose(rs[1], Seq(rs[0], Thunk(() -> self[0]), Second));
+                    return self[0];
+                }
+                case AnyChar:
+                    return node.arg == Ignore ? node : anyChar_();
+                default:
+                    return node;
+            }
+        };
+
+        static boolean[] uses(Fun2 f) {
+            return f == First ? new boolean[] { true, false } : f == Second ? new boolean[] { false, true } : new boolean[] { true, true };
+        }
+
+        static boolean isKind(Rule rule, Node.Kind kind) {
+            return rule instanceof Node && ((Node) rule).kind == kind;
+        }
+
+        // FuseRegex 单独放在最后一轮: 先合并的话 Seq 的前缀变成各不相同的正则, LeftFactor 就找不到公共前缀了
+        static Rule Optimize(Rule rule) {
+            return Optimize(Optimize(rule, FlattenChoose, FuseMap, CollapseBetween, LeftFactor), FuseRegex);
+        }
+
+        static Rule Optimize(Rule rule, Pass... passes) {
+            return new Rewriter(passes).run(rule);
         }
 
+        // 先提取公共前缀 (不用 FuseMap, map 反正要去掉), 再去掉结果, 最后合并正则: 不要结果的正则合并出来不捕获
+        static Rule Recognize(Rule rule) {
+            Rule factored = Optimize(rule, FlattenChoose, CollapseBetween, LeftFactor);
+            Rule recognizer = new Rewriter(new Pass[] { Recognize }) {
+                @Override
+                Rule rewrite(Rule rule) {
+                    return isKind(rule, Node.Kind.FlatMap) ? rule : super.rewrite(rule);
+                }
+            }.run(factored);
+            return Optimize(recognizer, FuseRegex);
+        }
+
+        class Rewriter {
+            final Pass[] passes;
+            final Map<Rule, Rule> done = new IdentityHashMap<>();
+            final Deque<Runnable> thunks = new ArrayDeque<>();
+
+            Rewriter(Pass[] passes) {
+                this.passes = passes;
+            }
+
+            Rule run(Rule root) {
+                Rule r = rewrite(root);
+                while (!thunks.isEmpty()) {
+                    thunks.poll().run();
+                }
+                return r;
+            }
+
+            @SuppressWarnings("unchecked")
+            Rule rewrite(Rule rule) {
+                if (!(rule instanceof Node)) {
+                    return rule;
+                }
+                Rule r = done.get(rule);
+                if (r != null) {
+                    return r;
+                }
+                Node node = (Node) rule;
+                if (node.kind == Node.Kind.Thunk) {
+                    // 目标等整个图走完再改写, 递归回来的引用先指向这个新 Thunk
+                    // 改写好之前 (e.g. LeftFactor 算 FIRST 集) 先用原来的目标, 两者等价
+                    Supplier<Rule> origin = (Supplier<Rule>) node.arg;
+                    Rule[] target = new Rule[1];
+                    r = Thunk(() -> target[0] == null ? origin.get() : target[0]);
+                    done.put(rule, r);
+                    thunks.add(() -> target[0] = rewrite(origin.get()));
+                    return r;
+                }
+                Rule[] rs = new Rule[node.rules.length];
+                for (int i = 0; i < rs.length; i++) {
+                    rs[i] = rewrite(node.rules[i]);
+                }
+                r = apply(node.lower(rs));
+                done.put(rule, r);
+                return r;
+            }
+
+            Rule apply(Rule rule) {
+                while (rule instanceof Node) {
+                    Rule before = rule;
+                    for (Pass pass : passes) {
+                        rule = pass.rewrite((Node) rule);
+                        if (!(rule instanceof Node)) {
+                            break;
+                        }
+                    }
+                    if (rule == before) {
+                        break;
+                    }
+                }
+                return rule;
+            }
+        }
     }
 
     class ParseException extends RuntimeException {
-        public ParseException(String state, String expected) {
-            super("State=" + state + ", expected=" + expected, null, true, false);
+        public final int pos;
+        final String expected;
+        // 消息在 getMessage 时才拼, 回溯中被丢弃的失败不用付这个开销
+        public ParseException(State state, String expected) {
+            super(null, null, true, false);
+            this.pos = state.pos;
+            this.expected = expected;
         }
+        @Override public String getMessage() { return "Pos=" + pos + ", expected=" + expected; }
+    }
+
+    /**
+     * 不可变状态: 源字符串 + 偏移, 前进 O(1)
+     */
+    final class State {
+        public final String src;
+        public final int pos;
+        final Trampoline trampoline;
+        public State(String src, int pos) {
+            this(src, pos, null);
+        }
+        State(String src, int pos, Trampoline trampoline) {
+            this.src = src;
+            this.pos = pos;
+            this.trampoline = trampoline;
+        }
+        public State to(int pos) { return pos == this.pos ? this : new State(src, pos, trampoline); }
+        public boolean isEmpty() { return pos >= src.length(); }
+        public String rest() { return src.substring(pos); }
+        @Override public String toString() { return "State(" + pos + ")"; }
     }
 
     @SuppressWarnings("rawtypes")
@@ -496,4 +1128,439 @@ public interface Parsec1 {
         }
         @Override public int hashCode() { return Objects.hash(fst, sec, trd); }
     }
+
+    /**
+     * Memo 的表, 每次 match(String, ...) 一张, 挂在蹦床上, key 是 (rule id << 32 | 偏移) <br>
+     * 参考 Johnson 的 memoized CPS: 表项记录结束状态和结果, 再次进入直接把记录交给 continuation <br>
+     * Choose 是有序选择, 一次 match 只会调用 onMatch 或 onFail 一次, 所以每项只有一个结果,
+     * 不需要 Johnson 那样记录订阅的 continuation 列表, 结果出来之前的重入只可能是左递归 <br>
+     * 左递归按 seed growing 处理: 重入时先给出失败作为种子, 让非递归分支得到第一个结果, 再带着这个结果重新解析,
+     * 直到结果不再变长, 取最后一个 <br>
+     * 没有经过 Rule.match(String, ...) 入口构造的 State 没有表, Memo 原样执行 (左递归会死循环)
+     */
+    final class Table {
+        static final AtomicInteger ids = new AtomicInteger();
+
+        static int nextId() {
+            return ids.getAndIncrement();
+        }
+
+        static final class Entry {
+            boolean done;
+            boolean leftRec;
+            State end;      // 成功: 结束状态; 失败: null
+            State failAt;
+            Object result;  // 成功: 结果; 失败: ParseException
+        }
+
+        final Map<Long, Entry> entries = new HashMap<>();
+
+        static void match(int id, Rule rule, State s, Cont m, Cont f) {
+            Trampoline t = s.trampoline;
+            if (t == null) {
+                rule.match(s, m, f);
+                return;
+            }
+            if (t.table == null) {
+                t.table = new Table();
+            }
+            Map<Long, Entry> entries = t.table.entries;
+            Long key = ((long) id << 32) | s.pos;
+            Entry e = entries.get(key);
+            if (e == null) {
+                e = new Entry();
+                e.failAt = s;
+                e.result = new ParseException(s, "left recursion");
+                entries.put(key, e);
+                grow(rule, e, s, m, f);
+            } else {
+                if (!e.done) {
+                    e.leftRec = true;
+                }
+                deliver(e, m, f);
+            }
+        }
+
+        static void grow(Rule rule, Entry e, State s, Cont m, Cont f) {
+            rule.match(s, (s1, r1) -> {
+                if (!e.leftRec || e.end == null || s1.pos > e.end.pos) {
+                    e.end = s1;
+                    e.result = r1;
+                    if (e.leftRec) {
+                        // 种子变长了, 带着新种子再来一轮
+                        grow(rule, e, s, m, f);
+                        return;
+                    }
+                }
+                e.done = true;
+                deliver(e, m, f);
+            }, (s2, r2) -> {
+                if (e.end == null) {
+                    e.failAt = s2;
+                    e.result = r2;
+                }
+                e.done = true;
+                deliver(e, m, f);
+            });
+        }
+
+        static void deliver(Entry e, Cont m, Cont f) {
+            if (e.end != null) {
+                Trampoline.bounce(m, e.end, e.result);
+            } else {
+                Trampoline.bounce(f, e.failAt, e.result);
+            }
+        }
+    }
+
+    /**
+     * 蹦床 <br>
+     * CPS 里所有调用都是尾调用, 但 java 没有尾调用优化, 每个 Seq、many_ 的一步、Choose 的回退都会多压几层栈,
+     * 输入越长嵌套越深栈越深, 只能 -Xss 把栈开大 <br>
+     * 组合子里调用 continuation 都经过 bounce, 连续 bounce MAX_DEPTH 次之后, 把下一次调用记在堆上直接返回,
+     * 栈退回到 run 的循环里再接着执行, 待执行的 continuation 本来就是堆上的闭包, 所以栈深度与输入无关 <br>
+     * 没有经过 Rule.match(String, ...) 入口构造的 State 不带蹦床, bounce 直接调用
+     */
+    final class Trampoline {
+        static final int MAX_DEPTH = 64;
+
+        int depth;
+        Cont k;
+        State state;
+        Object result;
+        Table table; // Memo 用, 用到才创建
+
+        static void bounce(Cont k, State s, Object r) {
+            Trampoline t = s.trampoline;
+            if (t == null || ++t.depth < MAX_DEPTH) {
+                k.apply(s, r);
+            } else {
+                // 尾调用, 返回之后调用栈上不会再有别的 continuation 被调用
+                assert t.k == null;
+                t.k = k;
+                t.state = s;
+                t.result = r;
+            }
+        }
+
+        void run(Rule rule, String src, Cont onMatch, Cont onFail) {
+            run(rule, new State(src, 0, this), onMatch, onFail);
+        }
+
+        // state 要挂在这个蹦床上, 见 Descent.run
+        void run(Rule rule, State state, Cont onMatch, Cont onFail) {
+            rule.match(state, onMatch, onFail);
+            while (k != null) {
+                Cont k = this.k;
+                State s = this.state;
+                Object r = this.result;
+                this.k = null;
+                this.state = null;
+                this.result = null;
+                depth = 0;
+                k.apply(s, r);
+            }
+        }
+    }
+
+    /**
+     * Grammar 注解生成的递归下降 parser 的基类, 见 GrammarProcessor <br>
+     * 每个 Rule 生成一个方法: 成功返回结果, pos 前进到结束位置; 失败返回 FAIL, pos 不管, 要回溯的调用方自己记下再恢复 <br>
+     * 失败时 onFail 要的 (state, ParseException) 不马上构造, 记在 failAt failPos expected 里, 真要交给 onFail 时才拼,
+     * Choose 全部失败时也只是把各分支的失败串起来 (Alt), 拼出来的报错和闭包解释执行一样 <br>
+     * 看不到结构的 Rule (手写的闭包, flatMap 返回的 Rule ...) 用 run 回到 CPS 解释执行
+     */
+    abstract class Descent {
+        protected static final Object FAIL = new Object();
+        // 规则方法 (r$xxx) 最多嵌套这么多层, 再深线程栈可能不够, 整个回到解释执行 (蹦床), 见 Entry
+        protected static final int MAX_DEPTH = 500;
+        private static final TooDeep TOO_DEEP = new TooDeep();
+
+        protected final String src;
+        protected final int end;
+        protected int pos;
+        protected int depth;
+
+        protected int failAt;       // 交给 onFail 的 state
+        protected int failPos;      // ParseException 的 pos
+        protected Object expected;  // ParseException 的 expected: String | Alt | Raw
+
+        private final Matcher[] matchers;
+        private Map<Long, Memo> memos;
+
+        protected Descent(String src, int pos, int patterns) {
+            this.src = src;
+            this.end = src.length();
+            this.pos = pos;
+            this.matchers = new Matcher[patterns];
+        }
+
+        // rule: Rule 属性的下标, 见 Entry
+        protected abstract Object start(int rule);
+
+        // Pat(String) 和 Pat(Pattern)
+        public static Pattern pattern(String regex) {
+            return Pattern.compile(regex, Pattern.DOTALL);
+        }
+
+        public static Pattern pattern(Pattern ptn) {
+            return ptn;
+        }
+
+        // 规则方法的开头 enter(), 调用处 exit(r$xxx())
+        protected final void enter() {
+            if (++depth > MAX_DEPTH) {
+                throw TOO_DEEP;
+            }
+        }
+
+        protected final Object exit(Object r) {
+            depth--;
+            return r;
+        }
+
+        static final class TooDeep extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            TooDeep() {
+                super(null, null, false, false);
+            }
+        }
+
+        protected final Object fail(String expected) {
+            failAt = failPos = pos;
+            this.expected = expected;
+            return FAIL;
+        }
+
+        // 每个正则一个 Matcher, 整个解析复用, region 的默认 bounds 同 Pat
+        protected final Matcher matcher(int i, Pattern ptn) {
+            Matcher m = matchers[i];
+            if (m == null) {
+                matchers[i] = m = ptn.matcher(src);
+            }
+            return m.region(pos, end);
+        }
+
+        // 同 Pat: dfa (DFA.compile 的结果) 不是 null 就查表, 否则用第 i 个 Matcher; 返回匹配的结束位置, 没匹配上 -1
+        protected final int lookingAt(int i, Pattern ptn, DFA dfa) {
+            if (dfa != null) {
+                return dfa.match(src, pos, end);
+            }
+            Matcher m = matcher(i, ptn);
+            return m.lookingAt() ? m.end() : -1;
+        }
+
+        /*
+         * Choose 试过的分支 (alts 的位, -1L 是全部) 都失败了, fs es 是各分支的 failPos expected
+         * 同 choose_ 从后往前串成 a<|>(b<|>c), 最后试的分支的失败原样在里面, 外面几层的 pos 都是 failAt
+         */
+        protected final Object choose(long alts, int[] fs, Object[] es) {
+            int p = failPos;
+            Object e = expected;
+            boolean last = true;
+            for (int i = fs.length - 1; i >= 0; i--) {
+                if (alts != -1L && (alts & (1L << i)) == 0) {
+                    continue;
+                }
+                if (!last) {
+                    e = new Alt(fs[i], es[i], p, e);
+                    p = failAt;
+                }
+                last = false;
+            }
+            failPos = p;
+            expected = e;
+            return FAIL;
+        }
+
+        protected final Object notFollowedBy(int start, Object r) {
+            failAt = pos;
+            failPos = start;
+            expected = "not followed by " + r;
+            return FAIL;
+        }
+
+        // ManyTill 每一层 till 的失败, 新的在前
+        protected final Object tillFailed(Object tills) {
+            return new Alt(failPos, expected, -1, tills);
+        }
+
+        // many 也失败了, 同 manyTill_ 一层层的 Choose(till, many ...) 串起来
+        protected final Object manyTill(Object tills) {
+            int p = failPos;
+            Object e = expected;
+            for (Alt t = (Alt) tills; t != null; t = (Alt) t.right) {
+                e = new Alt(t.lpos, t.left, p, e);
+                p = failAt;
+            }
+            failPos = p;
+            expected = e;
+            return FAIL;
+        }
+
+        // 从 pos 开始解释执行
+        protected final Object run(Rule rule) {
+            Object[] ref = new Object[1];
+            Trampoline t = new Trampoline();
+            t.run(rule, new State(src, pos, t), (s, r) -> {
+                pos = s.pos;
+                ref[0] = r;
+            }, (s, r) -> {
+                failAt = s.pos;
+                failPos = r instanceof ParseException ? ((ParseException) r).pos : s.pos;
+                expected = new Raw(r);
+                ref[0] = FAIL;
+            });
+            return ref[0];
+        }
+
+        protected final Memo memo(int id) {
+            if (memos == null) {
+                memos = new HashMap<>();
+            }
+            Long key = ((long) id << 32) | pos;
+            Memo e = memos.get(key);
+            if (e == null) {
+                e = new Memo(pos);
+                memos.put(key, e);
+            }
+            return e;
+        }
+
+        // 交给 onFail 的结果
+        final Object failure() {
+            return expected instanceof Raw ? ((Raw) expected).r : new ParseException(new State(src, failPos), String.valueOf(expected));
+        }
+
+        /**
+         * 同 Table.Entry, 左递归一样按 seed growing 处理 <br>
+         * int s = pos; Memo e = memo(id); if (e.enter()) while (e.grow(this, rule())) pos = s; return e.recall(this);
+         */
+        public static final class Memo {
+            boolean started, done, leftRec;
+            int end = -1;   // 成功: 结束位置
+            Object result;
+            int failAt, failPos;
+            Object expected;
+
+            Memo(int pos) {
+                failAt = failPos = pos;
+                expected = "left recursion";
+            }
+
+            // 第一次进来要解析, 否则查表 (还没解析完就是左递归)
+            public boolean enter() {
+                if (!started) {
+                    return started = true;
+                }
+                if (!done) {
+                    leftRec = true;
+                }
+                return false;
+            }
+
+            // 记下这一轮的结果, 左递归的种子变长了就再来一轮
+            public boolean grow(Descent d, Object r) {
+                if (r != FAIL) {
+                    if (!leftRec || end < 0 || d.pos > end) {
+                        end = d.pos;
+                        result = r;
+                        if (leftRec) {
+                            return true;
+                        }
+                    }
+                } else if (end < 0) {
+                    failAt = d.failAt;
+                    failPos = d.failPos;
+                    expected = d.expected;
+                }
+                done = true;
+                return false;
+            }
+
+            public Object recall(Descent d) {
+                if (end >= 0) {
+                    d.pos = end;
+                    return result;
+                }
+                d.failAt = failAt;
+                d.failPos = failPos;
+                d.expected = expected;
+                return FAIL;
+            }
+        }
+
+        // 两个失败 r1<|>r2, 渲染成 choose_ 拼的字符串
+        static final class Alt {
+            final int lpos, rpos;
+            final Object left, right;
+
+            Alt(int lpos, Object left, int rpos, Object right) {
+                this.lpos = lpos;
+                this.left = left;
+                this.rpos = rpos;
+                this.right = right;
+            }
+
+            static String str(int pos, Object expected) {
+                if (expected instanceof Raw) {
+                    return String.valueOf(((Raw) expected).r);
+                }
+                return new ParseException(new State(null, pos), String.valueOf(expected)).toString();
+            }
+
+            @Override
+            public String toString() {
+                return str(lpos, left) + "<|>" + str(rpos, right);
+            }
+        }
+
+        // 解释执行的 Rule 交给 onFail 的原样结果
+        static final class Raw {
+            final Object r;
+
+            Raw(Object r) {
+                this.r = r;
+            }
+
+            @Override
+            public String toString() {
+                return String.valueOf(r);
+            }
+        }
+
+        /**
+         * 生成的 Rule 属性, 每次 match 新建一个 parser 从 state 的位置开始, 可以和别的 Rule 组合
+         */
+        public abstract static class Entry implements Rule {
+            protected final int rule;
+
+            protected Entry(int rule) {
+                this.rule = rule;
+            }
+
+            protected abstract Descent parser(String src, int pos);
+
+            // 生成 parser 的那个 Rule 属性, 嵌套太深时解释执行
+            protected abstract Rule interpreted();
+
+            @Override
+            public void match(State state, Cont onMatch, Cont onFail) {
+                Descent d = parser(state.src, state.pos);
+                Object r;
+                try {
+                    r = d.start(rule);
+                } catch (TooDeep e) {
+                    interpreted().match(state, onMatch, onFail);
+                    return;
+                }
+                if (r == FAIL) {
+                    Trampoline.bounce(onFail, state.to(d.failAt), d.failure());
+                } else {
+                    Trampoline.bounce(onMatch, state.to(d.pos), r);
+                }
+            }
+        }
+    }
 }
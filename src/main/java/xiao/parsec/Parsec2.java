@@ -1,9 +1,12 @@
 package xiao.parsec;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -28,28 +31,55 @@ import static xiao.parsec.Parsec2.Combinators.*;
  * - 通用的 parsec, seq<E>
  * - 强类型，非 CPS, 正常的写法, 用异常来做回溯
  * - seq 带状态, 写起来的心智负担比 CPS 风格无状态的版本心智负担更高
+ * - 内置组合子用失败哨兵回溯: tryParse 失败返回 FAIL, 原因记在 Sequence 的失败槽, 不分配不格式化不抛异常 <br>
+ *      只有最外层 parse 失败才构造 ParsecException, 手写的 s -> ... 仍然可以抛异常, tryParse 会接住 <br>
  */
 public interface Parsec2<R, E> {
 
+    // 失败哨兵
+    Object FAIL = new Object() {
+        @Override public String toString() { return "FAIL"; }
+    };
+
+    @SuppressWarnings("unchecked")
+    static <T> T fail() {
+        return (T) FAIL;
+    }
+
     R parse(Sequence<E> s) throws ParsecException;
 
+    // 失败返回 FAIL, 不抛异常
+    default R tryParse(Sequence<E> s) {
+        try {
+            return parse(s);
+        } catch (ParsecException e) {
+            return s.fail(e);
+        }
+    }
+
     default R parse(String s) {
         return parse(new Sequence<>(s));
     }
 
     default <C> Parsec2<C, E> map(Function<R, C> mapper) {
-        return s -> mapper.apply(parse(s));
+        return new Node<>(Node.Kind.Map, null, mapper, s -> {
+            R r = tryParse(s);
+            return r == FAIL ? fail() : mapper.apply(r);
+        }, this);
     }
 
     default <C> Parsec2<C, E> flatMap(Function<R, Parsec2<C, E>> binder) {
-        return s -> binder.apply(parse(s)).parse(s);
+        return new Node<>(Node.Kind.FlatMap, null, binder, s -> {
+            R r = tryParse(s);
+            return r == FAIL ? fail() : binder.apply(r).tryParse(s);
+        }, this);
     }
 
 
     default <C, RC> Parsec2<RC, E> seq(Parsec2<C, E> p, BiFunction<R, C, RC> mapper)
                                                                 { return Seq(this, p, mapper); }
-    default <C> Parsec2<C, E> then(Parsec2<C, E> p)             { return seq(p, (a, b) -> b); }
-    default <C> Parsec2<R, E> over(Parsec2<C, E> p)             { return seq(p, (a, b) -> a); }
+    default <C> Parsec2<C, E> then(Parsec2<C, E> p)             { return seq(p, second()); }
+    default <C> Parsec2<R, E> over(Parsec2<C, E> p)             { return seq(p, first()); }
     default Parsec2<R, E> or(Parsec2<? extends R, E> p)         { return Choose(this, p); } // or | orElse | otherwise
     default Parsec2<R, E> try1()                                { return Try(this); }
     default Parsec2<R, E> peek()                                { return LookAhead(this); }
@@ -69,6 +99,8 @@ public interface Parsec2<R, E> {
     default <S> Parsec2<List<R>, E> sepEndBy(Parsec2<S, E> by)  { return SepEndBy(this, by); }
     default <S> Parsec2<List<R>, E> sepEndBy1(Parsec2<S, E> by) { return SepEndBy1(this, by); }
     default <S> Parsec2<R, E> notFollowedBy()                   { return NotFollowedBy(this); }
+    default Parsec2<R, E> memo()                                { return Memo(this); }
+    default Parsec2<R, E> memo(String name)                     { return Memo(name, this); }
     default <O, C> Parsec2<R, E> between(Parsec2<O, E> open, Parsec2<C, E> close)
                                                                 { return Between(open, close, this); }
 
@@ -83,6 +115,562 @@ public interface Parsec2<R, E> {
     default <O, Expr> Parsec2<Expr, E> chainr1(Parsec2<O, E> op,
                                                BiOperator<Expr, O, R> alg) { return Chainr1(this, op, alg); }
 
+    default Parsec2<R, E> optimize()                            { return Passes.Optimize(this); }
+    // 只识别不建结果的版本, 见 Passes.Recognize; 改写一次, 之后反复用
+    default Parsec2<R, E> recognizer()                          { return Passes.Recognize(this); }
+
+    // 成功 (不要求读完输入) 返回 -1, 失败返回出错的位置 (同 parse 失败时 ParsecException 的位置), 不构造异常
+    default int recognize(Sequence<E> s) {
+        return tryParse(s) == FAIL ? max(s.failAt, 0) : -1;
+    }
+
+    default int recognize(String s) {
+        return recognize(new Sequence<>(s));
+    }
+
+
+    /**
+     * 以 tryParse 为抽象方法的 Parsec2, 内置组合子都返回这个 <br>
+     * FAIL 是 Object, 结果类型是具体类型 (非类型参数) 时要先用 Object 接住再和 FAIL 比较
+     */
+    @FunctionalInterface
+    interface Sentinel<R, E> extends Parsec2<R, E> {
+        static <R, E> Sentinel<R, E> of(Sentinel<R, E> p) {
+            return p;
+        }
+
+        // 结果类型是具体类型 (e.g. Character) 的 lambda 返回 FAIL 会 checkcast 失败, 用 Object 写再转
+        @SuppressWarnings("unchecked")
+        static <R, E> Parsec2<R, E> raw(Sentinel<Object, E> p) {
+            return (Parsec2<R, E>) p;
+        }
+
+        @Override
+        R tryParse(Sequence<E> s);
+
+        @Override
+        default R parse(Sequence<E> s) throws ParsecException {
+            R r = tryParse(s);
+            if (r == FAIL) {
+                throw s.failure();
+            }
+            return r;
+        }
+    }
+
+    /**
+     * 内置组合子构造出来的语法节点: 执行委托给 impl, 同时留着 kind + 参数 + 子 parsec 的结构, 给 Passes 改写用 <br>
+     * arg: Count 次数, Memo id, Thunk 的 Supplier, Regex 的 Pattern, Satisfy/ChSatisfy 的谓词, Return 的值, Fail 的信息 <br>
+     * mapper: Seq/Map/FlatMap/Regex 的函数, Chainl1/Chainr1 的 BiOperator, Memo 的 name
+     */
+    final class Node<R, E> implements Sentinel<R, E> {
+        public enum Kind {
+            Seq, Choose, Try, Between, Many, SkipMany, Count, Map, FlatMap, Chainl1, Chainr1,
+            LookAhead, NotFollowedBy, ManyTill, Find, Thunk, Memo,
+            Regex, ChSatisfy, Satisfy, Any, Return, Fail, Null, EOF
+        }
+
+        public final Kind kind;
+        public final Object arg;
+        public final Object mapper;
+        public final Parsec2<?, E>[] parsecs;
+        final Sentinel<R, E> impl;
+        FirstSet first; // 算过的 FIRST 集, 见 first()
+
+        // parsecs 存下来只读不写, 不会往里放别的类型
+        @SafeVarargs
+        @SuppressWarnings("varargs")
+        Node(Kind kind, Object arg, Object mapper, Sentinel<R, E> impl, Parsec2<?, E>... parsecs) {
+            this.kind = kind;
+            this.arg = arg;
+            this.mapper = mapper;
+            this.impl = impl;
+            this.parsecs = parsecs;
+        }
+
+        // 同 Sentinel.raw, 结果类型是具体类型的 lambda 用 Object 写
+        @SafeVarargs
+        @SuppressWarnings({"unchecked", "varargs"})
+        static <R, E> Parsec2<R, E> raw(Kind kind, Object arg, Object mapper, Sentinel<Object, E> impl, Parsec2<?, E>... parsecs) {
+            return (Parsec2<R, E>) new Node<>(kind, arg, mapper, impl, parsecs);
+        }
+
+        @Override
+        public R tryParse(Sequence<E> s) {
+            return impl.tryParse(s);
+        }
+
+        // 子 parsec 换成 ps, 按 kind 重新构造 (lowering 回可执行的 Node), 子 parsec 都没变就是自己; 叶子和 Thunk 原样返回
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Parsec2<R, E> lower(Parsec2<?, E>[] ps) {
+            if (Arrays.equals(ps, parsecs)) {
+                return this;
+            }
+            Parsec2 p = ps.length > 0 ? ps[0] : null;
+            switch (kind) {
+                case Seq:           return ps.length == 2 ? Seq(p, ps[1], (BiFunction) mapper) : Seq(p, ps[1], ps[2], (TriFunction) mapper);
+                case Choose:        return Choose((Parsec2[]) ps);
+                case Try:           return Try(p);
+                case Between:       return Between(p, ps[2], ps[1]);
+                case Many:          return Many(p);
+                case SkipMany:      return SkipMany(p);
+                case Count:         return Count(p, (Integer) arg);
+                case Map:           return p.map((Function) mapper);
+                case FlatMap:       return p.flatMap((Function) mapper);
+                case Chainl1:       return Chainl1(p, ps[1], (BiOperator) mapper);
+                case Chainr1:       return Chainr1(p, ps[1], (BiOperator) mapper);
+                case LookAhead:     return LookAhead(p);
+                case NotFollowedBy: return NotFollowedBy(p);
+                case ManyTill:      return ManyTill(p, ps[1]);
+                case Find:          return Find(p);
+                case Memo:          return memo_((Integer) arg, (String) mapper, p);
+                default:            return this;
+            }
+        }
+
+        static FirstSet[] firsts(Parsec2<?, ?>[] parsecs) {
+            FirstSet[] firsts = new FirstSet[parsecs.length];
+            for (int i = 0; i < parsecs.length; i++) {
+                firsts[i] = first(parsecs[i], newSetFromMap(new IdentityHashMap<>()));
+            }
+            return firsts;
+        }
+
+        // 按字符算的 FIRST 集, 保守估计, 只对 Sequence<Character> 有意义, 算过的记在 node.first <br>
+        // 递归回到正在算的 parsec (左递归) 时算 ANY, 环上的 parsec 也就都是 ANY
+        @SuppressWarnings("unchecked")
+        static FirstSet first(Parsec2<?, ?> parsec, Set<Parsec2<?, ?>> seen) {
+            if (!(parsec instanceof Node)) {
+                return FirstSet.ANY;
+            }
+            FirstSet first = ((Node<?, ?>) parsec).first;
+            if (first != null) {
+                return first;
+            }
+            if (!seen.add(parsec)) {
+                return FirstSet.ANY;
+            }
+            Node<?, ?> node = (Node<?, ?>) parsec;
+            Parsec2<?, ?>[] ps = node.parsecs;
+            switch (node.kind) {
+                case Regex:         first = FirstSet.regex((Pattern) node.arg); break;
+                case ChSatisfy:     first = FirstSet.of((IntPredicate) node.arg); break;
+                case Seq:
+                case Between:       first = first(ps[0], seen);
+                                    for (int i = 1; i < ps.length && first.empty(); i++) first = first.then(first(ps[i], seen));
+                                    break;
+                case Choose:        first = first(ps[0], seen);
+                                    for (int i = 1; i < ps.length; i++) first = first.union(first(ps[i], seen));
+                                    break;
+                case Many:
+                case SkipMany:      first = first(ps[0], seen).optional(); break;
+                case Try:
+                case Count:
+                case Map:
+                case Memo:
+                case Chainl1:
+                case Chainr1:       first = first(ps[0], seen); break;
+                // 不消耗字符的话, 后面接什么要运行时才知道
+                case FlatMap:       first = first(ps[0], seen);
+                                    if (first.empty()) first = FirstSet.ANY;
+                                    break;
+                // till <|> many (till <|> many ...)
+                case ManyTill:      first = first(ps[1], seen);
+                                    first = first.union(first(ps[0], seen).then(first));
+                                    break;
+                case Satisfy:
+                case Any:           first = FirstSet.ANY_CHAR; break;
+                case Thunk:         first = first(((Supplier<Parsec2<?, ?>>) node.arg).get(), seen); break;
+                case Find:          first = FirstSet.ANY; break;
+                // Return, Null, EOF, Fail, LookAhead, NotFollowedBy 不消耗字符
+                default:            first = FirstSet.EMPTY; break;
+            }
+            node.first = first;
+            return first;
+        }
+
+        @Override public String toString() { return kind + (arg instanceof Pattern ? "(" + arg + ")" : ""); }
+    }
+
+    /**
+     * 语法图上的改写, 同 Parsec1.Passes <br>
+     * 从根出发先改写子 parsec, 再用 Node.lower 按 kind 重新构造, 然后依次套用 pass 直到不再变化 <br>
+     * 共享的子图只改写一次; Thunk 只展开一次, 改写后的 Thunk 指向目标改写之后的结果 (也就不再每次调用 supplier) <br>
+     * Memo 保留原来的 id, packrat / MemoProfile.select 的结果对改写后的语法仍然有效 <br>
+     * 不是 Node 的 parsec (手写的 s -> ..., flatMap 运行时才产生的 parsec) 看不到结构, 原样保留
+     */
+    interface Passes {
+        @FunctionalInterface
+        interface Pass {
+            // 返回替换 node 的 parsec, 不改写就返回 node 自己
+            Parsec2<?, ?> rewrite(Node<?, ?> node);
+        }
+
+        // Choose(Choose(a, b), c) -> Choose(a, b, c), e.g. a.or(b).or(c) <br>
+        // 结果不变, 失败信息可能不同: 里层的 "No Choice" 不再单独记录
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass FlattenChoose = node -> {
+            if (node.kind != Node.Kind.Choose || Arrays.stream(node.parsecs).noneMatch(p -> isKind(p, Node.Kind.Choose))) {
+                return node;
+            }
+            List<Parsec2> ps = new ArrayList<>();
+            for (Parsec2<?, ?> p : node.parsecs) {
+                if (isKind(p, Node.Kind.Choose)) {
+                    ps.addAll(Arrays.asList(((Node<?, ?>) p).parsecs));
+                } else {
+                    ps.add(p);
+                }
+            }
+            return Choose(ps.toArray(new Parsec2[0]));
+        };
+
+        // p.map(f).map(g) -> p.map(g . f)
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass FuseMap = node -> {
+            if (node.kind != Node.Kind.Map || !isKind(node.parsecs[0], Node.Kind.Map)) {
+                return node;
+            }
+            Node<?, ?> inner = (Node<?, ?>) node.parsecs[0];
+            Function f = (Function) inner.mapper, g = (Function) node.mapper;
+            return inner.parsecs[0].map(r -> g.apply(f.apply(r)));
+        };
+
+        // open.then(p).over(close) -> Between(open, close, p)
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass CollapseBetween = node -> {
+            if (node.kind != Node.Kind.Seq || node.mapper != First || !isKind(node.parsecs[0], Node.Kind.Seq)) {
+                return node;
+            }
+            Node<?, ?> inner = (Node<?, ?>) node.parsecs[0];
+            if (inner.mapper != Second) {
+                return node;
+            }
+            return Between((Parsec2) inner.parsecs[0], (Parsec2) node.parsecs[1], (Parsec2) inner.parsecs[1]);
+        };
+
+        // 提取公共前缀: Choose(Seq(p, a), x, Seq(p, b)) -> Choose(x, Seq(p, Choose(a, b))), Between 的 open 也算前缀 <br>
+        // p 只解析一次, a 失败后不再回溯重新解析 p; 合并的位置和条件同 Parsec1.Passes.LeftFactor <br>
+        // Memo 包着的分支不合并, 那是 packrat 在解决同样的问题, 合并了 Memo 就没了 <br>
+        // 结果不变 (mapper 要是纯函数), 失败信息可能不同
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass LeftFactor = node -> {
+            if (node.kind != Node.Kind.Choose) {
+                return node;
+            }
+            Parsec2<?, ?>[] ps = node.parsecs;
+            Parsec2[] alts = new Parsec2[ps.length]; // 合并走的是 null
+            boolean[] taken = new boolean[ps.length];
+            boolean changed = false;
+            for (int i = 0; i < ps.length; i++) {
+                if (taken[i]) {
+                    continue;
+                }
+                alts[i] = ps[i];
+                Parsec2<?, ?> prefix = prefix(ps[i]);
+                if (prefix == null) {
+                    continue;
+                }
+                List<Parsec2<?, ?>> group = new ArrayList<>();
+                List<Parsec2<?, ?>> skipped = new ArrayList<>();
+                group.add(ps[i]);
+                int last = i;
+                for (int j = i + 1; j < ps.length; j++) {
+                    if (taken[j]) {
+                        continue;
+                    }
+                    Parsec2<?, ?> pj = prefix(ps[j]);
+                    if (pj != null && same(pj, prefix) && disjoint(group, skipped)) {
+                        group.add(ps[j]);
+                        taken[j] = true;
+                        last = j;
+                    } else {
+                        skipped.add(ps[j]);
+                    }
+                }
+                if (last == i) {
+                    continue;
+                }
+                Parsec2[] suffixes = new Parsec2[group.size()];
+                for (int k = 0; k < suffixes.length; k++) {
+                    suffixes[k] = suffix((Node<?, ?>) group.get(k));
+                }
+                Parsec2 rest = Passes.LeftFactor.rewrite((Node<?, ?>) Choose(suffixes));
+                alts[i] = null;
+                alts[last] = Seq((Parsec2) prefix, rest, (r, k) -> ((Function) k).apply(r));
+                changed = true;
+            }
+            if (!changed) {
+                return node;
+            }
+            Parsec2[] rest = Arrays.stream(alts).filter(Objects::nonNull).toArray(Parsec2[]::new);
+            return rest.length == 1 ? rest[0] : Choose(rest);
+        };
+
+        static Parsec2<?, ?> prefix(Parsec2<?, ?> p) {
+            return isKind(p, Node.Kind.Seq) || isKind(p, Node.Kind.Between) ? ((Node<?, ?>) p).parsecs[0] : null;
+        }
+
+        // Seq(p, a, f) -> a.map(x -> r -> f(r, x)), Seq(p, a, b, f) -> Seq(a, b, (x, y) -> r -> f(r, x, y)), Between(p, close, a) -> a.over(close).map(x -> r -> x)
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static Parsec2<?, ?> suffix(Node<?, ?> node) {
+            Parsec2[] ps = node.parsecs;
+            if (node.kind == Node.Kind.Between) {
+                return Seq(ps[1], ps[2], (x, c) -> (Function) r -> x);
+            } else if (ps.length == 2) {
+                BiFunction f = (BiFunction) node.mapper;
+                return ps[1].map(x -> (Function) r -> f.apply(r, x));
+            } else {
+                TriFunction f = (TriFunction) node.mapper;
+                return Seq(ps[1], ps[2], (x, y) -> (Function) r -> f.apply(r, x, y));
+            }
+        }
+
+        // ps 挪到 others 后面结果不变
+        static boolean disjoint(List<Parsec2<?, ?>> ps, List<Parsec2<?, ?>> others) {
+            if (others.isEmpty()) {
+                return true;
+            }
+            for (FirstSet a : Node.firsts(ps.toArray(new Parsec2<?, ?>[0]))) {
+                for (FirstSet b : Node.firsts(others.toArray(new Parsec2<?, ?>[0]))) {
+                    if (!a.disjoint(b)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // 结构相同: 同一个对象, 或者 kind, 参数, mapper (同一个对象), 子 parsec 都相同; 正则比较 pattern 和 flags
+        static boolean same(Parsec2<?, ?> a, Parsec2<?, ?> b) {
+            if (a == b) {
+                return true;
+            }
+            if (!(a instanceof Node) || !(b instanceof Node)) {
+                return false;
+            }
+            Node<?, ?> x = (Node<?, ?>) a, y = (Node<?, ?>) b;
+            if (x.kind != y.kind || x.mapper != y.mapper || x.parsecs.length != y.parsecs.length || !sameArg(x.arg, y.arg)) {
+                return false;
+            }
+            for (int i = 0; i < x.parsecs.length; i++) {
+                if (!same(x.parsecs[i], y.parsecs[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean sameArg(Object a, Object b) {
+            if (a instanceof Pattern && b instanceof Pattern) {
+                return ((Pattern) a).pattern().equals(((Pattern) b).pattern()) && ((Pattern) a).flags() == ((Pattern) b).flags();
+            }
+            return a == b || a instanceof Integer && a.equals(b);
+        }
+
+        // 相邻的正则终结符合并成一个正则, 同 Parsec1.Passes.FuseRegex, Between 两边的结果不要, 不捕获 <br>
+        // 只合并 Regex (Pat, Str) 和它们的 map; Ch 这类按谓词判断的看不到结构, Memo 包着的不动 <br>
+        // 合并的正则匹配失败时 rollback 交给原来的 parsec 重新解析, 报错和 reach 都不变
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass FuseRegex = node -> {
+            Parsec2[] ps = node.parsecs;
+            if (node.kind == Node.Kind.Between) {
+                // Between(open, close, p): parsecs 是 [open, p, close], 只要中间的结果
+                Fused.Piece open = piece(ps[0]), p = piece(ps[1]), close = piece(ps[2]);
+                if (open != null && p != null && close != null) {
+                    return fused_(new Fused(Fused.seq(open, p, close, new boolean[] { false, true, false }, (a, b, c) -> b)), (Parsec2) node);
+                } else if (open != null && p != null) {
+                    return Seq(fused_(new Fused(Fused.seq(open, p, uses(Second), Second)), Seq(ps[0], ps[1], Second)), ps[2], First);
+                } else if (p != null && close != null) {
+                    return Seq(ps[0], fused_(new Fused(Fused.seq(p, close, uses(First), First)), Seq(ps[1], ps[2], First)), Second);
+                }
+                return node;
+            }
+            if (node.kind != Node.Kind.Seq) {
+                return node;
+            }
+            Fused.Piece a = piece(ps[0]), b = piece(ps[1]);
+            if (ps.length == 2) {
+                if (a == null || b == null) {
+                    return node;
+                }
+                BiFunction f = (BiFunction) node.mapper;
+                return fused_(new Fused(Fused.seq(a, b, uses(f), f)), (Parsec2) node);
+            }
+            TriFunction f = (TriFunction) node.mapper;
+            Fused.Piece c = piece(ps[2]);
+            if (a != null && b != null && c != null) {
+                return fused_(new Fused(Fused.seq(a, b, c, new boolean[] { true, true, true }, f::apply)), (Parsec2) node);
+            }
+            // 只有相邻的两个能合并: 合并成 Pair
+            if (a != null && b != null) {
+                Parsec2 ab = fused_(new Fused(Fused.seq(a, b, uses(Pair::new), Pair::new)), Seq(ps[0], ps[1], Pair::new));
+                return Seq(ab, ps[2], (p, z) -> f.apply(((Pair) p).car, ((Pair) p).cdr, z));
+            }
+            if (b != null && c != null) {
+                Parsec2 bc = fused_(new Fused(Fused.seq(b, c, uses(Pair::new), Pair::new)), Seq(ps[1], ps[2], Pair::new));
+                return Seq(ps[0], bc, (x, p) -> f.apply(x, ((Pair) p).car, ((Pair) p).cdr));
+            }
+            return node;
+        };
+
+        // 能合并的终结符: Pat (Str), SkipPat, 合并过的 Regex, 以及它们的 map
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static Fused.Piece piece(Parsec2<?, ?> p) {
+            if (!(p instanceof Node)) {
+                return null;
+            }
+            Node<?, ?> node = (Node<?, ?>) p;
+            switch (node.kind) {
+                case Regex:
+                    if (node.mapper instanceof Fused) {
+                        return ((Fused) node.mapper).piece;
+                    }
+                    if (!Fused.fusable((Pattern) node.arg)) {
+                        return null;
+                    }
+                    return node.mapper == Group ? Fused.text((Pattern) node.arg, null)
+                            : node.mapper == Ignore ? Fused.constant((Pattern) node.arg, null) : null;
+                case Map:
+                    Fused.Piece piece = piece(node.parsecs[0]);
+                    return piece == null ? null : Fused.map(piece, (Function) node.mapper);
+                default:
+                    return null;
+            }
+        }
+
+        // 识别模式, 见 Parsec2.recognizer(): 只看能不能解析, 结果都不要 (只要不是 FAIL) <br>
+        // 子 parsec 已经改写过: map 去掉, Seq 的 mapper 换成 First (不建 Pair 之类), Many 换成不建 list 的 SkipMany, <br>
+        // Chainl1/Chainr1 换成 p (op p)* 的 SkipMany, ManyTill 换成 till <|> many ManyTill 不 prepend, 正则不 substring 不建 Span <br>
+        // 消耗的输入, 报错和 reach 都不变; Count 的 list 只有 n 个, 不改; FlatMap 的 binder 要用结果, 整个原样保留, 见 Recognize(p)
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Pass Recognize = node -> {
+            Parsec2[] ps = node.parsecs;
+            switch (node.kind) {
+                case Seq:
+                    if (ps.length == 3) {
+                        return Between(ps[0], ps[2], ps[1]);
+                    }
+                    return node.mapper == First || node.mapper == Second ? node : Seq(ps[0], ps[1], First);
+                case Map:
+                    return ps[0];
+                case Many:
+                    return SkipMany(ps[0]);
+                case Chainl1:
+                case Chainr1:
+                    return Seq(ps[0], SkipMany(Seq(ps[1], ps[0], First)), First);
+                case ManyTill:
+                    Parsec2[] self = new Parsec2[1];
+                    self[0] = Choose(ps[1], Seq(ps[0], Thunk(() -> self[0]), Second));
+                    return self[0];
+                case Regex:
+                    if (node.mapper == Ignore) {
+                        return node;
+                    }
+                    if (node.mapper instanceof Fused) {
+                        // 同一个正则当常量用, 不取分组; 失败时交给原来的 (它再交给合并之前的 parsec), 报错不变
+                        Fused fused = (Fused) node.mapper;
+                        return fused.value == null ? node : fused_(new Fused(Fused.constant(fused.pattern, null), false), (Parsec2) node);
+                    }
+                    return Regex((Pattern) node.arg, Ignore);
+                default:
+                    return node;
+            }
+        };
+
+        static boolean[] uses(BiFunction<?, ?, ?> f) {
+            return f == First ? new boolean[] { true, false } : f == Second ? new boolean[] { false, true } : new boolean[] { true, true };
+        }
+
+        static boolean isKind(Parsec2<?, ?> p, Node.Kind kind) {
+            return p instanceof Node && ((Node<?, ?>) p).kind == kind;
+        }
+
+        // FuseRegex 单独放在最后一轮: 先合并的话 Seq 的前缀变成各不相同的正则, LeftFactor 就找不到公共前缀了
+        static <R, E> Parsec2<R, E> Optimize(Parsec2<R, E> p) {
+            return Optimize(Optimize(p, FlattenChoose, FuseMap, CollapseBetween, LeftFactor), FuseRegex);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <R, E> Parsec2<R, E> Optimize(Parsec2<R, E> p, Pass... passes) {
+            return (Parsec2<R, E>) new Rewriter(passes).run(p);
+        }
+
+        // 先提取公共前缀 (不用 FuseMap, map 反正要去掉), 再去掉结果, 最后合并正则: 不要结果的正则合并出来不捕获
+        @SuppressWarnings("unchecked")
+        static <R, E> Parsec2<R, E> Recognize(Parsec2<R, E> p) {
+            Parsec2<?, ?> factored = Optimize(p, FlattenChoose, CollapseBetween, LeftFactor);
+            Parsec2<?, ?> recognizer = new Rewriter(new Pass[] { Recognize }) {
+                @Override
+                Parsec2<?, ?> rewrite(Parsec2<?, ?> p) {
+                    return isKind(p, Node.Kind.FlatMap) ? p : super.rewrite(p);
+                }
+            }.run(factored);
+            return (Parsec2<R, E>) Optimize(recognizer, FuseRegex);
+        }
+
+        class Rewriter {
+            final Pass[] passes;
+            final Map<Parsec2<?, ?>, Parsec2<?, ?>> done = new IdentityHashMap<>();
+            final Deque<Runnable> thunks = new ArrayDeque<>();
+
+            Rewriter(Pass[] passes) {
+                this.passes = passes;
+            }
+
+            Parsec2<?, ?> run(Parsec2<?, ?> root) {
+                Parsec2<?, ?> r = rewrite(root);
+                while (!thunks.isEmpty()) {
+                    thunks.poll().run();
+                }
+                return r;
+            }
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            Parsec2<?, ?> rewrite(Parsec2<?, ?> p) {
+                if (!(p instanceof Node)) {
+                    return p;
+                }
+                Parsec2<?, ?> r = done.get(p);
+                if (r != null) {
+                    return r;
+                }
+                Node node = (Node) p;
+                if (node.kind == Node.Kind.Thunk) {
+                    // 目标等整个图走完再改写, 递归回来的引用先指向这个新 Thunk
+                    // 改写好之前 (e.g. LeftFactor 算 FIRST 集) 先用原来的目标, 两者等价
+                    Supplier<Parsec2> origin = (Supplier<Parsec2>) node.arg;
+                    Parsec2[] target = new Parsec2[1];
+                    r = Thunk(() -> target[0] == null ? origin.get() : target[0]);
+                    done.put(p, r);
+                    thunks.add(() -> target[0] = rewrite(origin.get()));
+                    return r;
+                }
+                Parsec2[] ps = new Parsec2[node.parsecs.length];
+                for (int i = 0; i < ps.length; i++) {
+                    ps[i] = rewrite(node.parsecs[i]);
+                }
+                r = apply(node.lower(ps));
+                done.put(p, r);
+                return r;
+            }
+
+            Parsec2<?, ?> apply(Parsec2<?, ?> p) {
+                while (p instanceof Node) {
+                    Parsec2<?, ?> before = p;
+                    for (Pass pass : passes) {
+                        p = pass.rewrite((Node<?, ?>) p);
+                        if (!(p instanceof Node)) {
+                            break;
+                        }
+                    }
+                    if (p == before) {
+                        break;
+                    }
+                }
+                return p;
+            }
+        }
+    }
 
     @SuppressWarnings("InfiniteLoopStatement")
     interface Combinators {
@@ -91,7 +679,13 @@ public interface Parsec2<R, E> {
                 Parsec2<R1, E> front,
                 Parsec2<R2, E> rear,
                 BiFunction<R1, R2, R> mapper) {
-            return s -> mapper.apply(front.parse(s), rear.parse(s));
+            return new Node<>(Node.Kind.Seq, null, mapper, s -> {
+                R1 r1 = front.tryParse(s);
+                if (r1 == FAIL) return fail();
+                R2 r2 = rear.tryParse(s);
+                if (r2 == FAIL) return fail();
+                return mapper.apply(r1, r2);
+            }, front, rear);
         }
 
         static <R1, R2, R3, R, E> Parsec2<R, E> Seq(
@@ -99,23 +693,60 @@ public interface Parsec2<R, E> {
                 Parsec2<R2, E> sec,
                 Parsec2<R3, E> trd,
                 TriFunction<R1, R2, R3, R> mapper) {
-            return s -> mapper.apply(fst.parse(s), sec.parse(s), trd.parse(s));
+            return new Node<>(Node.Kind.Seq, null, mapper, s -> {
+                R1 r1 = fst.tryParse(s);
+                if (r1 == FAIL) return fail();
+                R2 r2 = sec.tryParse(s);
+                if (r2 == FAIL) return fail();
+                R3 r3 = trd.tryParse(s);
+                if (r3 == FAIL) return fail();
+                return mapper.apply(r1, r2, r3);
+            }, fst, sec, trd);
         }
 
-        // Choice
+        // then / over 的 mapper, 用常量是为了改写语法时能认出来, 见 Passes.CollapseBetween
+        BiFunction<Object, Object, Object> First = (a, b) -> a;
+        BiFunction<Object, Object, Object> Second = (a, b) -> b;
+
+        @SuppressWarnings("unchecked")
+        static <A, B> BiFunction<A, B, A> first() {
+            return (BiFunction<A, B, A>) (BiFunction<?, ?, ?>) First;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <A, B> BiFunction<A, B, B> second() {
+            return (BiFunction<A, B, B>) (BiFunction<?, ?, ?>) Second;
+        }
+
+        // Choice, ps 拷一份存下来, 只读不写
         @SafeVarargs
+        @SuppressWarnings("varargs")
         static <R, E> Parsec2<R, E> Choose(Parsec2<? extends R, E>... ps) {
             if (ps.length == 0) {
                 throw new IllegalArgumentException("No Choices");
             }
-            return s -> {
-                for (Parsec2<? extends R, E> parsec : ps) {
-                    try {
-                        return Try(parsec).parse(s);
-                    } catch (ParsecException ignored) { }
+            Parsec2<? extends R, E>[] choices = ps.clone();
+            FirstSet.Dispatch dispatch = new FirstSet.Dispatch(() -> Node.firsts(choices));
+            return new Node<>(Node.Kind.Choose, null, null, s -> {
+                int[] alts = null;
+                if (s.chars != null) {
+                    // 按下一个字符查 FIRST 集分派表, 只尝试可能成功的分支, 顺序不变
+                    alts = dispatch.alts(s.chars, s.current, s.end);
+                    if (alts != null) s.reach(s.current + 1);
+                }
+                int n = alts == null ? choices.length : alts.length;
+                for (int k = 0; k < n; k++) {
+                    Parsec2<? extends R, E> parsec = choices[alts == null ? k : alts[k]];
+                    int t = s.begin();
+                    R r = parsec.tryParse(s);
+                    if (r != FAIL) {
+                        s.commit(t);
+                        return r;
+                    }
+                    s.rollback(t);
                 }
-                throw s.trap("No Choice, stop at %d", s.index());
-            };
+                return s.fail("No Choice");
+            }, choices);
         }
 
 //        static <R, E> Parsec2<R, E> Choose(Parsec2<? extends R, E>... ps) {
@@ -135,17 +766,16 @@ public interface Parsec2<R, E> {
 
         // 配合 Choice 使用的
         static <R, E> Parsec2<R, E> Try(Parsec2<R, E> parsec) {
-            return s -> {
+            return new Node<>(Node.Kind.Try, null, null, s -> {
                 int t = s.begin();
-                try{
-                    R e = parsec.parse(s);
-                    s.commit(t);
-                    return e;
-                } catch (ParsecException e) {
+                R r = parsec.tryParse(s);
+                if (r == FAIL) {
                     s.rollback(t);
-                    throw e;
+                } else {
+                    s.commit(t);
                 }
-            };
+                return r;
+            }, parsec);
         }
 
         // ============================================================================
@@ -155,8 +785,8 @@ public interface Parsec2<R, E> {
             final static TypeRef<Character> Char = new TypeRef<>();
         }
 
-        static <E> Parsec2<E, E> Any()                { return Sequence::next; }
-        static <E> Parsec2<E, E> Any(TypeRef<E> t)    { return Sequence::next; }
+        static <E> Parsec2<E, E> Any()                { return new Node<>(Node.Kind.Any, null, null, Sequence::tryNext); }
+        static <E> Parsec2<E, E> Any(TypeRef<E> t)    { return Any(); }
         static <E> Parsec2<E, E> EQ(E item)           { return Satisfy(e -> Objects.equals(e, item)); }
         static <E> Parsec2<E, E> NE(E item)           { return Satisfy(e -> !Objects.equals(e, item)); }
 
@@ -171,33 +801,32 @@ public interface Parsec2<R, E> {
         }
 
         static <E> Parsec2<E, E> Satisfy(Predicate<E> p/*, String expect, Object... args*/) {
-            return s -> {
+            return new Node<>(Node.Kind.Satisfy, p, null, s -> {
                 int idx = s.begin();
-                E e = s.next();
-                if (p.test(e)) {
+                E e = s.tryNext();
+                if (e == FAIL || p.test(e)) {
                     return e;
                 } else {
-                    throw s.trap("Not satisfy at %d: %s", idx, Objects.toString(e));
+                    return s.failAt(idx, "Not satisfy: %s", e, null);
                 }
-            };
+            });
         }
 
         static <T, E> Parsec2<T, E> Return(T value) {
-            return s -> value;
+            return new Node<>(Node.Kind.Return, value, null, s -> value);
         }
 
         static <T, E> Parsec2<T, E> Return(T value, TypeRef<E> t) {
-            return s -> value;
+            return Return(value);
         }
 
         static <E> Parsec2<E, E> Fail(String fmt, Object... objects) {
-            return s -> {
-                throw s.trap(fmt, objects);
-            };
+            String msg = String.format(fmt, objects);
+            return new Node<>(Node.Kind.Fail, msg, null, s -> s.fail("%s", msg));
         }
 
         static <R, E> Parsec2<R, E> Null() {
-            return s -> null;
+            return new Node<>(Node.Kind.Null, null, null, s -> null);
         }
 
         static <R, E> Parsec2<Optional<R>, E> Optional(Parsec2<R, E> p) {
@@ -216,18 +845,17 @@ public interface Parsec2<R, E> {
 
         // p 如果不消耗 state 会 stackoverflow
         static <R, E> Parsec2<List<R>, E> Many(Parsec2<R, E> p) {
-            return s -> {
+            Parsec2<R, E> tp = Try(p);
+            return new Node<>(Node.Kind.Many, null, null, s -> {
                 List<R> lst = new ArrayList<>();
-                Parsec2<R, E> tp = Try(p);
-
-                try{
-                    while (true) {
-                        lst.add(tp.parse(s));
+                while (true) {
+                    R r = tp.tryParse(s);
+                    if (r == FAIL) {
+                        return unmodifiableList(lst);
                     }
-                } catch (ParsecException ignored) {
-                    return unmodifiableList(lst);
+                    lst.add(r);
                 }
-            };
+            }, p);
         }
 
         // p 如果不消耗 state 会 stackoverflow
@@ -253,14 +881,21 @@ public interface Parsec2<R, E> {
             return p.map(it -> null);
         }
 
-        // p 如果不消耗 state 会 stackoverflow
+        // p 如果不消耗 state 会死循环; 只消耗不收集, 不建 list
         static <R, E> Parsec2<R, E> SkipMany(Parsec2<R, E> p) {
-            return Many(p).map(it -> null);
+            Parsec2<R, E> tp = Try(p);
+            return new Node<>(Node.Kind.SkipMany, null, null, s -> {
+                while (true) {
+                    if (tp.tryParse(s) == FAIL) {
+                        return null;
+                    }
+                }
+            }, p);
         }
 
-        // p 如果不消耗 state 会 stackoverflow
+        // p 如果不消耗 state 会死循环
         static <R, E> Parsec2<R, E> SkipMany1(Parsec2<R, E> p) {
-            return Many1(p).map(it -> null);
+            return Seq(p, SkipMany(p), second());
         }
 
 //        static <R, E> Parsec2<R, E> Skip(Parsec2<R, E> p) {
@@ -291,23 +926,26 @@ public interface Parsec2<R, E> {
             if (n <= 0) {
                 return Null();
             }
-            return s -> {
+            return Node.raw(Node.Kind.Count, n, null, s -> {
                 List<R> lst = new ArrayList<>();
                 for (int i = 0; i < n; i++) {
-                    lst.add(p.parse(s));
+                    R r = p.tryParse(s);
+                    if (r == FAIL) return FAIL;
+                    lst.add(r);
                 }
                 return lst;
-            };
+            }, p);
         }
 
         static <R, E, O, C> Parsec2<R, E> Between(Parsec2<O, E> open, Parsec2<C, E> close, Parsec2<R, E> p) {
-//            return s -> {
-//                open.parse(s);
-//                R r = p.parse(s);
-//                close.parse(s);
-//                return r;
-//            };
-            return open.then(p).over(close);
+//            return open.then(p).over(close);
+            return new Node<>(Node.Kind.Between, null, null, s -> {
+                if (open.tryParse(s) == FAIL) return fail();
+                R r = p.tryParse(s);
+                if (r == FAIL) return fail();
+                if (close.tryParse(s) == FAIL) return fail();
+                return r;
+            }, open, p, close);
         }
 
         // 另一种写法
@@ -394,9 +1032,29 @@ public interface Parsec2<R, E> {
                 Parsec2<O, E> op,
                 BiOperator<Expr, O, R> alg
         ) {
-            return p.map(alg::val).flatMap(lval -> s -> {
-                return chainl1_rest(p, op, lval, alg).parse(s);
-            });
+//            return p.map(alg::val).flatMap(lval -> Sentinel.of(s -> {
+//                return chainl1_rest(p, op, lval, alg).tryParse(s);
+//            }));
+            // 循环代替 chainl1_rest 的递归, 栈深度和操作数个数无关
+            return new Node<>(Node.Kind.Chainl1, null, alg, s -> {
+                R r = p.tryParse(s);
+                if (r == FAIL) return fail();
+                Expr lval = alg.val(r);
+                while (true) {
+                    int t = s.begin();
+                    O o = op.tryParse(s);
+                    if (o != FAIL) {
+                        R rval = p.tryParse(s);
+                        if (rval != FAIL) {
+                            s.commit(t);
+                            lval = alg.app(o, lval, alg.val(rval));
+                            continue;
+                        }
+                    }
+                    s.rollback(t);
+                    return lval;
+                }
+            }, p, op);
         }
 
         static <R, O, E, Expr> Parsec2<Expr, E> chainl1_rest(
@@ -410,10 +1068,10 @@ public interface Parsec2<R, E> {
                             op,
                             p,
                             (a, b) -> new Pair<>(a, alg.val(b))
-                    ).flatMap(opp -> s -> {
+                    ).flatMap(opp -> Sentinel.of(s -> {
                         Expr app = alg.app(opp.car, lval, opp.cdr);
-                        return chainl1_rest(p, op, app, alg).parse(s);
-                    }),
+                        return chainl1_rest(p, op, app, alg).tryParse(s);
+                    })),
                     lval
             );
         }
@@ -433,9 +1091,10 @@ public interface Parsec2<R, E> {
                 Parsec2<O, E> op,
                 BiOperator<Expr, O, R> alg
         ) {
-            return p.map(alg::val).flatMap(lval -> s -> {
-                return chainr1_rest(p, op, lval, alg).parse(s);
-            });
+            Parsec2<Expr, E> chain = p.map(alg::val).flatMap(lval -> Sentinel.of(s -> {
+                return chainr1_rest(p, op, lval, alg).tryParse(s);
+            }));
+            return new Node<>(Node.Kind.Chainr1, null, alg, chain::tryParse, p, op);
         }
 
         static <R, O, E, Expr> Parsec2<Expr, E> chainr1_rest(
@@ -455,52 +1114,48 @@ public interface Parsec2<R, E> {
         }
 
         static <E> Parsec2<E, E> EOF() {
-            return s -> {
-                try {
-                    E r = s.next();
-                    throw s.trap("Expect eof but %s", r);
-                } catch (EOFException e) {
+            return new Node<>(Node.Kind.EOF, null, null, s -> {
+                if (s.isEOF()) {
                     return null;
                 }
-            };
+                return s.fail("Expect eof but %s", s.next());
+            });
         }
 
         static <R, E> Parsec2<R, E> LookAhead(Parsec2<R, E> p) {
-            return s -> {
+            return new Node<>(Node.Kind.LookAhead, null, null, s -> {
                 int t = s.begin();
-                try {
-                    return p.parse(s);
-                } finally {
-                    s.rollback(t);
-                }
-            };
+                R r = p.tryParse(s);
+                s.rollback(t);
+                return r;
+            }, p);
         }
 
         // 实现最长匹配规则, e.g. 识别关键词let, lets 应该识别为 id 不是 let
-        // p 必须消耗 state, 否则永远失败  todo test
+        // p 必须消耗 state, 否则永远失败
         static <R, E> Parsec2<R, E> NotFollowedBy(Parsec2<R, E> p) {
-            return s -> {
+            return new Node<>(Node.Kind.NotFollowedBy, null, null, s -> {
                 int t = s.begin();
-                try {
-                    p.parse(s);
-                    throw s.trap("Not followed, stop at %d", s.index());
-                } catch (ParsecException ignored) {
+                R r = p.tryParse(s);
+                s.rollback(t);
+                if (r == FAIL) {
                     return null;
-                } finally {
-                    s.rollback(t);
+                } else {
+                    return s.fail("Not followed");
                 }
-            };
+            }, p);
         }
 
         static <R, L, E> Parsec2<List<R>, E> ManyTill(Parsec2<R, E> many, Parsec2<L, E> till) {
-            return Choose(
+            Parsec2<List<R>, E> manyTill = Choose(
                     till.map(it -> Lists.of()),
                     Seq(
                             many,
-                            s -> ManyTill(many, till).parse(s),
+                            Sentinel.<List<R>, E>raw(s -> ManyTill(many, till).tryParse(s)),
                             Lists::prepend
                     )
             );
+            return new Node<>(Node.Kind.ManyTill, null, null, manyTill::tryParse, many, till);
 //            return s -> {
 //                List<R> lst = new ArrayList<>();
 //
@@ -519,24 +1174,64 @@ public interface Parsec2<R, E> {
         }
 
         static <R, E> Parsec2<R, E> Find(Parsec2<R, E> parsec) {
-            return s -> {
+            return new Node<>(Node.Kind.Find, null, null, s -> {
                 int marked = s.index();
-                try {
-                    while (true) {
-                        int t = s.begin();
-                        try {
-                            R r = parsec.parse(s);
-                            s.commit(t);
-                            return r;
-                        } catch (ParsecException ignored) {
-                            s.rollback(t);
-                            s.next();
-                        }
+                while (true) {
+                    int t = s.begin();
+                    R r = parsec.tryParse(s);
+                    if (r != FAIL) {
+                        s.commit(t);
+                        return r;
+                    }
+                    s.rollback(t);
+                    if (s.tryNext() == FAIL) {
+                        return s.fail("Find from %s to end but failed", marked);
                     }
-                } catch (EOFException e) {
-                    throw s.trap("Find from %s to end but failed", marked);
                 }
-            };
+            }, parsec);
+        }
+
+        // 递归引用的 thunk
+        static <R, E> Parsec2<R, E> Thunk(Supplier<Parsec2<R, E>> thunk) {
+            return new Node<>(Node.Kind.Thunk, thunk, null, s -> thunk.get().tryParse(s));
+        }
+
+        // packrat: 记住 (rule, 位置) -> 结果/失败 和结束位置, 只有 Sequence 开启了 packrat 才生效, 否则原样执行
+        // 结果会被共享, p 的结果应该是不可变的
+        static <R, E> Parsec2<R, E> Memo(Parsec2<R, E> p) {
+            return Memo(null, p);
+        }
+
+        // name 只用于 MemoProfile 的报告
+        static <R, E> Parsec2<R, E> Memo(String name, Parsec2<R, E> p) {
+            return memo_(MemoTable.nextId(), name, p);
+        }
+
+        // private, 改写语法重新构造时要保留原来的 id
+        static <R, E> Parsec2<R, E> memo_(int id, String name, Parsec2<R, E> p) {
+            return new Node<>(Node.Kind.Memo, id, name, s -> {
+                MemoProfile profile = s.profile;
+                if (profile != null) {
+                    return profile.run(id, name, p, s);
+                }
+                IncrementalMemo incremental = s.incremental;
+                if (incremental != null) {
+                    return incremental.run(id, p, s);
+                }
+                MemoTable memo = s.memo;
+                if (memo == null || !memo.enabled(id)) {
+                    return p.tryParse(s);
+                }
+                int pos = s.current;
+                int slot = memo.lookup(id, pos);
+                if (slot >= 0) {
+                    s.current = memo.ends[slot];
+                    return memo.get(slot);
+                }
+                R r = p.tryParse(s);
+                memo.put(id, pos, r, s.current);
+                return r;
+            }, p);
         }
     }
 
@@ -548,19 +1243,27 @@ public interface Parsec2<R, E> {
         Pattern patternDecimal      = Pattern.compile("-?(0|[1-9][0-9]*)([.][0-9]+)?([eE][-+]?[0-9]+)?");
         Pattern patternUDecimal     = Pattern.compile("(0|[1-9][0-9]*)([.][0-9]+)?([eE][-+]?[0-9]+)?");
 
-
-        static Parsec2<Character, Character> Ch(char value)     { return EQ(value); }
-        static Parsec2<Character, Character> NotCh(char value)  { return NE(value); }
-        static Parsec2<Character, Character> ChIn(String str)   { return s -> OneOf(Sequence.chars(str)).parse(s); }
-        static Parsec2<Character, Character> ChNone(String str) { return s -> NoneOf(Sequence.chars(str)).parse(s); }
-
-        Parsec2<Character, Character> Digit             = Satisfy(Character::isDigit);
-        Parsec2<Character, Character> Alphabetic        = Satisfy(c -> isAlphabetic(c));
-        Parsec2<Character, Character> Lower             = Satisfy(Character::isLowerCase);
-        Parsec2<Character, Character> Upper             = Satisfy(Character::isUpperCase);
-        Parsec2<Character, Character> Letter            = Satisfy(Character::isLetter);
-        Parsec2<Character, Character> Space             = Satisfy(Character::isSpaceChar);
-        Parsec2<Character, Character> Whitespace        = Satisfy(Character::isWhitespace);
+        // Pat 的 mapper, 结果是匹配到的文本, Passes.FuseRegex 认这个对象
+        Function<Matcher, String> Group = Matcher::group;
+        // PatSpan 的 mapper, 结果是原输入上的 Span, 不复制字符
+        Function<Matcher, Span> Spans = m -> new Span(m.group());
+        // SkipPat 的 mapper, 只消耗输入, 结果 null, 什么都不分配
+        Function<Matcher, Object> Ignore = m -> null;
+
+
+        // 字符集合建的时候算成位图, 见 CharClass
+        static Parsec2<Character, Character> Ch(char value)     { return ChSatisfy(CharClass.is(value)); }
+        static Parsec2<Character, Character> NotCh(char value)  { return ChSatisfy(CharClass.not(value)); }
+        static Parsec2<Character, Character> ChIn(String str)   { return ChSatisfy(CharClass.of(str)); }
+        static Parsec2<Character, Character> ChNone(String str) { return ChSatisfy(CharClass.none(str)); }
+
+        Parsec2<Character, Character> Digit             = ChSatisfy(CharClass.of(Character::isDigit));
+        Parsec2<Character, Character> Alphabetic        = ChSatisfy(CharClass.of(Character::isAlphabetic));
+        Parsec2<Character, Character> Lower             = ChSatisfy(CharClass.of(Character::isLowerCase));
+        Parsec2<Character, Character> Upper             = ChSatisfy(CharClass.of(Character::isUpperCase));
+        Parsec2<Character, Character> Letter            = ChSatisfy(CharClass.of(Character::isLetter));
+        Parsec2<Character, Character> Space             = ChSatisfy(CharClass.of(Character::isSpaceChar));
+        Parsec2<Character, Character> Whitespace        = ChSatisfy(CharClass.of(Character::isWhitespace));
         Parsec2<Character, Character> SkipSpaces        = Skip(Space);
         Parsec2<Character, Character> SkipWhiteSpaces   = Skip(Whitespace);
 
@@ -575,43 +1278,157 @@ public interface Parsec2<R, E> {
         Parsec2<String, Character> CRLF     = Str("\r\n");
         Parsec2<String, Character> EOL      = Choose(CRLF, Str("\r"), Str("\n"));
 
+        // 按 char 判断, 不经过 Predicate<Character> 装箱, 只有成功返回结果时 Character.valueOf (ASCII 有缓存)
+        static Parsec2<Character, Character> ChSatisfy(IntPredicate p) {
+            return Node.raw(Node.Kind.ChSatisfy, p, null, s -> {
+                int idx = s.begin();
+                int c = s.tryNextChar();
+                if (c < 0) {
+                    return FAIL;
+                } else if (p.test(c)) {
+                    return (char) c;
+                } else {
+                    return s.failAt(idx, "Not satisfy: %s", (char) c, null);
+                }
+            });
+        }
+
         static Parsec2<String, Character> Str(String str) {
             return Pat(Pattern.quote(str));
         }
         static Parsec2<String, Character> Pat(String ptn) {
-            return Regex(ptn).map(it -> it.group());
+            return Pat(Pattern.compile(ptn));
         }
         static <R> Parsec2<R, Character> Pat(String ptn, Function<String, R> mapper) {
             return Pat(ptn).map(mapper);
         }
         static Parsec2<String, Character> Pat(Pattern ptn) {
-            return Regex(ptn).map(it -> it.group());
+            return Regex(ptn, Group);
+        }
+        static Parsec2<Span, Character> PatSpan(String ptn) {
+            return PatSpan(Pattern.compile(ptn));
+        }
+        static <R> Parsec2<R, Character> PatSpan(String ptn, Function<Span, R> mapper) {
+            return PatSpan(ptn).map(mapper);
+        }
+        static Parsec2<Span, Character> PatSpan(Pattern ptn) {
+            return Regex(ptn, Spans);
+        }
+        // 空白, 标点这类结果马上丢掉的 token
+        static Parsec2<Object, Character> SkipPat(String ptn) {
+            return Regex(Pattern.compile(ptn), Ignore);
         }
         static Parsec2<MatchResult, Character> Regex(String ptn) {
             return Regex(Pattern.compile(ptn));
         }
 
         static Parsec2<MatchResult, Character> Regex(Pattern ptn){
-            return s -> {
+            return Regex(ptn, Matcher::toMatchResult);
+        }
+
+        // R 要保持是类型参数, 具体类型的 lambda 返回 FAIL 会 checkcast 失败
+        static <R> Parsec2<R, Character> Regex(Pattern ptn, Function<Matcher, R> mapper) {
+            // 只要匹配的范围 (Pat, PatSpan, SkipPat) 时, 字面量 (Str) 逐字符比较, 支持的正则子集走查表的 DFA <br>
+            // 节点不变, 改写语法的 Passes 照样认得出来
+            boolean text = mapper == Group || mapper == Spans || mapper == Ignore;
+            String lit = text ? Fused.literal(ptn) : null;
+            if (lit != null) {
+                return new Node<>(Node.Kind.Regex, ptn, mapper, s -> {
+                    assert s.chars != null;
+                    int t = s.begin();
+                    int n = lit.length();
+                    int k = CharClass.prefix(s.chars, t, s.end, lit);
+                    // 和 DFA 一样: 看过的最远位置, 读到结尾算 hitEnd
+                    s.reach(k == n ? t + n : t + k < s.end ? t + k + 1 : s.end + 1);
+                    if (k == n) {
+                        s.commit(t);
+                        s.current = t + n;
+                        return mapper == Group ? token_(mapper, lit, 0, n) : token_(mapper, s.chars, t, t + n);
+                    } else {
+                        s.rollback(t);
+                        return s.fail("Expect %s", ptn);
+                    }
+                });
+            }
+            DFA dfa = text ? DFA.compile(ptn) : null;
+            if (dfa != null) {
+                return new Node<>(Node.Kind.Regex, ptn, mapper, s -> {
+                    assert s.chars != null;
+                    int t = s.begin();
+                    long r = dfa.scan(s.chars, t, s.end);
+                    int end = (int) r;
+                    // 看过的最远位置, 同 reach(Matcher, ..) 的 hitEnd
+                    s.reach((int) (r >>> 32) + 1);
+                    if (end >= 0) {
+                        s.commit(t);
+                        s.current = end;
+                        return token_(mapper, s.chars, t, end);
+                    } else {
+                        s.rollback(t);
+                        return s.fail("Expect %s", ptn);
+                    }
+                });
+            }
+            // 每个线程每个 Pattern 复用一个 Matcher, 在原输入上用 region 原地匹配, 不再 substring 剩余输入 <br>
+            // 用完 reset(""), 线程池里的线程不会一直拿着上一次的输入 (可能是几 MB 的文档)
+            ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() ->
+                    ptn.matcher("").useTransparentBounds(true).useAnchoringBounds(true));
+            return new Node<>(Node.Kind.Regex, ptn, mapper, s -> {
+                assert s.chars != null;
                 int t = s.begin();
-                try{
-                    // String left = s.buf.subList(t, s.buf.size()).stream().map(String::valueOf).collect(joining());
-                    assert s.ori instanceof String;
-                    String left = ((String) s.ori).substring(t);
-                    Matcher matcher = ptn.matcher(left);
+                Matcher matcher = matchers.get().reset(s.chars).region(t, s.end);
+                try {
                     if (matcher.lookingAt()) {
                         s.commit(t);
-                        s.current += matcher.end();
-                        // left.substring(0, matcher.end())
-                        return matcher.toMatchResult();
+                        s.current = matcher.end();
+                        R r = mapper == Spans ? token_(mapper, s.chars, t, s.current) : mapper.apply(matcher);
+                        s.reach(matcher, t, s.current);
+                        return r;
                     } else {
-                        throw s.trap("Expect %s but %s", ptn.toString(), left);
+                        s.rollback(t);
+                        s.reach(matcher, t, t);
+                        return s.fail("Expect %s", ptn);
                     }
-                } catch (ParsecException e) {
+                } finally {
+                    matcher.reset("");
+                }
+            });
+        }
+
+        // private, 匹配到 [t, end) 的结果: Group 文本, Spans 不复制的 Span, Ignore null
+        @SuppressWarnings("unchecked")
+        static <R> R token_(Function<Matcher, R> mapper, CharSequence src, int t, int end) {
+            if (mapper == Ignore) {
+                return null;
+            } else if (mapper == Spans) {
+                return (R) new Span(src, t, end);
+            } else {
+                return (R) src.subSequence(t, end).toString();
+            }
+        }
+
+        // private, Passes.FuseRegex 合并出来的正则; 失败时交给原来的 parsec, 报错和 reach 都和合并之前一样
+        static Parsec2<Object, Character> fused_(Fused fused, Parsec2<?, Character> origin) {
+            Pattern ptn = fused.pattern;
+            ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() ->
+                    ptn.matcher("").useTransparentBounds(true).useAnchoringBounds(true));
+            return new Node<>(Node.Kind.Regex, ptn, fused, s -> {
+                assert s.chars != null;
+                int t = s.begin();
+                Matcher matcher = matchers.get().reset(s.chars).region(t, s.end);
+                if (matcher.lookingAt()) {
+                    s.commit(t);
+                    s.current = matcher.end();
+                    Object r = fused.apply(matcher);
+                    s.reach(matcher, t, s.current);
+                    matcher.reset("");
+                    return r;
+                } else {
+                    matcher.reset("");
                     s.rollback(t);
-                    throw e;
+                    return origin.tryParse(s);
                 }
-            };
+            });
         }
 //        static Parsec2<String, Character> Str(String str) {
 //            return s -> { // hack 处理
@@ -689,40 +1506,161 @@ public interface Parsec2<R, E> {
     }
 
     /**
-     * State
+     * State <br>
+     * 两种底层: 字符输入直接用 CharSequence (chars), 不再装箱成 List<Character>; token 流用 List<E> (buf) <br>
+     * 字符输入时 E 只能是 Character, next/tryNext 返回 Character.valueOf, CharParsers 走 tryNextChar 不装箱
      * @param <E>
      */
     @SuppressWarnings("unchecked")
     class Sequence<E> {
-        public final Object ori; // hack for performance
+        final CharSequence chars;
         final List<E> buf;
+        final int end;
         int current = 0;
         int tran = -1;
+        // packrat 表, null 表示不开启, Memo 原样执行
+        MemoTable memo;
+        // 插桩运行, 不为 null 时 Memo 只统计不记忆
+        MemoProfile profile;
+        // 增量重解析的记忆, 不为 null 时 Memo 用它, 不用 packrat 表
+        IncrementalMemo incremental;
+        // 看过的最远位置 (不含), 看过 EOF 记为 end + 1, 增量重解析靠它判断哪些记忆被编辑波及
+        int reach;
 
         static List<Character> chars(String s) {
             return range(0, s.length()).mapToObj(s::charAt).collect(toList());
         }
 
-        public Sequence(String s) {
-            ori = s;
-            buf = (List<E>) chars(s);
+        public Sequence(CharSequence s) {
+            chars = s;
+            buf = null;
+            end = s.length();
+        }
+        public Sequence(char[] s) {
+            this(java.nio.CharBuffer.wrap(s));
         }
         public Sequence(List<E> items) {
             assert items instanceof RandomAccess;
+            chars = null;
             buf = items;
-            this.ori = null;
+            end = items.size();
+        }
+        // 开启 packrat, 最多 maxEntries 条记忆
+        public Sequence<E> packrat(int maxEntries) {
+            memo = new MemoTable(maxEntries);
+            return this;
+        }
+        // 只记忆 rules 里的 Memo (id), 一般来自 MemoProfile.select()
+        public Sequence<E> packrat(int maxEntries, BitSet rules) {
+            // 一个都没选就不用建表了
+            memo = rules.isEmpty() ? null : new MemoTable(maxEntries, rules);
+            return this;
+        }
+        // 开启增量重解析: 所有 Memo 都记忆 (不限条数), 并且精确记录正则看过的范围, 之后可以 edit
+        public Sequence<E> incremental() {
+            incremental = new IncrementalMemo(end);
+            return this;
+        }
+        public IncrementalMemo incrementalMemo() {
+            return incremental;
+        }
+        /**
+         * 把 [offset, offset + deleted) 换成 inserted, 返回新的输入, 增量记忆转给新输入 (旧输入不再带), 见 IncrementalMemo <br>
+         * 复用的结果和旧的解析结果是同一个对象, 不要修改; packrat 表不会带过去
+         */
+        public Sequence<E> edit(int offset, int deleted, CharSequence inserted) {
+            assert chars != null;
+            if (offset < 0 || deleted < 0 || offset + deleted > end) {
+                throw new IndexOutOfBoundsException("edit " + offset + "+" + deleted + " of " + end);
+            }
+            String text = new StringBuilder(end - deleted + inserted.length())
+                    .append(chars, 0, offset)
+                    .append(inserted)
+                    .append(chars, offset + deleted, end)
+                    .toString();
+            Sequence<E> s = new Sequence<>(text);
+            if (incremental != null) {
+                incremental.edit(offset, deleted, inserted.length());
+                s.incremental = incremental;
+                incremental = null;
+            }
+            return s;
+        }
+        // 插桩运行, 统计结果累加到 profile
+        public Sequence<E> profile(MemoProfile profile) {
+            profile.next();
+            this.profile = profile;
+            return this;
+        }
+        public MemoTable memo() {
+            return memo;
+        }
+        @SuppressWarnings("unchecked")
+        private E get(int i) {
+            return chars == null ? buf.get(i) : (E) (Character) chars.charAt(i);
+        }
+        void reach(int i) {
+            if (i > reach) {
+                reach = i;
+            }
+        }
+        /**
+         * 正则看过的范围: hitEnd 说明读到了输入结尾; 否则至少没碰到 end <br>
+         * incremental 时在 [t, lim) 上用不透明边界重跑, 没有 hitEnd 就说明只看了 lim 之前, lim 从 from + 1 起按 4 倍放大 <br>
+         * 不支持后顾 (lookbehind), 它会看 t 之前的字符
+         */
+        void reach(Matcher m, int t, int from) {
+            if (m.hitEnd()) {
+                reach(end + 1);
+                return;
+            }
+            int lim = end;
+            if (incremental != null) {
+                m.useTransparentBounds(false);
+                for (int l = from + 1; l < end; l = from + (l - from) * 4) {
+                    m.region(t, l).lookingAt();
+                    if (!m.hitEnd()) {
+                        lim = l;
+                        break;
+                    }
+                }
+                m.useTransparentBounds(true);
+            }
+            reach(lim);
         }
         public E next() throws EOFException {
-            if (current >= buf.size()) {
+            reach(current + 1);
+            if (current >= end) {
                 throw EOFException.EOF;
             }
-            return buf.get(current++);
+            return get(current++);
+        }
+        // 到结尾返回 FAIL
+        public E tryNext() {
+            reach(current + 1);
+            if (current >= end) {
+                return fail(EOFException.EOF);
+            }
+            return get(current++);
+        }
+        // 只用于 E = Character, 到结尾返回 -1
+        public int tryNextChar() {
+            reach(current + 1);
+            if (current >= end) {
+                fail(EOFException.EOF);
+                return -1;
+            }
+            return chars == null ? (Character) buf.get(current++) : chars.charAt(current++);
+        }
+        public boolean isEOF() {
+            reach(current + 1);
+            return current >= end;
         }
         public int index() {
             return current;
         }
         public void index(int idx) {
-            if (current > buf.size()) {
+            if (current > end) {
                 throw EOFException.EOF;
             }
             current = idx;
@@ -745,10 +1683,477 @@ public interface Parsec2<R, E> {
             }
         }
         public ParsecException trap(String fmt, Object ...args) {
-            return new ParsecException(current, "at " + index() + " " + String.format(fmt, args));
+            return new ParsecException(current, fmt, args);
+        }
+
+        // 失败槽, 只记录最远的失败 (同一位置保留先到的), 需要抛出的时候才格式化
+        int failAt = -1;
+        String failFmt;
+        Object failArg1;
+        Object failArg2;
+        ParsecException failCause;
+
+        public <R> R fail(String fmt) {
+            return failAt(current, fmt, null, null);
+        }
+        public <R> R fail(String fmt, Object arg) {
+            return failAt(current, fmt, arg, null);
+        }
+        public <R> R fail(String fmt, Object arg1, Object arg2) {
+            return failAt(current, fmt, arg1, arg2);
+        }
+        public <R> R failAt(int at, String fmt, Object arg1, Object arg2) {
+            if (at > failAt) {
+                failAt = at;
+                failFmt = fmt;
+                failArg1 = arg1;
+                failArg2 = arg2;
+                failCause = null;
+            }
+            return Parsec2.fail();
+        }
+        public <R> R fail(ParsecException cause) {
+            int at = cause.current < 0 ? current : cause.current;
+            if (at > failAt) {
+                failAt = at;
+                failCause = cause;
+            }
+            return Parsec2.fail();
+        }
+        public ParsecException failure() {
+            if (failCause != null) {
+                return failCause;
+            }
+            return new ParsecException(failAt, failFmt, failArg1, failArg2);
+        }
+    }
+
+
+    /**
+     * packrat 表, key 是 (rule id << 32 | 位置) 的 long, 开放寻址, 容量固定 (2 的幂, 不扩容) <br>
+     * 每个 key 最多探测 PROBE 个槽, 都被占了就按位置轮换覆盖其中一个 (淘汰), 所以内存上限就是构造时给的容量 <br>
+     * 每个槽 long + int + 引用, 大约 16 字节, 不含结果本身
+     */
+    final class MemoTable {
+        static final int PROBE = 4;
+        static final long EMPTY = -1L;
+        static final AtomicInteger ids = new AtomicInteger();
+
+        static int nextId() {
+            return ids.getAndIncrement();
+        }
+
+        final long[] keys;
+        final Object[] vals;
+        final int[] ends;
+        final int mask;
+        final BitSet rules; // null 表示所有 Memo 都记忆
+        public long hits;
+        public long misses;
+        public long evictions;
+
+        public MemoTable(int maxEntries) {
+            this(maxEntries, null);
+        }
+
+        // maxEntries 向下取 2 的幂
+        public MemoTable(int maxEntries, BitSet rules) {
+            this.rules = rules;
+            int cap = Integer.highestOneBit(max(PROBE, maxEntries));
+            keys = new long[cap];
+            vals = new Object[cap];
+            ends = new int[cap];
+            mask = cap - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        boolean enabled(int id) {
+            return rules == null || rules.get(id);
+        }
+
+        static long key(int id, int pos) {
+            return ((long) id << 32) | (pos & 0xFFFFFFFFL);
+        }
+
+        static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        int lookup(int id, int pos) {
+            long k = key(id, pos);
+            int h = hash(k);
+            for (int i = 0; i < PROBE; i++) {
+                int slot = (h + i) & mask;
+                long sk = keys[slot];
+                if (sk == k) {
+                    hits++;
+                    return slot;
+                } else if (sk == EMPTY) {
+                    break;
+                }
+            }
+            misses++;
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        <R> R get(int slot) {
+            return (R) vals[slot];
+        }
+
+        void put(int id, int pos, Object val, int end) {
+            long k = key(id, pos);
+            int h = hash(k);
+            int slot = -1;
+            for (int i = 0; i < PROBE; i++) {
+                int sl = (h + i) & mask;
+                if (keys[sl] == EMPTY || keys[sl] == k) {
+                    slot = sl;
+                    break;
+                }
+            }
+            if (slot < 0) {
+                // 探测链满了, 按位置选一个淘汰 (只覆盖不删除, 不会在链上留空)
+                slot = (h + (pos & (PROBE - 1))) & mask;
+                evictions++;
+            }
+            keys[slot] = k;
+            vals[slot] = val;
+            ends[slot] = end;
+        }
+
+        public int capacity() {
+            return keys.length;
+        }
+
+        @Override
+        public String toString() {
+            return "MemoTable(capacity=" + capacity() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
         }
     }
 
+    /**
+     * 增量重解析的记忆: 每个位置一列, 列里是各个 Memo 在这个位置的结果, 长度和看过的范围都相对本列起点, 所以编辑之后不用平移 <br>
+     * 列放在间隙缓冲 (gap buffer) 里, 编辑在间隙处插删列, 连续在附近编辑只挪很少的列 <br>
+     * 编辑区先记到日志里, 查到的记忆要是早于某次编辑并且看过的范围跨过了那次的编辑区, 就当作没有 (惰性失效); 日志满了整体清理一次
+     */
+    final class IncrementalMemo {
+        static final int GAP = 1024;
+        static final int MAX_DAMAGES = 16;
+
+        static final class Entry {
+            final int id;
+            final Object val;
+            final int len;      // 结束位置 - 起点
+            final int examined; // 看过的范围 - 起点
+            final int version;
+            final Failure failure; // 这次解析里最远的失败, 没有就是 null
+            Entry next;
+
+            Entry(int id, Object val, int len, int examined, int version, Failure failure, Entry next) {
+                this.id = id;
+                this.val = val;
+                this.len = len;
+                this.examined = examined;
+                this.version = version;
+                this.failure = failure;
+                this.next = next;
+            }
+        }
+
+        // 失败槽的快照, 位置相对起点
+        static final class Failure {
+            final int at;
+            final String fmt;
+            final Object arg1;
+            final Object arg2;
+
+            Failure(int at, String fmt, Object arg1, Object arg2) {
+                this.at = at;
+                this.fmt = fmt;
+                this.arg1 = arg1;
+                this.arg2 = arg2;
+            }
+        }
+
+        // 位置 0..end (含 end, EOF 处也可能有记忆), 间隙 [gapStart, gapEnd) 里都是 null
+        Entry[] cols;
+        int gapStart;
+        int gapEnd;
+        int version;
+        // 编辑区 [from, to) (当前坐标), version 之前建的记忆要检查
+        int[] damageFrom = new int[MAX_DAMAGES];
+        int[] damageTo = new int[MAX_DAMAGES];
+        int[] damageVersion = new int[MAX_DAMAGES];
+        int damages;
+        public long hits;
+        public long misses;
+        public long invalidated;
+
+        IncrementalMemo(int end) {
+            cols = new Entry[end + 1 + GAP];
+            gapStart = end + 1;
+            gapEnd = cols.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        <R, E> R run(int id, Parsec2<R, E> p, Sequence<E> s) {
+            int pos = s.current;
+            Entry e = lookup(id, pos);
+            if (e != null) {
+                s.current = pos + e.len;
+                s.reach(pos + e.examined);
+                // 编辑之后是新的 Sequence, 失败槽是空的, 把里面的失败重放回去, 报错才和全量重解析一样
+                Failure f = e.failure;
+                if (f != null) {
+                    s.failAt(pos + f.at, f.fmt, f.arg1, f.arg2);
+                }
+                return (R) e.val;
+            }
+            // 单独记下这次解析看过的范围和失败槽, 再并回外层 (同一位置外层的先到)
+            int outer = s.reach;
+            int outerAt = s.failAt;
+            String outerFmt = s.failFmt;
+            Object outerArg1 = s.failArg1, outerArg2 = s.failArg2;
+            ParsecException outerCause = s.failCause;
+            s.reach = pos;
+            s.failAt = -1;
+            s.failCause = null;
+            R r = p.tryParse(s);
+            // 手写 parser 抛的异常带着绝对位置, 编辑后对不上, 不记
+            if (s.failCause == null) {
+                Failure f = s.failAt < 0 ? null : new Failure(s.failAt - pos, s.failFmt, s.failArg1, s.failArg2);
+                put(id, pos, r, s.current - pos, s.reach - pos, f);
+            }
+            s.reach(outer);
+            if (outerAt >= s.failAt) {
+                s.failAt = outerAt;
+                s.failFmt = outerFmt;
+                s.failArg1 = outerArg1;
+                s.failArg2 = outerArg2;
+                s.failCause = outerCause;
+            }
+            return r;
+        }
+
+        int col(int pos) {
+            return pos < gapStart ? pos : pos + (gapEnd - gapStart);
+        }
+
+        Entry lookup(int id, int pos) {
+            for (Entry e = cols[col(pos)]; e != null; e = e.next) {
+                if (e.id == id) {
+                    if (valid(e, pos)) {
+                        hits++;
+                        return e;
+                    }
+                    invalidated++;
+                    break;
+                }
+            }
+            misses++;
+            return null;
+        }
+
+        boolean valid(Entry e, int pos) {
+            for (int i = damages - 1; i >= 0 && damageVersion[i] > e.version; i--) {
+                if (pos < damageTo[i] && pos + e.examined > damageFrom[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(int id, int pos, Object val, int len, int examined, Failure failure) {
+            int c = col(pos);
+            Entry head = remove(cols[c], id);
+            cols[c] = new Entry(id, val, len, examined, version, failure, head);
+        }
+
+        static Entry remove(Entry head, int id) {
+            if (head == null) {
+                return null;
+            }
+            if (head.id == id) {
+                return head.next;
+            }
+            for (Entry e = head; e.next != null; e = e.next) {
+                if (e.next.id == id) {
+                    e.next = e.next.next;
+                    break;
+                }
+            }
+            return head;
+        }
+
+        void edit(int offset, int deleted, int inserted) {
+            moveGap(offset);
+            // 删掉的列并进间隙, 再从间隙里分出插入的空列
+            Arrays.fill(cols, gapEnd, gapEnd + deleted, null);
+            gapEnd += deleted;
+            if (gapEnd - gapStart < inserted) {
+                grow(inserted);
+            }
+            gapStart += inserted;
+
+            // 之前的编辑区换成当前坐标, 和这次重叠的合并进来 (往大了算, 只会多失效)
+            int delta = inserted - deleted;
+            int from = offset, to = offset + inserted, n = 0;
+            for (int i = 0; i < damages; i++) {
+                int f = damageFrom[i], t = damageTo[i];
+                if (t < offset) {
+                    damageFrom[n] = f;
+                    damageTo[n] = t;
+                } else if (f > offset + deleted) {
+                    damageFrom[n] = f + delta;
+                    damageTo[n] = t + delta;
+                } else {
+                    // 合并进来的要按最早的版本检查, 放到这次的编辑区里一起处理
+                    from = min(from, f);
+                    to = max(to, t >= offset + deleted ? t + delta : offset + inserted);
+                    continue;
+                }
+                damageVersion[n++] = damageVersion[i];
+            }
+            damages = n;
+            version++;
+            if (damages == MAX_DAMAGES) {
+                sweep();
+            }
+            damageFrom[damages] = from;
+            damageTo[damages] = to;
+            damageVersion[damages++] = version;
+        }
+
+        // 把间隙挪到 pos
+        void moveGap(int pos) {
+            int gap = gapEnd - gapStart;
+            if (pos < gapStart) {
+                System.arraycopy(cols, pos, cols, pos + gap, gapStart - pos);
+                Arrays.fill(cols, pos, min(gapStart, pos + gap), null);
+            } else if (pos > gapStart) {
+                System.arraycopy(cols, gapEnd, cols, gapStart, pos - gapStart);
+                Arrays.fill(cols, max(gapEnd, pos), pos + gap, null);
+            }
+            gapEnd = pos + gap;
+            gapStart = pos;
+        }
+
+        void grow(int need) {
+            int gap = gapEnd - gapStart;
+            int more = max(need - gap + GAP, cols.length / 2);
+            Entry[] a = new Entry[cols.length + more];
+            System.arraycopy(cols, 0, a, 0, gapStart);
+            System.arraycopy(cols, gapEnd, a, gapEnd + more, cols.length - gapEnd);
+            cols = a;
+            gapEnd += more;
+        }
+
+        // 日志满了: 把所有失效的记忆删掉, 清空日志
+        void sweep() {
+            int size = cols.length - (gapEnd - gapStart);
+            for (int pos = 0; pos < size; pos++) {
+                int c = col(pos);
+                Entry head = cols[c];
+                while (head != null && !valid(head, pos)) {
+                    head = head.next;
+                }
+                for (Entry e = head; e != null; e = e.next) {
+                    while (e.next != null && !valid(e.next, pos)) {
+                        e.next = e.next.next;
+                    }
+                }
+                cols[c] = head;
+            }
+            damages = 0;
+        }
+
+        @Override
+        public String toString() {
+            return "IncrementalMemo(hits=" + hits + ", misses=" + misses + ", invalidated=" + invalidated + ")";
+        }
+    }
+
+    /**
+     * 插桩运行的统计: 每个 Memo 被调用多少次, 其中多少次是在已经解析过的位置重入, 每次调用的耗时 (含子 rule) <br>
+     * select 按 "重入次数 * 平均耗时 > 调用次数 * 查表开销" 挑出值得记忆的 Memo,
+     * 便宜的终结符 (e.g. Pat(",")) 重入省下的比每次查表付出的少, 不会被选中
+     */
+    final class MemoProfile {
+        // 一次查表 + 未命中时写表的大致开销
+        public static final long DEFAULT_LOOKUP_NANOS = 40;
+
+        public static final class Stats {
+            public final int id;
+            public final String name;
+            public long calls;
+            public long repeats;
+            public long nanos;
+            final Set<Integer> seen = new HashSet<>();
+
+            Stats(int id, String name) {
+                this.id = id;
+                this.name = name == null ? "memo#" + id : name;
+            }
+            public long avgNanos() {
+                return calls == 0 ? 0 : nanos / calls;
+            }
+            // 全部记忆预计省下的时间, 减去查表开销
+            public long gain(long lookupNanos) {
+                return repeats * avgNanos() - calls * lookupNanos;
+            }
+            @Override public String toString() {
+                return name + "(calls=" + calls + ", repeats=" + repeats + ", avg=" + avgNanos() + "ns)";
+            }
+        }
+
+        final Map<Integer, Stats> stats = new HashMap<>();
+
+        <R, E> R run(int id, String name, Parsec2<R, E> p, Sequence<E> s) {
+            Stats st = stats.computeIfAbsent(id, k -> new Stats(id, name));
+            st.calls++;
+            if (!st.seen.add(s.current)) {
+                st.repeats++;
+            }
+            long start = System.nanoTime();
+            R r = p.tryParse(s);
+            st.nanos += System.nanoTime() - start;
+            return r;
+        }
+
+        // 新的输入从头统计是否重入, 调用次数和耗时继续累加
+        void next() {
+            for (Stats st : stats.values()) {
+                st.seen.clear();
+            }
+        }
+
+        public Collection<Stats> stats() {
+            return unmodifiableCollection(stats.values());
+        }
+
+        public BitSet select() {
+            return select(DEFAULT_LOOKUP_NANOS);
+        }
+
+        public BitSet select(long lookupNanos) {
+            BitSet rules = new BitSet();
+            for (Stats st : stats.values()) {
+                if (st.repeats > 0 && st.gain(lookupNanos) > 0) {
+                    rules.set(st.id);
+                }
+            }
+            return rules;
+        }
+
+        public String report(BitSet selected) {
+            return stats.values().stream()
+                    .sorted(Comparator.comparingLong((Stats st) -> st.gain(DEFAULT_LOOKUP_NANOS)).reversed())
+                    .map(st -> (selected.get(st.id) ? "+ " : "- ") + st)
+                    .collect(joining("\n"));
+        }
+    }
 
     class EOFException extends ParsecException {
         static EOFException EOF = new EOFException();
@@ -757,13 +2162,29 @@ public interface Parsec2<R, E> {
 
     class ParsecException extends RuntimeException {
         public final int current;
+        // 消息在 getMessage 时才格式化, 回溯中被丢弃的失败不用付这个开销
+        private final String fmt;
+        private final Object[] args;
+        private String msg;
+
         ParsecException() {
             super(null, null, false, false);
             current = -1;
+            fmt = null;
+            args = null;
         }
-        ParsecException(int current, String msg) {
-            super(msg, null, DBG, DBG);
+        ParsecException(int current, String fmt, Object... args) {
+            super(null, null, DBG, DBG);
             this.current = current;
+            this.fmt = fmt;
+            this.args = args;
+        }
+        @Override
+        public String getMessage() {
+            if (msg == null && fmt != null) {
+                msg = "at " + current + " " + String.format(fmt, args);
+            }
+            return msg;
         }
     }
 
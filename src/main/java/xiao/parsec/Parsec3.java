@@ -4,7 +4,9 @@ import java.util.Optional;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,22 +24,49 @@ import static xiao.parsec.Parsec3.Combinators.*;
  *
  * Parsec Demo <br>
  *
- * Parsec2 基础上从 Seq<E> 特化成处理 String 的版本, 用来验证性能变化, 结果没啥变化
+ * Parsec2 基础上从 Seq<E> 特化成处理 String 的版本, 用来验证性能变化, 结果没啥变化 (装箱还在)
+ * - 按 char 的原语: Sequence.tryNextChar, ChSatisfy, SkipWhile, TakeWhile, 只有返回 Character 结果时才装箱
+ * - 与 Parsec2 一样用失败哨兵回溯, tryParse 失败返回 FAIL, 只有最外层 parse 失败才构造异常
  */
 public interface Parsec3<R> {
 
+    // 失败哨兵
+    Object FAIL = new Object() {
+        @Override public String toString() { return "FAIL"; }
+    };
+
+    @SuppressWarnings("unchecked")
+    static <T> T fail() {
+        return (T) FAIL;
+    }
+
     R parse(Sequence s) throws ParsecException;
 
+    // 失败返回 FAIL, 不抛异常
+    default R tryParse(Sequence s) {
+        try {
+            return parse(s);
+        } catch (ParsecException e) {
+            return s.fail(e);
+        }
+    }
+
     default R parse(String s) {
         return parse(new Sequence(s));
     }
 
     default <C> Parsec3<C> map(Function<R, C> mapper) {
-        return s -> mapper.apply(parse(s));
+        return Sentinel.of(s -> {
+            R r = tryParse(s);
+            return r == FAIL ? fail() : mapper.apply(r);
+        });
     }
 
     default <C> Parsec3<C> flatMap(Function<R, Parsec3<C>> binder) {
-        return s -> binder.apply(parse(s)).parse(s);
+        return Sentinel.of(s -> {
+            R r = tryParse(s);
+            return r == FAIL ? fail() : binder.apply(r).tryParse(s);
+        });
     }
 
 
@@ -79,6 +108,34 @@ public interface Parsec3<R> {
                                             BiOperator<Expr, O, R> alg) { return Chainr1(this, op, alg); }
 
 
+    /**
+     * 以 tryParse 为抽象方法的 Parsec3, 内置组合子都返回这个 <br>
+     * FAIL 是 Object, 结果类型是具体类型 (e.g. Character) 的 lambda 要用 raw 构造, 否则返回 FAIL 时 checkcast 失败
+     */
+    @FunctionalInterface
+    interface Sentinel<R> extends Parsec3<R> {
+        static <R> Sentinel<R> of(Sentinel<R> p) {
+            return p;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <R> Parsec3<R> raw(Sentinel<Object> p) {
+            return (Parsec3<R>) p;
+        }
+
+        @Override
+        R tryParse(Sequence s);
+
+        @Override
+        default R parse(Sequence s) throws ParsecException {
+            R r = tryParse(s);
+            if (r == FAIL) {
+                throw s.failure();
+            }
+            return r;
+        }
+    }
+
     @SuppressWarnings("InfiniteLoopStatement")
     interface Combinators {
 
@@ -86,7 +143,13 @@ public interface Parsec3<R> {
                 Parsec3<R1> front,
                 Parsec3<R2> rear,
                 BiFunction<R1, R2, R> mapper) {
-            return s -> mapper.apply(front.parse(s), rear.parse(s));
+            return Sentinel.of(s -> {
+                R1 r1 = front.tryParse(s);
+                if (r1 == FAIL) return fail();
+                R2 r2 = rear.tryParse(s);
+                if (r2 == FAIL) return fail();
+                return mapper.apply(r1, r2);
+            });
         }
 
         static <R1, R2, R3, R> Parsec3<R> Seq(
@@ -94,7 +157,15 @@ public interface Parsec3<R> {
                 Parsec3<R2> sec,
                 Parsec3<R3> trd,
                 TriFunction<R1, R2, R3, R> mapper) {
-            return s -> mapper.apply(fst.parse(s), sec.parse(s), trd.parse(s));
+            return Sentinel.of(s -> {
+                R1 r1 = fst.tryParse(s);
+                if (r1 == FAIL) return fail();
+                R2 r2 = sec.tryParse(s);
+                if (r2 == FAIL) return fail();
+                R3 r3 = trd.tryParse(s);
+                if (r3 == FAIL) return fail();
+                return mapper.apply(r1, r2, r3);
+            });
         }
 
         // Choice
@@ -103,14 +174,18 @@ public interface Parsec3<R> {
             if (ps.length == 0) {
                 throw new IllegalArgumentException("No Choices");
             }
-            return s -> {
+            return Sentinel.of(s -> {
                 for (Parsec3<? extends R> parsec : ps) {
-                    try {
-                        return Try(parsec).parse(s);
-                    } catch (ParsecException ignored) { }
+                    int t = s.begin();
+                    R r = parsec.tryParse(s);
+                    if (r != FAIL) {
+                        s.commit(t);
+                        return r;
+                    }
+                    s.rollback(t);
                 }
-                throw s.trap("No Choice, stop at %d", s.index());
-            };
+                return s.fail("No Choice");
+            });
         }
 
 //        static <R, E> Parsec3<R> Choose(Parsec3<? extends R>... ps) {
@@ -130,60 +205,102 @@ public interface Parsec3<R> {
 
         // 配合 Choice 使用的
         static <R, E> Parsec3<R> Try(Parsec3<R> parsec) {
-            return s -> {
+            return Sentinel.of(s -> {
                 int t = s.begin();
-                try{
-                    R e = parsec.parse(s);
-                    s.commit(t);
-                    return e;
-                } catch (ParsecException e) {
+                R r = parsec.tryParse(s);
+                if (r == FAIL) {
                     s.rollback(t);
-                    throw e;
+                } else {
+                    s.commit(t);
                 }
-            };
+                return r;
+            });
         }
 
         // ============================================================================
 
 
-        static Parsec3<Character> Any()            { return Sequence::next; }
-        static Parsec3<Character> EQ(Character item)           { return Satisfy(e -> Objects.equals(e, item)); }
-        static Parsec3<Character> NE(Character item)           { return Satisfy(e -> !Objects.equals(e, item)); }
+        static Parsec3<Character> Any()            { return ChSatisfy(c -> true); }
+        static Parsec3<Character> EQ(Character item)           { return item == null ? ChSatisfy(c -> false) : ChSatisfy(CharClass.is(item)); }
+        static Parsec3<Character> NE(Character item)           { return item == null ? Any() : ChSatisfy(CharClass.not(item)); }
 
+        // 建的时候转成 CharClass 位图, 匹配时不装箱不查 HashSet
         static Parsec3<Character> OneOf(List<Character> items) {
-            HashSet<Character> es = new HashSet<>(items);
-            return Satisfy(es::contains);
+            return ChSatisfy(CharClass.of(chars(items)));
         }
 
         static Parsec3<Character> NoneOf(List<Character> items) {
-            HashSet<Character> es = new HashSet<>(items);
-            return Satisfy(e -> !es.contains(e));
+            return ChSatisfy(CharClass.none(chars(items)));
+        }
+
+        // private
+        static String chars(List<Character> items) {
+            StringBuilder sb = new StringBuilder(items.size());
+            for (Character c : items) {
+                sb.append((char) c);
+            }
+            return sb.toString();
         }
 
         static Parsec3<Character> Satisfy(Predicate<Character> p/*, String expect, Object... args*/) {
-            return s -> {
+            return Sentinel.raw(s -> {
                 int idx = s.begin();
-                Character e = s.next();
+                int c = s.tryNextChar();
+                if (c < 0) {
+                    return FAIL;
+                }
+                Character e = (char) c;
                 if (p.test(e)) {
                     return e;
                 } else {
-                    throw s.trap("Not satisfy at %d: %s", idx, Objects.toString(e));
+                    return s.failAt(idx, "Not satisfy: %s", e, null);
+                }
+            });
+        }
+
+        // 同 Satisfy, 按 char 判断不装箱, 成功时才 Character.valueOf (ASCII 有缓存)
+        static Parsec3<Character> ChSatisfy(IntPredicate p) {
+            return Sentinel.raw(s -> {
+                int idx = s.begin();
+                int c = s.tryNextChar();
+                if (c < 0) {
+                    return FAIL;
+                } else if (p.test(c)) {
+                    return (char) c;
+                } else {
+                    return s.failAt(idx, "Not satisfy: %s", (char) c, null);
                 }
-            };
+            });
+        }
+
+        // 一个循环跳过满足 p 的字符, 总是成功, 结果 null; 不像 SkipMany(ChSatisfy(p)) 每个字符都走一遍 Try 和 List
+        static <R> Parsec3<R> SkipWhile(IntPredicate p) {
+            return Sentinel.of(s -> {
+                s.current = s.skipWhile(s.current, p);
+                return null;
+            });
+        }
+
+        // 同 SkipWhile, 结果是跳过的那一段, 不复制字符
+        static Parsec3<Span> TakeWhile(IntPredicate p) {
+            return Sentinel.of(s -> {
+                int from = s.current;
+                s.current = s.skipWhile(from, p);
+                return new Span(s.s, from, s.current);
+            });
         }
 
         static <T> Parsec3<T> Return(T value) {
-            return s -> value;
+            return Sentinel.of(s -> value);
         }
 
         static <E> Parsec3<E> Fail(String fmt, Object... objects) {
-            return s -> {
-                throw s.trap(fmt, objects);
-            };
+            String msg = String.format(fmt, objects);
+            return Sentinel.of(s -> s.fail("%s", msg));
         }
 
         static <R, E> Parsec3<R> Null() {
-            return s -> null;
+            return Sentinel.of(s -> null);
         }
 
         static <R> Parsec3<Optional<R>> Optional(Parsec3<R> p) {
@@ -202,18 +319,17 @@ public interface Parsec3<R> {
 
         // p 如果不消耗 state 会 stackoverflow
         static <R> Parsec3<List<R>> Many(Parsec3<R> p) {
-            return s -> {
+            Parsec3<R> tp = Try(p);
+            return Sentinel.of(s -> {
                 List<R> lst = new ArrayList<>();
-                Parsec3<R> tp = Try(p);
-
-                try{
-                    while (true) {
-                        lst.add(tp.parse(s));
+                while (true) {
+                    R r = tp.tryParse(s);
+                    if (r == FAIL) {
+                        return unmodifiableList(lst);
                     }
-                } catch (ParsecException ignored) {
-                    return unmodifiableList(lst);
+                    lst.add(r);
                 }
-            };
+            });
         }
 
         // p 如果不消耗 state 会 stackoverflow
@@ -277,13 +393,15 @@ public interface Parsec3<R> {
             if (n <= 0) {
                 return Null();
             }
-            return s -> {
+            return Sentinel.raw(s -> {
                 List<R> lst = new ArrayList<>();
                 for (int i = 0; i < n; i++) {
-                    lst.add(p.parse(s));
+                    R r = p.tryParse(s);
+                    if (r == FAIL) return FAIL;
+                    lst.add(r);
                 }
                 return lst;
-            };
+            });
         }
 
         static <R, O, C> Parsec3<R> Between(Parsec3<O> open, Parsec3<C> close, Parsec3<R> p) {
@@ -380,9 +498,9 @@ public interface Parsec3<R> {
                 Parsec3<O> op,
                 BiOperator<Expr, O, R> alg
         ) {
-            return p.map(alg::val).flatMap(lval -> s -> {
-                return chainl1_rest(p, op, lval, alg).parse(s);
-            });
+            return p.map(alg::val).flatMap(lval -> Sentinel.of(s -> {
+                return chainl1_rest(p, op, lval, alg).tryParse(s);
+            }));
         }
 
         static <R, O, E, Expr> Parsec3<Expr> chainl1_rest(
@@ -396,10 +514,10 @@ public interface Parsec3<R> {
                             op,
                             p,
                             (a, b) -> new Pair<>(a, alg.val(b))
-                    ).flatMap(opp -> s -> {
+                    ).flatMap(opp -> Sentinel.of(s -> {
                         Expr app = alg.app(opp.car, lval, opp.cdr);
-                        return chainl1_rest(p, op, app, alg).parse(s);
-                    }),
+                        return chainl1_rest(p, op, app, alg).tryParse(s);
+                    })),
                     lval
             );
         }
@@ -419,9 +537,9 @@ public interface Parsec3<R> {
                 Parsec3<O> op,
                 BiOperator<Expr, O, R> alg
         ) {
-            return p.map(alg::val).flatMap(lval -> s -> {
-                return chainr1_rest(p, op, lval, alg).parse(s);
-            });
+            return p.map(alg::val).flatMap(lval -> Sentinel.of(s -> {
+                return chainr1_rest(p, op, lval, alg).tryParse(s);
+            }));
         }
 
         static <R, O, Expr> Parsec3<Expr> chainr1_rest(
@@ -441,41 +559,36 @@ public interface Parsec3<R> {
         }
 
         static <E> Parsec3<E> EOF() {
-            return s -> {
-                try {
-                    Character r = s.next();
-                    throw s.trap("Expect eof but %s", r);
-                } catch (EOFException e) {
+            return Sentinel.of(s -> {
+                if (s.isEOF()) {
                     return null;
                 }
-            };
+                return s.fail("Expect eof but %s", s.next());
+            });
         }
 
         static <R> Parsec3<R> LookAhead(Parsec3<R> p) {
-            return s -> {
+            return Sentinel.of(s -> {
                 int t = s.begin();
-                try {
-                    return p.parse(s);
-                } finally {
-                    s.rollback(t);
-                }
-            };
+                R r = p.tryParse(s);
+                s.rollback(t);
+                return r;
+            });
         }
 
         // 实现最长匹配规则, e.g. 识别关键词let, lets 应该识别为 id 不是 let
         // p 必须消耗 state, 否则永远失败
         static <R, E> Parsec3<R> NotFollowedBy(Parsec3<R> p) {
-            return s -> {
+            return Sentinel.of(s -> {
                 int t = s.begin();
-                try {
-                    p.parse(s);
-                    throw s.trap("Not followed, stop at %d", s.index());
-                } catch (ParsecException ignored) {
+                R r = p.tryParse(s);
+                s.rollback(t);
+                if (r == FAIL) {
                     return null;
-                } finally {
-                    s.rollback(t);
+                } else {
+                    return s.fail("Not followed");
                 }
-            };
+            });
         }
 
         static <R, L> Parsec3<List<R>> ManyTill(Parsec3<R> many, Parsec3<L> till) {
@@ -483,7 +596,7 @@ public interface Parsec3<R> {
                     till.map(it -> Lists.of()),
                     Seq(
                             many,
-                            s -> ManyTill(many, till).parse(s),
+                            Sentinel.<List<R>>raw(s -> ManyTill(many, till).tryParse(s)),
                             Lists::prepend
                     )
             );
@@ -505,24 +618,26 @@ public interface Parsec3<R> {
         }
 
         static <R> Parsec3<R> Find(Parsec3<R> parsec) {
-            return s -> {
+            return Sentinel.of(s -> {
                 int marked = s.index();
-                try {
-                    while (true) {
-                        int t = s.begin();
-                        try {
-                            R r = parsec.parse(s);
-                            s.commit(t);
-                            return r;
-                        } catch (ParsecException ignored) {
-                            s.rollback(t);
-                            s.next();
-                        }
+                while (true) {
+                    int t = s.begin();
+                    R r = parsec.tryParse(s);
+                    if (r != FAIL) {
+                        s.commit(t);
+                        return r;
+                    }
+                    s.rollback(t);
+                    if (s.tryNext() == FAIL) {
+                        return s.fail("Find from %s to end but failed", marked);
                     }
-                } catch (EOFException e) {
-                    throw s.trap("Find from %s to end but failed", marked);
                 }
-            };
+            });
+        }
+
+        // 递归引用的 thunk
+        static <R> Parsec3<R> Thunk(Supplier<Parsec3<R>> thunk) {
+            return Sentinel.of(s -> thunk.get().tryParse(s));
         }
     }
 
@@ -534,19 +649,27 @@ public interface Parsec3<R> {
         Pattern patternDecimal      = Pattern.compile("-?(0|[1-9][0-9]*)([.][0-9]+)?([eE][-+]?[0-9]+)?");
         Pattern patternUDecimal     = Pattern.compile("(0|[1-9][0-9]*)([.][0-9]+)?([eE][-+]?[0-9]+)?");
 
-
-        static Parsec3<Character> Ch(char value)     { return EQ(value); }
-        static Parsec3<Character> NotCh(char value)  { return NE(value); }
-        static Parsec3<Character> ChIn(String str)   { return s -> OneOf(Sequence.chars(str)).parse(s); }
-        static Parsec3<Character> ChNone(String str) { return s -> NoneOf(Sequence.chars(str)).parse(s); }
-
-        Parsec3<Character> Digit             = Satisfy(Character::isDigit);
-        Parsec3<Character> Alphabetic        = Satisfy(c -> isAlphabetic(c));
-        Parsec3<Character> Lower             = Satisfy(Character::isLowerCase);
-        Parsec3<Character> Upper             = Satisfy(Character::isUpperCase);
-        Parsec3<Character> Letter            = Satisfy(Character::isLetter);
-        Parsec3<Character> Space             = Satisfy(Character::isSpaceChar);
-        Parsec3<Character> Whitespace        = Satisfy(Character::isWhitespace);
+        // Pat 的 mapper, 结果是匹配到的文本
+        Function<Matcher, String> Group = Matcher::group;
+        // PatSpan 的 mapper, 结果是原输入上的 Span, 不复制字符
+        Function<Matcher, Span> Spans = m -> new Span(m.group());
+        // SkipPat 的 mapper, 只消耗输入, 结果 null, 什么都不分配
+        Function<Matcher, Object> Ignore = m -> null;
+
+
+        // 字符集合建的时候算成位图, 见 CharClass
+        static Parsec3<Character> Ch(char value)     { return ChSatisfy(CharClass.is(value)); }
+        static Parsec3<Character> NotCh(char value)  { return ChSatisfy(CharClass.not(value)); }
+        static Parsec3<Character> ChIn(String str)   { return ChSatisfy(CharClass.of(str)); }
+        static Parsec3<Character> ChNone(String str) { return ChSatisfy(CharClass.none(str)); }
+
+        Parsec3<Character> Digit             = ChSatisfy(CharClass.of(Character::isDigit));
+        Parsec3<Character> Alphabetic        = ChSatisfy(CharClass.of(c -> isAlphabetic(c)));
+        Parsec3<Character> Lower             = ChSatisfy(CharClass.of(Character::isLowerCase));
+        Parsec3<Character> Upper             = ChSatisfy(CharClass.of(Character::isUpperCase));
+        Parsec3<Character> Letter            = ChSatisfy(CharClass.of(Character::isLetter));
+        Parsec3<Character> Space             = ChSatisfy(CharClass.of(Character::isSpaceChar));
+        Parsec3<Character> Whitespace        = ChSatisfy(CharClass.of(Character::isWhitespace));
         Parsec3<Character> SkipSpaces        = Skip(Space);
         Parsec3<Character> SkipWhiteSpaces   = Skip(Whitespace);
 
@@ -565,37 +688,100 @@ public interface Parsec3<R> {
             return Pat(Pattern.quote(str));
         }
         static Parsec3<String> Pat(String ptn) {
-            return Regex(ptn).map(it -> it.group());
+            return Pat(Pattern.compile(ptn));
         }
         static <R> Parsec3<R> Pat(String ptn, Function<String, R> mapper) {
             return Pat(ptn).map(mapper);
         }
         static Parsec3<String> Pat(Pattern ptn) {
-            return Regex(ptn).map(it -> it.group());
+            return Regex(ptn, Group);
+        }
+        static Parsec3<Span> PatSpan(String ptn) {
+            return PatSpan(Pattern.compile(ptn));
+        }
+        static <R> Parsec3<R> PatSpan(String ptn, Function<Span, R> mapper) {
+            return PatSpan(ptn).map(mapper);
+        }
+        static Parsec3<Span> PatSpan(Pattern ptn) {
+            return Regex(ptn, Spans);
+        }
+        // 空白, 标点这类结果马上丢掉的 token
+        static Parsec3<Object> SkipPat(String ptn) {
+            return Regex(Pattern.compile(ptn), Ignore);
         }
         static Parsec3<MatchResult> Regex(String ptn) {
             return Regex(Pattern.compile(ptn));
         }
 
         static Parsec3<MatchResult> Regex(Pattern ptn){
-            return s -> {
+            return Regex(ptn, Matcher::toMatchResult);
+        }
+
+        // R 要保持是类型参数, 具体类型的 lambda 返回 FAIL 会 checkcast 失败
+        static <R> Parsec3<R> Regex(Pattern ptn, Function<Matcher, R> mapper) {
+            // 只要匹配的范围 (Pat, PatSpan, SkipPat) 时, 字面量 (Str) 用 startsWith, 支持的正则子集走查表的 DFA, 不用 Matcher
+            boolean text = mapper == Group || mapper == Spans || mapper == Ignore;
+            String lit = text ? Fused.literal(ptn) : null;
+            if (lit != null) {
+                return Sentinel.of(s -> {
+                    int t = s.begin();
+                    if (s.s.startsWith(lit, t)) {
+                        s.commit(t);
+                        s.current = t + lit.length();
+                        return mapper == Group ? token_(mapper, lit, 0, lit.length()) : token_(mapper, s.s, t, s.current);
+                    } else {
+                        s.rollback(t);
+                        return s.fail("Expect %s", ptn);
+                    }
+                });
+            }
+            DFA dfa = text ? DFA.compile(ptn) : null;
+            if (dfa != null) {
+                return Sentinel.of(s -> {
+                    int t = s.begin();
+                    int end = dfa.match(s.s, t, s.s.length());
+                    if (end >= 0) {
+                        s.commit(t);
+                        s.current = end;
+                        return token_(mapper, s.s, t, end);
+                    } else {
+                        s.rollback(t);
+                        return s.fail("Expect %s", ptn);
+                    }
+                });
+            }
+            // 每个线程每个 Pattern 复用一个 Matcher, 在原输入上用 region 原地匹配, 不再 substring 剩余输入 <br>
+            // 用完 reset(""), 线程池里的线程不会一直拿着上一次的输入
+            ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() ->
+                    ptn.matcher("").useTransparentBounds(true).useAnchoringBounds(true));
+            return Sentinel.of(s -> {
                 int t = s.begin();
-                try{
-                    String left = s.s.substring(t);
-                    Matcher matcher = ptn.matcher(left);
+                Matcher matcher = matchers.get().reset(s.s).region(t, s.s.length());
+                try {
                     if (matcher.lookingAt()) {
                         s.commit(t);
-                        s.current += matcher.end();
-                        // left.substring(0, matcher.end())
-                        return matcher.toMatchResult();
+                        s.current = matcher.end();
+                        return mapper == Spans ? token_(mapper, s.s, t, s.current) : mapper.apply(matcher);
                     } else {
-                        throw s.trap("Expect %s but %s", ptn.toString(), left);
+                        s.rollback(t);
+                        return s.fail("Expect %s", ptn);
                     }
-                } catch (ParsecException e) {
-                    s.rollback(t);
-                    throw e;
+                } finally {
+                    matcher.reset("");
                 }
-            };
+            });
+        }
+
+        // private, 匹配到 [t, end) 的结果: Group 文本, Spans 不复制的 Span, Ignore null
+        @SuppressWarnings("unchecked")
+        static <R> R token_(Function<Matcher, R> mapper, String src, int t, int end) {
+            if (mapper == Ignore) {
+                return null;
+            } else if (mapper == Spans) {
+                return (R) new Span(src, t, end);
+            } else {
+                return (R) src.substring(t, end);
+            }
         }
 //        static Parsec3<String> Str(String str) {
 //            return s -> { // hack 处理
@@ -692,6 +878,32 @@ public interface Parsec3<R> {
             }
             return s.charAt(current++);
         }
+        // 到结尾返回 FAIL, 所以返回类型是 Object
+        public Object tryNext() {
+            if (current >= s.length()) {
+                return fail(EOFException.EOF);
+            }
+            return s.charAt(current++);
+        }
+        // 同 tryNext 不装箱, 到结尾返回 -1
+        public int tryNextChar() {
+            if (current >= s.length()) {
+                fail(EOFException.EOF);
+                return -1;
+            }
+            return s.charAt(current++);
+        }
+        // 从 i 开始第一个不满足 p 的位置
+        int skipWhile(int i, IntPredicate p) {
+            int n = s.length();
+            while (i < n && p.test(s.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+        public boolean isEOF() {
+            return current >= s.length();
+        }
         public int index() {
             return current;
         }
@@ -719,10 +931,52 @@ public interface Parsec3<R> {
             }
         }
         public ParsecException trap(String fmt, Object ...args) {
-            return new ParsecException(current, "at " + index() + " " + String.format(fmt, args));
+            return new ParsecException(current, fmt, args);
+        }
+
+        // 失败槽, 只记录最远的失败 (同一位置保留先到的), 需要抛出的时候才格式化
+        int failAt = -1;
+        String failFmt;
+        Object failArg1;
+        Object failArg2;
+        ParsecException failCause;
+
+        public <R> R fail(String fmt) {
+            return failAt(current, fmt, null, null);
+        }
+        public <R> R fail(String fmt, Object arg) {
+            return failAt(current, fmt, arg, null);
+        }
+        public <R> R fail(String fmt, Object arg1, Object arg2) {
+            return failAt(current, fmt, arg1, arg2);
+        }
+        public <R> R failAt(int at, String fmt, Object arg1, Object arg2) {
+            if (at > failAt) {
+                failAt = at;
+                failFmt = fmt;
+                failArg1 = arg1;
+                failArg2 = arg2;
+                failCause = null;
+            }
+            return Parsec3.fail();
+        }
+        public <R> R fail(ParsecException cause) {
+            int at = cause.current < 0 ? current : cause.current;
+            if (at > failAt) {
+                failAt = at;
+                failCause = cause;
+            }
+            return Parsec3.fail();
+        }
+        public ParsecException failure() {
+            if (failCause != null) {
+                return failCause;
+            }
+            return new ParsecException(failAt, failFmt, failArg1, failArg2);
         }
     }
 
+
     class EOFException extends ParsecException {
         static EOFException EOF = new EOFException();
         EOFException() { super(); }
@@ -730,13 +984,29 @@ public interface Parsec3<R> {
 
     class ParsecException extends RuntimeException {
         public final int current;
+        // 消息在 getMessage 时才格式化, 回溯中被丢弃的失败不用付这个开销
+        private final String fmt;
+        private final Object[] args;
+        private String msg;
+
         ParsecException() {
             super(null, null, false, false);
             current = -1;
+            fmt = null;
+            args = null;
         }
-        ParsecException(int current, String msg) {
-            super(msg, null, DBG, DBG);
+        ParsecException(int current, String fmt, Object... args) {
+            super(null, null, DBG, DBG);
             this.current = current;
+            this.fmt = fmt;
+            this.args = args;
+        }
+        @Override
+        public String getMessage() {
+            if (msg == null && fmt != null) {
+                msg = "at " + current + " " + String.format(fmt, args);
+            }
+            return msg;
         }
     }
 
@@ -11,7 +11,6 @@ import java.util.regex.Pattern;
 
 import static java.lang.Character.isAlphabetic;
 import static java.util.Collections.*;
-import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.IntStream.range;
 import static xiao.parsec.Parsec4.Combinators.*;
@@ -25,13 +24,15 @@ import static xiao.parsec.Parsec4.Combinators.*;
  *
  * Parsec2 基础上从把 Seq<E> 变成不可变状态, 把 Choose 回溯的实现从异常替换成分支判断, 用来验证性能,
  * 可能结果性能严重变差，应该跟申请了大量小对象有关
+ * - 状态改成 (输入, 偏移) 的不可变值, 前进 O(1), 不再 subList / 重新拼接剩余输入, 可以共享也可以做 memo 的 key
+ * - 失败不再层层包装: 失败 Result 原样向上传, Choose 只保留走得最远的失败, 同一位置同一原因的失败共用一个 Result
  */
 public interface Parsec4<R, E> {
 
     Result<R, E> parse(Sequence<E> s);
 
     default Result<R, E> parse(String s) {
-        return parse(((Sequence<E>) new Sequence<>(chars(s))));
+        return parse((Sequence<E>) new Sequence<Character>(s));
     }
 
     default <C> Parsec4<C, E> map(Function<R, C> mapper) {
@@ -147,17 +148,19 @@ public interface Parsec4<R, E> {
                 throw new IllegalArgumentException("No Choices");
             }
             return s -> {
-                List<Result<?, E>> causes = new ArrayList<>(ps.length);
+                Result<?, E> farthest = null;
                 for (Parsec4<? extends R, E> parsec : ps) {
                     Result<? extends R, E> r = parsec.parse(s);
                     if (r.succ) {
-                        // return r;
-                        return new Result<>(r.succ, r.state, r.ret, r.causes);
-                    } else {
-                        causes.add(r);
+                        // Result 不可变, R 协变安全
+                        @SuppressWarnings("unchecked")
+                        Result<R, E> rr = (Result<R, E>) r;
+                        return rr;
+                    } else if (farthest == null || r.state.offset > farthest.state.offset) {
+                        farthest = r;
                     }
                 }
-                return Result.fail(s, causes);
+                return Result.fail(farthest);
             };
         }
 
@@ -185,11 +188,14 @@ public interface Parsec4<R, E> {
 
         static <E> Parsec4<E, E> Satisfy(Predicate<E> p/*, String expect, Object... args*/) {
             return s -> {
-                Result<E, E> r = s.next();
-                if (p.test(r.ret)) {
-                    return r;
+                if (s.isEOF()) {
+                    return s.fail(Sequence.EOF);
+                }
+                E e = s.peek();
+                if (p.test(e)) {
+                    return Result.succ(s.advance(1), e);
                 } else {
-                    return Result.fail(r);
+                    return s.fail(Sequence.UNSATISFIED);
                 }
             };
         }
@@ -203,7 +209,8 @@ public interface Parsec4<R, E> {
         }
 
         static <E> Parsec4<E, E> Fail(String fmt, Object... objects) {
-            return s -> Result.fail(s, Lists.of()); // todo
+            String msg = String.format(fmt, objects);
+            return s -> s.fail(msg);
         }
 
         static <R, E> Parsec4<R, E> Null() {
@@ -388,12 +395,10 @@ public interface Parsec4<R, E> {
 
         static <E> Parsec4<E, E> EOF() {
             return s -> {
-                Result<E, E> r = s.next();
-                if (r.succ) {
-                    return Result.fail(r.state, "EOF");
+                if (s.isEOF()) {
+                    return Result.succ(s, null);
                 } else {
-                    assert r.state.buf.isEmpty();
-                    return Result.succ(r.state, null);
+                    return s.fail(Sequence.NOT_EOF);
                 }
             };
         }
@@ -411,7 +416,7 @@ public interface Parsec4<R, E> {
             return s -> {
                 Result<R, E> r = p.parse(s);
                 if (r.succ) {
-                    return Result.fail(s, "Not followed");
+                    return s.fail(Sequence.FOLLOWED);
                 } else {
                     return Result.succ(s, null);
                 }
@@ -459,8 +464,8 @@ public interface Parsec4<R, E> {
 
         static Parsec4<Character, Character> Ch(char value)     { return EQ(value); }
         static Parsec4<Character, Character> NotCh(char value)  { return NE(value); }
-        static Parsec4<Character, Character> ChIn(String str)   { return s -> OneOf(chars(str)).parse(s); }
-        static Parsec4<Character, Character> ChNone(String str) { return s -> NoneOf(chars(str)).parse(s); }
+        static Parsec4<Character, Character> ChIn(String str)   { return OneOf(chars(str)); }
+        static Parsec4<Character, Character> ChNone(String str) { return NoneOf(chars(str)); }
 
         Parsec4<Character, Character> Digit             = Satisfy(Character::isDigit);
         Parsec4<Character, Character> Alphabetic        = Satisfy(c -> isAlphabetic(c));
@@ -487,28 +492,52 @@ public interface Parsec4<R, E> {
             return Pat(Pattern.quote(str));
         }
         static Parsec4<String, Character> Pat(String ptn) {
-            return Regex(ptn).map(it -> it.group());
+            return Pat(Pattern.compile(ptn));
         }
         static <R> Parsec4<R, Character> Pat(String ptn, Function<String, R> mapper) {
             return Pat(ptn).map(mapper);
         }
         static Parsec4<String, Character> Pat(Pattern ptn) {
-            return Regex(ptn).map(it -> it.group());
+            // 只要匹配的文本, 支持的正则子集走查表的 DFA, 不用 Matcher
+            DFA dfa = DFA.compile(ptn);
+            if (dfa == null) {
+                return Regex(ptn, Matcher::group);
+            }
+            String expected = "expected " + ptn;
+            return s -> {
+                CharSequence text = s.text();
+                int end = dfa.match(text, s.offset, s.end);
+                if (end >= 0) {
+                    return Result.succ(s.advance(end - s.offset), text.subSequence(s.offset, end).toString());
+                } else {
+                    return s.fail(expected);
+                }
+            };
         }
         static Parsec4<MatchResult, Character> Regex(String ptn) {
             return Regex(Pattern.compile(ptn));
         }
 
         static Parsec4<MatchResult, Character> Regex(Pattern ptn){
+            return Regex(ptn, Matcher::toMatchResult);
+        }
+
+        // 直接从 Matcher 取结果, 省掉 MatchResult 快照和 map 的一层 Result
+        static <R> Parsec4<R, Character> Regex(Pattern ptn, Function<Matcher, R> mapper) {
+            // 每个线程每个 Pattern 复用一个 Matcher, 在原输入上用 region 原地匹配; 用完 reset(""), 不一直拿着上一次的输入
+            ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() ->
+                    ptn.matcher("").useTransparentBounds(true).useAnchoringBounds(true));
+            String expected = "expected " + ptn;
             return s -> {
-                String left = s.buf.stream().map(String::valueOf).collect(joining());
-                Matcher matcher = ptn.matcher(left);
-                if (matcher.lookingAt()) {
-                    // left.substring(0, matcher.end())
-                    // return matcher.toMatchResult();
-                    return Result.succ(new Sequence<>(chars(left.substring(matcher.end()))), matcher.toMatchResult());
-                } else {
-                    return Result.fail(s, "expected " + ptn);
+                Matcher matcher = matchers.get().reset(s.text()).region(s.offset, s.end);
+                try {
+                    if (matcher.lookingAt()) {
+                        return Result.succ(s.advance(matcher.end() - s.offset), mapper.apply(matcher));
+                    } else {
+                        return s.fail(expected);
+                    }
+                } finally {
+                    matcher.reset("");
                 }
             };
         }
@@ -589,12 +618,16 @@ public interface Parsec4<R, E> {
         public final boolean succ;
         public final Sequence<E> state;
         public final R ret;
-        public final Object causes; // String | List<Result<?, E>>
+        public final Object causes; // String | Result<?, E>
         public static <R, E> Result<R, E> succ(Sequence<E> state, R ret) {
             return new Result<>(true, state, ret, null);
         }
-        // todo err msg
+        // 失败的 ret 总是 null, 直接复用 cause, 不再包一层
+        @SuppressWarnings("unchecked")
         public static <R, E> Result<R, E> fail(Result<?, E> cause) {
+            if (!cause.succ) {
+                return (Result<R, E>) cause;
+            }
             return new Result<>(false, cause.state, null, cause);
         }
         // todo err msg
@@ -620,21 +653,94 @@ public interface Parsec4<R, E> {
     }
 
     /**
-     * State
+     * State: 不可变的 (输入, 偏移), 字符输入用 CharSequence, token 流用 List
      * @param <E>
      */
     class Sequence<E> {
-        final List<E> buf;
+        // 失败原因, 用常量以便同一位置的失败共用 Result
+        static final String EOF = "EOF";
+        static final String NOT_EOF = "expected EOF";
+        static final String UNSATISFIED = "not satisfy";
+        static final String FOLLOWED = "not followed";
+
+        final CharSequence chars;
+        final List<E> items;
+        final int offset;
+        final int end;
+        public Sequence(CharSequence s) {
+            this(s, null, 0, s.length());
+        }
         public Sequence(List<E> items) {
-            buf = unmodifiableList(items);
+            this(null, unmodifiableList(items), 0, items.size());
+        }
+        private Sequence(CharSequence chars, List<E> items, int offset, int end) {
+            this.chars = chars;
+            this.items = items;
+            this.offset = offset;
+            this.end = end;
         }
+        // 同一位置最近一次的失败, 原因相同 (同一个对象) 时直接复用; 只是缓存, 不影响不可变语义
+        private Result<?, E> failed;
+
         public Result<E, E> next() {
-            if (buf.isEmpty()) {
-                return Result.fail(this, Lists.of()); // EOF
+            if (offset >= end) {
+                return fail(EOF);
             } else {
-                return Result.succ(new Sequence<>(buf.subList(1, buf.size())), buf.get(0));
+                return Result.succ(advance(1), peek());
             }
         }
+        // 调用方保证没到结尾
+        @SuppressWarnings("unchecked")
+        E peek() {
+            return chars == null ? items.get(offset) : (E) (Character) chars.charAt(offset);
+        }
+        @SuppressWarnings("unchecked")
+        public <R> Result<R, E> fail(Object causes) {
+            Result<?, E> f = failed;
+            if (f == null || f.causes != causes) {
+                failed = f = Result.fail(this, causes);
+            }
+            return (Result<R, E>) f;
+        }
+        public Sequence<E> advance(int n) {
+            return new Sequence<>(chars, items, offset + n, end);
+        }
+        public int offset() {
+            return offset;
+        }
+        // 剩余长度
+        public int size() {
+            return end - offset;
+        }
+        public boolean isEOF() {
+            return offset >= end;
+        }
+        // 给 Regex 用, token 流时 E 必须是 Character, 包一层视图不复制
+        CharSequence text() {
+            if (chars != null) {
+                return chars;
+            }
+            return new CharSequence() {
+                @Override public int length() { return items.size(); }
+                @Override public char charAt(int i) { return (Character) items.get(i); }
+                @Override public CharSequence subSequence(int from, int to) {
+                    StringBuilder buf = new StringBuilder(to - from);
+                    for (int i = from; i < to; i++) buf.append(charAt(i));
+                    return buf;
+                }
+                @Override public String toString() { return subSequence(0, length()).toString(); }
+            };
+        }
+        // 同一份输入的同一位置视为相等
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Sequence<?> that = (Sequence<?>) o;
+            return offset == that.offset && chars == that.chars && items == that.items;
+        }
+        @Override public int hashCode() {
+            return 31 * System.identityHashCode(chars == null ? items : chars) + offset;
+        }
     }
 
     static List<Character> chars(String s) {
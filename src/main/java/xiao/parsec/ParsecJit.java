@@ -0,0 +1,1138 @@
+package xiao.parsec;
+
+import xiao.parsec.Parsec2.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Parsec2 语法编译成 JVM 字节码 <br>
+ *  - 解释执行时每个组合子是一个 lambda, 调用都经过同一个 Node.tryParse, 调用点是 megamorphic 的, JIT 没法跨规则内联 <br>
+ *  - 编译后每个 Node 一个静态方法: Seq/Between 是直线代码, Many/Count/Chainl1 是循环, Choose 按 FIRST 集分派表 tableswitch 到各分支 <br>
+ *  - 方法之间直接 invokestatic, mapper 等放在 static final 字段里, 对 JIT 是常量, 调用可以直接内联 <br>
+ *  - 正则, Satisfy 这些叶子直接调原来 Node 的 impl; Memo, FlatMap, ManyTill 等用编译好的子 parsec 重新构造 (Node.lower) 再调它的 impl <br>
+ *  - 手写的 s -> ... 看不到结构, 原样调用 <br>
+ *  - 语义和解释执行一样: 结果, 失败信息, reach, Memo (保留 id) 都不变 <br>
+ *
+ * 手写 class 文件, 不引入依赖: 版本号用 49, 不需要 StackMapTable, 由类型推导的校验器校验 <br>
+ * 用 Lookup.defineClass 定义在本包里 (要访问 Sequence 的包内字段), 这个 api 要 java 9, 反射调用; java 8 下 compile 原样返回 <br>
+ * 生成的类和 ClassLoader 同生命周期, 不会卸载, 语法只应编译一次
+ */
+public final class ParsecJit {
+
+    static final String SEQUENCE = "xiao/parsec/Parsec2$Sequence";
+    static final String PARSEC2 = "xiao/parsec/Parsec2";
+    static final String OBJECT = "java/lang/Object";
+    static final String METHOD = "(L" + SEQUENCE + ";)Ljava/lang/Object;";
+
+    static final AtomicInteger ids = new AtomicInteger();
+    static final Method defineClass = defineClass();
+
+    // 生成类的 <clinit> 从这里取常量
+    static Object[] pending;
+
+    private ParsecJit() { }
+
+    static Method defineClass() {
+        try {
+            return MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean supported() {
+        return defineClass != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <R, E> Parsec2<R, E> compile(Parsec2<R, E> p) {
+        if (!supported()) {
+            return p;
+        }
+        return (Parsec2<R, E>) new Compiler().compile(p);
+    }
+
+    static Object[] pending() {
+        return pending;
+    }
+
+    static synchronized Class<?> define(byte[] bytes, Object[] constants) {
+        pending = constants;
+        try {
+            Class<?> c = (Class<?>) defineClass.invoke(MethodHandles.lookup(), (Object) bytes);
+            // 趁 pending 还在, 初始化
+            Class.forName(c.getName(), true, c.getClassLoader());
+            return c;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            pending = null;
+        }
+    }
+
+    static final class Compiler {
+        final String name = "xiao/parsec/ParsecJit$Grammar" + ids.incrementAndGet();
+        final ClassWriter cw = new ClassWriter();
+        final Map<Parsec2<?, ?>, Integer> methods = new IdentityHashMap<>();
+        final List<Parsec2<?, ?>> order = new ArrayList<>();
+        final List<Object> constants = new ArrayList<>();
+        final List<String> types = new ArrayList<>();
+        Class<?> grammar;
+
+        Parsec2<?, ?> compile(Parsec2<?, ?> root) {
+            int entry = method(root);
+            for (int i = 0; i < order.size(); i++) {
+                emit(i, order.get(i));
+            }
+            emitDispatch();
+            emitInit();
+            emitClinit();
+            Object[] values = new Object[constants.size()];
+            for (int i = 0; i < values.length; i++) {
+                Object c = constants.get(i);
+                values[i] = c instanceof Lower ? ((Lower) c).node : c;
+            }
+            grammar = define(cw.toBytes(name, OBJECT, "xiao/parsec/Parsec2$Sentinel"), values);
+            return instance(entry);
+        }
+
+        Parsec2<?, ?> instance(int method) {
+            try {
+                return (Parsec2<?, ?>) grammar.getDeclaredConstructor(int.class).newInstance(method);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Thunk 直接换成目标
+        @SuppressWarnings("unchecked")
+        static Parsec2<?, ?> resolve(Parsec2<?, ?> p) {
+            Set<Parsec2<?, ?>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            while (Parsec2.Passes.isKind(p, Node.Kind.Thunk) && seen.add(p)) {
+                p = ((Supplier<Parsec2<?, ?>>) ((Node<?, ?>) p).arg).get();
+            }
+            return p;
+        }
+
+        int method(Parsec2<?, ?> p) {
+            p = resolve(p);
+            Integer id = methods.get(p);
+            if (id == null) {
+                id = order.size();
+                methods.put(p, id);
+                order.add(p);
+            }
+            return id;
+        }
+
+        int constant(Object value, String type) {
+            constants.add(value);
+            types.add(type);
+            return constants.size() - 1;
+        }
+
+        void getConstant(Code c, int k) {
+            c.field(Op.GETSTATIC, name, "k" + k, types.get(k));
+        }
+
+        void getFail(Code c) {
+            c.field(Op.GETSTATIC, PARSEC2, "FAIL", "Ljava/lang/Object;");
+        }
+
+        // 调用 p 的方法, 结果留在栈顶
+        void call(Code c, Parsec2<?, ?> p) {
+            c.load(0);
+            c.invoke(Op.INVOKESTATIC, name, "m" + method(p), METHOD);
+        }
+
+        // 结果在 local, 失败直接返回 FAIL
+        void failFast(Code c, int local) {
+            Label ok = new Label();
+            c.load(local);
+            getFail(c);
+            c.jump(Op.IF_ACMPNE, ok);
+            c.load(local);
+            c.op(Op.ARETURN);
+            c.mark(ok);
+        }
+
+        void virtual(Code c, String owner, String method, String desc) {
+            c.invoke(Op.INVOKEVIRTUAL, owner, method, desc);
+        }
+
+        void emit(int id, Parsec2<?, ?> p) {
+            Code c = new Code(cw);
+            if (!(p instanceof Node)) {
+                emitCall(c, constant(p, "L" + PARSEC2 + ";"));
+            } else {
+                emitNode(c, (Node<?, ?>) p);
+            }
+            cw.method(Op.ACC_STATIC, "m" + id, METHOD, c);
+        }
+
+        // 调用常量 k (Parsec2) 的 tryParse
+        void emitCall(Code c, int k) {
+            getConstant(c, k);
+            c.load(0);
+            c.invokeInterface(PARSEC2, "tryParse", METHOD, 2);
+            c.op(Op.ARETURN);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void emitNode(Code c, Node<?, ?> node) {
+            Parsec2<?, ?>[] ps = node.parsecs;
+            switch (node.kind) {
+                case Seq:
+                    for (int i = 0; i < ps.length; i++) {
+                        call(c, ps[i]);
+                        c.store(1 + i);
+                        failFast(c, 1 + i);
+                    }
+                    if (node.mapper == Parsec2.Combinators.First) {
+                        c.load(1);
+                    } else if (node.mapper == Parsec2.Combinators.Second) {
+                        c.load(2);
+                    } else if (ps.length == 2) {
+                        getConstant(c, constant(node.mapper, "Ljava/util/function/BiFunction;"));
+                        c.load(1);
+                        c.load(2);
+                        c.invokeInterface("java/util/function/BiFunction", "apply", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", 3);
+                    } else {
+                        getConstant(c, constant(node.mapper, "Lxiao/parsec/Parsec2$TriFunction;"));
+                        c.load(1);
+                        c.load(2);
+                        c.load(3);
+                        c.invokeInterface("xiao/parsec/Parsec2$TriFunction", "apply", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", 4);
+                    }
+                    c.op(Op.ARETURN);
+                    break;
+                case Between:
+                    for (int i = 0; i < 3; i++) {
+                        call(c, ps[i]);
+                        c.store(1 + i);
+                        failFast(c, 1 + i);
+                    }
+                    c.load(2);
+                    c.op(Op.ARETURN);
+                    break;
+                case Map:
+                    call(c, ps[0]);
+                    c.store(1);
+                    failFast(c, 1);
+                    getConstant(c, constant(node.mapper, "Ljava/util/function/Function;"));
+                    c.load(1);
+                    c.invokeInterface("java/util/function/Function", "apply", "(Ljava/lang/Object;)Ljava/lang/Object;", 2);
+                    c.op(Op.ARETURN);
+                    break;
+                case Try:
+                case LookAhead: {
+                    begin(c, 2);
+                    call(c, ps[0]);
+                    c.store(1);
+                    if (node.kind == Node.Kind.LookAhead) {
+                        end(c, "rollback", 2);
+                    } else {
+                        Label ok = new Label(), ret = new Label();
+                        c.load(1);
+                        getFail(c);
+                        c.jump(Op.IF_ACMPNE, ok);
+                        end(c, "rollback", 2);
+                        c.jump(Op.GOTO, ret);
+                        c.mark(ok);
+                        end(c, "commit", 2);
+                        c.mark(ret);
+                    }
+                    c.load(1);
+                    c.op(Op.ARETURN);
+                    break;
+                }
+                case NotFollowedBy: {
+                    Label matched = new Label();
+                    begin(c, 2);
+                    call(c, ps[0]);
+                    c.store(1);
+                    end(c, "rollback", 2);
+                    c.load(1);
+                    getFail(c);
+                    c.jump(Op.IF_ACMPNE, matched);
+                    c.op(Op.ACONST_NULL);
+                    c.op(Op.ARETURN);
+                    c.mark(matched);
+                    c.load(0);
+                    c.ldc(cw.string("Not followed"));
+                    virtual(c, SEQUENCE, "fail", "(Ljava/lang/String;)Ljava/lang/Object;");
+                    c.op(Op.ARETURN);
+                    break;
+                }
+                case Many: {
+                    // Many(p) 的 p 包着 Try
+                    Label loop = new Label(), add = new Label();
+                    newList(c, 1);
+                    c.mark(loop);
+                    begin(c, 2);
+                    call(c, ps[0]);
+                    c.store(3);
+                    c.load(3);
+                    getFail(c);
+                    c.jump(Op.IF_ACMPNE, add);
+                    end(c, "rollback", 2);
+                    c.load(1);
+                    c.invoke(Op.INVOKESTATIC, "java/util/Collections", "unmodifiableList", "(Ljava/util/List;)Ljava/util/List;");
+                    c.op(Op.ARETURN);
+                    c.mark(add);
+                    end(c, "commit", 2);
+                    add(c, 1, 3);
+                    c.jump(Op.GOTO, loop);
+                    break;
+                }
+                case SkipMany: {
+                    // 同 Many, 不建 list
+                    Label loop = new Label(), next = new Label();
+                    c.mark(loop);
+                    begin(c, 2);
+                    call(c, ps[0]);
+                    getFail(c);
+                    c.jump(Op.IF_ACMPNE, next);
+                    end(c, "rollback", 2);
+                    c.op(Op.ACONST_NULL);
+                    c.op(Op.ARETURN);
+                    c.mark(next);
+                    end(c, "commit", 2);
+                    c.jump(Op.GOTO, loop);
+                    break;
+                }
+                case Count: {
+                    Label loop = new Label(), done = new Label();
+                    newList(c, 1);
+                    c.iconst(0);
+                    c.istore(2);
+                    c.mark(loop);
+                    c.iload(2);
+                    c.iconst((Integer) node.arg);
+                    c.jump(Op.IF_ICMPGE, done);
+                    call(c, ps[0]);
+                    c.store(3);
+                    failFast(c, 3);
+                    add(c, 1, 3);
+                    c.iinc(2, 1);
+                    c.jump(Op.GOTO, loop);
+                    c.mark(done);
+                    c.load(1);
+                    c.op(Op.ARETURN);
+                    break;
+                }
+                case Choose:
+                    emitChoose(c, node);
+                    break;
+                case Chainl1:
+                    emitChainl1(c, node);
+                    break;
+                case ChSatisfy:
+                    emitChSatisfy(c, node);
+                    break;
+                case Return:
+                    getConstant(c, constant(node.arg, "Ljava/lang/Object;"));
+                    c.op(Op.ARETURN);
+                    break;
+                case Null:
+                    c.op(Op.ACONST_NULL);
+                    c.op(Op.ARETURN);
+                    break;
+                case Memo: {
+                    // 没开 packrat / profile / incremental 时 Memo 什么都不做, 直接调子 parsec 的方法
+                    Label memo = new Label();
+                    for (String f : new String[] { "profile:MemoProfile", "incremental:IncrementalMemo", "memo:MemoTable" }) {
+                        String[] nt = f.split(":");
+                        c.load(0);
+                        c.field(Op.GETFIELD, SEQUENCE, nt[0], "Lxiao/parsec/Parsec2$" + nt[1] + ";");
+                        c.jump(Op.IFNONNULL, memo);
+                    }
+                    call(c, ps[0]);
+                    c.op(Op.ARETURN);
+                    c.mark(memo);
+                    emitCall(c, constant(new Lower(node, new int[] { method(ps[0]) }), "L" + PARSEC2 + ";"));
+                    break;
+                }
+                case Regex: {
+                    List<List<ParsecVM.Regex.Atom>> alts = node.mapper == Parsec2.CharParsers.Group ? scan((Pattern) node.arg) : null;
+                    if (alts != null) {
+                        emitScan(c, node, alts);
+                    } else {
+                        emitCall(c, constant(node.impl, "L" + PARSEC2 + ";"));
+                    }
+                    break;
+                }
+                case FlatMap:
+                case Chainr1:
+                case ManyTill:
+                case Find: {
+                    // 子 parsec 换成编译好的 (生成类的实例) 再重新构造, 在 <clinit> 里做
+                    int[] ids = new int[ps.length];
+                    for (int i = 0; i < ps.length; i++) {
+                        ids[i] = method(ps[i]);
+                    }
+                    emitCall(c, constant(new Lower(node, ids), "L" + PARSEC2 + ";"));
+                    break;
+                }
+                default:
+                    // 叶子: Satisfy, Any, EOF, Fail
+                    emitCall(c, constant(node.impl, "L" + PARSEC2 + ";"));
+                    break;
+            }
+        }
+
+        /*
+         * alts = s.chars == null ? null : dispatch.alts(...); if (alts != null) s.reach(s.current + 1);
+         * for (k = 0; k < n; k++) {
+         *     t = s.begin();
+         *     switch (alts == null ? k : alts[k]) { case i: r = m_i(s); }
+         *     if (r != FAIL) { s.commit(t); return r; }
+         *     s.rollback(t);
+         * }
+         * return s.fail("No Choice");
+         */
+        void emitChoose(Code c, Node<?, ?> node) {
+            Parsec2<?, ?>[] choices = node.parsecs;
+            int dispatch = constant(new FirstSet.Dispatch(() -> Node.firsts(choices)), "Lxiao/parsec/FirstSet$Dispatch;");
+            Label noDispatch = new Label(), all = new Label(), count = new Label(), loop = new Label(),
+                    ordered = new Label(), index = new Label(), test = new Label(), next = new Label(), fail = new Label();
+            c.op(Op.ACONST_NULL);
+            c.store(1);
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "chars", "Ljava/lang/CharSequence;");
+            c.jump(Op.IFNULL, noDispatch);
+            getConstant(c, dispatch);
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "chars", "Ljava/lang/CharSequence;");
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "current", "I");
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "end", "I");
+            virtual(c, "xiao/parsec/FirstSet$Dispatch", "alts", "(Ljava/lang/CharSequence;II)[I");
+            c.store(1);
+            c.load(1);
+            c.jump(Op.IFNULL, noDispatch);
+            c.load(0);
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "current", "I");
+            c.iconst(1);
+            c.op(Op.IADD);
+            virtual(c, SEQUENCE, "reach", "(I)V");
+            c.mark(noDispatch);
+
+            c.load(1);
+            c.jump(Op.IFNULL, all);
+            c.load(1);
+            c.op(Op.ARRAYLENGTH);
+            c.jump(Op.GOTO, count);
+            c.mark(all);
+            c.iconst(choices.length);
+            c.mark(count);
+            c.istore(2);
+            c.iconst(0);
+            c.istore(3);
+
+            c.mark(loop);
+            c.iload(3);
+            c.iload(2);
+            c.jump(Op.IF_ICMPGE, fail);
+            c.load(1);
+            c.jump(Op.IFNULL, ordered);
+            c.load(1);
+            c.iload(3);
+            c.op(Op.IALOAD);
+            c.jump(Op.GOTO, index);
+            c.mark(ordered);
+            c.iload(3);
+            c.mark(index);
+            c.istore(4);
+            begin(c, 5);
+            Label[] cases = new Label[choices.length];
+            for (int i = 0; i < cases.length; i++) {
+                cases[i] = new Label();
+            }
+            Label none = new Label();
+            c.iload(4);
+            c.tableswitch(0, cases.length - 1, none, cases);
+            for (int i = 0; i < cases.length; i++) {
+                c.mark(cases[i]);
+                call(c, choices[i]);
+                c.store(6);
+                c.jump(Op.GOTO, test);
+            }
+            c.mark(none);
+            getFail(c);
+            c.store(6);
+            c.mark(test);
+            c.load(6);
+            getFail(c);
+            c.jump(Op.IF_ACMPEQ, next);
+            end(c, "commit", 5);
+            c.load(6);
+            c.op(Op.ARETURN);
+            c.mark(next);
+            end(c, "rollback", 5);
+            c.iinc(3, 1);
+            c.jump(Op.GOTO, loop);
+
+            c.mark(fail);
+            c.load(0);
+            c.ldc(cw.string("No Choice"));
+            virtual(c, SEQUENCE, "fail", "(Ljava/lang/String;)Ljava/lang/Object;");
+            c.op(Op.ARETURN);
+        }
+
+        // 字面量 (e.g. Str) 和 ParsecVM.Regex 能翻译的简单正则 (不用回溯的 * + ?, 字符类, 顶层 |), 其他的 null
+        static List<List<ParsecVM.Regex.Atom>> scan(Pattern ptn) {
+            String literal = Fused.literal(ptn);
+            if (literal != null) {
+                List<ParsecVM.Regex.Atom> atoms = new ArrayList<>();
+                for (int i = 0; i < literal.length(); i++) {
+                    atoms.add(new ParsecVM.Regex.Atom(ParsecVM.Regex.single(literal.charAt(i)), '1'));
+                }
+                return Collections.singletonList(atoms);
+            }
+            if ((ptn.flags() & ~Pattern.DOTALL) != 0) {
+                return null;
+            }
+            return new ParsecVM.Regex(ptn.pattern(), (ptn.flags() & Pattern.DOTALL) != 0).parse();
+        }
+
+        /*
+         * 正则展开成扫描字符的代码, 和 CharParsers.Regex + Group 一样: 有序地试每个分支, 量词不回溯 (scan 保证不需要)
+         * reach 记看过的最远位置, 看到结尾算 end + 1
+         *
+         * t = s.begin(); far = t;
+         * alt_k: i = t; 每个字符: if (i >= end) { far = end + 1; goto fail_k; } ch = chars.charAt(i); if (!set.get(ch)) { far = max(far, i + 1); goto fail_k; } i++;
+         *        goto matched;
+         * fail_k: ...
+         * s.rollback(t); s.reach(far); return s.fail("Expect %s", ptn);
+         * matched: s.commit(t); s.current = i; s.reach(max(far, i)); return chars.subSequence(t, i).toString();
+         */
+        void emitScan(Code c, Node<?, ?> node, List<List<ParsecVM.Regex.Atom>> alts) {
+            final int t = 1, i = 2, end = 3, chars = 4, far = 6;
+            Label matched = new Label();
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "chars", "Ljava/lang/CharSequence;");
+            c.store(chars);
+            c.load(0);
+            c.field(Op.GETFIELD, SEQUENCE, "end", "I");
+            c.istore(end);
+            begin(c, t);
+            c.iload(t);
+            c.istore(far);
+            for (List<ParsecVM.Regex.Atom> alt : alts) {
+                Label fail = new Label();
+                c.iload(t);
+                c.istore(i);
+                for (ParsecVM.Regex.Atom atom : alt) {
+                    int set = constant(atom.set, "Ljava/util/BitSet;");
+                    switch (atom.quant) {
+                        case '1':
+                            scanChar(c, set, atom, fail, fail);
+                            break;
+                        case '+':
+                            scanChar(c, set, atom, fail, fail);
+                            scanMany(c, set, atom);
+                            break;
+                        case '*':
+                            scanMany(c, set, atom);
+                            break;
+                        case '?': {
+                            Label none = new Label();
+                            scanChar(c, set, atom, none, none);
+                            c.mark(none);
+                            break;
+                        }
+                        default:
+                            throw new IllegalStateException();
+                    }
+                }
+                c.jump(Op.GOTO, matched);
+                c.mark(fail);
+            }
+            end(c, "rollback", t);
+            c.load(0);
+            c.iload(far);
+            virtual(c, SEQUENCE, "reach", "(I)V");
+            c.load(0);
+            c.ldc(cw.string("Expect %s"));
+            getConstant(c, constant(node.arg, "Ljava/util/regex/Pattern;"));
+            virtual(c, SEQUENCE, "fail", "(Ljava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;");
+            c.op(Op.ARETURN);
+
+            Label reach = new Label();
+            c.mark(matched);
+            end(c, "commit", t);
+            c.load(0);
+            c.iload(i);
+            c.field(Op.PUTFIELD, SEQUENCE, "current", "I");
+            c.iload(far);
+            c.iload(i);
+            c.jump(Op.IF_ICMPGE, reach);
+            c.iload(i);
+            c.istore(far);
+            c.mark(reach);
+            c.load(0);
+            c.iload(far);
+            virtual(c, SEQUENCE, "reach", "(I)V");
+            c.load(chars);
+            c.iload(t);
+            c.iload(i);
+            c.invokeInterface("java/lang/CharSequence", "subSequence", "(II)Ljava/lang/CharSequence;", 3);
+            c.invokeInterface("java/lang/CharSequence", "toString", "()Ljava/lang/String;", 1);
+            c.op(Op.ARETURN);
+        }
+
+        // while (chars[i] 在 set 里) i++
+        void scanMany(Code c, int set, ParsecVM.Regex.Atom atom) {
+            Label loop = new Label(), stop = new Label();
+            c.mark(loop);
+            scanChar(c, set, atom, stop, stop);
+            c.jump(Op.GOTO, loop);
+            c.mark(stop);
+        }
+
+        // chars[i] 在 set 里就 i++, 否则记下 far 跳到 miss; 到结尾 far = end + 1 跳到 eof
+        void scanChar(Code c, int set, ParsecVM.Regex.Atom atom, Label eof, Label miss) {
+            final int i = 2, end = 3, chars = 4, ch = 5, far = 6;
+            Label has = new Label(), in = new Label(), notIn = new Label();
+            c.iload(i);
+            c.iload(end);
+            c.jump(Op.IF_ICMPLT, has);
+            c.iload(end);
+            c.iconst(1);
+            c.op(Op.IADD);
+            c.istore(far);
+            c.jump(Op.GOTO, eof);
+            c.mark(has);
+            c.load(chars);
+            c.iload(i);
+            c.invokeInterface("java/lang/CharSequence", "charAt", "(I)C", 2);
+            c.istore(ch);
+            if (atom.set.cardinality() == 1) {
+                c.iload(ch);
+                c.iconst(atom.set.nextSetBit(0));
+                c.jump(Op.IF_ICMPNE, notIn);
+            } else {
+                getConstant(c, set);
+                c.iload(ch);
+                virtual(c, "java/util/BitSet", "get", "(I)Z");
+                c.jump(Op.IFEQ, notIn);
+            }
+            c.iinc(i, 1);
+            c.jump(Op.GOTO, in);
+            c.mark(notIn);
+            // 看过 chars[i]
+            c.iload(far);
+            c.iload(i);
+            c.jump(Op.IF_ICMPGT, miss);
+            c.iload(i);
+            c.iconst(1);
+            c.op(Op.IADD);
+            c.istore(far);
+            c.jump(Op.GOTO, miss);
+            c.mark(in);
+        }
+
+        /*
+         * r = p(s); if (r == FAIL) return FAIL; lval = alg.val(r);
+         * while (true) {
+         *     t = s.begin();
+         *     o = op(s); if (o != FAIL) { rval = p(s); if (rval != FAIL) { s.commit(t); lval = alg.app(o, lval, alg.val(rval)); continue; } }
+         *     s.rollback(t); return lval;
+         * }
+         */
+        void emitChainl1(Code c, Node<?, ?> node) {
+            Parsec2<?, ?> p = node.parsecs[0], op = node.parsecs[1];
+            int alg = constant(node.mapper, "Lxiao/parsec/Parsec2$BiOperator;");
+            String owner = "xiao/parsec/Parsec2$BiOperator";
+            Label loop = new Label(), done = new Label();
+            call(c, p);
+            c.store(1);
+            failFast(c, 1);
+            getConstant(c, alg);
+            c.load(1);
+            c.invokeInterface(owner, "val", "(Ljava/lang/Object;)Ljava/lang/Object;", 2);
+            c.store(2);
+            c.mark(loop);
+            begin(c, 3);
+            call(c, op);
+            c.store(4);
+            c.load(4);
+            getFail(c);
+            c.jump(Op.IF_ACMPEQ, done);
+            call(c, p);
+            c.store(5);
+            c.load(5);
+            getFail(c);
+            c.jump(Op.IF_ACMPEQ, done);
+            end(c, "commit", 3);
+            getConstant(c, alg);
+            c.load(4);
+            c.load(2);
+            getConstant(c, alg);
+            c.load(5);
+            c.invokeInterface(owner, "val", "(Ljava/lang/Object;)Ljava/lang/Object;", 2);
+            c.invokeInterface(owner, "app", "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", 4);
+            c.store(2);
+            c.jump(Op.GOTO, loop);
+            c.mark(done);
+            end(c, "rollback", 3);
+            c.load(2);
+            c.op(Op.ARETURN);
+        }
+
+        /*
+         * idx = s.begin(); c = s.tryNextChar();
+         * if (c < 0) return FAIL;
+         * if (p.test(c)) return Character.valueOf((char) c);
+         * return s.failAt(idx, "Not satisfy: %s", (char) c, null);
+         */
+        void emitChSatisfy(Code c, Node<?, ?> node) {
+            int p = constant(node.arg, "Ljava/util/function/IntPredicate;");
+            Label some = new Label(), no = new Label();
+            begin(c, 1);
+            c.load(0);
+            virtual(c, SEQUENCE, "tryNextChar", "()I");
+            c.istore(2);
+            c.iload(2);
+            c.jump(Op.IFGE, some);
+            getFail(c);
+            c.op(Op.ARETURN);
+            c.mark(some);
+            getConstant(c, p);
+            c.iload(2);
+            c.invokeInterface("java/util/function/IntPredicate", "test", "(I)Z", 2);
+            c.jump(Op.IFEQ, no);
+            c.iload(2);
+            c.op(Op.I2C);
+            c.invoke(Op.INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;");
+            c.op(Op.ARETURN);
+            c.mark(no);
+            c.load(0);
+            c.iload(1);
+            c.ldc(cw.string("Not satisfy: %s"));
+            c.iload(2);
+            c.op(Op.I2C);
+            c.invoke(Op.INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;");
+            c.op(Op.ACONST_NULL);
+            virtual(c, SEQUENCE, "failAt", "(ILjava/lang/String;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+            c.op(Op.ARETURN);
+        }
+
+        void begin(Code c, int local) {
+            c.load(0);
+            virtual(c, SEQUENCE, "begin", "()I");
+            c.istore(local);
+        }
+
+        void end(Code c, String method, int local) {
+            c.load(0);
+            c.iload(local);
+            virtual(c, SEQUENCE, method, "(I)V");
+        }
+
+        void newList(Code c, int local) {
+            c.type(Op.NEW, "java/util/ArrayList");
+            c.op(Op.DUP);
+            c.invoke(Op.INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V");
+            c.store(local);
+        }
+
+        void add(Code c, int list, int local) {
+            c.load(list);
+            c.load(local);
+            c.invokeInterface("java/util/List", "add", "(Ljava/lang/Object;)Z", 2);
+            c.op(Op.POP);
+        }
+
+        // public Object tryParse(Sequence s) { switch (id) { case i: return m_i(s); } }
+        void emitDispatch() {
+            Code c = new Code(cw);
+            Label[] cases = new Label[order.size()];
+            for (int i = 0; i < cases.length; i++) {
+                cases[i] = new Label();
+            }
+            Label none = new Label();
+            c.load(0);
+            c.field(Op.GETFIELD, name, "id", "I");
+            c.tableswitch(0, cases.length - 1, none, cases);
+            for (int i = 0; i < cases.length; i++) {
+                c.mark(cases[i]);
+                c.load(1);
+                c.invoke(Op.INVOKESTATIC, name, "m" + i, METHOD);
+                c.op(Op.ARETURN);
+            }
+            c.mark(none);
+            getFail(c);
+            c.op(Op.ARETURN);
+            cw.method(Op.ACC_PUBLIC, "tryParse", METHOD, c);
+        }
+
+        void emitInit() {
+            cw.field(Op.ACC_PRIVATE | Op.ACC_FINAL, "id", "I");
+            Code c = new Code(cw);
+            c.load(0);
+            c.invoke(Op.INVOKESPECIAL, OBJECT, "<init>", "()V");
+            c.load(0);
+            c.iload(1);
+            c.field(Op.PUTFIELD, name, "id", "I");
+            c.op(Op.RETURN);
+            cw.method(Op.ACC_PUBLIC, "<init>", "(I)V", c);
+        }
+
+        void emitClinit() {
+            Code c = new Code(cw);
+            c.invoke(Op.INVOKESTATIC, "xiao/parsec/ParsecJit", "pending", "()[Ljava/lang/Object;");
+            c.store(0);
+            for (int i = 0; i < constants.size(); i++) {
+                String type = types.get(i);
+                cw.field(Op.ACC_PRIVATE | Op.ACC_STATIC | Op.ACC_FINAL, "k" + i, type);
+                c.load(0);
+                c.iconst(i);
+                c.op(Op.AALOAD);
+                if (constants.get(i) instanceof Lower) {
+                    // k_i = ParsecJit.lower(node, new Parsec2[] { new Grammar(id_0), ... })
+                    int[] ids = ((Lower) constants.get(i)).ids;
+                    c.type(Op.CHECKCAST, "xiao/parsec/Parsec2$Node");
+                    c.iconst(ids.length);
+                    c.type(Op.ANEWARRAY, PARSEC2);
+                    for (int j = 0; j < ids.length; j++) {
+                        c.op(Op.DUP);
+                        c.iconst(j);
+                        c.type(Op.NEW, name);
+                        c.op(Op.DUP);
+                        c.iconst(ids[j]);
+                        c.invoke(Op.INVOKESPECIAL, name, "<init>", "(I)V");
+                        c.op(Op.AASTORE);
+                    }
+                    c.invoke(Op.INVOKESTATIC, "xiao/parsec/ParsecJit", "lower", "(Lxiao/parsec/Parsec2$Node;[L" + PARSEC2 + ";)L" + PARSEC2 + ";");
+                } else {
+                    c.type(Op.CHECKCAST, type.substring(1, type.length() - 1));
+                }
+                c.field(Op.PUTSTATIC, name, "k" + i, type);
+            }
+            c.op(Op.RETURN);
+            cw.method(Op.ACC_STATIC, "<clinit>", "()V", c);
+        }
+    }
+
+    // 子 parsec 换成编译好的再重新构造的节点, e.g. Memo; ids: 子 parsec 的方法
+    static final class Lower {
+        final Node<?, ?> node;
+        final int[] ids;
+        Lower(Node<?, ?> node, int[] ids) { this.node = node; this.ids = ids; }
+    }
+
+    // 生成类的 <clinit> 调用, 返回重新构造的节点的 impl
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Parsec2<?, ?> lower(Node node, Parsec2[] compiled) {
+        Parsec2<?, ?> lowered = node.lower(compiled);
+        return lowered instanceof Node ? ((Node<?, ?>) lowered).impl : lowered;
+    }
+
+    // ================================================================================================
+
+    interface Op {
+        int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+        int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13,
+                ILOAD = 0x15, ALOAD = 0x19, IALOAD = 0x2e, AALOAD = 0x32, ISTORE = 0x36, ASTORE = 0x3a,
+                AASTORE = 0x53, POP = 0x57, DUP = 0x59, IADD = 0x60, IINC = 0x84, I2C = 0x92,
+                IFEQ = 0x99, IFGE = 0x9c, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6, GOTO = 0xa7,
+                TABLESWITCH = 0xaa, ARETURN = 0xb0, RETURN = 0xb1,
+                GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5,
+                INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9,
+                NEW = 0xbb, ANEWARRAY = 0xbd, ARRAYLENGTH = 0xbe, CHECKCAST = 0xc0, IFNULL = 0xc6, IFNONNULL = 0xc7;
+    }
+
+    static final class Label {
+        int pos = -1;
+        final List<int[]> refs = new ArrayList<>(); // (指令位置, 偏移量位置, 偏移量字节数)
+    }
+
+    // 一个方法的字节码, 跳转偏移在 mark 时回填
+    static final class Code {
+        final ClassWriter cw;
+        byte[] buf = new byte[256];
+        int len;
+        int maxLocals = 1;
+
+        Code(ClassWriter cw) {
+            this.cw = cw;
+        }
+
+        void u1(int b) {
+            if (len == buf.length) {
+                buf = Arrays.copyOf(buf, len * 2);
+            }
+            buf[len++] = (byte) b;
+        }
+
+        void u2(int v) {
+            u1(v >> 8);
+            u1(v);
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+
+        void op(int op) {
+            u1(op);
+        }
+
+        void local(int op, int local) {
+            maxLocals = Math.max(maxLocals, local + 1);
+            u1(op);
+            u1(local);
+        }
+
+        void load(int local)   { local(Op.ALOAD, local); }
+        void store(int local)  { local(Op.ASTORE, local); }
+        void iload(int local)  { local(Op.ILOAD, local); }
+        void istore(int local) { local(Op.ISTORE, local); }
+
+        void iinc(int local, int inc) {
+            u1(Op.IINC);
+            u1(local);
+            u1(inc);
+        }
+
+        void iconst(int v) {
+            if (v >= -1 && v <= 5) {
+                u1(Op.ICONST_0 + v);
+            } else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+                u1(Op.BIPUSH);
+                u1(v);
+            } else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+                u1(Op.SIPUSH);
+                u2(v);
+            } else {
+                ldc(cw.integer(v));
+            }
+        }
+
+        void ldc(int index) {
+            if (index < 256) {
+                u1(Op.LDC);
+                u1(index);
+            } else {
+                u1(Op.LDC_W);
+                u2(index);
+            }
+        }
+
+        void field(int op, String owner, String name, String desc) {
+            u1(op);
+            u2(cw.member(9, owner, name, desc));
+        }
+
+        void invoke(int op, String owner, String name, String desc) {
+            u1(op);
+            u2(cw.member(10, owner, name, desc));
+        }
+
+        // count: 参数占的 slot 数 + 1
+        void invokeInterface(String owner, String name, String desc, int count) {
+            u1(Op.INVOKEINTERFACE);
+            u2(cw.member(11, owner, name, desc));
+            u1(count);
+            u1(0);
+        }
+
+        void type(int op, String type) {
+            u1(op);
+            u2(cw.cls(type));
+        }
+
+        void jump(int op, Label label) {
+            int at = len;
+            u1(op);
+            ref(label, at, 2);
+        }
+
+        void tableswitch(int lo, int hi, Label dflt, Label[] labels) {
+            int at = len;
+            u1(Op.TABLESWITCH);
+            while (len % 4 != 0) {
+                u1(0);
+            }
+            ref(dflt, at, 4);
+            u4(lo);
+            u4(hi);
+            for (Label label : labels) {
+                ref(label, at, 4);
+            }
+        }
+
+        void ref(Label label, int at, int size) {
+            if (label.pos >= 0) {
+                offset(len, label.pos - at, size);
+            } else {
+                label.refs.add(new int[] { at, len, size });
+            }
+            len += size;
+            if (len > buf.length) {
+                buf = Arrays.copyOf(buf, len * 2);
+            }
+        }
+
+        void offset(int where, int offset, int size) {
+            if (size == 2) {
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("method too large");
+                }
+                buf[where] = (byte) (offset >> 8);
+                buf[where + 1] = (byte) offset;
+            } else {
+                buf[where] = (byte) (offset >> 24);
+                buf[where + 1] = (byte) (offset >> 16);
+                buf[where + 2] = (byte) (offset >> 8);
+                buf[where + 3] = (byte) offset;
+            }
+        }
+
+        void mark(Label label) {
+            label.pos = len;
+            for (int[] ref : label.refs) {
+                offset(ref[1], label.pos - ref[0], ref[2]);
+            }
+            label.refs.clear();
+        }
+    }
+
+    // 常量池 + 字段 + 方法, 拼成 class 文件
+    static final class ClassWriter {
+        // 不算 StackMapTable 的最后一个版本 (java 5)
+        static final int VERSION = 49;
+        // 不算栈深度, 给一个足够大的值, 生成的代码栈上最多 6 个
+        static final int MAX_STACK = 16;
+
+        final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        final DataOutputStream poolOut = new DataOutputStream(pool);
+        final Map<String, Integer> entries = new HashMap<>();
+        int count = 1;
+        final ByteArrayOutputStream fieldBytes = new ByteArrayOutputStream();
+        final DataOutputStream fields = new DataOutputStream(fieldBytes);
+        int fieldCount;
+        final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+        final DataOutputStream methods = new DataOutputStream(methodBytes);
+        int methodCount;
+
+        interface Entry { void write(DataOutputStream out) throws IOException; }
+
+        int entry(String key, Entry entry) {
+            Integer index = entries.get(key);
+            if (index == null) {
+                try {
+                    entry.write(poolOut);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                index = count++;
+                entries.put(key, index);
+            }
+            return index;
+        }
+
+        int utf8(String s) {
+            return entry("U" + s, out -> { out.writeByte(1); out.writeUTF(s); });
+        }
+
+        int integer(int v) {
+            return entry("I" + v, out -> { out.writeByte(3); out.writeInt(v); });
+        }
+
+        int cls(String internalName) {
+            int n = utf8(internalName);
+            return entry("C" + internalName, out -> { out.writeByte(7); out.writeShort(n); });
+        }
+
+        int string(String s) {
+            int n = utf8(s);
+            return entry("S" + s, out -> { out.writeByte(8); out.writeShort(n); });
+        }
+
+        // tag: 9 Fieldref, 10 Methodref, 11 InterfaceMethodref
+        int member(int tag, String owner, String name, String desc) {
+            int c = cls(owner), n = utf8(name), d = utf8(desc);
+            int nat = entry("N" + name + " " + desc, out -> { out.writeByte(12); out.writeShort(n); out.writeShort(d); });
+            return entry(tag + owner + "." + name + desc, out -> { out.writeByte(tag); out.writeShort(c); out.writeShort(nat); });
+        }
+
+        void field(int access, String name, String desc) {
+            try {
+                fields.writeShort(access);
+                fields.writeShort(utf8(name));
+                fields.writeShort(utf8(desc));
+                fields.writeShort(0);
+                fieldCount++;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void method(int access, String name, String desc, Code code) {
+            try {
+                methods.writeShort(access);
+                methods.writeShort(utf8(name));
+                methods.writeShort(utf8(desc));
+                methods.writeShort(1);
+                methods.writeShort(utf8("Code"));
+                methods.writeInt(12 + code.len);
+                methods.writeShort(MAX_STACK);
+                methods.writeShort(code.maxLocals);
+                methods.writeInt(code.len);
+                methods.write(code.buf, 0, code.len);
+                methods.writeShort(0); // exception_table
+                methods.writeShort(0); // attributes
+                methodCount++;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] toBytes(String name, String superName, String... interfaces) {
+            int self = cls(name), sup = cls(superName);
+            int[] itfs = new int[interfaces.length];
+            for (int i = 0; i < itfs.length; i++) {
+                itfs[i] = cls(interfaces[i]);
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(VERSION);
+                out.writeShort(count);
+                pool.writeTo(out);
+                out.writeShort(Op.ACC_FINAL | Op.ACC_SUPER);
+                out.writeShort(self);
+                out.writeShort(sup);
+                out.writeShort(itfs.length);
+                for (int itf : itfs) {
+                    out.writeShort(itf);
+                }
+                out.writeShort(fieldCount);
+                fieldBytes.writeTo(out);
+                out.writeShort(methodCount);
+                methodBytes.writeTo(out);
+                out.writeShort(0);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
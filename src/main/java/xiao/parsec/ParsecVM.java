@@ -0,0 +1,737 @@
+package xiao.parsec;
+
+import xiao.parsec.Parsec1.Node;
+import xiao.parsec.Parsec1.Rule;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * LPeg 风格的解析虚拟机 <br>
+ *  - Parsec1 的 Node 语法树编译成紧凑的 int[] 指令, 由带显式栈的回溯虚拟机执行 <br>
+ *  - 只做识别, 不构造结果, 返回匹配结束的位置, 失败返回 -1 <br>
+ *  - Choose 是 PEG 的有序选择, Seq 失败不会回溯进 Choose, 与 Parsec1 的 CPS 实现语义一致 <br>
+ *  - 简单正则 (字面量, 字符类, * + ?) 翻译成 CHAR/SET/SPAN, 其余的用 java regex 执行 (PAT) <br>
+ *  - flatMap 的后半部分依赖运行时结果, 手写闭包看不到结构, 都不能编译 <br>
+ *  - Thunk 编译成子程序, 递归要回到同一个 Rule 对象 (e.g. 属性), 每次调用方法 new 新语法的话会无限展开 <br>
+ *
+ * 指令统一两个 int: op + 参数 <br>
+ * 栈上每项两个 int: 回溯项 (pc, pos), 调用帧 (返回 pc, -1) <br>
+ */
+public final class ParsecVM {
+
+    static final int CHAR = 0;      // 匹配字符 arg
+    static final int SET = 1;       // 匹配 sets[arg] 中的一个字符
+    static final int SPAN = 2;      // 贪婪匹配 sets[arg] 中的字符, 不回溯
+    static final int ANY = 3;
+    static final int EOF = 4;
+    static final int PAT = 5;       // java regex, pats[arg]; 支持的子集用 dfas[arg] 查表
+    static final int CHOICE = 6;    // 压入回溯项 (arg, pos)
+    static final int COMMIT = 7;    // 弹出回溯项, 跳到 arg
+    static final int PCOMMIT = 8;   // 更新栈顶回溯项的 pos, 跳到 arg, 循环体未消耗输入则弹出并退出循环
+    static final int BCOMMIT = 9;   // 弹出回溯项并恢复 pos, 跳到 arg
+    static final int FAIL = 10;
+    static final int FAILTWICE = 11;// 弹出回溯项再失败
+    static final int CALL = 12;
+    static final int RET = 13;
+    static final int JMP = 14;
+    static final int END = 15;
+
+    static final String[] NAMES = {
+            "char", "set", "span", "any", "eof", "pat", "choice", "commit",
+            "pcommit", "bcommit", "fail", "failtwice", "call", "ret", "jmp", "end"
+    };
+
+    final int[] code;
+    final BitSet[] sets;
+    final Pattern[] pats;
+    final DFA[] dfas;
+
+    private ParsecVM(int[] code, BitSet[] sets, Pattern[] pats) {
+        this.code = code;
+        this.sets = sets;
+        this.pats = pats;
+        this.dfas = new DFA[pats.length];
+        for (int i = 0; i < pats.length; i++) {
+            dfas[i] = DFA.compile(pats[i]);
+        }
+    }
+
+    public static ParsecVM compile(Rule rule) {
+        return new Compiler().compile(rule);
+    }
+
+    public boolean recognize(String src) {
+        return match(src, 0) == src.length();
+    }
+
+    public int match(String src) {
+        return match(src, 0);
+    }
+
+    public int match(String src, int from) {
+        final int[] code = this.code;
+        final int n = src.length();
+        Matcher[] matchers = new Matcher[pats.length];
+        int[] stack = new int[64];
+        int sp = 0;
+        int pc = 0;
+        int pos = from;
+
+        for (;;) {
+            int arg = code[pc + 1];
+            switch (code[pc]) {
+                case CHAR:
+                    if (pos < n && src.charAt(pos) == arg) { pos++; pc += 2; continue; }
+                    break;
+                case SET:
+                    if (pos < n && sets[arg].get(src.charAt(pos))) { pos++; pc += 2; continue; }
+                    break;
+                case SPAN: {
+                    BitSet set = sets[arg];
+                    while (pos < n && set.get(src.charAt(pos))) pos++;
+                    pc += 2;
+                    continue;
+                }
+                case ANY:
+                    if (pos < n) { pos++; pc += 2; continue; }
+                    break;
+                case EOF:
+                    if (pos == n) { pc += 2; continue; }
+                    break;
+                case PAT: {
+                    int e;
+                    if (dfas[arg] != null) {
+                        e = dfas[arg].match(src, pos, n);
+                    } else {
+                        Matcher m = matchers[arg];
+                        if (m == null) {
+                            m = matchers[arg] = pats[arg].matcher(src);
+                        }
+                        e = m.region(pos, n).lookingAt() ? m.end() : -1;
+                    }
+                    if (e >= 0) { pos = e; pc += 2; continue; }
+                    break;
+                }
+                case CHOICE:
+                    if (sp == stack.length) {
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    }
+                    stack[sp++] = arg;
+                    stack[sp++] = pos;
+                    pc += 2;
+                    continue;
+                case CALL:
+                    if (sp == stack.length) {
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    }
+                    stack[sp++] = pc + 2;
+                    stack[sp++] = -1;
+                    pc = arg;
+                    continue;
+                case COMMIT:
+                    sp -= 2;
+                    pc = arg;
+                    continue;
+                case PCOMMIT:
+                    if (stack[sp - 1] == pos) {
+                        sp -= 2;
+                        pc += 2;
+                    } else {
+                        stack[sp - 1] = pos;
+                        pc = arg;
+                    }
+                    continue;
+                case BCOMMIT:
+                    pos = stack[sp - 1];
+                    sp -= 2;
+                    pc = arg;
+                    continue;
+                case FAIL:
+                    break;
+                case FAILTWICE:
+                    sp -= 2;
+                    break;
+                case RET:
+                    pc = stack[sp - 2];
+                    sp -= 2;
+                    continue;
+                case JMP:
+                    pc = arg;
+                    continue;
+                case END:
+                    return pos;
+                default:
+                    throw new IllegalStateException("bad op " + code[pc]);
+            }
+
+            // fail: 弹出调用帧, 直到回溯项
+            do {
+                if (sp == 0) {
+                    return -1;
+                }
+                sp -= 2;
+            } while (stack[sp + 1] == -1);
+            pc = stack[sp];
+            pos = stack[sp + 1];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += 2) {
+            int op = code[pc], arg = code[pc + 1];
+            buf.append(pc).append('\t').append(NAMES[op]);
+            switch (op) {
+                case CHAR: buf.append(" '").append((char) arg).append("'"); break;
+                case SET: case SPAN: buf.append(' ').append(sets[arg]); break;
+                case PAT: buf.append(" /").append(pats[arg].pattern()).append('/'); break;
+                case CHOICE: case COMMIT: case PCOMMIT: case BCOMMIT: case CALL: case JMP:
+                    buf.append(" -> ").append(arg); break;
+                default:
+            }
+            buf.append('\n');
+        }
+        return buf.toString();
+    }
+
+    static final class Compiler {
+        static final int MAX_SUBS = 4096;
+
+        int[] code = new int[64];
+        int size;
+        final List<BitSet> sets = new ArrayList<>();
+        final List<Pattern> pats = new ArrayList<>();
+
+        // Thunk 编译成子程序, 按 Thunk 与展开后的 Rule 去重, 递归语法因此有限
+        final Map<Object, Integer> subs = new IdentityHashMap<>();
+        final Deque<Object[]> pending = new ArrayDeque<>(); // { entry, rule }
+        final List<int[]> calls = new ArrayList<>();        // { pc, entry id }
+        final List<Integer> entries = new ArrayList<>();
+        final List<Rule> bodies = new ArrayList<>();        // entry id -> rule
+
+        ParsecVM compile(Rule rule) {
+            emit(rule);
+            op(ParsecVM.END, 0);
+            while (!pending.isEmpty()) {
+                Object[] sub = pending.poll();
+                entries.set((Integer) sub[0], size);
+                emit((Rule) sub[1]);
+                op(RET, 0);
+            }
+            for (int[] call : calls) {
+                code[call[0] + 1] = entries.get(call[1]);
+            }
+            checkLeftRecursion();
+            return new ParsecVM(Arrays.copyOf(code, size),
+                    sets.toArray(new BitSet[0]), pats.toArray(new Pattern[0]));
+        }
+
+        int op(int op, int arg) {
+            if (size + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            int pc = size;
+            code[size++] = op;
+            code[size++] = arg;
+            return pc;
+        }
+
+        void patch(int pc, int target) {
+            code[pc + 1] = target;
+        }
+
+        int set(BitSet set) {
+            sets.add(set);
+            return sets.size() - 1;
+        }
+
+        void emit(Rule rule) {
+            if (!(rule instanceof Node)) {
+                throw new UnsupportedOperationException("不能编译的闭包 Rule: " + rule);
+            }
+            Node node = (Node) rule;
+            Rule[] rs = node.rules;
+            switch (node.kind) {
+                case Pat:
+                case Regex:
+                    if (!Regex.emit(this, (Pattern) node.arg)) {
+                        pats.add((Pattern) node.arg);
+                        op(PAT, pats.size() - 1);
+                    }
+                    break;
+                case Seq:
+                    for (Rule r : rs) emit(r);
+                    break;
+                case Choose:
+                    choose(rs);
+                    break;
+                case Map:
+                    emit(rs[0]);
+                    break;
+                case Memo:
+                    // 虚拟机没有 tabling, 原样展开, 左递归的语法见 checkLeftRecursion
+                    emit(rs[0]);
+                    break;
+                case Null:
+                    break;
+                case EOF:
+                    op(ParsecVM.EOF, 0);
+                    break;
+                case AnyChar:
+                    op(ANY, 0);
+                    break;
+                case Many:
+                case SkipMany:
+                    star(rs[0]);
+                    break;
+                case Chainl1:
+                case Chainr1:
+                    // rule (op rule)*
+                    emit(rs[0]);
+                    star(Parsec1.Rules.Seq(rs[1], rs[0], (a, b) -> null));
+                    break;
+                case SepEndBy1:
+                    sepEndBy1(rs[0], rs[1]);
+                    break;
+                case SepEndBy: {
+                    int choice = op(CHOICE, 0);
+                    sepEndBy1(rs[0], rs[1]);
+                    int commit = op(COMMIT, 0);
+                    patch(choice, size);
+                    patch(commit, size);
+                    break;
+                }
+                case ManyTill: {
+                    // L: choice A; till; commit E; A: many; jmp L; E:
+                    int loop = size;
+                    int choice = op(CHOICE, 0);
+                    emit(rs[1]);
+                    int commit = op(COMMIT, 0);
+                    patch(choice, size);
+                    emit(rs[0]);
+                    op(JMP, loop);
+                    patch(commit, size);
+                    break;
+                }
+                case LookAhead: {
+                    // choice L1; p; bcommit L2; L1: fail; L2:
+                    int choice = op(CHOICE, 0);
+                    emit(rs[0]);
+                    int bcommit = op(BCOMMIT, 0);
+                    patch(choice, op(FAIL, 0));
+                    patch(bcommit, size);
+                    break;
+                }
+                case NotFollowedBy: {
+                    // choice L; p; failtwice; L:
+                    int choice = op(CHOICE, 0);
+                    emit(rs[0]);
+                    op(FAILTWICE, 0);
+                    patch(choice, size);
+                    break;
+                }
+                case Thunk:
+                    call(node);
+                    break;
+                case FlatMap:
+                default:
+                    throw new UnsupportedOperationException("不能编译的 Rule: " + node);
+            }
+        }
+
+        void choose(Rule[] rs) {
+            // choice L1; p1; commit E; L1: choice L2; p2; commit E; L2: ... pn; E:
+            int[] commits = new int[rs.length - 1];
+            for (int i = 0; i < rs.length - 1; i++) {
+                int choice = op(CHOICE, 0);
+                emit(rs[i]);
+                commits[i] = op(COMMIT, 0);
+                patch(choice, size);
+            }
+            emit(rs[rs.length - 1]);
+            for (int commit : commits) {
+                patch(commit, size);
+            }
+        }
+
+        void star(Rule rule) {
+            // L1: choice L2; p; pcommit L1; L2:
+            int choice = op(CHOICE, 0);
+            emit(rule);
+            op(PCOMMIT, choice + 2);
+            patch(choice, size);
+        }
+
+        void sepEndBy1(Rule rule, Rule by) {
+            // rule (by rule)* by?
+            emit(rule);
+            star(Parsec1.Rules.Seq(by, rule, (a, b) -> null));
+            int choice = op(CHOICE, 0);
+            emit(by);
+            int commit = op(COMMIT, 0);
+            patch(choice, size);
+            patch(commit, size);
+        }
+
+        @SuppressWarnings("unchecked")
+        void call(Node thunk) {
+            Integer id = subs.get(thunk);
+            if (id == null) {
+                Rule rule = ((Supplier<Rule>) thunk.arg).get();
+                id = subs.get(rule);
+                if (id == null) {
+                    if (entries.size() >= MAX_SUBS) {
+                        throw new UnsupportedOperationException("Thunk 展开过多, 递归没有回到同一个 Rule");
+                    }
+                    id = entries.size();
+                    entries.add(-1);
+                    bodies.add(rule);
+                    subs.put(rule, id);
+                    pending.add(new Object[] { id, rule });
+                }
+                subs.put(thunk, id);
+            }
+            calls.add(new int[] { op(CALL, 0), id });
+        }
+
+        // 子程序不消耗输入又调用回自己 (左递归) 会无限压调用帧; 虚拟机没有 tabling, 同 FlatMap 编译时拒绝
+        void checkLeftRecursion() {
+            int n = bodies.size();
+            boolean[] nullable = new boolean[n];
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int id = 0; id < n; id++) {
+                    if (!nullable[id] && left(bodies.get(id), nullable, null)) {
+                        nullable[id] = changed = true;
+                    }
+                }
+            }
+            List<Set<Integer>> lefts = new ArrayList<>();
+            for (Rule body : bodies) {
+                Set<Integer> ids = new HashSet<>();
+                left(body, nullable, ids);
+                lefts.add(ids);
+            }
+            int[] color = new int[n]; // 0 没看过, 1 在路径上, 2 看完
+            for (int id = 0; id < n; id++) {
+                leftCycle(id, lefts, color);
+            }
+        }
+
+        void leftCycle(int id, List<Set<Integer>> lefts, int[] color) {
+            if (color[id] == 1) {
+                throw new UnsupportedOperationException("不能编译左递归的 Rule: " + bodies.get(id));
+            }
+            if (color[id] == 2) {
+                return;
+            }
+            color[id] = 1;
+            for (int callee : lefts.get(id)) {
+                leftCycle(callee, lefts, color);
+            }
+            color[id] = 2;
+        }
+
+        // rule 还没消耗输入时可能调用的子程序记到 calls 里 (null 不记), 返回 rule 能不能不消耗输入就成功
+        boolean left(Rule rule, boolean[] nullable, Set<Integer> calls) {
+            Node node = (Node) rule;
+            Rule[] rs = node.rules;
+            switch (node.kind) {
+                case Pat:
+                case Regex:
+                    return ((Pattern) node.arg).matcher("").lookingAt();
+                case Seq:
+                    for (Rule r : rs) {
+                        if (!left(r, nullable, calls)) return false;
+                    }
+                    return true;
+                case Choose: {
+                    boolean any = false;
+                    for (Rule r : rs) {
+                        any |= left(r, nullable, calls);
+                    }
+                    return any;
+                }
+                case Map:
+                case Memo:
+                case Chainl1:
+                case Chainr1:
+                    return left(rs[0], nullable, calls);
+                case Null:
+                case EOF:
+                    return true;
+                case Many:
+                case SkipMany:
+                case LookAhead:
+                case NotFollowedBy:
+                    left(rs[0], nullable, calls);
+                    return true;
+                case SepEndBy1:
+                case SepEndBy: {
+                    boolean empty = left(rs[0], nullable, calls);
+                    if (empty) left(rs[1], nullable, calls);
+                    return empty || node.kind == Node.Kind.SepEndBy;
+                }
+                case ManyTill: {
+                    boolean empty = left(rs[1], nullable, calls);
+                    left(rs[0], nullable, calls);
+                    return empty;
+                }
+                case Thunk: {
+                    int id = subs.get(node);
+                    if (calls != null) calls.add(id);
+                    return nullable[id];
+                }
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * 把简单正则翻译成指令, 支持: 字面量, 转义, . \s \d \w [...], 量词 * + ?, 顶层 | <br>
+     * 正则量词会回溯, SPAN 不会, 所以要求量词的字符集与后面可能紧接的字符集不相交 <br>
+     * 不支持的返回 false, 退回 PAT
+     */
+    static final class Regex {
+        final String re;
+        final boolean dotAll;
+        int i;
+
+        Regex(String re, boolean dotAll) {
+            this.re = re;
+            this.dotAll = dotAll;
+        }
+
+        static boolean emit(Compiler c, Pattern ptn) {
+            if ((ptn.flags() & ~Pattern.DOTALL) != 0) {
+                return false;
+            }
+            List<List<Atom>> alts = new Regex(ptn.pattern(), (ptn.flags() & Pattern.DOTALL) != 0).parse();
+            if (alts == null) {
+                return false;
+            }
+            // 有序选择: choice L1; a1; commit E; L1: choice L2; a2; commit E; L2: ... an; E:
+            List<Integer> commits = new ArrayList<>();
+            for (int k = 0; k < alts.size(); k++) {
+                int choice = -1;
+                if (k < alts.size() - 1) {
+                    choice = c.op(CHOICE, 0);
+                }
+                for (Atom atom : alts.get(k)) {
+                    atom.emit(c);
+                }
+                if (choice >= 0) {
+                    commits.add(c.op(COMMIT, 0));
+                    c.patch(choice, c.size);
+                }
+            }
+            for (int commit : commits) {
+                c.patch(commit, c.size);
+            }
+            return true;
+        }
+
+        static final class Atom {
+            final BitSet set;
+            final char quant; // 1 * + ?
+
+            Atom(BitSet set, char quant) {
+                this.set = set;
+                this.quant = quant;
+            }
+
+            void emit(Compiler c) {
+                switch (quant) {
+                    case '1':
+                        if (set.cardinality() == 1) {
+                            c.op(CHAR, set.nextSetBit(0));
+                        } else {
+                            c.op(SET, c.set(set));
+                        }
+                        break;
+                    case '*':
+                        c.op(SPAN, c.set(set));
+                        break;
+                    case '+': {
+                        int idx = c.set(set);
+                        c.op(SET, idx);
+                        c.op(SPAN, idx);
+                        break;
+                    }
+                    case '?': {
+                        int choice = c.op(CHOICE, 0);
+                        c.op(SET, c.set(set));
+                        int commit = c.op(COMMIT, 0);
+                        c.patch(choice, c.size);
+                        c.patch(commit, c.size);
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+
+        List<List<Atom>> parse() {
+            List<List<Atom>> alts = new ArrayList<>();
+            List<Atom> seq = new ArrayList<>();
+            while (i < re.length()) {
+                char ch = re.charAt(i);
+                if (ch == '|') {
+                    i++;
+                    alts.add(seq);
+                    seq = new ArrayList<>();
+                    continue;
+                }
+                BitSet set = atom();
+                if (set == null) {
+                    return null;
+                }
+                char quant = '1';
+                if (i < re.length() && "*+?".indexOf(re.charAt(i)) >= 0) {
+                    quant = re.charAt(i++);
+                    // 非贪婪, 固化量词, {n,m} 不处理
+                    if (i < re.length() && "?+{".indexOf(re.charAt(i)) >= 0) {
+                        return null;
+                    }
+                } else if (i < re.length() && re.charAt(i) == '{') {
+                    return null;
+                }
+                if (!surrogateSafe(set, quant)) {
+                    return null;
+                }
+                seq.add(new Atom(set, quant));
+            }
+            alts.add(seq);
+            for (List<Atom> alt : alts) {
+                if (!possessiveSafe(alt)) {
+                    return null;
+                }
+            }
+            return alts;
+        }
+
+        // java regex 按码点匹配, 指令按 char: 单个的 (1 ?) 能匹配代理的话, 遇到代理对 java 吃两个 char, 不翻译 <br>
+        // * + 整段吃, 高低代理要么都在要么都不在就一样, e.g. [^"]+, \\S+
+        static boolean surrogateSafe(BitSet set, char quant) {
+            int n = set.get(Character.MIN_SURROGATE, Character.MAX_SURROGATE + 1).cardinality();
+            return n == 0 || n == Character.MAX_SURROGATE - Character.MIN_SURROGATE + 1 && (quant == '*' || quant == '+');
+        }
+
+        static boolean possessiveSafe(List<Atom> seq) {
+            for (int k = 0; k < seq.size(); k++) {
+                Atom a = seq.get(k);
+                if (a.quant == '1') continue;
+                for (int j = k + 1; j < seq.size(); j++) {
+                    Atom b = seq.get(j);
+                    if (a.set.intersects(b.set)) {
+                        return false;
+                    }
+                    if (b.quant == '1' || b.quant == '+') break;
+                }
+            }
+            return true;
+        }
+
+        BitSet atom() {
+            char ch = re.charAt(i++);
+            switch (ch) {
+                case '\\': return escape(false);
+                case '[': return klass();
+                case '.':
+                    if (!dotAll) return null;
+                    BitSet all = new BitSet();
+                    all.set(0, 0x10000);
+                    return all;
+                case '(': case ')': case '{': case '}': case '^': case '$': case '*': case '+': case '?': case ']':
+                    return null;
+                default:
+                    return single(ch);
+            }
+        }
+
+        BitSet klass() {
+            boolean negate = false;
+            if (i < re.length() && re.charAt(i) == '^') {
+                negate = true;
+                i++;
+            }
+            BitSet set = new BitSet();
+            boolean first = true;
+            while (true) {
+                if (i >= re.length()) return null;
+                char ch = re.charAt(i++);
+                if (ch == ']' && !first) break;
+                first = false;
+                if (ch == '[' || ch == ']' || (ch == '&' && i < re.length() && re.charAt(i) == '&')) {
+                    return null;
+                }
+                BitSet item = ch == '\\' ? escape(true) : single(ch);
+                if (item == null) return null;
+                // 范围的两头都可以是转义, e.g. [\t-\r]; \d 之类后面的 - 是普通字符
+                if (item.cardinality() == 1 && i + 1 < re.length() && re.charAt(i) == '-' && re.charAt(i + 1) != ']') {
+                    int from = item.nextSetBit(0);
+                    i++;
+                    char t = re.charAt(i++);
+                    BitSet to = t == '\\' ? escape(true) : t == '[' ? null : single(t);
+                    if (to == null || to.cardinality() != 1 || to.nextSetBit(0) < from) return null;
+                    item = new BitSet();
+                    item.set(from, to.nextSetBit(0) + 1);
+                }
+                set.or(item);
+            }
+            if (negate) {
+                set.flip(0, 0x10000);
+            }
+            return set;
+        }
+
+        BitSet escape(boolean inClass) {
+            if (i >= re.length()) return null;
+            char ch = re.charAt(i++);
+            BitSet set = new BitSet();
+            switch (ch) {
+                case 's': case 'S':
+                    set.set(' ');
+                    set.set('\t');
+                    set.set('\n');
+                    set.set(0x0B);
+                    set.set('\f');
+                    set.set('\r');
+                    break;
+                case 'd': case 'D':
+                    set.set('0', '9' + 1);
+                    break;
+                case 'w': case 'W':
+                    set.set('a', 'z' + 1);
+                    set.set('A', 'Z' + 1);
+                    set.set('0', '9' + 1);
+                    set.set('_');
+                    break;
+                case 't': return single('\t');
+                case 'n': return single('\n');
+                case 'r': return single('\r');
+                case 'f': return single('\f');
+                default:
+                    // \b \A \Z 断言, \x \p 等暂不处理
+                    if (Character.isLetterOrDigit(ch)) return null;
+                    return single(ch);
+            }
+            if (Character.isUpperCase(ch)) {
+                set.flip(0, 0x10000);
+            }
+            return set;
+        }
+
+        static BitSet single(char ch) {
+            BitSet set = new BitSet();
+            set.set(ch);
+            return set;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package xiao.parsec;
+
+/**
+ * 输入上的一段 [start, end), 不复制字符, toString 时才 substring (只做一次) <br>
+ * PatSpan 的结果: 大部分 token 要么转成数字, 要么反转义, 要么直接丢掉, 用不着中间的 String <br>
+ * equals/hashCode 按内容, 同 String, 可以当 Map 的 key
+ */
+public final class Span implements CharSequence {
+    public final CharSequence src;
+    public final int start;
+    public final int end;
+    private String str;
+
+    public Span(CharSequence src, int start, int end) {
+        assert 0 <= start && start <= end && end <= src.length();
+        this.src = src;
+        this.start = start;
+        this.end = end;
+    }
+
+    public Span(String str) {
+        this(str, 0, str.length());
+        this.str = str;
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new StringIndexOutOfBoundsException(index);
+        }
+        return src.charAt(start + index);
+    }
+
+    @Override
+    public Span subSequence(int from, int to) {
+        if (from < 0 || from > to || to > end - start) {
+            throw new StringIndexOutOfBoundsException("begin " + from + ", end " + to + ", length " + (end - start));
+        }
+        return new Span(src, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        if (str == null) {
+            str = src.subSequence(start, end).toString();
+        }
+        return str;
+    }
+
+    public int indexOf(char c) {
+        for (int i = start; i < end; i++) {
+            if (src.charAt(i) == c) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contentEquals(CharSequence cs) {
+        int n = end - start;
+        if (cs.length() != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (src.charAt(start + i) != cs.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 同 Long.parseLong(toString()), 十进制直接在原输入上算; 格式不对或者溢出时交给 Long.parseLong 报错
+     */
+    public long toLong() {
+        int i = start, n = end - start;
+        boolean neg = n > 0 && src.charAt(i) == '-';
+        if (neg || n > 0 && src.charAt(i) == '+') {
+            i++;
+        }
+        // 18 位以内不会溢出
+        if (i == end || end - i > 18) {
+            return Long.parseLong(toString());
+        }
+        long v = 0;
+        for (; i < end; i++) {
+            int d = src.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return Long.parseLong(toString());
+            }
+            v = v * 10 + d;
+        }
+        return neg ? -v : v;
+    }
+
+    // JDK 没有接 CharSequence 的 parseDouble, 只能先 toString
+    public double toDouble() {
+        return Double.parseDouble(toString());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof Span && contentEquals((Span) o);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + src.charAt(i);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,47 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsec4 每一步都返回 Result, 配合 -prof gc 看分配 (gc.alloc.rate.norm, B/op) <br>
+ * many4: 每个字符先试 3 个失败分支再命中 Digit, 观察 Choose/Many 每个字符产生的垃圾
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AllocBench {
+
+    static String json = Utils.resource("/large.json").trim();
+    static String digits = FailBench.digits(1000);
+
+    static final Parsec4<List<Character>, Character> p4 = Parsec4.Combinators.Many(Parsec4.Combinators.Choose(
+            Parsec4.CharParsers.Ch('x'),
+            Parsec4.CharParsers.Ch('y'),
+            Parsec4.CharParsers.Ch('z'),
+            Parsec4.CharParsers.Digit
+    ));
+
+    @Benchmark public Object json4() { return JSON4.Parse(json); }
+    @Benchmark public Object many4() { return p4.parse(digits); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(AllocBench.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
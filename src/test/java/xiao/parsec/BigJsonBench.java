@@ -0,0 +1,44 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1M ~ 100M 的 json, 默认栈大小 (不加 -Xss) 跑 CPS 版本
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class BigJsonBench {
+
+    @Param({"1", "10", "100"})
+    public int mb;
+
+    String json;
+
+    @Setup public void setup() {
+        String large = Utils.resource("/large.json");
+        json = Utils.jsonArray(large, mb * 1024 * 1024 / large.length());
+    }
+
+    @Benchmark public Object json() { return JSON.Parse(json); }
+    @Benchmark public Object json1() { return JSON1.Parse(json); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BigJsonBench.class.getSimpleName())
+                .forks(1)
+                .jvmArgs("-Xmx4g")
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -14,6 +14,7 @@ import static xiao.parsec.Parsec1.Rules.*;
  * mulop   =   do{ symbol "*"; return (*) } <|> do{ symbol "/"; return (div) }
  * addop   =   do{ symbol "+"; return (+) } <|> do{ symbol "-"; return (-)   }
  */
+@Grammar
 public interface Calculator1 {
 
     interface Operator extends BiFunction<Integer, Integer, Integer> {}
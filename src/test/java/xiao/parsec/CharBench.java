@@ -0,0 +1,50 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static xiao.parsec.Parsec2.CharParsers.*;
+import static xiao.parsec.Parsec2.Combinators.*;
+
+/**
+ * large.json 按字符切: 结构字符 / 空白 / 其他, ChIn ChNone 的 CharClass 位图 vs 原来每次 indexOf 的谓词
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CharBench {
+
+    static String json = Utils.resource("/large.json");
+
+    static final String punct = "[]{}:,\"";
+    static final String ws = " \t\r\n";
+    static final String both = punct + ws;
+
+    static final Parsec2<Integer, Character> bitmap = Many(Choose(
+            ChIn(punct), ChIn(ws), ChNone(both))).map(l -> l.size());
+
+    static final Parsec2<Integer, Character> indexOf = Many(Choose(
+            ChSatisfy(c -> punct.indexOf(c) >= 0),
+            ChSatisfy(c -> ws.indexOf(c) >= 0),
+            ChSatisfy(c -> both.indexOf(c) < 0))).map(l -> l.size());
+
+    @Benchmark public Object bitmap() { return bitmap.parse(json); }
+    @Benchmark public Object indexOf() { return indexOf.parse(json); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CharBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
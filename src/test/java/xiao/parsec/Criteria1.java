@@ -33,6 +33,7 @@ import static xiao.parsec.Parsec1.Rules.*;
  * term: <not-factor> [AND <not-factor>]* <br>
  * logical-expr: <term> [OR <term>]* <br>
  */
+@Grammar
 public interface Criteria1 {
     Function<String, Object> id = s -> s;
 
@@ -75,9 +76,8 @@ public interface Criteria1 {
     Rule IsNotTrueExpr = Seq(IdLiteral, IsNotTrue, (id, op) -> new Triple(id, op, null));
 
     static Rule Factor() {
-        // thunk, ide瞎提示, 换成 lam ref 就跪了
-        //noinspection Convert2MethodRef,FunctionalExpressionCanBeFolded
-        Rule logicalExpr = (s, m, f) -> LogicalExpr.match(s, m, f);
+        // thunk, 此时 LogicalExpr 还是 null, 不能直接引用
+        Rule logicalExpr = Thunk(() -> LogicalExpr);
         return Choose(
                 BinaryExpr,
                 BetweenExpr,
@@ -0,0 +1,96 @@
+package xiao.parsec;
+
+import xiao.parsec.Parsec1.Pair;
+import xiao.parsec.Parsec1.Triple;
+import xiao.parsec.Parsec2.BiOperator;
+import xiao.parsec.Parsec2.Sequence;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static java.util.stream.Collectors.joining;
+import static xiao.parsec.Parsec2.CharParsers.Pat;
+import static xiao.parsec.Parsec2.Combinators.*;
+
+/**
+ * Criteria1 的 Parsec2 版本, 文法相同, AST 复用 Parsec1 的 Pair/Triple, 输出可以直接和 Criteria1 对比 <br>
+ * Factor 的前四个分支都以 IdLiteral 开头, 回溯时会在同一位置反复解析 IdLiteral, 用来测试 packrat <br>
+ * 标了 memo 的都只是候选, 默认不记忆, 全部记忆或者按 MemoProfile 挑选见 Parse(expr, maxMemoEntries[, rules])
+ */
+public interface Criteria2 {
+    BiOperator<Object, String, Object> Tree = new BiOperator<Object, String, Object>() {
+        @Override public Object val(Object val) { return val; }
+        @Override public Object app(String op, Object lval, Object rval) { return new Triple(op, lval, rval); }
+    };
+
+    Parsec2<String, Character> WS = Pat("\\s*");
+    Parsec2<String, Character> Not = Pat("((?i)(NOT))", Criteria1::normalize).over(WS);
+    Parsec2<String, Character> And = Pat("((?i)(AND))", Criteria1::normalize).over(WS);
+    Parsec2<String, Character> Or = Pat("((?i)(OR))", Criteria1::normalize).over(WS);
+
+    Parsec2<String, Character> NotBetween = Pat("((?i)(?:NOT\\s+)?BETWEEN)", Criteria1::normalize).over(WS);
+    Parsec2<String, Character> IsNotNull = Pat("((?i)IS\\s+(?:NOT\\s+)?NULL)", Criteria1::normalize).over(WS);
+    Parsec2<String, Character> IsNotTrue = Pat("((?i)IS\\s+(?:NOT\\s+)?TRUE)", Criteria1::normalize).over(WS);
+
+    Parsec2<String, Character> ParLeft = Pat("\\(\\s*");
+    Parsec2<String, Character> ParRight = Pat("\\)\\s*");
+    Parsec2<String, Character> Comma = Pat(",\\s*").memo("Comma");
+
+    Parsec2<Object, Character> DoubleQuotaString = Pat("\"((?:\\\\[\"\\\\trnbf\\/]|\"\"|[^\"\\\\])*)\"", s -> Criteria1.unEscapeStrRet(s, '"'));
+    Parsec2<Object, Character> SingleQuotaString = Pat("'((?:\\\\['\\\\trnbf\\/]|''|[^'\\\\])*)'", s -> Criteria1.unEscapeStrRet(s, '\''));
+
+    Parsec2<Object, Character> Null = Pat("(?i)NULL").map(r -> null);
+
+    // (?![.Ee]) 用来区分 int 与 double，.|e 必然是 double
+    Parsec2<Object, Character> IntLiteral = Pat("-?(0|[1-9][0-9]*)(?![.Ee])", Long::parseLong);
+    Parsec2<Object, Character> DoubleLiteral = Pat("-?(0|[1-9][0-9]*)([.][0-9]+)?([eE][-+]?[0-9]+)?", Double::parseDouble);
+    Parsec2<Object, Character> StrLiteral = DoubleQuotaString.or(SingleQuotaString);
+    Parsec2<Object, Character> Literal = Null.or(IntLiteral).or(DoubleLiteral).or(StrLiteral).over(WS).memo("Literal");
+    Parsec2<Object, Character> ArrayLiteral = Literal.or(Between(ParLeft, ParRight, SepBy(Literal, Comma))).memo("ArrayLiteral");
+
+    Parsec2<String, Character> ComparableOperator = Pat("<=|>=|<>|!=|=|<|>"); // 注意顺序
+    String[] BiOps = Criteria1.BiOps;
+    static String BiOpsRegex() { return "(?i)" + Arrays.stream(BiOps).map(op -> "(NOT\\s+)?" + op).collect(joining("|")); }
+    Parsec2<String, Character> BinaryOperator = Pat(BiOpsRegex(), Criteria1::normalize);
+    Parsec2<String, Character> Operator = ComparableOperator.or(BinaryOperator).over(WS).memo("Operator");
+
+    // Factor 的前四个分支都从这里开始
+    Parsec2<String, Character> IdLiteral = Pat("[a-zA-Z_]+?[a-zA-Z_0-9]*").over(WS).memo("IdLiteral");
+    Parsec2<Object, Character> BinaryExpr = Memo("BinaryExpr", Seq(IdLiteral, Operator, ArrayLiteral, Triple::new));
+
+    Parsec2<Object, Character> BetweenExpr = Memo("BetweenExpr", Seq(IdLiteral, NotBetween, Seq(Literal, And, Literal, (l, and, r) -> new Pair(l, r)), Triple::new));
+    Parsec2<Object, Character> IsNotNullExpr = Memo("IsNotNullExpr", Seq(IdLiteral, IsNotNull, (id, op) -> new Triple(id, op, null)));
+    Parsec2<Object, Character> IsNotTrueExpr = Memo("IsNotTrueExpr", Seq(IdLiteral, IsNotTrue, (id, op) -> new Triple(id, op, null)));
+
+    static Parsec2<Object, Character> Factor() {
+        // thunk, 此时 LogicalExpr 还是 null, 不能直接引用
+        Parsec2<Object, Character> logicalExpr = Thunk(() -> LogicalExpr);
+        return Choose(
+                BinaryExpr,
+                BetweenExpr,
+                IsNotNullExpr,
+                Between(ParLeft, ParRight, logicalExpr),
+                IsNotTrueExpr
+        );
+    }
+
+    Parsec2<Object, Character> NotFactor = Choose(Seq(Not, Factor(), (op, f) -> new Triple(op, f, null)), Factor());
+    Parsec2<Object, Character> Term = Chainl1(NotFactor, And, Tree).memo("Term");
+    Parsec2<Object, Character> LogicalExpr = Chainl1(Term, Or, Tree);
+
+    Parsec2<Object, Character> CriteriaGrammar = LogicalExpr.over(EOF());
+
+    static Object Parse(String expr) {
+        return CriteriaGrammar.parse(expr);
+    }
+
+    // 开启 packrat, 标了 memo 的规则同一位置只解析一次
+    static Object Parse(String expr, int maxMemoEntries) {
+        return CriteriaGrammar.parse(new Sequence<Character>(expr).packrat(maxMemoEntries));
+    }
+
+    // 只记忆 rules 选中的 memo, 见 MemoProfile
+    static Object Parse(String expr, int maxMemoEntries, BitSet rules) {
+        return CriteriaGrammar.parse(new Sequence<Character>(expr).packrat(maxMemoEntries, rules));
+    }
+}
@@ -0,0 +1,114 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes.LeftFactor 前后对比: Criteria1.Factor 的四个分支都以 IdLiteral 开头, 不提取时每个失败的分支都要重新解析一遍 id 和后面的空白 <br>
+ * 语料是 10 万条随机生成的过滤条件, 形状照着业务里常见的写: 比较, in, like, between, is [not] null, 括号, not <br>
+ * Criteria2 的分支包在 Memo 里, 不提取, 只看 optimize 之后有没有变慢
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class FactorBench {
+
+    static final String[] IDS = { "id", "status", "user_id", "age", "price", "name", "deleted_at", "is_vip", "score", "created_at", "tag" };
+    static final String[] OPS = { "=", "!=", "<>", ">", ">=", "<", "<=" };
+    static final String[] STRS = { "'active'", "'pending'", "\"vip\"", "'2020-01-01'", "'%foo%'", "'x'" };
+
+    static final int N = 100_000;
+    static final List<String> corpus = corpus(N, 42);
+
+    static List<String> corpus(int n, long seed) {
+        Random rnd = new Random(seed);
+        List<String> lst = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            lst.add(logical(rnd, 0));
+        }
+        return lst;
+    }
+
+    static String logical(Random rnd, int depth) {
+        StringBuilder buf = new StringBuilder();
+        int terms = 1 + rnd.nextInt(3);
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) buf.append(rnd.nextInt(3) == 0 ? " or " : " and ");
+            if (rnd.nextInt(8) == 0) buf.append("not ");
+            if (depth < 2 && rnd.nextInt(6) == 0) {
+                buf.append('(').append(logical(rnd, depth + 1)).append(')');
+            } else {
+                buf.append(factor(rnd));
+            }
+        }
+        return buf.toString();
+    }
+
+    static String factor(Random rnd) {
+        String id = IDS[rnd.nextInt(IDS.length)];
+        switch (rnd.nextInt(8)) {
+            case 0:  return id + " in (" + literal(rnd) + ", " + literal(rnd) + ", " + literal(rnd) + ")";
+            case 1:  return id + (rnd.nextBoolean() ? " like " : " not like ") + STRS[rnd.nextInt(STRS.length)];
+            case 2:  return id + (rnd.nextBoolean() ? " between " : " not between ") + rnd.nextInt(100) + " and " + (100 + rnd.nextInt(1000));
+            case 3:  return id + (rnd.nextBoolean() ? " is null" : " is not null");
+            case 4:  return id + (rnd.nextBoolean() ? " is true" : " is not true");
+            default: return id + " " + OPS[rnd.nextInt(OPS.length)] + " " + literal(rnd);
+        }
+    }
+
+    static String literal(Random rnd) {
+        switch (rnd.nextInt(4)) {
+            case 0:  return String.valueOf(rnd.nextInt(10000));
+            // 整数部分只有一位: IntLiteral 的 (?![.Ee]) 会回溯, 41.0 会被解析成 4
+            case 1:  return rnd.nextInt(10) + "." + rnd.nextInt(100);
+            case 2:  return STRS[rnd.nextInt(STRS.length)];
+            default: return "null";
+        }
+    }
+
+    static final Parsec1.Rule criteria1 = Criteria1.CriteriaGrammar;
+    static final Parsec1.Rule criteria1Factored = Criteria1.CriteriaGrammar.optimize();
+    static final Parsec2<Object, Character> criteria2 = Criteria2.CriteriaGrammar;
+    static final Parsec2<Object, Character> criteria2Optimized = Criteria2.CriteriaGrammar.optimize();
+
+    static int parseAll(Parsec1.Rule rule) {
+        int[] n = {0};
+        for (String src : corpus) {
+            rule.match(src, (s, r) -> n[0]++, (s, r) -> { throw new RuntimeException(src); });
+        }
+        return n[0];
+    }
+
+    static int parseAll(Parsec2<Object, Character> p) {
+        int n = 0;
+        for (String src : corpus) {
+            if (p.parse(src) != null) n++;
+        }
+        return n;
+    }
+
+    @Benchmark public int criteria1() { return parseAll(criteria1); }
+    @Benchmark public int criteria1Factored() { return parseAll(criteria1Factored); }
+    @Benchmark public int criteria2() { return parseAll(criteria2); }
+    @Benchmark public int criteria2Optimized() { return parseAll(criteria2Optimized); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(FactorBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
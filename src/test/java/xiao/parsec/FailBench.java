@@ -0,0 +1,59 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 失败为主的输入: 每个字符先试 3 个失败的分支再命中 Digit, Many 最后也以失败结束 <br>
+ * 配合 -prof gc 看每次失败的分配 (gc.alloc.rate.norm, B/op)
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class FailBench {
+
+    static String digits = digits(1000);
+
+    static String digits(int n) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; i++) buf.append((char) ('0' + i % 10));
+        return buf.toString();
+    }
+
+    static final Parsec2<List<Character>, Character> p2 = Parsec2.Combinators.Many(Parsec2.Combinators.Choose(
+            Parsec2.CharParsers.Ch('x'),
+            Parsec2.CharParsers.Ch('y'),
+            Parsec2.CharParsers.Ch('z'),
+            Parsec2.CharParsers.Digit
+    ));
+
+    static final Parsec3<List<Character>> p3 = Parsec3.Combinators.Many(Parsec3.Combinators.Choose(
+            Parsec3.CharParsers.Ch('x'),
+            Parsec3.CharParsers.Ch('y'),
+            Parsec3.CharParsers.Ch('z'),
+            Parsec3.CharParsers.Digit
+    ));
+
+    @Benchmark public Object parsec2() { return p2.parse(digits); }
+    @Benchmark public Object parsec3() { return p3.parse(digits); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(FailBench.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
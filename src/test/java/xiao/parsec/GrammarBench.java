@@ -0,0 +1,45 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsec1 闭包解释执行 vs @Grammar 编译时生成的递归下降 parser (JSON1Parser, Criteria1Parser), 结果一样
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class GrammarBench {
+
+    static String json = Utils.resource("/large.json").trim();
+    static String criteria = VMBench.criteria(100);
+
+    static Object parse(Parsec1.Rule rule, String src) {
+        Object[] ref = new Object[1];
+        rule.match(src, (s, r) -> ref[0] = r, (s, r) -> { throw new RuntimeException(r + ""); });
+        return ref[0];
+    }
+
+    @Benchmark public Object json1() { return parse(JSON1.JSONParser, json); }
+    @Benchmark public Object json1Generated() { return parse(JSON1Parser.JSONParser, json); }
+
+    @Benchmark public Object criteria1() { return parse(Criteria1.CriteriaGrammar, criteria); }
+    @Benchmark public Object criteria1Generated() { return parse(Criteria1Parser.CriteriaGrammar, criteria); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(GrammarBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
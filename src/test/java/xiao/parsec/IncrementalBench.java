@@ -0,0 +1,75 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1MB 的 JSON / Criteria, 中间改一个字符: 整个重新解析 vs Sequence.edit 之后增量重解析 <br>
+ * xxxEdit 模拟在同一处打字: 每次调用交替插入/删掉一个字符, 耗时包括拼接新文本
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class IncrementalBench {
+
+    static final int SIZE = 1 << 20;
+
+    static String json = json();
+    static String json() {
+        String one = Utils.resource("/large.json").trim();
+        return Utils.jsonArray(one, SIZE / one.length());
+    }
+    static String criteria = VMBench.criteria(SIZE / VMBench.criteria(1).length());
+
+    // 在字符串里插字符, 在数字里插一位
+    static final int jsonAt = json.indexOf("PersonnelObj", json.length() / 2) + 3;
+    static final int criteriaAt = criteria.indexOf("42", criteria.length() / 2) + 1;
+
+    Parsec2.Sequence<Character> jsonDoc;
+    Parsec2.Sequence<Character> criteriaDoc;
+    boolean jsonTyped;
+    boolean criteriaTyped;
+
+    @Setup
+    public void setup() {
+        jsonDoc = new Parsec2.Sequence<Character>(json).incremental();
+        JSON2.JSONParser.parse(jsonDoc);
+        criteriaDoc = new Parsec2.Sequence<Character>(criteria).incremental();
+        Criteria2.CriteriaGrammar.parse(criteriaDoc);
+    }
+
+    static Parsec2.Sequence<Character> type(Parsec2.Sequence<Character> doc, int at, boolean typed, String c) {
+        return typed ? doc.edit(at, 1, "") : doc.edit(at, 0, c);
+    }
+
+    @Benchmark public Object json2Full() { return JSON2.Parse(json); }
+    @Benchmark public Object json2Edit() {
+        jsonDoc = type(jsonDoc, jsonAt, jsonTyped, "X");
+        jsonTyped = !jsonTyped;
+        return JSON2.JSONParser.parse(jsonDoc);
+    }
+
+    @Benchmark public Object criteria2Full() { return Criteria2.Parse(criteria); }
+    @Benchmark public Object criteria2Edit() {
+        criteriaDoc = type(criteriaDoc, criteriaAt, criteriaTyped, "3");
+        criteriaTyped = !criteriaTyped;
+        return Criteria2.CriteriaGrammar.parse(criteriaDoc);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(IncrementalBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -29,7 +29,7 @@ public interface JSON {
     Rule jNull = Pat("null", s -> new JNull());
     Rule jBool = Pat("true|false", JBool::new);
     Rule jNum = Pat("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", JNum::new);
-    Rule jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", JStr::new);
+    Rule jStr = PatSpan("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", JStr::new);
 
     Rule jArr = Between(
             Pat("\\["),
@@ -108,8 +108,8 @@ public interface JSON {
     }
     class JStr implements JVal {
         final String val;
-        public JStr(String val) {
-            this.val = Utils.unEscape(val.substring(1, val.length() - 1), '"');
+        public JStr(CharSequence val) {
+            this.val = Utils.unEscape(val, 1, val.length() - 1, '"');
         }
         @Override public String toString() { return val; }
         @Override public boolean equals(Object o) {
@@ -155,6 +155,6 @@ public interface JSON {
         System.out.println(Parse("123.456e-789"));
         System.out.println(Parse("  "));
         System.out.println(Parse(Utils.resource("/small.json")));
-        System.out.println(Parse(Utils.resource("/large.json"))); // -Xss15M
+        System.out.println(Parse(Utils.resource("/large.json")));
     }
 }
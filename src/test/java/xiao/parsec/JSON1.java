@@ -23,19 +23,20 @@ import static xiao.parsec.Utils.unEscape;
  *   \A (?&json) \Z
  *   /
  */
+@Grammar
 public interface JSON1 {
     Rule WS = Whitespace();
     Rule jNull = Pat("null", s -> null);
     Rule jBool = Pat("true|false", "true"::equals);
-    Rule jNum = Pat("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
-        if (s.contains(".") || s.contains("e") || s.contains("E")) {
-            return Double.parseDouble(s);
+    Rule jNum = PatSpan("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
+        if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+            return s.toDouble();
         } else {
-            return Long.parseLong(s);
+            return s.toLong();
         }
     });
-    Rule jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
-        return unEscape(s.substring(1, s.length() - 1), '"');
+    Rule jStr = PatSpan("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
+        return unEscape(s.src, s.start + 1, s.end - 1, '"');
     });
 
     Rule jArr = Between(
@@ -63,17 +64,20 @@ public interface JSON1 {
             })
     );
 
+    // 只拼一次, Choose 的分派表才能复用
+    Rule jValue = Between(WS, WS, Choose(
+            jNull,
+            jNum,
+            jBool,
+            jStr,
+            jArr,
+            jObj
+    ));
+
     static Rule json() {
         // json 做成方法是因为属性循环引用
-        // 这里做 thunk 是因为 jArr 调用 json 时候, jObj 还是 null
-        return (s, m, f) -> Between(WS, WS, Choose(
-                jNull,
-                jNum,
-                jBool,
-                jStr,
-                jArr,
-                jObj
-        )).match(s, m, f);
+        // 这里做 thunk 是因为 jArr 调用 json 时候, jObj jValue 还是 null
+        return Thunk(() -> jValue);
     }
 
     Rule JSONParser = Optional(json()).over(EOF());
@@ -111,6 +115,6 @@ public interface JSON1 {
         System.out.println(Parse("123.456e-789"));
         System.out.println(Parse("  "));
         System.out.println(Parse(Utils.resource("/small.json")));
-        System.out.println(Parse(Utils.resource("/large.json"))); // -Xss15M
+        System.out.println(Parse(Utils.resource("/large.json")));
     }
 }
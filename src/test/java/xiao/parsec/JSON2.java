@@ -1,11 +1,14 @@
 package xiao.parsec;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 import static xiao.parsec.Parsec2.CharParsers.Pat;
+import static xiao.parsec.Parsec2.CharParsers.PatSpan;
+import static xiao.parsec.Parsec2.CharParsers.SkipPat;
 import static xiao.parsec.Parsec2.Combinators.*;
 import static xiao.parsec.Parsec2.Pair;
 import static xiao.parsec.Utils.unEscape;
@@ -26,19 +29,19 @@ import static xiao.parsec.Utils.unEscape;
  */
 public interface JSON2 {
     // Parsec2<Character, Character> WS = SkipMany(Whitespace);
-    Parsec2<String, Character> WS = Pat("\\s*");
+    Parsec2<Object, Character> WS = SkipPat("\\s*").memo("WS");
     Parsec2<String, Character> jNull = Pat("null");
     Parsec2<Boolean, Character> jBool = Pat("true|false", "true"::equals);
-    Parsec2<Number, Character> jNum = Pat("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
-        if (s.contains(".") || s.contains("e") || s.contains("E")) {
-            return Double.parseDouble(s);
+    Parsec2<Number, Character> jNum = PatSpan("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
+        if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+            return s.toDouble();
         } else {
-            return Long.parseLong(s);
+            return s.toLong();
         }
     });
-    Parsec2<String, Character> jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
-        return unEscape(s.substring(1, s.length() - 1), '"');
-    });
+    Parsec2<String, Character> jStr = PatSpan("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
+        return unEscape(s.src, s.start + 1, s.end - 1, '"');
+    }).memo("jStr");
     // \s 处理空数组
     Parsec2<List<Object>, Character> jArr = Between(
             Pat("\\["),
@@ -65,17 +68,21 @@ public interface JSON2 {
     );
 
 
+    // 只拼一次, Choose 的分派表才能复用
+    Parsec2<Object, Character> jValue = Between(WS, WS, Choose(
+            jNull,
+            jNum,
+            jBool,
+            jStr,
+            jArr,
+            jObj
+    ));
+
     static Parsec2<Object, Character> json() {
         // json 做成方法是因为属性循环引用
-        // 这里做 thunk 是因为 jArr 调用 json 时候, jObj 还是 null
-        return s -> Between(WS, WS, Choose(
-                jNull,
-                jNum,
-                jBool,
-                jStr,
-                jArr,
-                jObj
-        )).parse(s);
+        // 这里做 thunk 是因为 jArr 调用 json 时候, jObj jValue 还是 null
+        // memo 只在开启 packrat 时生效
+        return Thunk(() -> jValue).memo("json");
     }
 
     Parsec2<Optional<Object>, Character> JSONParser = Optional(json()).over(EOF());
@@ -84,6 +91,14 @@ public interface JSON2 {
         return JSONParser.parse(str).get();
     }
 
+    static Object Parse(String str, int maxMemoEntries) {
+        return JSONParser.parse(new Parsec2.Sequence<Character>(str).packrat(maxMemoEntries)).get();
+    }
+
+    static Object Parse(String str, int maxMemoEntries, BitSet rules) {
+        return JSONParser.parse(new Parsec2.Sequence<Character>(str).packrat(maxMemoEntries, rules)).get();
+    }
+
     // ================================================================================================
 
     static void main(String[] args) {
@@ -7,7 +7,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import static xiao.parsec.Parsec3.CharParsers.Ch;
 import static xiao.parsec.Parsec3.CharParsers.Pat;
+import static xiao.parsec.Parsec3.CharParsers.PatSpan;
+import static xiao.parsec.Parsec3.CharParsers.SkipPat;
 import static xiao.parsec.Parsec3.Combinators.*;
 import static xiao.parsec.Utils.unEscape;
 
@@ -27,18 +30,18 @@ import static xiao.parsec.Utils.unEscape;
  */
 public interface JSON3 {
     // Parsec3<Character, Character> WS = SkipMany(Whitespace);
-    Parsec3<String> WS = Pat("\\s*");
+    Parsec3<Object> WS = SkipPat("\\s*");
     Parsec3<String> jNull = Pat("null");
     Parsec3<Boolean> jBool = Pat("true|false", "true"::equals);
-    Parsec3<Number> jNum = Pat("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
-        if (s.contains(".") || s.contains("e") || s.contains("E")) {
-            return Double.parseDouble(s);
+    Parsec3<Number> jNum = PatSpan("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?", s -> {
+        if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+            return s.toDouble();
         } else {
-            return Long.parseLong(s);
+            return s.toLong();
         }
     });
-    Parsec3<String> jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
-        return unEscape(s.substring(1, s.length() - 1), '"');
+    Parsec3<String> jStr = PatSpan("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
+        return unEscape(s.src, s.start + 1, s.end - 1, '"');
     });
     // \s 处理空数组
     Parsec3<List<Object>> jArr = Between(
@@ -69,14 +72,14 @@ public interface JSON3 {
     static Parsec3<Object> json() {
         // json 做成方法是因为属性循环引用
         // 这里做 thunk 是因为 jArr 调用 json 时候, jObj 还是 null
-        return s -> Between(WS, WS, Choose(
+        return Thunk(() -> Between(WS, WS, Choose(
                 jNull,
                 jNum,
                 jBool,
                 jStr,
                 jArr,
                 jObj
-        )).parse(s);
+        )));
     }
 
     Parsec3<Optional<Object>> JSONParser = Optional(json()).over(EOF());
@@ -85,6 +88,52 @@ public interface JSON3 {
         return JSONParser.parse(str).get();
     }
 
+    /**
+     * 同一个语法, 空白和标点换成按 char 的原语 (SkipWhile, Ch), 值还是正则, 见 Json3Bench
+     */
+    interface Chars {
+        Parsec3<String> WS = SkipWhile(Character::isWhitespace);
+        Parsec3<List<Object>> jArr = Between(
+                Ch('['),
+                WS.then(Ch(']')),
+                SepBy(json(), Ch(','))
+        );
+        Parsec3<Pair<String, Object>> jPair = Seq(
+                Between(WS, WS, jStr),
+                Ch(':'),
+                json(),
+                (k, colon, v) -> new Pair<>(k, v)
+        );
+        Parsec3<Map<String, Object>> jObj = Between(
+                Ch('{'),
+                WS.then(Ch('}')),
+                SepBy(jPair, Ch(',')).map(lst -> {
+                    Map<String, Object> map = new HashMap<>();
+                    for (Pair<String, Object> pair : lst) {
+                        map.put(pair.car, pair.cdr);
+                    }
+                    return map;
+                })
+        );
+
+        static Parsec3<Object> json() {
+            return Thunk(() -> Between(WS, WS, Choose(
+                    jNull,
+                    jNum,
+                    jBool,
+                    jStr,
+                    jArr,
+                    jObj
+            )));
+        }
+
+        Parsec3<Optional<Object>> JSONParser = Optional(json()).over(EOF());
+    }
+
+    static Object ParseChars(String str) {
+        return Chars.JSONParser.parse(str).get();
+    }
+
     // ================================================================================================
 
     static void main(String[] args) {
@@ -109,5 +158,14 @@ public interface JSON3 {
         // System.out.println(Parse("  "));
         System.out.println(Parse(Utils.resource("/small.json")));
         System.out.println(Parse(Utils.resource("/large.json")));
+
+        String large = Utils.resource("/large.json");
+        if (!Parse(large).equals(ParseChars(large))) throw new RuntimeException();
+        i = 0;
+        try { ParseChars("{\"a\":}"); i++; } catch (RuntimeException ignored) {}
+        try { ParseChars("[12,,1]"); i++; } catch (RuntimeException ignored) {}
+        try { ParseChars("[12,]"); i++; } catch (RuntimeException ignored) {}
+        if (i > 0) throw new RuntimeException();
+        System.out.println(ParseChars("[1, [], [1], {} , { \"k\" : [ ] }]"));
     }
 }
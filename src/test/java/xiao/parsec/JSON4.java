@@ -39,7 +39,7 @@ public interface JSON4 {
         }
     });
     Parsec4<String, Character> jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", s -> {
-        return unEscape(s.substring(1, s.length() - 1), '"');
+        return unEscape(s, 1, s.length() - 1, '"');
     });
     // \s 处理空数组
     Parsec4<List<Object>, Character> jArr = Between(
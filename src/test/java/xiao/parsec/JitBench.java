@@ -0,0 +1,176 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static xiao.parsec.Utils.unEscape;
+
+/**
+ * ParsecJit 编译前后对比 JSON2, 以手写的递归下降 (结果和 JSON2 一样: HashMap, List, Long/Double, 反转义的 String) 为基准
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class JitBench {
+
+    static String json = Utils.resource("/large.json").trim();
+
+    static final Parsec2<?, Character> json2Optimized = JSON2.JSONParser.optimize();
+    static final Parsec2<?, Character> json2Compiled = ParsecJit.compile(JSON2.JSONParser);
+    static final Parsec2<?, Character> json2OptimizedCompiled = ParsecJit.compile(JSON2.JSONParser.optimize());
+
+    @Benchmark public Object json2() { return JSON2.JSONParser.parse(json); }
+    @Benchmark public Object json2Optimized() { return json2Optimized.parse(json); }
+    @Benchmark public Object json2Compiled() { return json2Compiled.parse(json); }
+    @Benchmark public Object json2OptimizedCompiled() { return json2OptimizedCompiled.parse(json); }
+    @Benchmark public Object handWritten() { return new RecursiveDescent(json).parse(); }
+
+    static final class RecursiveDescent {
+        final String src;
+        int pos;
+
+        RecursiveDescent(String src) {
+            this.src = src;
+        }
+
+        Object parse() {
+            Object v = value();
+            ws();
+            if (pos != src.length()) throw error();
+            return v;
+        }
+
+        Object value() {
+            ws();
+            if (pos >= src.length()) throw error();
+            char c = src.charAt(pos);
+            switch (c) {
+                case '{': return object();
+                case '[': return array();
+                case '"': return string();
+                case 't': return keyword("true", true);
+                case 'f': return keyword("false", false);
+                case 'n': return keyword("null", null);
+                default:  return number();
+            }
+        }
+
+        Map<String, Object> object() {
+            Map<String, Object> map = new HashMap<>();
+            pos++;
+            ws();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            do {
+                ws();
+                if (peek() != '"') throw error();
+                String k = string();
+                ws();
+                expect(':');
+                map.put(k, value());
+                ws();
+            } while (accept(','));
+            expect('}');
+            return map;
+        }
+
+        List<Object> array() {
+            List<Object> lst = new ArrayList<>();
+            pos++;
+            ws();
+            if (peek() == ']') {
+                pos++;
+                return lst;
+            }
+            do {
+                lst.add(value());
+                ws();
+            } while (accept(','));
+            expect(']');
+            return lst;
+        }
+
+        String string() {
+            int start = ++pos;
+            boolean escaped = false;
+            for (char c; (c = src.charAt(pos)) != '"'; pos++) {
+                if (c == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+            }
+            String s = src.substring(start, pos++);
+            return escaped ? unEscape(s, '"') : s;
+        }
+
+        Object number() {
+            int start = pos;
+            boolean dbl = false;
+            if (peek() == '-') pos++;
+            for (; pos < src.length(); pos++) {
+                char c = src.charAt(pos);
+                if (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                    dbl = true;
+                } else if (c < '0' || c > '9') {
+                    break;
+                }
+            }
+            if (pos == start) throw error();
+            String s = src.substring(start, pos);
+            return dbl ? (Object) Double.parseDouble(s) : (Object) Long.parseLong(s);
+        }
+
+        Object keyword(String word, Object value) {
+            if (!src.startsWith(word, pos)) throw error();
+            pos += word.length();
+            return value;
+        }
+
+        void ws() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+        }
+
+        char peek() {
+            return pos < src.length() ? src.charAt(pos) : 0;
+        }
+
+        boolean accept(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!accept(c)) throw error();
+        }
+
+        RuntimeException error() {
+            return new IllegalArgumentException("at " + pos);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(JitBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
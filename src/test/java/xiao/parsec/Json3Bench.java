@@ -0,0 +1,45 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static xiao.parsec.Parsec3.CharParsers.Whitespace;
+import static xiao.parsec.Parsec3.Combinators.*;
+
+/**
+ * JSON3: 空白和标点走正则 vs 按 char 的原语 (SkipWhile, Ch); 以及跳过空白的几种写法
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class Json3Bench {
+
+    static String json = Utils.resource("/large.json");
+    static String spaces = json.replaceAll("\\S", " ");
+
+    static final Parsec3<Character> skipMany = SkipMany(Whitespace);
+    static final Parsec3<Character> skipWhile = SkipWhile(Character::isWhitespace);
+
+    @Benchmark public Object json3() { return JSON3.Parse(json); }
+    @Benchmark public Object json3Chars() { return JSON3.ParseChars(json); }
+
+    @Benchmark public Object skipMany() { return skipMany.parse(spaces); }
+    @Benchmark public Object skipWhile() { return skipWhile.parse(spaces); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(Json3Bench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,93 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsec2 packrat 开关对比: Criteria2 回溯多 (Factor 分支共享 IdLiteral 前缀), JSON2 基本不回溯 <br>
+ * xxxSelective 只记忆 MemoProfile 挑出来的规则 <br>
+ * main 里顺便打印一次命中/未命中计数和各规则的统计
+ */
+@SuppressWarnings({"WeakerAccess", "unchecked"})
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class PackratBench {
+
+    static final int MEMO_ENTRIES = 1 << 16;
+
+    static String json = Utils.resource("/large.json").trim();
+    static String criteria = VMBench.criteria(100);
+
+    // P = '(' P ')' 'x' | '(' P ')' 'y' | 'z', 输入全是 y 结尾, 不记忆时每层都要把里面重解析一遍, 2^depth
+    static final int DEPTH = 16;
+    static String nested = nested(DEPTH);
+    static String nested(int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++) buf.append('(');
+        buf.append('z');
+        for (int i = 0; i < depth; i++) buf.append(")y");
+        return buf.toString();
+    }
+    static final Parsec2<Character, Character> nestedP = nestedP();
+    static Parsec2<Character, Character> nestedP() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Parsec2<Character, Character>[] ref = new Parsec2[1];
+        Parsec2<Character, Character> inner = Parsec2.Combinators.Between(
+                Parsec2.CharParsers.Ch('('), Parsec2.CharParsers.Ch(')'), Parsec2.Combinators.Thunk(() -> ref[0])).memo();
+        ref[0] = Parsec2.Combinators.Choose(
+                inner.then(Parsec2.CharParsers.Ch('x')),
+                inner.then(Parsec2.CharParsers.Ch('y')),
+                Parsec2.CharParsers.Ch('z'));
+        return ref[0];
+    }
+
+    // 先插桩跑几遍 (顺便预热), 再按统计挑出值得记忆的规则
+    static final Parsec2.MemoProfile criteriaProfile = new Parsec2.MemoProfile();
+    static final Parsec2.MemoProfile jsonProfile = new Parsec2.MemoProfile();
+    static final BitSet criteriaRules = select(criteriaProfile, Criteria2.CriteriaGrammar, criteria);
+    static final BitSet jsonRules = select(jsonProfile, JSON2.JSONParser, json);
+    static BitSet select(Parsec2.MemoProfile profile, Parsec2<?, Character> p, String src) {
+        for (int i = 0; i < 10; i++) {
+            p.parse(new Parsec2.Sequence<Character>(src).profile(profile));
+        }
+        return profile.select();
+    }
+
+    @Benchmark public Object criteria2() { return Criteria2.Parse(criteria); }
+    @Benchmark public Object criteria2Packrat() { return Criteria2.Parse(criteria, MEMO_ENTRIES); }
+    @Benchmark public Object criteria2Selective() { return Criteria2.Parse(criteria, MEMO_ENTRIES, criteriaRules); }
+
+    @Benchmark public Object nested() { return nestedP.parse(nested); }
+    @Benchmark public Object nestedPackrat() { return nestedP.parse(new Parsec2.Sequence<Character>(nested).packrat(MEMO_ENTRIES)); }
+
+    @Benchmark public Object json2() { return JSON2.Parse(json); }
+    @Benchmark public Object json2Packrat() { return JSON2.Parse(json, MEMO_ENTRIES); }
+    @Benchmark public Object json2Selective() { return JSON2.Parse(json, MEMO_ENTRIES, jsonRules); }
+
+    public static void main(String[] args) throws RunnerException {
+        Parsec2.Sequence<Character> s = new Parsec2.Sequence<Character>(criteria).packrat(MEMO_ENTRIES);
+        Criteria2.CriteriaGrammar.parse(s);
+        System.out.println("criteria2: " + s.memo());
+        Parsec2.Sequence<Character> s1 = new Parsec2.Sequence<Character>(json).packrat(MEMO_ENTRIES);
+        JSON2.JSONParser.parse(s1);
+        System.out.println("json2: " + s1.memo());
+        System.out.println("criteria2 profile:\n" + criteriaProfile.report(criteriaRules));
+        System.out.println("json2 profile:\n" + jsonProfile.report(jsonRules));
+
+        Options opt = new OptionsBuilder()
+                .include(PackratBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
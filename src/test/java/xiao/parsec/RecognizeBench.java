@@ -0,0 +1,49 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一个语法完整解析 vs recognizer() 只识别, 配合 -prof gc 看分配 (gc.alloc.rate.norm, B/op)
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RecognizeBench {
+
+    static String json = Utils.resource("/large.json").trim();
+    static String criteria = VMBench.criteria(20);
+
+    static final Parsec1.Rule json1 = JSON1.JSONParser.recognizer();
+    static final Parsec2<?, Character> json2 = JSON2.JSONParser.recognizer();
+    static final Parsec1.Rule criteria1 = Criteria1.CriteriaGrammar.recognizer();
+    static final Parsec2<?, Character> criteria2 = Criteria2.CriteriaGrammar.recognizer();
+
+    @Benchmark public Object json1Parse() { return JSON1.Parse(json); }
+    @Benchmark public int json1Recognize() { return json1.recognize(json); }
+    @Benchmark public Object json2Parse() { return JSON2.Parse(json); }
+    @Benchmark public int json2Recognize() { return json2.recognize(json); }
+    @Benchmark public Object criteria1Parse() { return Criteria1.Parse(criteria); }
+    @Benchmark public int criteria1Recognize() { return criteria1.recognize(criteria); }
+    @Benchmark public Object criteria2Parse() { return Criteria2.CriteriaGrammar.parse(criteria); }
+    @Benchmark public int criteria2Recognize() { return criteria2.recognize(criteria); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(RecognizeBench.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,86 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 同一组正则按 JSON1 的词法切 large.json: java.util.regex (复用 Matcher, region + lookingAt) vs DFA 查表
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RegexBench {
+
+    static String json = Utils.resource("/large.json");
+
+    static final Pattern[] pats = {
+            Pattern.compile("\\s+"),
+            Pattern.compile("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\""),
+            Pattern.compile("-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?"),
+            Pattern.compile("true|false|null|[\\[\\]{}:,]"),
+    };
+    static final DFA[] dfas = new DFA[pats.length];
+    static {
+        for (int i = 0; i < pats.length; i++) {
+            dfas[i] = DFA.compile(pats[i]);
+        }
+    }
+
+    @Benchmark
+    public int regex() {
+        Matcher[] ms = new Matcher[pats.length];
+        for (int i = 0; i < pats.length; i++) {
+            ms[i] = pats[i].matcher(json);
+        }
+        int n = 0, pos = 0, len = json.length();
+        next:
+        while (pos < len) {
+            for (Matcher m : ms) {
+                if (m.region(pos, len).lookingAt()) {
+                    pos = m.end();
+                    n++;
+                    continue next;
+                }
+            }
+            throw new IllegalStateException("at " + pos);
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int dfa() {
+        int n = 0, pos = 0, len = json.length();
+        next:
+        while (pos < len) {
+            for (DFA d : dfas) {
+                int end = d.match(json, pos, len);
+                if (end >= 0) {
+                    pos = end;
+                    n++;
+                    continue next;
+                }
+            }
+            throw new IllegalStateException("at " + pos);
+        }
+        return n;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(RegexBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,44 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * large.json 复制 copies 份, 观察输入翻倍时耗时是否线性增长
+ * 状态是 String 后缀时, 每次匹配都会 substring 剩余输入, 耗时随规模平方增长
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class StateBench {
+
+    @Param({"1", "4", "16"})
+    public int copies;
+
+    String json;
+
+    @Setup public void setup() { json = Utils.jsonArray(Utils.resource("/large.json"), copies); }
+
+    @Benchmark public Object json() { return JSON.Parse(json); }
+    @Benchmark public Object json1() { return JSON1.Parse(json); }
+    @Benchmark public Object json2() { return JSON2.Parse(json); }
+    @Benchmark public Object json3() { return JSON3.Parse(json); }
+    @Benchmark public Object json4() { return JSON4.Parse(json); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(StateBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
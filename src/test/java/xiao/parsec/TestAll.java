@@ -13,6 +13,7 @@ public interface TestAll {
         TestParsec.main(args);
         TestParsec1.main(args);
         TestParsec2.main(args);
+        TestParsec3.main(args);
         TestParsec4.main(args);
     }
 }
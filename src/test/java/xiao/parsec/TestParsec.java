@@ -19,19 +19,19 @@ public class TestParsec {
 
     static Cont kStr(String state, String rStr) {
         return (s, r) -> {
-            assert Objects.equals(s, state);
+            assert Objects.equals(s.rest(), state);
             assert strEq(rStr, r);
         };
     }
     static Cont kLst(String state, int sz) {
         return (s, r) -> {
-            assert Objects.equals(s, state);
+            assert Objects.equals(s.rest(), state);
             assert lstSz(sz, r);
         };
     }
     static Cont kNull(String state) {
         return (s, r) -> {
-            assert Objects.equals(s, state);
+            assert Objects.equals(s.rest(), state);
             assert r == null;
         };
     }
@@ -45,7 +45,7 @@ public class TestParsec {
 
     static Cont onFail = (s, r) -> {
         FailRet fr = (FailRet) r;
-        throw new RuntimeException("expected: " + fr.expected + ", state: " + fr.state);
+        throw new RuntimeException("expected: " + fr.expected + ", pos: " + fr.pos);
     };
 
     static void test_choose() {
@@ -54,12 +54,22 @@ public class TestParsec {
         aOrb.match("c", (s, r) -> {
             throw new RuntimeException();
         }, (s, r) -> {
-            assert "c".equals(s);
+            assert s.pos == 0 && ((FailRet) r).pos == 0;
             List<String> expected = ((FailRet) r).expected;
             assert expected.size() == 2 && expected.get(0).equals("a") && expected.get(1).equals("b");
         });
     }
 
+    static void test_fail_pos() {
+        Rule ab = Rules.Pat("a", StrRet::new).then(Rules.Pat("b", StrRet::new));
+        ab.match("ac", (s, r) -> {
+            throw new RuntimeException();
+        }, (s, r) -> {
+            assert s.pos == 1 && ((FailRet) r).pos == 1;
+            assert ((FailRet) r).expected.get(0).equals("b");
+        });
+    }
+
     static void test_over() {
         Rules.Pat("a", StrRet::new).over(Rules.Whitespace()).match("a   ", kStr("", "a"), onFail);
     }
@@ -108,6 +118,13 @@ public class TestParsec {
         Rules.Many(Rules.Pat("a", StrRet::new)).match("aaaaa", kLst("", 5), onFail);
     }
 
+    // 蹦床执行, 栈深度与输入长度无关, 不需要 -Xss
+    static void test_many_trampoline() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100000; i++) buf.append('a');
+        Rules.Many(Rules.Pat("a", StrRet::new)).match(buf.toString(), kLst("", 100000), onFail);
+    }
+
     static void test_many1() {
         fail(() -> Rules.Many1(Rules.Pat("a", StrRet::new)).match("", (s, r) -> { }, onFail));
         Rules.Many1(Rules.Pat("a", StrRet::new)).match("a", kLst("", 1), onFail);
@@ -1,6 +1,14 @@
 package xiao.parsec;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static xiao.parsec.Parsec1.*;
 import static xiao.parsec.Parsec1.Rules.*;
@@ -53,6 +61,548 @@ public interface TestParsec1 {
         expr_test(EXPR_R);
     }
 
+    static void test_state_offset() {
+        Rule ab = Seq(Pat("a+", String::valueOf), Pat("b"), (a, b) -> a);
+        ab.match("aaabc", (s, r) -> {
+            assert s.pos == 4 && "c".equals(s.rest());
+            assert "aaa".equals(r);
+        }, onFail);
+
+        // region 使用 anchoring bounds, \A 从当前位置算起, 与匹配剩余后缀一致
+        Pat("a").then(Pat("\\Ab")).match("ab", (s, r) -> {
+            assert s.isEmpty();
+        }, onFail);
+
+        AnyChar().then(LookAhead(AnyChar())).match("xy", (s, r) -> {
+            assert s.pos == 1 && "y".equals(r);
+        }, onFail);
+    }
+
+    static Rule brackets() {
+        return Optional(Between(Pat("\\("), Pat("\\)"), (s, m, f) -> brackets().match(s, m, f)));
+    }
+
+    // 蹦床执行, 栈深度与输入长度、嵌套深度无关, 不需要 -Xss
+    static void test_trampoline() {
+        int n = 100000;
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; i++) buf.append('(');
+        for (int i = 0; i < n; i++) buf.append(')');
+        int[] cnt = new int[1];
+        brackets().over(EOF()).match(buf.toString(), (s, r) -> cnt[0]++, onFail);
+        assert cnt[0] == 1;
+
+        Many(Pat("a", String::valueOf)).match(buf.toString().replace('(', 'a'), (s, r) -> {
+            assert s.pos == n && ((List<?>) r).size() == n;
+        }, onFail);
+    }
+
+    // 递归要经过同一个 Rule 对象, 每次 new 的话编译时会无限展开
+    Rule VM_BRACKETS = Optional(Between(Pat("\\("), Pat("\\)"), Thunk(() -> TestParsec1.VM_BRACKETS)));
+
+    // expr -> expr - num | num, 直接写左递归
+    Rule LEFT_REC = Memo(Choose(
+            Seq(Thunk(() -> TestParsec1.LEFT_REC), Pat("\\s*-\\s*"), Pat("\\d+", Integer::parseInt), (l, op, r) -> new Triple("-", l, r)),
+            Pat("\\d+", Integer::parseInt)
+    ));
+
+    Rule LEFT_REC_NULLABLE = Memo(Choose(Seq(Pat("\\s*"), Thunk(() -> TestParsec1.LEFT_REC_NULLABLE), Pat("\\+"), (a, b, c) -> null), Pat("1")));
+    Rule LEFT_REC_INDIRECT = Choose(Seq(Optional(Pat("-")), Thunk(() -> TestParsec1.LEFT_REC_INDIRECT_), (a, b) -> null), Pat("1"));
+    Rule LEFT_REC_INDIRECT_ = Seq(Many(Pat(" ")), Thunk(() -> TestParsec1.LEFT_REC_INDIRECT), (a, b) -> null);
+
+    static int nestedCalls(boolean memo, int depth) {
+        // p = '(' p ')' 'x' | '(' p ')' 'y' | 'z', 不记忆时每层都要把里面重解析一遍
+        int[] calls = {0};
+        Rule[] ref = new Rule[1];
+        Rule inner = Between(Pat("\\("), Pat("\\)"), Thunk(() -> ref[0])).map(r -> { calls[0]++; return r; });
+        if (memo) inner = Memo(inner);
+        ref[0] = Choose(inner.then(Pat("x")), inner.then(Pat("y")), Pat("z"));
+
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++) buf.append('(');
+        buf.append('z');
+        for (int i = 0; i < depth; i++) buf.append(")y");
+        ref[0].over(EOF()).match(buf.toString(), (s, r) -> {}, onFail);
+        return calls[0];
+    }
+
+    static void test_memo() {
+        LEFT_REC.over(EOF()).match("1 - 2 - 3", (s, r) -> {
+            assert "(-, (-, 1, 2), 3)".equals(r.toString());
+        }, onFail);
+        LEFT_REC.match("7 -", (s, r) -> {
+            assert s.pos == 1 && Integer.valueOf(7).equals(r);
+        }, onFail);
+        assert !closureMatch(LEFT_REC, "- 1");
+
+        // 结果相同, 调用次数从 2^n 变成 n
+        assert nestedCalls(false, 10) == (1 << 11) - 2;
+        assert nestedCalls(true, 10) == 10;
+    }
+
+    static boolean closureMatch(Rule rule, String src) {
+        boolean[] ok = new boolean[1];
+        rule.match(src, (s, r) -> ok[0] = true, (s, r) -> ok[0] = false);
+        return ok[0];
+    }
+
+    static void test_vm() {
+        ParsecVM json = ParsecVM.compile(JSON1.JSONParser);
+        for (String src : new String[] {
+                "null", "true", "-12345.123E23", "\"123Hello\\t🍺\"", "[1, [], [1], [1, 2], [1, 2, 3]]",
+                "{}", "{\"k1\":1, \"k2\":2}", "", Utils.resource("/large.json").trim(),
+                "{\"a\":}", "[12,,1]", "[12,]", "[1 2]", "{\"a\" 1}" }) {
+            assert json.recognize(src) == closureMatch(JSON1.JSONParser, src) : src;
+        }
+        assert !json.recognize("[12,]");
+
+        ParsecVM criteria = ParsecVM.compile(Criteria1.CriteriaGrammar);
+        for (String src : new String[] {
+                "id > 1 or id < 2 and id = 3 or id > 5", "a > 1 or (b < 2 and not c >= 3) and not d < 4",
+                "id not in(1,2)", "(((  (   (((id = 2))) and b < 1   ) or (c in (1)) and name = 'xiaofeng')))",
+                "i between 10 and 20", "a is not null", "a >", "(a = 1", "a = 1 and" }) {
+            assert criteria.recognize(src) == closureMatch(Criteria1.CriteriaGrammar, src) : src;
+        }
+
+        // 有序选择, 选中后不再回溯
+        assert ParsecVM.compile(Choose(Pat("a"), Pat("ab")).over(EOF())).match("ab") == -1;
+        assert ParsecVM.compile(Choose(Pat("ab"), Pat("a"))).match("ab") == 2;
+        assert ParsecVM.compile(Pat("a").then(LookAhead(Pat("b")))).match("ab") == 1;
+        assert ParsecVM.compile(Pat("a").then(NotFollowedBy(Pat("b")))).match("ab") == -1;
+        assert ParsecVM.compile(AnyChar().manyTill(Pat(";"))).match("abc;d") == 4;
+        assert ParsecVM.compile(Pat("\\d+").sepEndBy(Pat(","))).match("1,2,3,x") == 6;
+        assert ParsecVM.compile(Pat("\\d+").chainl1(Pat("\\+"), (op, x, y) -> null)).match("1+2+") == 3;
+
+        // 可以翻译的正则不走 java regex, 需要回溯的退回 PAT
+        assert !ParsecVM.compile(Pat("\\s*\\]|true|[^\"\\\\]+")).toString().contains("pat");
+        ParsecVM backtrack = ParsecVM.compile(Pat("a*a"));
+        assert backtrack.toString().contains("pat") && backtrack.match("aaa") == 3;
+        // 字符类范围的两头可以是转义, 和 java regex 一样
+        assert !ParsecVM.compile(Pat("[\\t-\\r]")).toString().contains("pat");
+        for (String re : new String[] { "[\\t-\\r]+", "[^\\t-\\r]+", "[\\--/]+", "[\\d-z]+", "[\\]-a]+" }) {
+            ParsecVM vm = ParsecVM.compile(Pat(re));
+            for (String src : new String[] { "\n\t", "-", "-./0", "z-", "a]", "\r" }) {
+                Matcher m = Pattern.compile(re).matcher(src);
+                assert vm.match(src) == (m.lookingAt() ? m.end() : -1) : re + " " + src;
+            }
+        }
+        // 补充平面的字符 java regex 当一个码点匹配
+        for (String re : new String[] { "\"[^\"]\"", "x.y", "a?[^a]?b", "[^\"]+\"", "\\S+", "[\\x{1F600}]" }) {
+            ParsecVM vm = ParsecVM.compile(Pat(re));
+            for (String src : new String[] { "\"\uD83D\uDE00\"", "x\uD83D\uDE00y", "\uD83D\uDE00b", "\uD83D\uDE00\uD83D\uDE00\"", "\uD83D\"", "\uD83D\uDE00" }) {
+                Matcher m = Pattern.compile(re, Pattern.DOTALL).matcher(src);
+                assert vm.match(src) == (m.lookingAt() ? m.end() : -1) : re + " " + src;
+                assert (vm.match(src) >= 0) == closureMatch(Pat(re), src) : re + " " + src;
+            }
+        }
+
+        // 显式栈, 嵌套深度不受线程栈限制
+        int n = 100000;
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; i++) buf.append('(');
+        for (int i = 0; i < n; i++) buf.append(')');
+        assert ParsecVM.compile(VM_BRACKETS.over(EOF())).recognize(buf.toString());
+
+        // 闭包看不到结构
+        try {
+            ParsecVM.compile(brackets());
+            assert false;
+        } catch (UnsupportedOperationException ignored) { }
+        // 没有 tabling, 左递归 (也包括隔着能匹配空串的规则, 间接的) 编译时拒绝; 消耗了输入再递归的可以
+        for (Rule leftRec : new Rule[] { LEFT_REC, LEFT_REC_NULLABLE, LEFT_REC_INDIRECT }) {
+            try {
+                ParsecVM.compile(leftRec);
+                assert false;
+            } catch (UnsupportedOperationException ignored) { }
+        }
+        assert ParsecVM.compile(VM_BRACKETS).match("(())") == 4;
+    }
+
+    // 失败只比较位置, 拍平 Choose 之后报错信息里 <|> 的嵌套会变
+    static Object result(Rule rule, String src) {
+        Object[] ref = new Object[1];
+        rule.match(src, (s, r) -> ref[0] = r, (s, r) -> ref[0] = "fail@" + s.pos);
+        return ref[0];
+    }
+
+    static String error(Rule rule, String src) {
+        String[] ref = new String[1];
+        rule.match(src, (s, r) -> ref[0] = null, (s, r) -> ref[0] = r.toString());
+        return ref[0];
+    }
+
+    static void test_passes() {
+        Rule a = Pat("a"), b = Pat("b"), c = Pat("c");
+
+        // a <|> b <|> c 拍平成一个节点, 报错信息和 Choose(a, b, c) 一样
+        Node choose = (Node) Choose(Choose(a, b), c).optimize();
+        assert choose.kind == Node.Kind.Choose && choose.rules.length == 3;
+        assert error(choose, "x").equals(error(Choose(a, b, c), "x"));
+
+        // map(f).map(g) 合并
+        Node map = (Node) Pat("\\d+", it -> it).map(r -> Integer.parseInt((String) r)).map(i -> (Integer) i + 1).optimize();
+        assert map.kind == Node.Kind.Map && map.rules[0] instanceof Node && ((Node) map.rules[0]).kind == Node.Kind.Pat;
+        assert Integer.valueOf(43).equals(result(map, "42"));
+
+        // open.then(p).over(close) 变成一个三元 Seq
+        Node between = (Node) Passes.Optimize(Pat("\\(").then(Pat("a", it -> it)).over(Pat("\\)")), Passes.CollapseBetween);
+        assert between.kind == Node.Kind.Seq && between.rules.length == 3 && between.mapper == Middle;
+        assert "a".equals(result(between, "(a)"));
+
+        // 相邻的正则合并成一个, 两边的括号不捕获; 失败时走原来的 Seq, 报错一样
+        Node fused = (Node) Pat("\\(").then(Pat("a", it -> it)).over(Pat("\\)")).optimize();
+        assert fused.kind == Node.Kind.Regex && fused.rules.length == 0;
+        assert "(?>(?s:\\())(?>((?s:a)))(?>(?s:\\)))".equals(((Pattern) fused.arg).pattern());
+        assert "a".equals(result(fused, "(a)"));
+        for (String src : new String[] { "(b)", "(a", "", "(a]" }) {
+            assert error(fused, src).equals(error(between, src)) : src;
+        }
+        // flags 跟着各自的正则, 每一段还是固化的: [a-z]+ 不会为了后面的 z 让出字符
+        Rule words = Seq(Pat("(?i)[a-z]+", it -> it), Pat("z", it -> it), Pair::new);
+        assert ((Node) words.optimize()).kind == Node.Kind.Regex;
+        for (String src : new String[] { "ABz", "abz", "z", "ab" }) {
+            assert String.valueOf(result(words.optimize(), src)).equals(String.valueOf(result(words, src))) : src;
+        }
+        // 只有相邻两个是正则: 合并那两个
+        Rule mixed = Seq(Pat("\\[", it -> it), Pat("\\d+", Integer::parseInt), Many(Pat(",")), (x, y, z) -> x + "" + y + z);
+        Node part = (Node) mixed.optimize();
+        assert part.kind == Node.Kind.Seq && part.rules.length == 2 && ((Node) part.rules[0]).kind == Node.Kind.Regex;
+        assert "[42[null, null]".equals(result(part, "[42,,")) && result(part, "[x").equals(result(mixed, "[x"));
+        // 和起点, 分组编号有关的正则不合并
+        assert ((Node) Pat("a").then(Pat("\\bb")).optimize()).kind == Node.Kind.Seq;
+        assert ((Node) Pat("(a)\\1").then(Pat("b")).optimize()).kind == Node.Kind.Seq;
+
+        // 递归的语法, 优化前后结果一样, 也还能编译成 VM 指令
+        Rule json = JSON1.JSONParser.optimize();
+        String large = Utils.resource("/large.json").trim();
+        for (String src : new String[] { "null", "[1, [], [1, 2]]", "{\"k1\":1, \"k2\":[true]}", "", large, "[12,]", "{\"a\" 1}" }) {
+            assert String.valueOf(result(json, src)).equals(String.valueOf(result(JSON1.JSONParser, src))) : src;
+        }
+        assert ParsecVM.compile(json).recognize(large);
+
+        // 提取公共前缀之后失败的位置也一样, 跑两遍, 第二遍 Choose 已经按 FIRST 集分派
+        Rule criteria = Criteria1.CriteriaGrammar.optimize();
+        for (int round = 0; round < 2; round++) {
+            for (String src : new String[] {
+                    "a > 1 or (b < 2 and not c >= 3) and not d < 4", "id not in(1,2)", "i between 10 and 20",
+                    "a is not null", "a >", "(a = 1", "a between 1", "a like", "a not like", "a is nul", "not" }) {
+                String expected = String.valueOf(result(Criteria1.CriteriaGrammar, src)), actual = String.valueOf(result(criteria, src));
+                assert actual.equals(expected) : src + ": " + actual + " != " + expected;
+            }
+        }
+        assert String.valueOf(result(criteria, VMBench.criteria(20))).equals(String.valueOf(result(Criteria1.CriteriaGrammar, VMBench.criteria(20))));
+        assert ParsecVM.compile(criteria).recognize("x in (42, 3.14, null, 'str')");
+
+        // 公共前缀只解析一次: Choose(Seq(id, x), num, Seq(id, y)) -> Choose(num, Seq(id, Choose(x, y))), num 和 id 开头的 FIRST 集不相交
+        int[] ids = {0};
+        Rule id = Pat("[a-z]+", it -> { ids[0]++; return it; });
+        Rule num = Pat("\\d+", it -> it);
+        Node factored = (Node) Choose(Seq(id, Pat("=", it -> it), Pair::new), num, Seq(id, Pat("<", it -> it), (x, y) -> y + "" + x)).optimize();
+        assert factored.kind == Node.Kind.Choose && factored.rules.length == 2 && factored.rules[0] == num;
+        assert "<x".equals(result(factored, "x<")) && ids[0] == 1;
+        assert "(x, =)".equals(String.valueOf(result(factored, "x="))) && "1".equals(result(factored, "1"));
+        // 结构相同的前缀也算, e.g. 两次 Pat("\\(")
+        Node paren = (Node) Choose(Pat("\\(").then(Pat("a", it -> it)), Pat("\\(").then(Pat("b", it -> it))).optimize();
+        assert paren.kind == Node.Kind.Seq && "b".equals(result(paren, "(b"));
+        // 中间的分支可能和 id 开头的分支同时成功, 不能越过去
+        Rule overlap = Choose(Seq(id, Pat("=", it -> it), Pair::new), Pat("[a-z]<", it -> "overlap"), Seq(id, Pat("<", it -> it), (x, y) -> y + "" + x));
+        assert ((Node) overlap.optimize()).rules.length == 3 && "overlap".equals(result(overlap.optimize(), "x<"));
+
+        // 左递归的 Memo 保留原来的 id
+        assert "(-, (-, 1, 2), 3)".equals(String.valueOf(result(LEFT_REC.over(EOF()).optimize(), "1 - 2 - 3")));
+    }
+
+    static void test_first() {
+        assert "[-0123456789]".equals(FirstSet.regex((Pattern) ((Node) JSON1.jNum).arg).toString());
+        assert FirstSet.regex(Pattern.compile("(?i)null")).contains('N');
+        assert FirstSet.regex(Pattern.compile("\\s*\\]")).contains(']');
+        // 范围的两头可以是转义
+        assert "[\\x09\\x0a\\x0b\\x0c\\x0d]".equals(FirstSet.regex(Pattern.compile("[\\t-\\r]")).toString());
+        assert "[ !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~\\x7f…]"
+                .equals(FirstSet.regex(Pattern.compile("[^\\x00-\\x1f]")).toString());
+        assert FirstSet.regex(Pattern.compile("[^\\p{L}]")).contains('1');
+        // 分派表第二次才建, 前后结果要一样
+        Rule printable = Choose(Pat("q"), Pat("[^\\x00-\\x1f]+", it -> it));
+        for (int i = 0; i < 3; i++) {
+            assert printable.recognize("-abc") == -1;
+        }
+
+        // 随机的字符类, 只要求是 java.util.regex 的超集
+        Random rnd = new Random(42);
+        String chars = "\0\t\n\r -09AZaz\u007f\u00e9\u6c49\ud83c";
+        for (int k = 0; k < 5000; k++) {
+            String re = randomClass(rnd) + (rnd.nextBoolean() ? "" : "*") + (rnd.nextBoolean() ? "" : randomClass(rnd));
+            Pattern ptn;
+            try {
+                ptn = Pattern.compile(re, rnd.nextInt(4) == 0 ? Pattern.CASE_INSENSITIVE : 0);
+            } catch (PatternSyntaxException e) {
+                continue;
+            }
+            FirstSet first = FirstSet.regex(ptn);
+            for (char c : chars.toCharArray()) {
+                Matcher m = ptn.matcher(String.valueOf(c));
+                assert !m.lookingAt() || (m.end() == 0 ? first.empty() : first.contains(c)) : re + " " + (int) c + " " + first;
+            }
+        }
+        assert Node.first(JSON1.jValue, new HashSet<>()).contains('{');
+        // 左递归回到自己, 不知道, 总要尝试
+        assert Node.first(LEFT_REC, new HashSet<>()).empty();
+
+        // 下一个字符不可能匹配的分支不尝试 (第一次用的时候还没建表)
+        int[] calls = {0};
+        Rule ab = Choose(Thunk(() -> { calls[0]++; return Pat("a", it -> it); }), Pat("b", it -> it), Pat("", it -> "empty"));
+        assert "b".equals(result(ab, "b")) && "b".equals(result(ab, "b"));
+        calls[0] = 0;
+        assert "b".equals(result(ab, "b")) && "empty".equals(result(ab, "c")) && "empty".equals(result(ab, ""));
+        assert calls[0] == 0;
+        assert "a".equals(result(ab, "a")) && calls[0] == 1;
+        // Many 每个元素回到同一个 Choose, 也按下一个字符分派
+        Rule as = Many(Thunk(() -> { calls[0]++; return Pat("a", it -> it); }));
+        assert "[a, a]".equals(String.valueOf(result(as, "aab")));
+        calls[0] = 0;
+        assert "[a, a]".equals(String.valueOf(result(as, "aab"))) && calls[0] == 2;
+
+        // 仍然是有序选择
+        Rule a = Choose(Pat("a", it -> it), Pat("ab", it -> it));
+        for (int i = 0; i < 2; i++) {
+            assert "a".equals(result(a, "ab"));
+        }
+    }
+
+    // 覆盖每种组合子, GrammarProcessor 生成 CombinatorsParser
+    @Grammar
+    interface Combinators {
+        Rule num = Pat("\\d+", Integer::parseInt);
+        Rule abc = Choose(Pat("a"), Pat("b", s -> s), Pat("c"));
+        Rule list = Between(Pat("\\["), Pat("\\]"), SepBy(num, Pat(",")));
+        Rule endBy = num.endBy1(Pat(";"));
+        Rule sepEndBy = num.sepEndBy(Pat(","));
+        Rule sepEndBy1 = SepEndBy1(num, Pat(","));
+        Rule manyTill = AnyChar().manyTill(Pat(";"));
+        Rule chainl = Chainl(num, Pat("\\+"), 0, (op, x, y) -> (Integer) x + (Integer) y);
+        Rule chainr = num.chainr1(Pat("\\^", s -> s), (op, x, y) -> "(" + x + op + y + ")");
+        Rule count = Count(Pat("[a-z]", s -> s), 3).over(Pat("\\d*"));
+        Rule keyword = Pat("let", s -> s).over(NotFollowedBy(Pat("[a-z]", s -> s)));
+        Rule peek = Pat("a").then(Pat("b", s -> s).peek()).many1();
+        Rule skip = SkipMany1(Pat("\\s")).then(Optional(Pat("x", s -> s))).or(Return("none"));
+        Rule leftRec = Memo(Choose(
+                Seq(Thunk(() -> Combinators.leftRec), Pat("\\s*-\\s*"), num, (l, op, r) -> new Triple("-", l, r)),
+                num
+        ));
+        Rule nested = parens(parens(num)).or(parens(Thunk(() -> Combinators.nested)));
+        Rule flatMap = Pat("\\d", Integer::parseInt).flatMap(n -> Count(AnyChar(), (Integer) n));
+        Rule opaque = Pat("<").then((s, m, f) -> m.apply(s.to(s.pos + 1), "opaque"));
+
+        static Rule parens(Rule rule) {
+            return Between(Pat("\\("), Pat("\\)"), rule);
+        }
+    }
+
+    // 成功: 结果和结束位置, 失败: 交给 onFail 的位置和报错
+    static String outcome(Rule rule, String src) {
+        String[] ref = new String[1];
+        rule.match(src, (s, r) -> ref[0] = r + " @" + s.pos, (s, r) -> ref[0] = "fail@" + s.pos + " " + r);
+        return ref[0];
+    }
+
+    // 解释执行的 Choose 第一次用挨个试, 之后才按 FIRST 集分派, 和生成的 parser 比第二次的报错
+    static void sameOutcome(Rule interpreted, Rule generated, String... srcs) {
+        for (String src : srcs) {
+            outcome(interpreted, src);
+            String expected = outcome(interpreted, src);
+            assert expected.equals(outcome(generated, src)) : src + "\n" + expected + "\n" + outcome(generated, src);
+        }
+    }
+
+    static int dfa(String re, String src) {
+        return DFA.compile(Pattern.compile(re)).match(src, 0, src.length());
+    }
+
+    static String randomClass(Random rnd) {
+        String[] ends = { "a", "z", "A", "0", "9", "-", " ", "\\-", "\\t", "\\r", "\\n", "\\x00", "\\x1f", "\\x7f", "\\x{e9}",
+                "\\u0041", "\\u005A", "\\u00e9", "\\0101", "\\cA", "\\e" };
+        String[] classes = { "\\d", "\\W", "\\s", "\\p{L}", "\\h" };
+        StringBuilder buf = new StringBuilder(rnd.nextBoolean() ? "[" : "[^");
+        for (int n = rnd.nextInt(3) + 1; n > 0; n--) {
+            switch (rnd.nextInt(3)) {
+                case 0: buf.append(ends[rnd.nextInt(ends.length)]); break;
+                case 1: buf.append(ends[rnd.nextInt(ends.length)]).append('-').append(ends[rnd.nextInt(ends.length)]); break;
+                default: buf.append(classes[rnd.nextInt(classes.length)]); break;
+            }
+        }
+        return buf.append(']').toString();
+    }
+
+    // 随机的正则和输入, 和 java.util.regex 比
+    static String randomRegex(Random rnd, int depth) {
+        String[] atoms = { "a", "b", "[ab]", ".", "[^a]", "\\d", "(?i:A)", "\\Qa.\\E" };
+        String[] quants = { "", "", "*", "+", "?", "*?", "+?", "??", "{2}", "{1,2}", "{0,2}?" };
+        StringBuilder buf = new StringBuilder();
+        for (int n = rnd.nextInt(3) + 1; n > 0; n--) {
+            switch (depth > 2 ? 0 : rnd.nextInt(6)) {
+                case 1: buf.append('(').append(randomRegex(rnd, depth + 1)).append(')'); break;
+                case 2: buf.append("(?:").append(randomRegex(rnd, depth + 1)).append("|)"); break;
+                case 3: buf.append("(?=").append(randomRegex(rnd, depth + 1)).append(')'); break;
+                case 4: buf.append("(?!").append(randomRegex(rnd, depth + 1)).append(')'); break;
+                default: buf.append(atoms[rnd.nextInt(atoms.length)]); break;
+            }
+            buf.append(quants[rnd.nextInt(quants.length)]);
+        }
+        return rnd.nextInt(5) == 0 ? buf + "|" + randomRegex(rnd, depth + 1) : buf.toString();
+    }
+
+    static void test_dfa() {
+        // 同回溯的第一个匹配, 不是最长匹配
+        assert dfa("a|ab", "ab") == 1 && DFA.compile(Pattern.compile("a|ab")).longest("ab", 0, 2) == 2;
+        assert dfa("(a|ab)(c|bcd)", "abcd") == 4;
+        assert dfa("a*?b|a", "aab") == 3 && dfa("a+?", "aaa") == 1;
+        // 零宽的迭代退出循环, 同 Pattern.Loop
+        assert dfa("(|a)*", "aa") == 0 && dfa("(a|)*", "aa") == 2 && dfa("(a?)*b", "aab") == 3;
+        // 前瞻
+        String num = "-?(?=[1-9]|0(?!\\d))\\d+(\\.\\d+)?([eE][+-]?\\d+)?";
+        assert dfa(num, "-12.5e3,") == 7 && dfa(num, "0") == 1 && dfa(num, "01") == -1 && dfa(num, "-") == -1;
+        assert dfa("a(?!b)", "ab") == -1 && dfa("a(?=b)", "ab") == 1;
+        // flags 和分组
+        assert dfa("((?i)(NOT))", "not") == 3 && dfa("(?i)n[a-c]", "NB") == 2 && dfa("((?i)a)a", "AA") == -1;
+        assert dfa("(?<key>\\w+)=\\Q[x]\\E", "k1=[x]") == 6;
+        // 代理对算一个字符
+        assert dfa(".", "🍺") == 2 && dfa("[^\"]*", "🍺\"") == 2 && dfa("\\W", "🍺") == 2;
+        // 不支持的退回 java.util.regex
+        for (String re : new String[] { "(?>a)", "a*+", "^a", "a$", "\\ba", "(a)\\1", "(?<=a)b", "[a-z&&[^b]]", "\\p{L}", "(a?){2}", "x(?i)y" }) {
+            assert DFA.compile(Pattern.compile(re)) == null : re;
+        }
+        assert DFA.compile(Pattern.compile("a", Pattern.COMMENTS)) == null;
+
+        Random rnd = new Random(42);
+        String alphabet = "abA1.\n🍺";
+        for (int k = 0; k < 2000; k++) {
+            Pattern ptn = Pattern.compile(randomRegex(rnd, 0), rnd.nextBoolean() ? Pattern.DOTALL : 0);
+            DFA d = DFA.compile(ptn);
+            if (d == null) {
+                continue; // e.g. 可空的循环体带计数
+            }
+            for (int t = 0; t < 5; t++) {
+                StringBuilder buf = new StringBuilder();
+                for (int n = rnd.nextInt(8); n > 0; n--) {
+                    buf.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+                }
+                String src = buf.toString();
+                int from = rnd.nextInt(src.length() + 1);
+                assert d.match(src, from, src.length()) == DFA.lookingAt(ptn, src, from, src.length()) : ptn + " " + src + " " + from;
+            }
+        }
+
+        // Pat 自动选 DFA, 结果和报错同 java.util.regex
+        Rule jStr = Pat("\"([^\"\\\\]*|\\\\[\"\\\\bfnrt\\/]|\\\\u[0-9a-f]{4})*\"", it -> it);
+        assert "\"a\\\"b\"".equals(result(jStr, "\"a\\\"b\"")) && "fail@0".equals(result(jStr, "\"a"));
+    }
+
+    // 喂给 Combinators 里每个 rule 的输入
+    String[] combinatorSrcs = {
+            "", "1", "12,3,", "1,2", "[]", "[1,2]", "[1,]", "1;2;", "1;2", "abc;d", "abc", "1+2+", "2^3^4", "2^",
+            "abcd", "abc9", "ab", "let", "lets", "let1", "ababac", "a", "b", "c", "d", "  x", " ", "1 - 2 - 3", "7 -",
+            "((1))", "((1)", "(((((2)))))", "3xyz", "3xy", "<>", "<"
+    };
+
+    static void test_grammar() throws Exception {
+        for (java.lang.reflect.Field f : Combinators.class.getFields()) {
+            sameOutcome((Rule) f.get(null), (Rule) CombinatorsParser.class.getField(f.getName()).get(null), combinatorSrcs);
+        }
+
+        String large = Utils.resource("/large.json").trim();
+        sameOutcome(JSON1.JSONParser, JSON1Parser.JSONParser,
+                "null", "true", "-12345.123E23", "\"123Hello\\t🍺\"", "[1, [], [1], [1, 2], [1, 2, 3]]",
+                "{}", "{\"k1\":1, \"k2\":2}", "", large, "{\"a\":}", "[12,,1]", "[12,]", "[1 2]", "{\"a\" 1}", "nul");
+        sameOutcome(Criteria1.CriteriaGrammar, Criteria1Parser.CriteriaGrammar,
+                "id > 1 or id < 2 and id = 3 or id > 5", "a > 1 or (b < 2 and not c >= 3) and not d < 4",
+                "id not in(1,2)", "(((  (   (((id = 2))) and b < 1   ) or (c in (1)) and name = 'xiaofeng')))",
+                "i between 10 and 20", "a is not null", "x in (42, 3.14, null, 'str')", VMBench.criteria(20));
+        sameOutcome(Calculator1.calculate, Calculator1Parser.calculate, "4 * (1 + 2) / 6", "1 + 2 * 3", "(1", "1 +");
+
+        // 嵌套太深回到解释执行, 不会 StackOverflowError
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 200000; i++) deep.append('[');
+        String unclosed = deep.toString();
+        for (int i = 0; i < 200000; i++) deep.append(']');
+        sameOutcome(JSON1.JSONParser, JSON1Parser.JSONParser, unclosed, deep.substring(0, 1200) + deep.substring(398800));
+        JSON1Parser.JSONParser.match(deep.toString(), (s, r) -> {
+            int depth = 0;
+            for (Object it = r; it instanceof List && !((List<?>) it).isEmpty(); it = ((List<?>) it).get(0)) depth++;
+            assert s.pos == 400000 && depth == 199999;
+        }, onFail);
+
+        // 生成的 Rule 可以和解释执行的组合
+        assert "[1, 2]".equals(String.valueOf(result(Many(JSON1Parser.jNum.over(Pat(",?"))), "1,2")));
+    }
+
+    // 识别模式: 成功失败, 失败的位置都和完整解析一样; 语法里不再有 map, 建 list 的组合子, 要文本的 Pat
+    static void test_recognize() throws Exception {
+        for (java.lang.reflect.Field f : Combinators.class.getFields()) {
+            Rule rule = (Rule) f.get(null), recognizer = rule.recognizer();
+            for (String src : combinatorSrcs) {
+                assert rule.recognize(src) == recognizer.recognize(src) : f.getName() + " " + src;
+            }
+        }
+        assert !buildsResult(Combinators.manyTill.recognizer(), new HashSet<>());
+        assert !buildsResult(Combinators.sepEndBy.recognizer(), new HashSet<>());
+        assert !buildsResult(Combinators.chainr.recognizer(), new HashSet<>());
+        // AnyChar 只消耗一个 char, 代理对的一半, 换行也一样
+        Rule half = Seq(AnyChar(), Pat("\uDE00"), First);
+        assert half.recognize("\uD83D\uDE00") == -1 && half.recognizer().recognize("\uD83D\uDE00") == -1;
+        assert AnyChar().recognizer().recognize("\n") == -1 && AnyChar().recognizer().recognize("") == 0;
+        // flatMap 要结果, 原样保留
+        assert buildsResult(Combinators.flatMap.recognizer(), new HashSet<>());
+
+        String large = Utils.resource("/large.json").trim();
+        Rule json = JSON1.JSONParser.recognizer();
+        assert !buildsResult(json, new HashSet<>());
+        for (String src : new String[] { "null", "[1, [], [1], [1, 2]]", "{\"k1\":1, \"k2\":2}", "", large,
+                "{\"a\":}", "[12,,1]", "[12,]", "[1 2]", "{\"a\" 1}", "nul" }) {
+            assert JSON1.JSONParser.recognize(src) == json.recognize(src) : src;
+        }
+        assert json.recognize(large) == -1;
+        Object[] ref = new Object[1];
+        JSON1.JSONParser.match("[12,,1]", (s, r) -> { }, (s, r) -> ref[0] = r);
+        assert json.recognize("[12,,1]") == ((ParseException) ref[0]).pos;
+        String expr = VMBench.criteria(20);
+        assert Criteria1.CriteriaGrammar.recognizer().recognize(expr) == -1;
+        assert Criteria1.CriteriaGrammar.recognize(expr + " and") == Criteria1.CriteriaGrammar.recognizer().recognize(expr + " and");
+        // 识别出来的语法没有闭包, 虚拟机照样能编译
+        assert ParsecVM.compile(json).recognize(large);
+    }
+
+    // 语法里还有没有建结果的节点: map, flatMap, 建 list 的组合子, 要文本的 Pat, 用到结果的 Seq
+    @SuppressWarnings("unchecked")
+    static boolean buildsResult(Rule rule, Set<Rule> seen) {
+        if (!(rule instanceof Node) || !seen.add(rule)) {
+            return false;
+        }
+        Node node = (Node) rule;
+        switch (node.kind) {
+            case Map:
+            case FlatMap:
+            case Many:
+            case SepEndBy:
+            case SepEndBy1:
+            case Chainl1:
+            case Chainr1:
+            case ManyTill:
+                return true;
+            case Pat:
+                return node.mapper != Ignore;
+            case AnyChar:
+                return node.arg != Ignore;
+            case Seq:
+                if (node.mapper != First && node.mapper != Second && node.mapper != Middle) {
+                    return true;
+                }
+                break;
+            case Thunk:
+                return buildsResult(((java.util.function.Supplier<Rule>) node.arg).get(), seen);
+        }
+        return Arrays.stream(node.rules).anyMatch(it -> buildsResult(it, seen));
+    }
+
     static void main(String[] args) throws Exception {
         for (Method it : TestParsec1.class.getDeclaredMethods()) {
             if (it.getName().startsWith("test_")) {
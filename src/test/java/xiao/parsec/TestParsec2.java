@@ -3,10 +3,17 @@ package xiao.parsec;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.joining;
@@ -30,6 +37,20 @@ public interface TestParsec2 {
     static void assertNotEquals(Object a, Object b) { assert !Objects.equals(a, b); }
     static void assertArrayEquals(Object[] a, Object[] b) { assert Arrays.equals(a, b); }
 
+    static String error(Parsec2<?, Character> p, String src) {
+        return errorOf(p, new Sequence<>(src));
+    }
+
+    static String errorOf(Parsec2<?, Character> p, Sequence<Character> s) {
+        return p.tryParse(s) == FAIL ? s.failure().getMessage() : null;
+    }
+
+    // optimize 之后的节点当作字符上的 parsec 用
+    @SuppressWarnings("unchecked")
+    static Parsec2<?, Character> chars(Node<?, ?> node) {
+        return (Parsec2<?, Character>) node;
+    }
+
 
     static void main(String[] args) throws Exception {
         TestUtils.runMainWithEnableAssert(TestParsec2.class, args, n -> n.startsWith(TestParsec2.class.getPackage().getName()));
@@ -57,6 +78,86 @@ public interface TestParsec2 {
         } catch (ParsecException ignored) { }
     }
 
+    static void test_charClass() {
+        // 位图和原来的判断逐个字符对一遍
+        String set = "[]{}:,\"\\ \t汉字￿";
+        CharClass in = CharClass.of(set), none = CharClass.none(set), letter = CharClass.of(Character::isLetter);
+        for (int c = 0; c <= 0xFFFF; c++) {
+            assert in.test(c) == set.indexOf(c) >= 0;
+            assert none.test(c) == set.indexOf(c) < 0;
+            assert letter.test(c) == Character.isLetter(c);
+        }
+        assert FirstSet.of(CharClass.of(",:")).disjoint(FirstSet.of(CharClass.of("[{")));
+        assert !FirstSet.of(CharClass.of("a汉")).disjoint(FirstSet.of(CharClass.of("b字")));
+
+        // 转义的标点也是字面量
+        assertEquals("[", Fused.literal(Pattern.compile("\\[")));
+        assertEquals("a.b{", Fused.literal(Pattern.compile("a\\.b\\{")));
+        assertEquals("\\", Fused.literal(Pattern.compile("\\\\")));
+        assert Fused.literal(Pattern.compile("\\d")) == null && Fused.literal(Pattern.compile("(a)\\1")) == null;
+
+        assertEquals("ab", Str("ab").parse("abc"));
+        assertEquals("at 0 Expect \\Qab\\E", error(Str("ab"), "ac"));
+        assertEquals("at 0 Expect \\Qab\\E", error(Str("ab"), "a"));
+        assertEquals("[", Pat("\\[").parse("[1]"));
+        assertEquals("[1]", Seq(ChIn("[{"), Digit, ChNone("}"), (a, b, c) -> "" + a + b + c).parse("[1]"));
+        assertEquals("at 0 Not satisfy: }", error(ChIn("[{"), "}"));
+        assertEquals('字', ChNone("汉").parse("字"));
+
+        Parsec1.Rule str1 = Parsec1.Rules.Str("a.b").then(Parsec1.Rules.Pat("\\[", s -> s));
+        Object[] ref = new Object[1];
+        str1.match("a.b[", (s, r) -> ref[0] = r, (s, r) -> { throw new RuntimeException(r + ""); });
+        assertEquals("[", ref[0]);
+        str1.match("axb[", (s, r) -> { throw new Error(); }, (s, r) -> ref[0] = null);
+        assert ref[0] == null;
+    }
+
+    static void test_span() {
+        String src = "x-1234567890123456789,+42,汉字";
+        Span sp = new Span(src, 1, 21);
+        assertEquals(-1234567890123456789L, sp.toLong());
+        assertEquals(42L, new Span(src, 22, 25).toLong());
+        assertEquals("汉字", new Span(src, 26, 28).toString());
+        assertEquals("汉字".hashCode(), new Span(src, 26, 28).hashCode());
+        assertEquals(new Span("汉字"), new Span(src, 26, 28));
+        assertEquals("12", sp.subSequence(1, 3).toString());
+        assertEquals(2, sp.indexOf('2'));
+        assert sp.contentEquals("-1234567890123456789");
+        for (String bad : new String[] { "", "-", "1a", "99999999999999999999" }) {
+            try {
+                new Span(bad).toLong();
+                throw new Error();
+            } catch (NumberFormatException ignored) { }
+        }
+        assertEquals(Long.MIN_VALUE, new Span(String.valueOf(Long.MIN_VALUE)).toLong());
+        assertEquals(1.5e3, new Span("1.5e3").toDouble());
+        String quoted = "\"a\\tb\\\"c\\u0041\"";
+        assertEquals(Utils.unEscape(quoted.substring(1, quoted.length() - 1), '"'), Utils.unEscape(quoted, 1, quoted.length() - 1, '"'));
+        assertEquals("a\tb\"c\\u0041", Utils.unEscape(quoted, 1, quoted.length() - 1, '"'));
+
+        // DFA, 字面量, java.util.regex 三条路, 结果都是原输入上的 Span
+        for (String re : new String[] { "\\d+", "12", "(\\d)\\1?2" }) {
+            Span r = Seq(SkipPat("\\s*"), PatSpan(re), (a, b) -> {
+                assert a == null;
+                return b;
+            }).parse("  12");
+            assert r.start == 2 && r.end == 4 && r.contentEquals("12");
+        }
+
+        // Parsec1: 直接匹配和合并成一个正则之后结果一样
+        Parsec1.Rule num = Parsec1.Rules.PatSpan("\\d+", Span::toLong);
+        Parsec1.Rule pair = Parsec1.Rules.Seq(num, Parsec1.Rules.Pat(","), num, (a, b, c) -> (long) a + (long) c);
+        for (Parsec1.Rule rule : new Parsec1.Rule[] { pair, pair.optimize() }) {
+            Object[] ref = new Object[1];
+            rule.match("12,30", (s, r) -> ref[0] = r, (s, r) -> { throw new RuntimeException(r + ""); });
+            assertEquals(42L, ref[0]);
+        }
+        Parsec.Rule num0 = Parsec.Rules.PatSpan("\\d+", s -> new Parsec.StrRet(s.toString()));
+        Object[] ref = new Object[1];
+        num0.match("12x", (s, r) -> ref[0] = r, (s, r) -> { throw new RuntimeException(r + ""); });
+        assertEquals("12", ref[0].toString());
+    }
+
 
 
     interface Expr {
@@ -516,6 +617,525 @@ public interface TestParsec2 {
         assertEquals("1234ab", Regex("\\d+").flatMap(v -> s -> v.group() + Str("ab").parse(s)).parse("1234ab"));
     }
 
+    static void testSentinel() {
+        Sequence<Character> s = new Sequence<>("hello");
+        Object r = Choose(Str("world"), Ch('x')).tryParse(s);
+        assert r == FAIL;
+        assertEquals(0, s.index());
+        // 同一位置保留先到的失败
+        assert s.failure().getMessage().contains("world");
+
+        // EOF 不抛异常, 需要时给出原来的 EOFException
+        Sequence<Character> s1 = new Sequence<>("");
+        assert Any(TypeRef.Char).tryParse(s1) == FAIL;
+        assert s1.failure() == EOFException.EOF;
+
+        // 手写的 parser 抛的异常, 在组合子里当作失败
+        Parsec2<Character, Character> thrower = s2 -> { throw s2.trap("boom"); };
+        assertEquals(Optional.empty(), Optional(thrower).parse("a"));
+        try {
+            Ch('a').then(thrower).parse("a");
+            throw new Error();
+        } catch (ParsecException e) {
+            assert e.getMessage().contains("boom");
+        }
+
+        // 结果是 List 的组合子失败时也返回 FAIL, 不 checkcast, 在 Choose 里可以回溯
+        assertEquals(null, Count(Ch('a'), 2).or(Return(null)).parse("ab"));
+        assertEquals(null, ManyTill(Ch('a'), Ch(';')).or(Return(null)).parse("aab"));
+        Sequence<Character> s3 = new Sequence<>("ab");
+        assert Count(Ch('a'), 2).tryParse(s3) == FAIL && s3.failure().getMessage().contains("a");
+        s3 = new Sequence<>("aab");
+        assert ManyTill(Ch('a'), Ch(';')).tryParse(s3) == FAIL;
+    }
+
+    static void testCharSequence() {
+        // 字符输入不装箱, token 流仍然走 List
+        Parsec2<String, Character> p = Many1(Choose(Digit, Ch('.'))).map(Join());
+        assertEquals("3.14", p.parse(new Sequence<>("3.14".toCharArray())));
+        assertEquals("3.14", p.parse(new Sequence<>(new StringBuilder("3.14x"))));
+        assertEquals("3.14", p.parse(new Sequence<>(Sequence.chars("3.14"))));
+
+        Sequence<Character> s = new Sequence<>("ab");
+        assertEquals((int) 'a', s.tryNextChar());
+        assertEquals('b', s.next());
+        assertEquals(-1, s.tryNextChar());
+        assert s.failure() == EOFException.EOF;
+    }
+
+    static void testPackrat() {
+        String[] exprs = {
+                "(a is true or b is not null) and x in (42, 3.14, null, 'str') or i >= 42 or a != 'Hello' and i between 10 and 20",
+                "a > 1 or (b < 2 and not c >= 3) and not d < 4",
+                "(((  (   (((id = 2))) and b < 1   ) or (c in (1)) and name = 'xiaofeng')))",
+        };
+        for (String expr : exprs) {
+            String expected = Criteria1.Parse(expr).toString();
+            assertEquals(expected, Criteria2.Parse(expr).toString());
+            assertEquals(expected, Criteria2.Parse(expr, 1 << 12).toString());
+            // 表很小, 一直淘汰也不影响结果
+            assertEquals(expected, Criteria2.Parse(expr, 4).toString());
+        }
+
+        Sequence<Character> s = new Sequence<Character>(exprs[0]).packrat(1 << 12);
+        Criteria2.CriteriaGrammar.parse(s);
+        // Factor 的分支失败后, 同一位置的 IdLiteral 直接命中
+        assert s.memo().hits > 0 && s.memo().evictions == 0;
+
+        Sequence<Character> s1 = new Sequence<Character>(exprs[0]).packrat(4);
+        Criteria2.CriteriaGrammar.parse(s1);
+        assert s1.memo().capacity() == 4 && s1.memo().evictions > 0;
+
+        // 失败也会记住, 重放后位置和原来一致
+        int[] calls = {0};
+        Parsec2<String, Character> ab = Str("ab").map(it -> { calls[0]++; return it; }).memo();
+        Parsec2<String, Character> p = Choose(ab.over(Ch('x')), ab.over(Ch('y')), Str("a"));
+        assertEquals("ab", p.parse(new Sequence<Character>("aby").packrat(16)));
+        assertEquals(1, calls[0]);
+        assertEquals("a", p.parse(new Sequence<Character>("ac").packrat(16)));
+        // 没开启 packrat 时 memo 不生效
+        calls[0] = 0;
+        assertEquals("ab", p.parse("aby"));
+        assertEquals(2, calls[0]);
+    }
+
+    static void testMemoProfile() {
+        String expr = "(a is true or b is not null) and x in (42, 3.14, null, 'str') or i >= 42 or a != 'Hello' and i between 10 and 20";
+        MemoProfile profile = new MemoProfile();
+        Criteria2.CriteriaGrammar.parse(new Sequence<Character>(expr).profile(profile));
+        Map<String, MemoProfile.Stats> stats = new HashMap<>();
+        for (MemoProfile.Stats st : profile.stats()) stats.put(st.name, st);
+
+        // Factor 的分支都从 IdLiteral 开始, 同一位置重入; 括号表达式里的 Operator 不会
+        assert stats.get("IdLiteral").repeats > 0;
+        assert stats.get("IdLiteral").calls > stats.get("IdLiteral").repeats;
+        assertEquals(0L, stats.get("Comma").repeats);
+
+        // 没有重入的规则不选
+        BitSet selected = profile.select();
+        assert !selected.get(stats.get("Comma").id);
+        // 查表不要钱时, 重入过的都值得记忆
+        assert profile.select(0).get(stats.get("IdLiteral").id);
+        // 查表比解析还贵时, 一个都不选
+        assert profile.select(Long.MAX_VALUE / (1L << 32)).isEmpty();
+
+        String expected = Criteria1.Parse(expr).toString();
+        assertEquals(expected, Criteria2.Parse(expr, 1 << 12, selected).toString());
+        assertEquals(expected, Criteria2.Parse(expr, 1 << 12, new BitSet()).toString());
+
+        // 只记忆选中的规则
+        BitSet idLiteral = new BitSet();
+        idLiteral.set(stats.get("IdLiteral").id);
+        Sequence<Character> s = new Sequence<Character>(expr).packrat(1 << 12, idLiteral);
+        Criteria2.CriteriaGrammar.parse(s);
+        assertEquals(stats.get("IdLiteral").repeats, s.memo().hits);
+
+        // 换一个输入, 重入从头统计, 次数累加
+        long calls = stats.get("IdLiteral").calls;
+        long repeats = stats.get("IdLiteral").repeats;
+        Criteria2.CriteriaGrammar.parse(new Sequence<Character>(expr).profile(profile));
+        assertEquals(2 * calls, stats.get("IdLiteral").calls);
+        assertEquals(2 * repeats, stats.get("IdLiteral").repeats);
+    }
+
+    static void testIncremental() {
+        // 先行断言看了 match 之后的字符, 编辑那里记忆要失效, 编辑更后面的字符记忆还能用
+        Parsec2<String, Character> p = Choose(Pat("a(?=b)").memo(), Pat("ac"));
+        Sequence<Character> s = new Sequence<Character>("abxx").incremental();
+        assertEquals("a", p.parse(s));
+        s = s.edit(3, 1, "y");
+        assertEquals("a", p.parse(s));
+        assertEquals(1L, s.incrementalMemo().hits);
+        s = s.edit(1, 1, "c");
+        assertEquals("ac", p.parse(s));
+
+        // 失败也一样, 0 后面的 1 改掉之后不能再用失败的记忆
+        Parsec2<String, Character> p1 = Choose(Pat("0(?!\\d)").memo(), Pat("01"));
+        s = new Sequence<Character>("01x").incremental();
+        assertEquals("01", p1.parse(s));
+        assertEquals("0", p1.parse(s.edit(1, 1, "y")));
+
+        // 用到的记忆里的失败要重放, 报错和全量重解析一样
+        String bad = "[1, {\"a\": tru}]";
+        s = new Sequence<Character>(bad).incremental();
+        assertEquals(error(JSON2.JSONParser, bad), errorOf(JSON2.JSONParser, s));
+        for (int i = 0; i < 2; i++) {
+            s = s.edit(1, 1, "2");
+            long hits = s.incrementalMemo().hits;
+            assertEquals(error(JSON2.JSONParser, "[2, {\"a\": tru}]"), errorOf(JSON2.JSONParser, s));
+            assert s.incrementalMemo().hits > hits;
+        }
+        s = s.edit(10, 3, "true");
+        assertEquals(null, errorOf(JSON2.JSONParser, s));
+        s = s.edit(15, 1, "");
+        assertEquals(error(JSON2.JSONParser, "[2, {\"a\": true}"), errorOf(JSON2.JSONParser, s));
+
+        String json = Utils.jsonArray(Utils.resource("/large.json").trim(), 3);
+        s = new Sequence<Character>(json).incremental();
+        assertEquals(JSON2.Parse(json), JSON2.JSONParser.parse(s).get());
+        // 在当前文本后半段找 e[0], 从它往后第 e[1] 个字符开始删 e[2] 个, 插入 e[3]
+        Object[][] jsonEdits = {
+                {"PersonnelObj", 3, 1, "X"},
+                {",", 1, 0, "  "},
+                {"\"add\": 0", 7, 1, "123"},
+                {"true", 0, 4, "false"},
+                {"}]", 1, 0, ",{}"},
+                {"[", 0, 0, " "},
+        };
+        for (Object[] e : jsonEdits) {
+            int offset = json.indexOf((String) e[0], json.length() / 2) + (int) e[1], deleted = (int) e[2];
+            String inserted = (String) e[3];
+            json = json.substring(0, offset) + inserted + json.substring(offset + deleted);
+            s = s.edit(offset, deleted, inserted);
+            long hits = s.incrementalMemo().hits;
+            assertEquals(JSON2.Parse(json), JSON2.JSONParser.parse(s).get());
+            assert s.incrementalMemo().hits > hits;
+        }
+
+        String expr = VMBench.criteria(20);
+        s = new Sequence<Character>(expr).incremental();
+        assertEquals(Criteria1.Parse(expr).toString(), Criteria2.CriteriaGrammar.parse(s).toString());
+        Object[][] criteriaEdits = {
+                {"42", 1, 1, "3"},
+                {"'str'", 0, 5, "'s', 1"},
+                {" and ", 0, 0, "  "},
+                {"is not null", 3, 4, ""},
+        };
+        for (Object[] e : criteriaEdits) {
+            int offset = expr.indexOf((String) e[0], expr.length() / 2) + (int) e[1], deleted = (int) e[2];
+            String inserted = (String) e[3];
+            expr = expr.substring(0, offset) + inserted + expr.substring(offset + deleted);
+            s = s.edit(offset, deleted, inserted);
+            long hits = s.incrementalMemo().hits;
+            assertEquals(Criteria1.Parse(expr).toString(), Criteria2.CriteriaGrammar.parse(s).toString());
+            assert s.incrementalMemo().hits > hits;
+        }
+    }
+
+    static void testPasses() {
+        Parsec2<Character, Character> a = Ch('a'), b = Ch('b'), c = Ch('c');
+
+        // a <|> b <|> c 拍平成一个节点
+        Node<?, ?> choose = (Node<?, ?>) a.or(b).or(c).optimize();
+        assert choose.kind == Node.Kind.Choose && choose.parsecs.length == 3;
+        assertEquals('c', chars(choose).parse("c"));
+
+        // map(f).map(g) 合并
+        Node<?, ?> map = (Node<?, ?>) Pat("\\d+").map(Integer::parseInt).map(i -> i + 1).optimize();
+        assert map.kind == Node.Kind.Map && ((Node<?, ?>) map.parsecs[0]).kind == Node.Kind.Regex;
+        assertEquals(43, chars(map).parse("42"));
+
+        // open.then(p).over(close) 变成 Between
+        Node<?, ?> between = (Node<?, ?>) Ch('(').then(a).over(Ch(')')).optimize();
+        assert between.kind == Node.Kind.Between && between.parsecs[1] == a;
+        assertEquals('a', chars(between).parse("(a)"));
+
+        // 公共前缀只解析一次: Choose(Seq(id, x), num, Seq(id, y)) -> Choose(num, Seq(id, Choose(x, y))), Between 的 open 也算前缀
+        int[] ids = {0};
+        Parsec2<String, Character> id = Pat("[a-z]+").map(it -> { ids[0]++; return it; });
+        Parsec2<String, Character> num = Pat("\\d+");
+        Node<?, ?> factored = (Node<?, ?>) Choose(Seq(id, Str("="), (x, y) -> x + y), num, Seq(id, Str("<"), (x, y) -> y + x)).optimize();
+        assert factored.kind == Node.Kind.Choose && factored.parsecs.length == 2 && factored.parsecs[0] == num;
+        assertEquals("<x", chars(factored).parse("x<"));
+        assertEquals(1, ids[0]);
+        assertEquals("x=", chars(factored).parse("x="));
+        Parsec2<Character, Character> open = Ch('(');
+        Node<?, ?> paren = (Node<?, ?>) Choose(Between(open, Ch(')'), a), Between(open, Ch(']'), b)).optimize();
+        assert paren.kind == Node.Kind.Seq;
+        assertEquals('b', chars(paren).parse("(b]"));
+        // 中间的分支可能和 id 开头的分支同时成功, 不能越过去
+        Parsec2<String, Character> overlap = Choose(Seq(id, Str("="), (x, y) -> x + y), Pat("[a-z]<").map(it -> "overlap"), Seq(id, Str("<"), (x, y) -> y + x)).optimize();
+        assert ((Node<?, ?>) overlap).parsecs.length == 3;
+        assertEquals("overlap", overlap.parse("x<"));
+
+        // 相邻的正则合并成一个, Between 两边不捕获; 失败时走原来的 parsec, 报错一样
+        Parsec2<String, Character> word = Pat("\\w+");
+        Parsec2<String, Character> quoted = Between(Str("'"), Str("'"), word);
+        Node<?, ?> fused = (Node<?, ?>) quoted.optimize();
+        assert fused.kind == Node.Kind.Regex && fused.mapper instanceof Fused;
+        assertEquals("(?>\\Q'\\E)(?>(\\w+))(?>\\Q'\\E)", ((Pattern) fused.arg).pattern());
+        assertEquals("abc", chars(fused).parse("'abc'"));
+        for (String src : new String[] { "'abc", "abc'", "''" }) {
+            assertEquals(error(quoted, src), error(chars(fused), src));
+        }
+        Parsec2<Integer, Character> kv = Seq(word, Str("="), Pat("\\d+").map(Integer::parseInt), (k, eq, v) -> k.length() + v);
+        assert ((Node<?, ?>) kv.optimize()).kind == Node.Kind.Regex;
+        assertEquals(45, kv.optimize().parse("abc=42"));
+        // Ch 按谓词判断, 看不到结构: 只合并相邻的两个正则
+        Node<?, ?> half = (Node<?, ?>) Between(Ch('('), Str(")"), Pat("\\d+")).optimize();
+        assert half.kind == Node.Kind.Seq && ((Node<?, ?>) half.parsecs[1]).kind == Node.Kind.Regex;
+        assertEquals("12", chars(half).parse("(12)"));
+
+        // 递归的语法, 优化前后结果一样
+        Parsec2<Optional<Object>, Character> json = JSON2.JSONParser.optimize();
+        String large = Utils.resource("/large.json").trim();
+        for (String src : new String[] { "null", "[1, [], [1, 2]]", "{\"k1\":1, \"k2\":[true]}", "", large }) {
+            assertEquals(JSON2.JSONParser.parse(src), json.parse(src));
+        }
+        for (String src : new String[] { "{\"a\":}", "[12,,1]", "[12,]" }) {
+            try {
+                json.parse(src);
+                throw new Error();
+            } catch (ParsecException ignored) { }
+        }
+
+        Parsec2<Object, Character> criteria = Criteria2.CriteriaGrammar.optimize();
+        String expr = VMBench.criteria(20);
+        assertEquals(Criteria1.Parse(expr).toString(), criteria.parse(expr).toString());
+
+        // Memo 保留原来的 id, 按原语法选出来的规则对优化后的语法照样生效
+        MemoProfile profile = new MemoProfile();
+        Criteria2.CriteriaGrammar.parse(new Sequence<Character>(expr).profile(profile));
+        Sequence<Character> s = new Sequence<Character>(expr).packrat(1 << 12, profile.select(0));
+        assertEquals(Criteria1.Parse(expr).toString(), criteria.parse(s).toString());
+        assert s.memo().hits > 0;
+
+        // Chainl1 是循环, 操作数再多也不会爆栈
+        StringBuilder buf = new StringBuilder("1");
+        for (int i = 0; i < 100000; i++) buf.append("+1");
+        Parsec2<Integer, Character> sum = Pat("\\d+").map(Integer::parseInt).chainl1(Ch('+'), new BiOperator<Integer, Character, Integer>() {
+            public Integer val(Integer v) { return v; }
+            public Integer app(Character op, Integer l, Integer r) { return l + r; }
+        });
+        assertEquals(100001, sum.parse(buf.toString()));
+    }
+
+    static void testJit() {
+        if (!ParsecJit.supported()) {
+            return;
+        }
+        Parsec2<Optional<Object>, Character> json = ParsecJit.compile(JSON2.JSONParser);
+        assert json.getClass().getName().startsWith(ParsecJit.class.getName() + "$Grammar");
+        Parsec2<Optional<Object>, Character> optimized = ParsecJit.compile(JSON2.JSONParser.optimize());
+        String large = Utils.resource("/large.json").trim();
+        for (String src : new String[] { "null", " [1, [], [1, 2]] ", "{\"k1\":1, \"k2\":[true]}", "", large }) {
+            assertEquals(JSON2.JSONParser.parse(src), json.parse(src));
+            assertEquals(JSON2.JSONParser.parse(src), optimized.parse(src));
+        }
+        // 失败信息也一样
+        for (String src : new String[] { "{\"a\":}", "[12,,1]", "[12,]", "[1, 2", "nul", "{\"a\" 1}" }) {
+            assertEquals(error(JSON2.JSONParser, src), error(json, src));
+        }
+
+        Parsec2<Object, Character> criteria = ParsecJit.compile(Criteria2.CriteriaGrammar);
+        String expr = VMBench.criteria(20);
+        assertEquals(Criteria1.Parse(expr).toString(), criteria.parse(expr).toString());
+        // Memo 保留 id, packrat 照样生效
+        Sequence<Character> s = new Sequence<Character>(expr).packrat(1 << 12);
+        assertEquals(Criteria1.Parse(expr).toString(), criteria.parse(s).toString());
+        assert s.memo().hits > 0;
+        // 展开成代码的正则也记 reach, 增量解析的结果和全量一样
+        s = new Sequence<Character>(large).incremental();
+        assertEquals(JSON2.Parse(large), json.parse(s).get());
+        String edited = large.replaceFirst("true", "false");
+        s = s.edit(large.indexOf("true"), 4, "false");
+        assertEquals(JSON2.Parse(edited), json.parse(s).get());
+        assert s.incrementalMemo().hits > 0;
+
+        // 有序选择, 循环, 前看, 手写的 parsec 原样调用
+        assertEquals("a", ParsecJit.compile(Choose(Str("a"), Str("ab"))).parse("ab"));
+        assertEquals("ab", ParsecJit.compile(Choose(Str("ab"), Str("a"))).parse("ab"));
+        assertEquals(Lists.of('a', 'a'), ParsecJit.compile(Many(Ch('a')).over(Str("b"))).parse("aab"));
+        assertEquals(Lists.of("1", "2"), ParsecJit.compile(Count(Pat("\\d"), 2)).parse("123"));
+        assertEquals("a", ParsecJit.compile(Str("a").over(LookAhead(Str("b")))).parse("ab"));
+        assertEquals(error(Str("a").over(NotFollowedBy(Str("b"))), "ab"), error(ParsecJit.compile(Str("a").over(NotFollowedBy(Str("b")))), "ab"));
+        Parsec2<String, Character> handWritten = s1 -> "x";
+        assertEquals("xx", ParsecJit.compile(Seq(handWritten, handWritten, (a, b) -> a + b)).parse(""));
+        // Chainl1 是循环, 操作数再多也不会爆栈
+        StringBuilder buf = new StringBuilder("1");
+        for (int i = 0; i < 100000; i++) buf.append("+1");
+        Parsec2<Integer, Character> sum = ParsecJit.compile(Pat("\\d+").map(Integer::parseInt).chainl1(Ch('+'), new BiOperator<Integer, Character, Integer>() {
+            public Integer val(Integer v) { return v; }
+            public Integer app(Character op, Integer l, Integer r) { return l + r; }
+        }));
+        assertEquals(100001, sum.parse(buf.toString()));
+        // 能展开的正则: 有序的顶层分支, 不回溯的量词; 失败信息和 reach 同 Regex
+        Parsec2<String, Character> scan = ParsecJit.compile(Pat("\\s*(true|fals)"));
+        assertEquals(" true", ParsecJit.compile(Pat("\\s*true|\\s*false")).parse(" true"));
+        assertEquals(" false", ParsecJit.compile(Pat("\\s*true|\\s*false")).parse(" false"));
+        assertEquals(error(Pat("[a-z]+\\d"), "abc!"), error(ParsecJit.compile(Pat("[a-z]+\\d")), "abc!"));
+        assertEquals("fals", scan.parse("fals"));
+        // 字符类范围的两头是转义, 展开的代码和解释执行一样
+        Parsec2<String, Character> ranges = Seq(Pat("[\\t-\\r]+"), Str("x"), (a, b) -> a + b);
+        Parsec2<String, Character> rangesCompiled = ParsecJit.compile(ranges);
+        for (String src : new String[] { "\n\nx", "-x", "\t\rx", "x", "\n-" }) {
+            assertEquals(error(ranges, src), error(rangesCompiled, src));
+        }
+        assertEquals("\n\u000bx", rangesCompiled.parse("\n\u000bx"));
+        assertEquals(error(Pat("[^\\x00-\\x1f]+"), "\n"), error(ParsecJit.compile(Pat("[^\\x00-\\x1f]+")), "\n"));
+        assertEquals("-a", ParsecJit.compile(Pat("[^\\x00-\\x1f]+")).parse("-a"));
+        // 补充平面的字符 java regex 当一个码点匹配, 展开的代码也一样
+        for (String re : new String[] { "\"[^\"]\"", "a?[^a]?b", "[^\"]+\"", "\\S+x" }) {
+            Parsec2<String, Character> pat = Pat(re), patCompiled = ParsecJit.compile(pat);
+            for (String src : new String[] { "\"\uD83D\uDE00\"", "\uD83D\uDE00b", "\uD83D\uDE00\uD83D\uDE00\"", "\uD83D\"", "\uD83D\uDE00x" }) {
+                assertEquals(error(pat, src), error(patCompiled, src));
+            }
+        }
+        assertEquals("\"\uD83D\uDE00\"", ParsecJit.compile(Pat("\"[^\"]\"")).parse("\"\uD83D\uDE00\""));
+    }
+
+    // 识别模式: 成功失败, 失败的位置都和完整解析一样; 语法里不再有 map, 建 list 的组合子, 要结果的正则
+    static void test_recognize() {
+        String large = Utils.resource("/large.json").trim();
+        Parsec2<Optional<Object>, Character> json = JSON2.JSONParser.recognizer();
+        assert !buildsResult(json, new HashSet<>());
+        for (String src : new String[] { "null", "[1, [], [1, 2]]", "{\"k1\":1, \"k2\":[true]}", "", large,
+                "{\"a\":}", "[12,,1]", "[12,]", "[1, 2", "nul", "{\"a\" 1}" }) {
+            assertEquals(JSON2.JSONParser.recognize(src), json.recognize(src));
+        }
+        assertEquals(-1, json.recognize(large));
+        try {
+            JSON2.JSONParser.parse("[12,,1]");
+            throw new Error();
+        } catch (ParsecException e) {
+            assertEquals(e.current, json.recognize("[12,,1]"));
+        }
+        // 已经优化 (合并过正则) 的语法也可以: 合并的正则不再取分组, 失败时交给原来的
+        assertEquals(-1, JSON2.JSONParser.optimize().recognizer().recognize(large));
+        assertEquals(JSON2.JSONParser.recognize("[1, 2"), JSON2.JSONParser.optimize().recognizer().recognize("[1, 2"));
+        Parsec2<String, Character> quoted = Between(Str("'"), Str("'"), Pat("\\w+"));
+        Node<?, ?> fused = (Node<?, ?>) quoted.optimize().recognizer();
+        assert fused.kind == Node.Kind.Regex && ((Fused) fused.mapper).value == null;
+        assertEquals(-1, chars(fused).recognize("'abc'"));
+        assertEquals(quoted.recognize("'abc"), chars(fused).recognize("'abc"));
+
+        Parsec2<Object, Character> criteria = Criteria2.CriteriaGrammar.recognizer();
+        String expr = VMBench.criteria(20);
+        assertEquals(-1, criteria.recognize(expr));
+        assertEquals(Criteria2.CriteriaGrammar.recognize(expr + " and"), criteria.recognize(expr + " and"));
+
+        BiOperator<Integer, String, Integer> plus = new BiOperator<Integer, String, Integer>() {
+            public Integer val(Integer v) { return v; }
+            public Integer app(String op, Integer l, Integer r) { return l + r; }
+        };
+        Parsec2<Integer, Character> num = Pat("\\d+").map(Integer::parseInt);
+        List<Parsec2<?, Character>> ps = Arrays.asList(
+                num.sepBy(Str(",")).between(Str("["), Str("]")),
+                num.sepEndBy1(Str(",")),
+                num.chainl1(Str("+"), plus),
+                num.chainr1(Str("^"), plus),
+                Any(TypeRef.Char).manyTill(Str(";")),
+                Count(Pat("[a-z]"), 3).over(Pat("\\d*")),
+                Pat("\\d").flatMap(n -> Count(Any(TypeRef.Char), Integer.parseInt(n))),
+                SkipMany1(Ch(' ')).then(Optional(Str("x"))),
+                Str("let").over(NotFollowedBy(Pat("[a-z]"))),
+                Str("a").then(LookAhead(Str("b"))).many1(),
+                Find(Str("x"))
+        );
+        String[] srcs = { "", "1", "12,3,", "1,2", "[]", "[1,2]", "[1,]", "1+2+", "2^3^4", "2^", "abc;d", "abc", "abcd",
+                "abc9", "ab", "let", "lets", "ababac", "  x", " ", "3xyz", "3xy", "yyx" };
+        for (Parsec2<?, Character> p : ps) {
+            Parsec2<?, Character> r = p.recognizer();
+            for (String src : srcs) {
+                assertEquals(p.recognize(src), r.recognize(src));
+            }
+        }
+        // 只有 flatMap 的前半部分要结果, 原样保留
+        assert buildsResult(ps.get(6).recognizer(), new HashSet<>());
+        assert !buildsResult(ps.get(4).recognizer(), new HashSet<>());
+
+        if (ParsecJit.supported()) {
+            Parsec2<Optional<Object>, Character> jit = ParsecJit.compile(json);
+            assertEquals(-1, jit.recognize(large));
+            assertEquals(json.recognize("{\"a\" 1}"), jit.recognize("{\"a\" 1}"));
+        }
+    }
+
+    // 语法里还有没有建结果的节点: map, flatMap, 建 list 的组合子, 要文本的正则, 用到结果的 Seq
+    @SuppressWarnings("unchecked")
+    static boolean buildsResult(Parsec2<?, ?> p, Set<Parsec2<?, ?>> seen) {
+        if (!(p instanceof Node) || !seen.add(p)) {
+            return false;
+        }
+        Node<?, ?> node = (Node<?, ?>) p;
+        switch (node.kind) {
+            case Map:
+            case FlatMap:
+            case Many:
+            case Count:
+            case Chainl1:
+            case Chainr1:
+            case ManyTill:
+                return true;
+            case Seq:
+                if (node.parsecs.length == 3 || node.mapper != Combinators.First && node.mapper != Combinators.Second) {
+                    return true;
+                }
+                break;
+            case Regex:
+                // 合并出来的正则: 各段都已经是 Ignore, 结果都是常量 null
+                if (node.mapper != Ignore && !(node.mapper instanceof Fused)) {
+                    return true;
+                }
+                break;
+            case Thunk:
+                return buildsResult(((Supplier<Parsec2<?, ?>>) node.arg).get(), seen);
+        }
+        return Arrays.stream(node.parsecs).anyMatch(it -> buildsResult(it, seen));
+    }
+
+    static void testFirstSet() {
+        assertEquals("[\"]", Node.first(JSON2.jStr, new HashSet<>()).toString());
+        assertEquals("[(ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz]", Node.first(Criteria2.CriteriaGrammar, new HashSet<>()).toString());
+        // \s* 可以不消耗字符, 后面的也算进来
+        FirstSet value = Node.first(JSON2.jValue, new HashSet<>());
+        assert value.contains(' ') && value.contains('[') && value.contains('-') && !value.contains(']') && !value.empty();
+
+        // 下一个字符不可能匹配的分支不尝试 (第一次用的时候还没建表)
+        int[] calls = {0};
+        Parsec2<String, Character> ab = Choose(Thunk(() -> { calls[0]++; return Str("a"); }), Str("b"), Return("empty"));
+        assertEquals("b", ab.parse("b"));
+        assertEquals("b", ab.parse("b"));
+        calls[0] = 0;
+        assertEquals("b", ab.parse("b"));
+        assertEquals("empty", ab.parse("c"));
+        assertEquals("empty", ab.parse(""));
+        assertEquals(0, calls[0]);
+        assertEquals("a", ab.parse("a"));
+        assertEquals(1, calls[0]);
+
+        // 仍然是有序选择; 都不可能时第一个分支报出失败
+        Parsec2<String, Character> a = Choose(Str("a"), Str("ab"), Str("x"));
+        for (int i = 0; i < 2; i++) {
+            assertEquals("a", a.parse("ab"));
+            Sequence<Character> s = new Sequence<>("hello");
+            assert a.tryParse(s) == FAIL && s.failure().getMessage().contains("Expect \\Qa\\E");
+        }
+
+        // 字符类范围的下界是转义, 分派表前后结果一样
+        Parsec2<String, Character> printable = Choose(Str("q"), Pat("[^\\x00-\\x1f]+"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("-abc", printable.parse("-abc"));
+        }
+
+        // 不是字符的输入不分派
+        Parsec2<Integer, Integer> ints = Choose(EQ(1), EQ(2));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(2, ints.parse(new Sequence<>(Arrays.asList(2, 3))));
+        }
+    }
+
+    static void testFarthestFailure() {
+        // 最后报告的是走得最远的失败, 不是最后一个分支的失败
+        Parsec2<String, Character> p = Choose(Seq(Str("ab"), Ch('c'), (a, b) -> a + b), Str("x"));
+        try {
+            p.parse("abd");
+            throw new Error();
+        } catch (ParsecException e) {
+            assertEquals(2, e.current);
+            assert e.getMessage().startsWith("at 2 ");
+        }
+    }
+
+    static void testNotFollowedBy() {
+        Parsec2<String, Character> let = Str("let").over(NotFollowedBy(Letter));
+        assertEquals("let", let.parse("let x"));
+        try {
+            let.parse("lets");
+            throw new Error();
+        } catch (ParsecException ignored) { }
+    }
+
     static void testOptional() {
         assertEquals(Optional.empty(), Optional(Ch('a')).parse("b"));
         assertEquals(Optional.of('a'), Optional(Ch('a')).parse("a"));
@@ -0,0 +1,72 @@
+package xiao.parsec;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Objects;
+
+import static xiao.parsec.Parsec3.*;
+import static xiao.parsec.Parsec3.CharParsers.*;
+import static xiao.parsec.Parsec3.Combinators.*;
+
+@SuppressWarnings("unused")
+public interface TestParsec3 {
+
+    static void assertEquals(Object a, Object b) { assert Objects.equals(a, b); }
+
+
+    static void main(String[] args) throws Exception {
+        TestUtils.runMainWithEnableAssert(TestParsec3.class, args, n -> n.startsWith(TestParsec3.class.getPackage().getName()));
+
+        for (Method it : TestParsec3.class.getDeclaredMethods()) {
+            if (it.getName().startsWith("test") || it.getName().endsWith("Test")) {
+                it.invoke(null);
+            } else {
+                System.out.println(it);
+            }
+        }
+    }
+
+
+
+    static void test_sentinel() {
+        // 结果是 List 的组合子失败时也返回 FAIL, 不 checkcast, 在 Choose 里可以回溯
+        assertEquals(null, Count(Ch('a'), 2).or(Return(null)).parse(new Sequence("ab")));
+        assertEquals(null, ManyTill(Ch('a'), Ch(';')).or(Return(null)).parse(new Sequence("aab")));
+        assertEquals(Arrays.asList('a', 'a'), ManyTill(Ch('a'), Ch(';')).parse(new Sequence("aa;")));
+        Sequence s = new Sequence("ab");
+        assert Count(Ch('a'), 2).tryParse(s) == FAIL && s.failure().getMessage().startsWith("at 1 ");
+        assert ManyTill(Ch('a'), Ch(';')).tryParse(new Sequence("aab")) == FAIL;
+    }
+
+    static void test_charClass() {
+        Parsec3<String> s3 = Choose(Str("ab"), Str("ac"));
+        assertEquals("ac", s3.parse(new Sequence("ac")));
+        Parsec3<Character> oneOf = OneOf(Arrays.asList('x', '汉'));
+        assertEquals('汉', oneOf.parse(new Sequence("汉")));
+        assert oneOf.tryParse(new Sequence("y")) == FAIL;
+        assertEquals('}', ChNone("[{").parse(new Sequence("}")));
+        assert Digit.tryParse(new Sequence("")) == FAIL;
+    }
+
+    static void test_chars() {
+        Sequence s = new Sequence("a汉");
+        assertEquals((int) 'a', s.tryNextChar());
+        assertEquals((int) '汉', s.tryNextChar());
+        assertEquals(-1, s.tryNextChar());
+
+        Parsec3<Span> ident = Combinators.<Span>SkipWhile(Character::isWhitespace)
+                .then(TakeWhile(Character::isLetterOrDigit));
+        assertEquals("abc1", ident.parse(new Sequence(" \t abc1 ")).toString());
+        assertEquals(0, ident.parse(new Sequence("")).length());
+        assertEquals('x', Any().parse(new Sequence("x")));
+        assertEquals('x', EQ('x').parse(new Sequence("x")));
+        assert NE('x').tryParse(new Sequence("x")) == FAIL;
+        assert Any().tryParse(new Sequence("")) == FAIL;
+    }
+
+    static void test_span() {
+        Parsec3<Span> p3 = SkipPat("\\s*").then(PatSpan("\\d+"));
+        Span r3 = p3.parse(new Sequence(" 42"));
+        assert r3.start == 1 && r3.toLong() == 42;
+    }
+}
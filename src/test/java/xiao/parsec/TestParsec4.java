@@ -152,6 +152,19 @@ public interface TestParsec4 {
         assertEquals('o', r = (r.state.next()));
     }
 
+    static void testState() {
+        // 状态不可变, 同一个状态可以反复解析; 同一输入同一位置的状态相等
+        Sequence<Character> s = new Sequence<>("hello world");
+        Result<String, Character> r1 = Str("hello").parse(s);
+        Result<String, Character> r2 = Str("hello").parse(s);
+        assert r1.succ && r2.succ;
+        assertEquals(r1.ret, r2);
+        assert r1.state.equals(r2.state) && r1.state != r2.state;
+        assert r1.state.offset() == 5 && r1.state.size() == 6;
+        assert !r1.state.equals(s);
+        assertEquals("world", Str(" ").then(Str("world")).parse(r1.state));
+    }
+
     // ========================================================================
 
 
@@ -297,12 +310,12 @@ public interface TestParsec4 {
 
     static void testSkip1_simpleStatus() {
         Sequence<Character> s = new Sequence<>(chars("left right left right"));
-        assert SkipMany1(Str("left ")).parse(s).state.buf.size() == "right left right".length();
+        assert SkipMany1(Str("left ")).parse(s).state.size() == "right left right".length();
     }
 
     static void testSkip1_statusMore() {
         Sequence<Character> state = new Sequence<>(chars("left left right right"));
-        assert SkipMany1(Str("left ")).parse(state).state.buf.size() == "right right".length();
+        assert SkipMany1(Str("left ")).parse(state).state.size() == "right right".length();
     }
 
     static void testSkip1_fail() {
@@ -312,22 +325,22 @@ public interface TestParsec4 {
 
     static void testSkip_oneSkip() {
         Sequence<Character> s = new Sequence<>(chars("hello World"));
-        assert SkipMany(EQ('h')).parse(s).state.buf.size() == "hello World".length() - 1;
+        assert SkipMany(EQ('h')).parse(s).state.size() == "hello World".length() - 1;
     }
 
     static void testSkip_stopAtStart() {
         Sequence<Character> s = new Sequence<>(chars("hello World"));
-        assert SkipMany(EQ('e')).parse(s).state.buf.size() == "hello World".length();
+        assert SkipMany(EQ('e')).parse(s).state.size() == "hello World".length();
     }
 
     static void testSkip_skipSpaces() {
         Sequence<Character> stase = new Sequence<>(chars("\t\t \thello World"));
-        assert SkipMany(ChIn(" \t")).parse(stase).state.buf.size() == "hello World".length();
+        assert SkipMany(ChIn(" \t")).parse(stase).state.size() == "hello World".length();
     }
 
     static void testSkip_skipNothing() {
         Sequence<Character> stase = new Sequence<>(chars("\nhello World"));
-        assert SkipMany(ChIn(" \t")).parse(stase).state.buf.size() == "\nhello World".length();;
+        assert SkipMany(ChIn(" \t")).parse(stase).state.size() == "\nhello World".length();;
     }
 
     static void SpaceTest() {
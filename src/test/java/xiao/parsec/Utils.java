@@ -13,24 +13,50 @@ public interface Utils {
         }
     }
 
+    // 把 json 复制 copies 份拼成数组, 用来测试输入规模翻倍时的耗时变化
+    static String jsonArray(String json, int copies) {
+        StringBuilder buf = new StringBuilder(json.length() * copies + copies + 1);
+        buf.append('[');
+        for (int i = 0; i < copies; i++) {
+            if (i > 0) buf.append(',');
+            buf.append(json);
+        }
+        return buf.append(']').toString();
+    }
+
 
     static String unEscape(String s, char quote) {
-        char[] a = s.toCharArray(), ss = new char[a.length];
-        int l = a.length, cnt = 0;
-        for (int i = 0; i < l; i++) {
-            char c = a[i];
-            if (c == quote && i + 1 < l) {
+        return unEscape(s, 0, s.length(), quote);
+    }
+
+    // 直接在原输入的 [from, to) 上反转义 (e.g. Span 去掉两边引号), 没有转义时只复制一次
+    static String unEscape(CharSequence s, int from, int to, char quote) {
+        int first = from;
+        while (first < to && s.charAt(first) != quote && s.charAt(first) != '\\') {
+            first++;
+        }
+        if (first == to) {
+            return s.subSequence(from, to).toString();
+        }
+        char[] ss = new char[to - from];
+        int cnt = 0;
+        for (int i = from; i < first; i++) {
+            ss[cnt++] = s.charAt(i);
+        }
+        for (int i = first; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == quote && i + 1 < to) {
                 // """"   ''''
-                char n = a[i + 1];
+                char n = s.charAt(i + 1);
                 if (n == quote) {
                     i++;
                     ss[cnt++] = quote;
                 } else {
                     ss[cnt++] = c;
                 }
-            } else if (c == '\\' && i + 1 < l) {
+            } else if (c == '\\' && i + 1 < to) {
                 // \' \" \\ \/ \t \r \n \b \f
-                char n = a[i + 1];
+                char n = s.charAt(i + 1);
                 i++;
                 if (n == quote) {
                     ss[cnt++] = quote;
@@ -0,0 +1,61 @@
+package xiao.parsec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsec1 闭包解释执行 vs 编译成 ParsecVM 指令执行 <br>
+ * ParsecVM 只做识别, 所以另外给闭包版本一个只识别不取结果的对照 (map 仍然会执行)
+ */
+@SuppressWarnings("WeakerAccess")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class VMBench {
+
+    static String json = Utils.resource("/large.json").trim();
+    static String criteria = criteria(100);
+
+    static String criteria(int n) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) buf.append(" or ");
+            buf.append("(a is true or b is not null) and x in (42, 3.14, null, 'str') ")
+                    .append("or i >= 42 or a != 'Hello' and not i between 10 and 20");
+        }
+        return buf.toString();
+    }
+
+    static final ParsecVM jsonVM = ParsecVM.compile(JSON1.JSONParser);
+    static final ParsecVM criteriaVM = ParsecVM.compile(Criteria1.CriteriaGrammar);
+
+    static boolean recognize(Parsec1.Rule rule, String src) {
+        boolean[] ok = new boolean[1];
+        rule.match(src, (s, r) -> ok[0] = true, (s, r) -> ok[0] = false);
+        return ok[0];
+    }
+
+    @Benchmark public Object json1() { return JSON1.Parse(json); }
+    @Benchmark public boolean json1Recognize() { return recognize(JSON1.JSONParser, json); }
+    @Benchmark public boolean json1VM() { return jsonVM.recognize(json); }
+
+    @Benchmark public Object criteria1() { return Criteria1.Parse(criteria); }
+    @Benchmark public boolean criteria1Recognize() { return recognize(Criteria1.CriteriaGrammar, criteria); }
+    @Benchmark public boolean criteria1VM() { return criteriaVM.recognize(criteria); }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(VMBench.class.getSimpleName())
+                .forks(1)
+                .warmupIterations(5)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(opt).run();
+    }
+}